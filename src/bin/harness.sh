@@ -0,0 +1,3 @@
+#!/usr/bin/env bash
+
+java -jar ../../target/harness.jar $@
@@ -0,0 +1,105 @@
+package com.letsdata.reader;
+
+import kafka.server.KafkaServerStartable;
+import org.apache.kafka.clients.admin.AdminClient;
+import org.apache.kafka.clients.admin.NewTopic;
+import org.apache.zookeeper.server.ServerCnxnFactory;
+import org.apache.zookeeper.server.ZooKeeperServer;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Properties;
+import java.util.stream.Stream;
+
+/**
+ * A single in-process kafka broker (and its zookeeper) on localhost for the local harness - PLAINTEXT, with the data in a
+ * temporary directory that is deleted on close. Read it with
+ * {@link KafkaReader#KafkaReader(String, String, KafkaReader.RecordDeserializer, Properties)} and the
+ * {@link #getBootstrapServers()}.
+ */
+public class EmbeddedKafkaBroker implements AutoCloseable {
+    private static final Logger logger = LoggerFactory.getLogger(EmbeddedKafkaBroker.class);
+
+    private static final int ZOOKEEPER_TICK_MILLIS = 500;
+    private static final int ZOOKEEPER_MAX_CONNECTIONS = 100;
+
+    private final Path dataDirectory;
+    private final ZooKeeperServer zooKeeperServer;
+    private final ServerCnxnFactory serverCnxnFactory;
+    private final KafkaServerStartable kafkaServer;
+    private final String bootstrapServers;
+
+    public EmbeddedKafkaBroker() {
+        try {
+            this.dataDirectory = Files.createTempDirectory("letsdata-harness-kafka");
+            File zooKeeperDirectory = dataDirectory.resolve("zookeeper").toFile();
+            this.zooKeeperServer = new ZooKeeperServer(zooKeeperDirectory, zooKeeperDirectory, ZOOKEEPER_TICK_MILLIS);
+            this.serverCnxnFactory = ServerCnxnFactory.createFactory(new InetSocketAddress("127.0.0.1", 0), ZOOKEEPER_MAX_CONNECTIONS);
+            serverCnxnFactory.startup(zooKeeperServer);
+
+            int port = getFreePort();
+            this.bootstrapServers = "127.0.0.1:" + port;
+            Properties brokerConfig = new Properties();
+            brokerConfig.put("broker.id", "0");
+            brokerConfig.put("listeners", "PLAINTEXT://" + bootstrapServers);
+            brokerConfig.put("log.dirs", dataDirectory.resolve("kafka").toString());
+            brokerConfig.put("zookeeper.connect", "127.0.0.1:" + serverCnxnFactory.getLocalPort());
+            // a single broker - the internal topics cannot be replicated
+            brokerConfig.put("offsets.topic.replication.factor", "1");
+            brokerConfig.put("offsets.topic.num.partitions", "1");
+            brokerConfig.put("transaction.state.log.replication.factor", "1");
+            brokerConfig.put("transaction.state.log.min.isr", "1");
+            brokerConfig.put("group.initial.rebalance.delay.ms", "0");
+            brokerConfig.put("auto.create.topics.enable", "false");
+            this.kafkaServer = KafkaServerStartable.fromProps(brokerConfig);
+            kafkaServer.startup();
+            logger.debug("started the embedded kafka broker at " + bootstrapServers);
+        } catch (IOException ex) {
+            throw new RuntimeException("Unexpected exception in starting the embedded kafka broker", ex);
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException("Interrupted in starting the embedded kafka broker", ex);
+        }
+    }
+
+    public String getBootstrapServers() {
+        return bootstrapServers;
+    }
+
+    public void createTopic(String topicName, int partitionCount) {
+        Properties adminConfig = new Properties();
+        adminConfig.put("bootstrap.servers", bootstrapServers);
+        try (AdminClient adminClient = AdminClient.create(adminConfig)) {
+            adminClient.createTopics(Collections.singleton(new NewTopic(topicName, partitionCount, (short) 1))).all().get();
+        } catch (Exception ex) {
+            throw new RuntimeException("Unexpected exception in creating the topic " + topicName, ex);
+        }
+    }
+
+    @Override
+    public void close() {
+        kafkaServer.shutdown();
+        kafkaServer.awaitShutdown();
+        serverCnxnFactory.shutdown();
+        zooKeeperServer.shutdown();
+        try (Stream<Path> pathStream = Files.walk(dataDirectory)) {
+            pathStream.sorted(Comparator.reverseOrder()).map(Path::toFile).forEach(File::delete);
+        } catch (IOException ex) {
+            logger.warn("could not delete the embedded kafka broker directory " + dataDirectory, ex);
+        }
+    }
+
+    private static int getFreePort() throws IOException {
+        try (ServerSocket serverSocket = new ServerSocket(0)) {
+            return serverSocket.getLocalPort();
+        }
+    }
+}
@@ -0,0 +1,428 @@
+package com.letsdata.reader;
+
+import com.amazonaws.services.kinesis.AbstractAmazonKinesis;
+import com.amazonaws.services.kinesis.model.*;
+import com.amazonaws.services.kinesis.model.Record;
+
+import java.math.BigInteger;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * An in-process stand-in for the kinesis service - ListShards, GetShardIterator, GetRecords, PutRecord(s), SplitShard
+ * and MergeShards over in-memory shards - so the readers can be run without AWS. Pass it to
+ * {@link KinesisReader#KinesisReader(com.amazonaws.services.kinesis.AmazonKinesis)}.
+ *
+ * - records are routed to the open shards by the md5 hash of the partition key, as kinesis does
+ * - SplitShard / MergeShards close the parent shards (a parent's iterator returns a null NextShardIterator once it has
+ *   been read to the end) and add child shards with the parent shard ids
+ * - getRecords is limited like kinesis - more than 5 calls / sec or 2 MB / sec per shard throw
+ *   ProvisionedThroughputExceededException. A per call latency and a random throttle probability simulate a busy service
+ * - shard iterators expire after 5 minutes
+ *
+ * Writes are not limited.
+ */
+public class FakeKinesis extends AbstractAmazonKinesis {
+    private static final long ITERATOR_EXPIRY_MILLIS = 5 * 60 * 1000;
+    private static final int MAX_GET_RECORDS_CALLS_PER_SECOND = 5;
+    private static final long MAX_READ_BYTES_PER_SECOND = 2 * 1024 * 1024;
+    private static final long MAX_GET_RECORDS_BYTES = 10 * 1024 * 1024;
+    private static final int MAX_GET_RECORDS_LIMIT = 10000;
+    private static final BigInteger MAX_HASH_KEY = BigInteger.ONE.shiftLeft(128).subtract(BigInteger.ONE);
+
+    private final Map<String, FakeStream> streamMap = new ConcurrentHashMap<>();
+    private final AtomicLong throttledCallCount = new AtomicLong();
+    private volatile long getRecordsLatencyMillis;
+    private volatile double throttleProbability;
+
+    /**
+     * Creates a stream with shardCount shards that split the hash key space evenly.
+     */
+    public void createStream(String streamName, int shardCount) {
+        FakeStream fakeStream = new FakeStream(streamName);
+        BigInteger shardHashKeyCount = MAX_HASH_KEY.divide(BigInteger.valueOf(shardCount));
+        for (int i = 0; i < shardCount; i++) {
+            BigInteger startingHashKey = shardHashKeyCount.multiply(BigInteger.valueOf(i));
+            BigInteger endingHashKey = i == shardCount - 1 ? MAX_HASH_KEY : startingHashKey.add(shardHashKeyCount).subtract(BigInteger.ONE);
+            fakeStream.addShard(null, null, startingHashKey, endingHashKey);
+        }
+        if (streamMap.putIfAbsent(streamName, fakeStream) != null) {
+            throw new ResourceInUseException("Stream " + streamName + " already exists");
+        }
+    }
+
+    /**
+     * The latency added to every getRecords call.
+     */
+    public void setGetRecordsLatencyMillis(long getRecordsLatencyMillis) {
+        this.getRecordsLatencyMillis = getRecordsLatencyMillis;
+    }
+
+    /**
+     * The probability of a getRecords call being throttled even though it is within the shard limits.
+     */
+    public void setThrottleProbability(double throttleProbability) {
+        this.throttleProbability = throttleProbability;
+    }
+
+    public long getThrottledCallCount() {
+        return throttledCallCount.get();
+    }
+
+    /**
+     * @return the ids of the stream's open shards
+     */
+    public List<String> getOpenShardIds(String streamName) {
+        List<String> openShardIds = new ArrayList<>();
+        for (FakeShard fakeShard : getStream(streamName).getShards()) {
+            if (!fakeShard.isClosed()) {
+                openShardIds.add(fakeShard.shardId);
+            }
+        }
+        return openShardIds;
+    }
+
+    /**
+     * Splits the shard at the middle of its hash key range.
+     */
+    public void splitShard(String streamName, String shardId) {
+        FakeShard fakeShard = getStream(streamName).getShard(shardId);
+        splitShard(new SplitShardRequest().withStreamName(streamName).withShardToSplit(shardId).withNewStartingHashKey(fakeShard.startingHashKey.add(fakeShard.endingHashKey).shiftRight(1).add(BigInteger.ONE).toString()));
+    }
+
+    @Override
+    public SplitShardResult splitShard(SplitShardRequest splitShardRequest) {
+        FakeStream fakeStream = getStream(splitShardRequest.getStreamName());
+        synchronized (fakeStream) {
+            FakeShard parentShard = fakeStream.getOpenShard(splitShardRequest.getShardToSplit());
+            BigInteger newStartingHashKey = new BigInteger(splitShardRequest.getNewStartingHashKey());
+            if (newStartingHashKey.compareTo(parentShard.startingHashKey) <= 0 || newStartingHashKey.compareTo(parentShard.endingHashKey) > 0) {
+                throw new InvalidArgumentException("NewStartingHashKey " + newStartingHashKey + " is not in the hash key range of " + parentShard.shardId);
+            }
+            parentShard.close();
+            fakeStream.addShard(parentShard.shardId, null, parentShard.startingHashKey, newStartingHashKey.subtract(BigInteger.ONE));
+            fakeStream.addShard(parentShard.shardId, null, newStartingHashKey, parentShard.endingHashKey);
+        }
+        return new SplitShardResult();
+    }
+
+    @Override
+    public MergeShardsResult mergeShards(MergeShardsRequest mergeShardsRequest) {
+        FakeStream fakeStream = getStream(mergeShardsRequest.getStreamName());
+        synchronized (fakeStream) {
+            FakeShard shard = fakeStream.getOpenShard(mergeShardsRequest.getShardToMerge());
+            FakeShard adjacentShard = fakeStream.getOpenShard(mergeShardsRequest.getAdjacentShardToMerge());
+            FakeShard lowShard = shard.startingHashKey.compareTo(adjacentShard.startingHashKey) < 0 ? shard : adjacentShard;
+            FakeShard highShard = lowShard == shard ? adjacentShard : shard;
+            if (!lowShard.endingHashKey.add(BigInteger.ONE).equals(highShard.startingHashKey)) {
+                throw new InvalidArgumentException("Shards " + shard.shardId + " and " + adjacentShard.shardId + " are not adjacent");
+            }
+            shard.close();
+            adjacentShard.close();
+            fakeStream.addShard(shard.shardId, adjacentShard.shardId, lowShard.startingHashKey, highShard.endingHashKey);
+        }
+        return new MergeShardsResult();
+    }
+
+    @Override
+    public PutRecordResult putRecord(PutRecordRequest putRecordRequest) {
+        FakeStream fakeStream = getStream(putRecordRequest.getStreamName());
+        Record record = fakeStream.append(hashKey(putRecordRequest.getPartitionKey(), putRecordRequest.getExplicitHashKey()), putRecordRequest.getPartitionKey(), putRecordRequest.getData());
+        return new PutRecordResult().withShardId(shardIdOf(record)).withSequenceNumber(record.getSequenceNumber());
+    }
+
+    @Override
+    public PutRecordsResult putRecords(PutRecordsRequest putRecordsRequest) {
+        FakeStream fakeStream = getStream(putRecordsRequest.getStreamName());
+        List<PutRecordsResultEntry> resultEntryList = new ArrayList<>(putRecordsRequest.getRecords().size());
+        for (PutRecordsRequestEntry requestEntry : putRecordsRequest.getRecords()) {
+            Record record = fakeStream.append(hashKey(requestEntry.getPartitionKey(), requestEntry.getExplicitHashKey()), requestEntry.getPartitionKey(), requestEntry.getData());
+            resultEntryList.add(new PutRecordsResultEntry().withShardId(shardIdOf(record)).withSequenceNumber(record.getSequenceNumber()));
+        }
+        return new PutRecordsResult().withRecords(resultEntryList).withFailedRecordCount(0);
+    }
+
+    @Override
+    public ListShardsResult listShards(ListShardsRequest listShardsRequest) {
+        String streamName = listShardsRequest.getStreamName();
+        int startIndex = 0;
+        if (listShardsRequest.getNextToken() != null) {
+            // the token is <streamName>|<index of the next shard>
+            int separatorIndex = listShardsRequest.getNextToken().lastIndexOf('|');
+            streamName = listShardsRequest.getNextToken().substring(0, separatorIndex);
+            startIndex = Integer.parseInt(listShardsRequest.getNextToken().substring(separatorIndex + 1));
+        }
+        List<FakeShard> fakeShardList = getStream(streamName).getShards();
+        if (listShardsRequest.getExclusiveStartShardId() != null) {
+            while (startIndex < fakeShardList.size() && fakeShardList.get(startIndex).shardId.compareTo(listShardsRequest.getExclusiveStartShardId()) <= 0) {
+                startIndex++;
+            }
+        }
+        int maxResults = listShardsRequest.getMaxResults() == null ? 1000 : listShardsRequest.getMaxResults();
+        int endIndex = Math.min(fakeShardList.size(), startIndex + maxResults);
+        List<Shard> shardList = new ArrayList<>(endIndex - startIndex);
+        for (int i = startIndex; i < endIndex; i++) {
+            shardList.add(fakeShardList.get(i).toShard());
+        }
+        return new ListShardsResult().withShards(shardList).withNextToken(endIndex < fakeShardList.size() ? streamName + "|" + endIndex : null);
+    }
+
+    @Override
+    public GetShardIteratorResult getShardIterator(GetShardIteratorRequest getShardIteratorRequest) {
+        FakeStream fakeStream = getStream(getShardIteratorRequest.getStreamName());
+        FakeShard fakeShard = fakeStream.getShard(getShardIteratorRequest.getShardId());
+        long position;
+        switch (ShardIteratorType.fromValue(getShardIteratorRequest.getShardIteratorType())) {
+            case TRIM_HORIZON:
+                position = 0;
+                break;
+            case LATEST:
+                position = fakeShard.size();
+                break;
+            case AT_SEQUENCE_NUMBER:
+                position = fakeShard.position(getShardIteratorRequest.getStartingSequenceNumber());
+                break;
+            case AFTER_SEQUENCE_NUMBER:
+                position = fakeShard.position(getShardIteratorRequest.getStartingSequenceNumber()) + 1;
+                break;
+            case AT_TIMESTAMP:
+                position = fakeShard.position(getShardIteratorRequest.getTimestamp());
+                break;
+            default:
+                throw new InvalidArgumentException("Unknown ShardIteratorType " + getShardIteratorRequest.getShardIteratorType());
+        }
+        return new GetShardIteratorResult().withShardIterator(shardIterator(fakeStream.streamName, fakeShard.shardId, position));
+    }
+
+    @Override
+    public GetRecordsResult getRecords(GetRecordsRequest getRecordsRequest) {
+        // the iterator is <streamName>|<shardId>|<position>|<issued millis>
+        String[] iteratorParts = getRecordsRequest.getShardIterator().split("\\|");
+        if (iteratorParts.length != 4) {
+            throw new InvalidArgumentException("Invalid ShardIterator " + getRecordsRequest.getShardIterator());
+        }
+        if (System.currentTimeMillis() - Long.parseLong(iteratorParts[3]) > ITERATOR_EXPIRY_MILLIS) {
+            throw new ExpiredIteratorException("Iterator expired. The iterator was created at time " + new Date(Long.parseLong(iteratorParts[3])));
+        }
+        FakeShard fakeShard = getStream(iteratorParts[0]).getShard(iteratorParts[1]);
+        long position = Long.parseLong(iteratorParts[2]);
+        int limit = getRecordsRequest.getLimit() == null ? MAX_GET_RECORDS_LIMIT : getRecordsRequest.getLimit();
+        if (limit < 1 || limit > MAX_GET_RECORDS_LIMIT) {
+            throw new InvalidArgumentException("Limit " + limit + " is not in [1, " + MAX_GET_RECORDS_LIMIT + "]");
+        }
+
+        if (getRecordsLatencyMillis > 0) {
+            try {
+                Thread.sleep(getRecordsLatencyMillis);
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+                throw new RuntimeException(ex);
+            }
+        }
+        return fakeShard.read(position, limit);
+    }
+
+    private FakeStream getStream(String streamName) {
+        FakeStream fakeStream = streamMap.get(streamName);
+        if (fakeStream == null) {
+            throw new ResourceNotFoundException("Stream " + streamName + " not found");
+        }
+        return fakeStream;
+    }
+
+    // the sequence number is <shard index><position>, see FakeShard.sequenceNumber()
+    private static String shardIdOf(Record record) {
+        return String.format("shardId-%012d", Integer.parseInt(record.getSequenceNumber().substring(0, 5)));
+    }
+
+    private static String shardIterator(String streamName, String shardId, long position) {
+        return streamName + "|" + shardId + "|" + position + "|" + System.currentTimeMillis();
+    }
+
+    private static BigInteger hashKey(String partitionKey, String explicitHashKey) {
+        if (explicitHashKey != null) {
+            return new BigInteger(explicitHashKey);
+        }
+        try {
+            return new BigInteger(1, MessageDigest.getInstance("MD5").digest(partitionKey.getBytes(StandardCharsets.UTF_8)));
+        } catch (NoSuchAlgorithmException ex) {
+            throw new RuntimeException("Unexpected exception in hashing the partition key", ex);
+        }
+    }
+
+    private class FakeStream {
+        private final String streamName;
+        private final List<FakeShard> shardList = new ArrayList<>();
+
+        private FakeStream(String streamName) {
+            this.streamName = streamName;
+        }
+
+        private synchronized void addShard(String parentShardId, String adjacentParentShardId, BigInteger startingHashKey, BigInteger endingHashKey) {
+            shardList.add(new FakeShard(streamName, shardList.size(), parentShardId, adjacentParentShardId, startingHashKey, endingHashKey));
+        }
+
+        private synchronized List<FakeShard> getShards() {
+            return new ArrayList<>(shardList);
+        }
+
+        private synchronized FakeShard getShard(String shardId) {
+            for (FakeShard fakeShard : shardList) {
+                if (fakeShard.shardId.equals(shardId)) {
+                    return fakeShard;
+                }
+            }
+            throw new ResourceNotFoundException("Shard " + shardId + " in stream " + streamName + " not found");
+        }
+
+        private synchronized FakeShard getOpenShard(String shardId) {
+            FakeShard fakeShard = getShard(shardId);
+            if (fakeShard.isClosed()) {
+                throw new InvalidArgumentException("Shard " + shardId + " is closed");
+            }
+            return fakeShard;
+        }
+
+        /**
+         * Appends the record to the open shard of the hash key - under the stream lock, so a reshard does not close the
+         * shard between the routing and the append.
+         */
+        private synchronized Record append(BigInteger hashKey, String partitionKey, ByteBuffer data) {
+            for (FakeShard fakeShard : shardList) {
+                if (!fakeShard.isClosed() && fakeShard.startingHashKey.compareTo(hashKey) <= 0 && fakeShard.endingHashKey.compareTo(hashKey) >= 0) {
+                    return fakeShard.append(partitionKey, data);
+                }
+            }
+            throw new IllegalStateException("No open shard for the hash key " + hashKey + " in stream " + streamName);
+        }
+    }
+
+    private class FakeShard {
+        private final String streamName;
+        private final int index;
+        private final String shardId;
+        private final String parentShardId;
+        private final String adjacentParentShardId;
+        private final BigInteger startingHashKey;
+        private final BigInteger endingHashKey;
+        private final List<Record> recordList = new ArrayList<>();
+        // the start millis of the last getRecords calls, to allow MAX_GET_RECORDS_CALLS_PER_SECOND
+        private final long[] callMillis = new long[MAX_GET_RECORDS_CALLS_PER_SECOND];
+        private int callIndex;
+        // refills at MAX_READ_BYTES_PER_SECOND - a large read drives it negative and the shard is throttled until it refills
+        private double readBudgetBytes = MAX_READ_BYTES_PER_SECOND;
+        private long readBudgetMillis = System.currentTimeMillis();
+        private boolean closed;
+
+        private FakeShard(String streamName, int index, String parentShardId, String adjacentParentShardId, BigInteger startingHashKey, BigInteger endingHashKey) {
+            this.streamName = streamName;
+            this.index = index;
+            this.shardId = String.format("shardId-%012d", index);
+            this.parentShardId = parentShardId;
+            this.adjacentParentShardId = adjacentParentShardId;
+            this.startingHashKey = startingHashKey;
+            this.endingHashKey = endingHashKey;
+        }
+
+        private synchronized Record append(String partitionKey, ByteBuffer data) {
+            Record record = new Record().withSequenceNumber(sequenceNumber(recordList.size())).withPartitionKey(partitionKey).withApproximateArrivalTimestamp(new Date()).withData(data.duplicate());
+            recordList.add(record);
+            return record;
+        }
+
+        private synchronized GetRecordsResult read(long position, int limit) {
+            long nowMillis = System.currentTimeMillis();
+            readBudgetBytes = Math.min(MAX_READ_BYTES_PER_SECOND, readBudgetBytes + (nowMillis - readBudgetMillis) * MAX_READ_BYTES_PER_SECOND / 1000.0);
+            readBudgetMillis = nowMillis;
+            boolean overCallLimit = nowMillis - callMillis[callIndex] < 1000;
+            if (overCallLimit || readBudgetBytes <= 0 || (throttleProbability > 0 && ThreadLocalRandom.current().nextDouble() < throttleProbability)) {
+                throttledCallCount.incrementAndGet();
+                throw new ProvisionedThroughputExceededException("Rate exceeded for shard " + shardId + " in stream " + streamName);
+            }
+            callMillis[callIndex] = nowMillis;
+            callIndex = (callIndex + 1) % callMillis.length;
+
+            List<Record> resultRecordList = new ArrayList<>();
+            long byteCount = 0;
+            int nextPosition = (int) Math.min(position, recordList.size());
+            while (nextPosition < recordList.size() && resultRecordList.size() < limit) {
+                Record record = recordList.get(nextPosition);
+                if (byteCount + record.getData().remaining() > MAX_GET_RECORDS_BYTES && !resultRecordList.isEmpty()) {
+                    break;
+                }
+                // each reader gets its own view of the data
+                resultRecordList.add(new Record().withSequenceNumber(record.getSequenceNumber()).withPartitionKey(record.getPartitionKey()).withApproximateArrivalTimestamp(record.getApproximateArrivalTimestamp()).withData(record.getData().duplicate()));
+                byteCount += record.getData().remaining();
+                nextPosition++;
+            }
+            readBudgetBytes -= byteCount;
+
+            boolean atEnd = nextPosition >= recordList.size();
+            long millisBehindLatest = atEnd ? 0 : nowMillis - recordList.get(nextPosition).getApproximateArrivalTimestamp().getTime();
+            return new GetRecordsResult().
+                    withRecords(resultRecordList).
+                    withNextShardIterator(closed && atEnd ? null : shardIterator(streamName, shardId, nextPosition)).
+                    withMillisBehindLatest(millisBehindLatest);
+        }
+
+        private synchronized long size() {
+            return recordList.size();
+        }
+
+        private synchronized boolean isClosed() {
+            return closed;
+        }
+
+        private synchronized void close() {
+            closed = true;
+        }
+
+        private long position(String sequenceNumber) {
+            // the sequence number is <shard index><position>, see sequenceNumber()
+            if (sequenceNumber == null || sequenceNumber.length() != 25 || Integer.parseInt(sequenceNumber.substring(0, 5)) != index) {
+                throw new InvalidArgumentException("StartingSequenceNumber " + sequenceNumber + " is not a sequence number of " + shardId);
+            }
+            return Long.parseLong(sequenceNumber.substring(5));
+        }
+
+        private synchronized long position(Date timestamp) {
+            int low = 0;
+            int high = recordList.size();
+            while (low < high) {
+                int middle = (low + high) >>> 1;
+                if (recordList.get(middle).getApproximateArrivalTimestamp().before(timestamp)) {
+                    low = middle + 1;
+                } else {
+                    high = middle;
+                }
+            }
+            return low;
+        }
+
+        private String sequenceNumber(long position) {
+            return String.format("%05d%020d", index, position);
+        }
+
+        private synchronized Shard toShard() {
+            SequenceNumberRange sequenceNumberRange = new SequenceNumberRange().withStartingSequenceNumber(sequenceNumber(0));
+            if (closed) {
+                sequenceNumberRange.setEndingSequenceNumber(sequenceNumber(Math.max(0, recordList.size() - 1)));
+            }
+            return new Shard().
+                    withShardId(shardId).
+                    withParentShardId(parentShardId).
+                    withAdjacentParentShardId(adjacentParentShardId).
+                    withHashKeyRange(new HashKeyRange().withStartingHashKey(startingHashKey.toString()).withEndingHashKey(endingHashKey.toString())).
+                    withSequenceNumberRange(sequenceNumberRange);
+        }
+    }
+}
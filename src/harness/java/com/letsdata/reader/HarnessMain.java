@@ -0,0 +1,318 @@
+package com.letsdata.reader;
+
+import com.amazonaws.services.kinesis.model.ShardIteratorType;
+import net.sourceforge.argparse4j.ArgumentParsers;
+import net.sourceforge.argparse4j.impl.Arguments;
+import net.sourceforge.argparse4j.inf.ArgumentParser;
+import net.sourceforge.argparse4j.inf.ArgumentParserException;
+import net.sourceforge.argparse4j.inf.Namespace;
+
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Properties;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Runs the readers against the local stand-ins - a {@link FakeKinesis} stream or an {@link EmbeddedKafkaBroker} topic
+ * loaded by a {@link LoadGenerator} - and reports the throughput and the end to end latency, so the readers can be
+ * regression tested offline. Exits with status 1 when a record is lost or duplicated, or the results miss the
+ * --minRecordsPerSecond / --maxP99LatencyMillis thresholds. Lost and duplicated records are found by comparing the
+ * positions of the written and the read records of each partition key ({@link RecordLedger}) - kinesis records are read
+ * when the drainer queues them for the pipeline, so the output line count must match as well.
+ *
+ * - drain: the stream / topic is loaded with --recordCount records, then read from the start until every record has been
+ *   read - the throughput is the read rate
+ * - tail: the reader starts at the tip and the records are written at --recordsPerSecond for --durationSeconds - the
+ *   latency is from the record's arrival (kinesis) / create (kafka) time to its emit (kinesis) / handle (kafka)
+ */
+public class HarnessMain {
+    private static final String STREAM_NAME = "harness";
+    // the tail modes wait this long for the reader to be positioned at the tip before writing
+    private static final long TAIL_START_WAIT_MILLIS = 3000;
+    // and this long after the writes for the reader to read the last records
+    private static final long TAIL_END_WAIT_MILLIS = 30000;
+    private static final long DRAIN_TIMEOUT_MILLIS = TimeUnit.MINUTES.toMillis(10);
+    private static final int RING_BUFFER_DEPTH = 1024;
+    private static final int QUEUE_CAPACITY = 10000;
+
+    // $ > harness.sh kinesis --mode drain --shardCount 8 --recordCount 200000 --reshard --minRecordsPerSecond 20000
+    // $ > harness.sh kinesis --mode tail --shardCount 4 --recordsPerSecond 2000 --durationSeconds 60 --maxP99LatencyMillis 2000
+    // $ > harness.sh kafka --mode drain --partitionCount 8 --recordCount 200000
+    public static void main(String[] args) {
+        ArgumentParser parser = ArgumentParsers.newFor("letsdataharness").build();
+        parser.addArgument("target").choices("kinesis", "kafka").required(true).help("The reader to run - \"kinesis\" the stream drainer and record pipeline on a FakeKinesis stream, \"kafka\" the parallel consumer on an embedded kafka broker");
+        parser.addArgument("--mode").choices("drain", "tail").required(false).help("\"drain\" - load the records then read them all (throughput), \"tail\" - read from the tip while the records are written (latency) - default to drain").setDefault("drain");
+        parser.addArgument("--recordCount").required(false).type(Long.class).help("The number of records the drain mode loads - default to 100000").setDefault(100000L);
+        parser.addArgument("--recordSize").required(false).type(Integer.class).help("The uncompressed record size in bytes - default to 2048").setDefault(2048);
+        parser.addArgument("--recordsPerSecond").required(false).type(Long.class).help("The write rate of the tail mode - default to 2000").setDefault(2000L);
+        parser.addArgument("--durationSeconds").required(false).type(Long.class).help("How long the tail mode writes - default to 30").setDefault(30L);
+        parser.addArgument("--shardCount").required(false).type(Integer.class).help("The kinesis stream's shard count - default to 4").setDefault(4);
+        parser.addArgument("--reshard").required(false).action(Arguments.storeTrue()).help("Split a kinesis shard half way through the writes");
+        parser.addArgument("--getRecordsLatencyMillis").required(false).type(Long.class).help("The latency FakeKinesis adds to each getRecords call - default to 20").setDefault(20L);
+        parser.addArgument("--throttleProbability").required(false).type(Double.class).help("The probability of a getRecords call being throttled in addition to the shard limits - default to 0").setDefault(0.0);
+        parser.addArgument("--threadCount").required(false).type(Integer.class).help("The number of threads that read the kinesis shards - default to 8").setDefault(8);
+        parser.addArgument("--decodeThreadCount").required(false).type(Integer.class).help("The number of threads that decode the kinesis records - default to 4").setDefault(4);
+        parser.addArgument("--readAheadDepth").required(false).type(Integer.class).help("The getRecords read-ahead batches per kinesis shard - default to 0").setDefault(0);
+        parser.addArgument("--keyAffinity").required(false).action(Arguments.storeTrue()).help("Route the kinesis records to the decode threads / the kafka records to the worker threads by partition key instead of by shard / partition");
+        parser.addArgument("--partitionCount").required(false).type(Integer.class).help("The kafka topic's partition count - default to 4").setDefault(4);
+        parser.addArgument("--workerThreadCount").required(false).type(Integer.class).help("The number of threads that handle the kafka records - default to 8").setDefault(8);
+        parser.addArgument("--minRecordsPerSecond").required(false).type(Double.class).help("Fail when the read throughput is below this");
+        parser.addArgument("--maxP99LatencyMillis").required(false).type(Long.class).help("Fail when the p99 end to end latency is above this");
+
+        try {
+            Namespace namespace = parser.parseArgs(args);
+            MetricsRegistry.Histogram latencyMillis = MetricsRegistry.getDefault().histogram("harness.latencyMillis");
+            RecordLedger recordLedger = new RecordLedger();
+            HarnessResult harnessResult = "kinesis".equals(namespace.getString("target")) ? runKinesis(namespace, latencyMillis, recordLedger) : runKafka(namespace, latencyMillis, recordLedger);
+
+            double recordsPerSecond = harnessResult.readCount * 1000.0 / Math.max(1, harnessResult.readMillis);
+            System.out.println(String.format("%s %s written %d read %d in %d ms - %.0f records / sec, latency millis p50 %d p90 %d p99 %d max %d",
+                    namespace.getString("target"), namespace.getString("mode"), harnessResult.writtenCount, harnessResult.readCount, harnessResult.readMillis, recordsPerSecond,
+                    latencyMillis.getP50(), latencyMillis.getP90(), latencyMillis.getP99(), latencyMillis.getMax()));
+            System.out.println(MetricsRegistry.getDefault().dump());
+
+            boolean failed = false;
+            RecordLedger.Result ledgerResult = recordLedger.check();
+            if (!ledgerResult.isClean()) {
+                System.out.println("FAILED: " + ledgerResult);
+                failed = true;
+            }
+            if (harnessResult.readCount != harnessResult.writtenCount) {
+                System.out.println("FAILED: " + harnessResult.writtenCount + " records were written and " + harnessResult.readCount + " were read");
+                failed = true;
+            }
+            if (namespace.getDouble("minRecordsPerSecond") != null && recordsPerSecond < namespace.getDouble("minRecordsPerSecond")) {
+                System.out.println("FAILED: the throughput " + recordsPerSecond + " records / sec is below the minRecordsPerSecond " + namespace.getDouble("minRecordsPerSecond"));
+                failed = true;
+            }
+            if (namespace.getLong("maxP99LatencyMillis") != null && latencyMillis.getP99() > namespace.getLong("maxP99LatencyMillis")) {
+                System.out.println("FAILED: the p99 latency " + latencyMillis.getP99() + " ms is above the maxP99LatencyMillis " + namespace.getLong("maxP99LatencyMillis"));
+                failed = true;
+            }
+            System.exit(failed ? 1 : 0);
+        } catch (ArgumentParserException e) {
+            parser.handleError(e);
+            System.exit(2);
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException("Interrupted", ex);
+        }
+    }
+
+    private static HarnessResult runKinesis(Namespace namespace, MetricsRegistry.Histogram latencyMillis, RecordLedger recordLedger) throws InterruptedException {
+        FakeKinesis fakeKinesis = new FakeKinesis();
+        fakeKinesis.createStream(STREAM_NAME, namespace.getInt("shardCount"));
+        fakeKinesis.setGetRecordsLatencyMillis(namespace.getLong("getRecordsLatencyMillis"));
+        fakeKinesis.setThrottleProbability(namespace.getDouble("throttleProbability"));
+        boolean isDrain = "drain".equals(namespace.getString("mode"));
+        LoadGenerator loadGenerator = new LoadGenerator(LoadGenerator.kinesisWriter(fakeKinesis, STREAM_NAME, recordLedger), namespace.getInt("recordSize"), isDrain ? 0 : namespace.getLong("recordsPerSecond"));
+
+        HarnessResult harnessResult = new HarnessResult();
+        if (isDrain) {
+            harnessResult.writtenCount = write(loadGenerator, namespace, fakeKinesis, namespace.getLong("recordCount"), Long.MAX_VALUE);
+        }
+
+        BlockingQueue<ShardRecord> recordQueue = new LedgerRingBuffer(QUEUE_CAPACITY, recordLedger);
+        KinesisStreamDrainer kinesisStreamDrainer = new KinesisStreamDrainer(new KinesisReader(fakeKinesis), STREAM_NAME, isDrain ? ShardIteratorType.TRIM_HORIZON : ShardIteratorType.LATEST, null, null, isDrain, namespace.getInt("threadCount"), namespace.getInt("readAheadDepth"), recordQueue, null);
+        MeasuredShardRecordSource measuredSource = new MeasuredShardRecordSource(kinesisStreamDrainer, latencyMillis);
+        LineCountingOutputStream lineCountingOutputStream = new LineCountingOutputStream();
+        RecordPipeline recordPipeline = new RecordPipeline(measuredSource, recordQueue, STREAM_NAME, lineCountingOutputStream, null, namespace.getInt("decodeThreadCount"), RING_BUFFER_DEPTH, null, null, namespace.getBoolean("keyAffinity"));
+
+        AtomicReference<Throwable> pipelineFailure = new AtomicReference<>();
+        Thread pipelineThread = new Thread(() -> {
+            try {
+                recordPipeline.run();
+            } catch (Throwable ex) {
+                pipelineFailure.set(ex);
+            }
+        }, "HarnessMain-pipeline");
+        long startMillis = System.currentTimeMillis();
+        pipelineThread.start();
+        if (isDrain) {
+            pipelineThread.join(DRAIN_TIMEOUT_MILLIS);
+        } else {
+            Thread.sleep(TAIL_START_WAIT_MILLIS);
+            startMillis = System.currentTimeMillis();
+            harnessResult.writtenCount = write(loadGenerator, namespace, fakeKinesis, Long.MAX_VALUE, TimeUnit.SECONDS.toMillis(namespace.getLong("durationSeconds")));
+            awaitCount(lineCountingOutputStream.lineCount, harnessResult.writtenCount, TAIL_END_WAIT_MILLIS);
+        }
+        harnessResult.readMillis = System.currentTimeMillis() - startMillis;
+        measuredSource.finish();
+        pipelineThread.join(TAIL_END_WAIT_MILLIS);
+        if (pipelineFailure.get() != null) {
+            throw new RuntimeException("The record pipeline failed", pipelineFailure.get());
+        }
+        harnessResult.readCount = lineCountingOutputStream.lineCount.get();
+        System.out.println("FakeKinesis throttled " + fakeKinesis.getThrottledCallCount() + " getRecords calls, shards " + fakeKinesis.getOpenShardIds(STREAM_NAME));
+        return harnessResult;
+    }
+
+    /**
+     * Writes the records - with --reshard, the first open shard is split once half of the records (or the duration) has
+     * been written.
+     */
+    private static long write(LoadGenerator loadGenerator, Namespace namespace, FakeKinesis fakeKinesis, long recordCount, long durationMillis) throws InterruptedException {
+        if (!namespace.getBoolean("reshard")) {
+            return loadGenerator.run(recordCount, durationMillis);
+        }
+        long writtenCount = loadGenerator.run(recordCount / 2, durationMillis / 2);
+        String shardId = fakeKinesis.getOpenShardIds(STREAM_NAME).get(0);
+        fakeKinesis.splitShard(STREAM_NAME, shardId);
+        System.out.println("split " + shardId + " after " + writtenCount + " records");
+        return writtenCount + loadGenerator.run(recordCount - writtenCount, durationMillis - durationMillis / 2);
+    }
+
+    private static HarnessResult runKafka(Namespace namespace, MetricsRegistry.Histogram latencyMillis, RecordLedger recordLedger) throws InterruptedException {
+        boolean isDrain = "drain".equals(namespace.getString("mode"));
+        try (EmbeddedKafkaBroker embeddedKafkaBroker = new EmbeddedKafkaBroker()) {
+            embeddedKafkaBroker.createTopic(STREAM_NAME, namespace.getInt("partitionCount"));
+            HarnessResult harnessResult = new HarnessResult();
+            LoadGenerator.RecordWriter recordWriter = LoadGenerator.kafkaWriter(embeddedKafkaBroker.getBootstrapServers(), STREAM_NAME, recordLedger);
+            LoadGenerator loadGenerator = new LoadGenerator(recordWriter, namespace.getInt("recordSize"), isDrain ? 0 : namespace.getLong("recordsPerSecond"));
+            if (isDrain) {
+                harnessResult.writtenCount = loadGenerator.run(namespace.getLong("recordCount"), Long.MAX_VALUE);
+                recordWriter.close();
+            }
+
+            Properties consumerConfig = new Properties();
+            consumerConfig.put("auto.offset.reset", isDrain ? "earliest" : "latest");
+            KafkaReader kafkaReader = new KafkaReader(embeddedKafkaBroker.getBootstrapServers(), "harness-" + System.currentTimeMillis(), KafkaReader.RecordDeserializer.BYTE_BUFFER, consumerConfig);
+            AtomicLong readCount = new AtomicLong();
+            KafkaParallelConsumer.RecordHandler recordHandler = consumerRecord -> {
+                // the handler's work - inflate the record, as a real consumer would
+                GZipDecoder.forCurrentThread().decode(((ByteBuffer) consumerRecord.value()).duplicate());
+                latencyMillis.record(System.currentTimeMillis() - consumerRecord.timestamp());
+                recordLedger.read(StandardCharsets.UTF_8.decode(((ByteBuffer) consumerRecord.key()).duplicate()).toString(), consumerRecord.partition() + ":" + consumerRecord.offset());
+                readCount.incrementAndGet();
+            };
+            KafkaParallelConsumer parallelConsumer = new KafkaParallelConsumer(kafkaReader, recordHandler, namespace.getInt("workerThreadCount"), namespace.getBoolean("keyAffinity"), 5000, 10000, 5000);
+            Thread consumerThread = new Thread(() -> parallelConsumer.run(STREAM_NAME, 0), "HarnessMain-consumer");
+            long startMillis = System.currentTimeMillis();
+            consumerThread.start();
+            if (isDrain) {
+                awaitCount(readCount, harnessResult.writtenCount, DRAIN_TIMEOUT_MILLIS);
+            } else {
+                Thread.sleep(TAIL_START_WAIT_MILLIS);
+                startMillis = System.currentTimeMillis();
+                harnessResult.writtenCount = loadGenerator.run(Long.MAX_VALUE, TimeUnit.SECONDS.toMillis(namespace.getLong("durationSeconds")));
+                recordWriter.close();
+                awaitCount(readCount, harnessResult.writtenCount, TAIL_END_WAIT_MILLIS);
+            }
+            harnessResult.readMillis = System.currentTimeMillis() - startMillis;
+            parallelConsumer.stop();
+            consumerThread.join();
+            kafkaReader.close();
+            harnessResult.readCount = readCount.get();
+            return harnessResult;
+        }
+    }
+
+    private static void awaitCount(AtomicLong count, long expectedCount, long timeoutMillis) throws InterruptedException {
+        long deadlineMillis = System.currentTimeMillis() + timeoutMillis;
+        while (count.get() < expectedCount && System.currentTimeMillis() < deadlineMillis) {
+            Thread.sleep(10);
+        }
+    }
+
+    private static class HarnessResult {
+        private long writtenCount;
+        private long readCount;
+        private long readMillis;
+    }
+
+    /**
+     * The pipeline's fetch queue - records the position of each record the drainer queues as read.
+     */
+    private static class LedgerRingBuffer extends RingBuffer<ShardRecord> {
+        private final RecordLedger recordLedger;
+
+        private LedgerRingBuffer(int capacity, RecordLedger recordLedger) {
+            super(capacity);
+            this.recordLedger = recordLedger;
+        }
+
+        @Override
+        public boolean offer(ShardRecord shardRecord) {
+            if (!super.offer(shardRecord)) {
+                return false;
+            }
+            recordLedger.read(shardRecord.getRecord().getPartitionKey(), shardRecord.getRecord().getSequenceNumber());
+            return true;
+        }
+    }
+
+    /**
+     * Records the latency of the records when the pipeline checkpoints them (after they have been emitted), and ends the
+     * tail mode's read on finish(). With --keyAffinity only the shard watermarks are checkpointed - a sample of the
+     * records.
+     */
+    private static class MeasuredShardRecordSource implements ShardRecordSource {
+        private final ShardRecordSource shardRecordSource;
+        private final MetricsRegistry.Histogram latencyMillis;
+        private volatile boolean finished;
+
+        private MeasuredShardRecordSource(ShardRecordSource shardRecordSource, MetricsRegistry.Histogram latencyMillis) {
+            this.shardRecordSource = shardRecordSource;
+            this.latencyMillis = latencyMillis;
+        }
+
+        private void finish() {
+            finished = true;
+        }
+
+        @Override
+        public void start() {
+            shardRecordSource.start();
+        }
+
+        @Override
+        public boolean isDone() {
+            return finished || shardRecordSource.isDone();
+        }
+
+        @Override
+        public Throwable getFailure() {
+            return shardRecordSource.getFailure();
+        }
+
+        @Override
+        public void checkpoint(ShardRecord shardRecord) {
+            latencyMillis.record(System.currentTimeMillis() - shardRecord.getRecord().getApproximateArrivalTimestamp().getTime());
+            shardRecordSource.checkpoint(shardRecord);
+        }
+
+        @Override
+        public void stop() {
+            shardRecordSource.stop();
+        }
+    }
+
+    /**
+     * Drops the pipeline output - counts the emitted records (one line each).
+     */
+    private static class LineCountingOutputStream extends OutputStream {
+        private final AtomicLong lineCount = new AtomicLong();
+
+        @Override
+        public void write(int b) {
+            if (b == '\n') {
+                lineCount.incrementAndGet();
+            }
+        }
+
+        @Override
+        public void write(byte[] bytes, int offset, int length) {
+            long count = 0;
+            for (int i = offset; i < offset + length; i++) {
+                if (bytes[i] == '\n') {
+                    count++;
+                }
+            }
+            lineCount.addAndGet(count);
+        }
+    }
+}
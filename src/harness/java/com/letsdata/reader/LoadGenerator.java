@@ -0,0 +1,173 @@
+package com.letsdata.reader;
+
+import com.amazonaws.services.kinesis.AmazonKinesis;
+import com.amazonaws.services.kinesis.model.PutRecordsRequest;
+import com.amazonaws.services.kinesis.model.PutRecordsRequestEntry;
+import com.amazonaws.services.kinesis.model.PutRecordsResult;
+import org.apache.kafka.clients.producer.KafkaProducer;
+import org.apache.kafka.clients.producer.ProducerRecord;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Writes write connector like records - json documents with a few metadata fields and a large text field, each gzip
+ * compressed the way the write connector compresses its records - at a fixed rate, for the local harness.
+ *
+ * The payloads are generated up front (a pool of distinct documents), so the generator's own cost does not limit the
+ * rate. Records are written in batches of up to 500 (the kinesis putRecords max) every few millis.
+ */
+public class LoadGenerator {
+    private static final String[] WORDS = {"the", "data", "record", "letsdata", "stream", "shard", "partition", "crawl", "document", "extract", "target", "uri", "error", "kinesis", "kafka", "write", "connector", "dataset", "commoncrawl", "warc", "html", "content", "language", "english", "timestamp"};
+    private static final int PAYLOAD_POOL_SIZE = 256;
+    private static final int MAX_BATCH_SIZE = 500;
+    private static final long BATCH_INTERVAL_MILLIS = 5;
+
+    /**
+     * Where the generated records go.
+     */
+    public interface RecordWriter extends AutoCloseable {
+        void write(List<String> partitionKeyList, List<byte[]> payloadList);
+
+        @Override
+        default void close() {
+        }
+    }
+
+    private final RecordWriter recordWriter;
+    private final List<byte[]> payloadList = new ArrayList<>(PAYLOAD_POOL_SIZE);
+    private final long recordsPerSecond;
+    private volatile boolean stopped;
+
+    /**
+     * @param recordSize       the uncompressed size of a record
+     * @param recordsPerSecond the write rate, 0 to write as fast as the writer accepts the records
+     */
+    public LoadGenerator(RecordWriter recordWriter, int recordSize, long recordsPerSecond) {
+        this.recordWriter = recordWriter;
+        this.recordsPerSecond = recordsPerSecond;
+        for (int i = 0; i < PAYLOAD_POOL_SIZE; i++) {
+            payloadList.add(gzip(writeConnectorJson(recordSize, i)));
+        }
+    }
+
+    /**
+     * Writes records until recordCount records have been written, durationMillis have passed or stop() is called.
+     *
+     * @return the number of written records
+     */
+    public long run(long recordCount, long durationMillis) throws InterruptedException {
+        long startMillis = System.currentTimeMillis();
+        long writtenCount = 0;
+        List<String> partitionKeyBatch = new ArrayList<>(MAX_BATCH_SIZE);
+        List<byte[]> payloadBatch = new ArrayList<>(MAX_BATCH_SIZE);
+        while (!stopped && writtenCount < recordCount && System.currentTimeMillis() - startMillis < durationMillis) {
+            long dueCount = recordsPerSecond > 0 ? Math.min(recordCount, (System.currentTimeMillis() - startMillis) * recordsPerSecond / 1000) : recordCount;
+            if (dueCount <= writtenCount) {
+                TimeUnit.MILLISECONDS.sleep(BATCH_INTERVAL_MILLIS);
+                continue;
+            }
+            int batchSize = (int) Math.min(MAX_BATCH_SIZE, dueCount - writtenCount);
+            for (int i = 0; i < batchSize; i++) {
+                long recordIndex = writtenCount + i;
+                partitionKeyBatch.add("documentId-" + recordIndex);
+                payloadBatch.add(payloadList.get((int) (recordIndex % PAYLOAD_POOL_SIZE)));
+            }
+            recordWriter.write(partitionKeyBatch, payloadBatch);
+            writtenCount += batchSize;
+            partitionKeyBatch.clear();
+            payloadBatch.clear();
+        }
+        return writtenCount;
+    }
+
+    public void stop() {
+        stopped = true;
+    }
+
+    /**
+     * Writes the records to a kinesis stream (e.g. a {@link FakeKinesis}) with putRecords.
+     *
+     * @param recordLedger gets the sequence number of each written record
+     */
+    public static RecordWriter kinesisWriter(AmazonKinesis amazonKinesis, String streamName, RecordLedger recordLedger) {
+        return (partitionKeyList, payloadList) -> {
+            List<PutRecordsRequestEntry> entryList = new ArrayList<>(payloadList.size());
+            for (int i = 0; i < payloadList.size(); i++) {
+                entryList.add(new PutRecordsRequestEntry().withPartitionKey(partitionKeyList.get(i)).withData(ByteBuffer.wrap(payloadList.get(i))));
+            }
+            PutRecordsResult putRecordsResult = amazonKinesis.putRecords(new PutRecordsRequest().withStreamName(streamName).withRecords(entryList));
+            for (int i = 0; i < partitionKeyList.size(); i++) {
+                recordLedger.written(partitionKeyList.get(i), putRecordsResult.getRecords().get(i).getSequenceNumber());
+            }
+        };
+    }
+
+    /**
+     * Writes the records to a kafka topic (e.g. on an {@link EmbeddedKafkaBroker}) - the record keys are the partition keys.
+     *
+     * @param recordLedger gets the partition:offset of each written record once it has been acknowledged
+     */
+    public static RecordWriter kafkaWriter(String bootstrapServers, String topicName, RecordLedger recordLedger) {
+        Properties producerConfig = new Properties();
+        producerConfig.put("bootstrap.servers", bootstrapServers);
+        producerConfig.put("key.serializer", "org.apache.kafka.common.serialization.StringSerializer");
+        producerConfig.put("value.serializer", "org.apache.kafka.common.serialization.ByteArraySerializer");
+        producerConfig.put("linger.ms", "5");
+        KafkaProducer<String, byte[]> kafkaProducer = new KafkaProducer<>(producerConfig);
+        return new RecordWriter() {
+            @Override
+            public void write(List<String> partitionKeyList, List<byte[]> payloadList) {
+                for (int i = 0; i < payloadList.size(); i++) {
+                    String partitionKey = partitionKeyList.get(i);
+                    kafkaProducer.send(new ProducerRecord<>(topicName, partitionKey, payloadList.get(i)), (recordMetadata, ex) -> {
+                        if (ex == null) {
+                            recordLedger.written(partitionKey, recordMetadata.partition() + ":" + recordMetadata.offset());
+                        }
+                    });
+                }
+            }
+
+            @Override
+            public void close() {
+                kafkaProducer.close();
+            }
+        };
+    }
+
+    static byte[] writeConnectorJson(int size, long seed) {
+        Random random = new Random(seed);
+        StringBuilder content = new StringBuilder(size);
+        while (content.length() < size) {
+            content.append(WORDS[random.nextInt(WORDS.length)]).append(' ');
+        }
+        content.setLength(Math.max(0, size - 200));
+
+        return ("{" +
+                "\"documentId\":\"" + Long.toHexString(random.nextLong()) + "\"," +
+                "\"documentType\":\"WEB_PAGE\"," +
+                "\"url\":\"https://example.com/" + Long.toHexString(random.nextLong()) + "\"," +
+                "\"language\":\"en\"," +
+                "\"crawlTimestamp\":" + (1685331931671L + random.nextInt()) + "," +
+                "\"content\":\"" + content + "\"" +
+                "}").getBytes(StandardCharsets.UTF_8);
+    }
+
+    static byte[] gzip(byte[] data) {
+        ByteArrayOutputStream byteArrayOutputStream = new ByteArrayOutputStream();
+        try (GZIPOutputStream gzipOutputStream = new GZIPOutputStream(byteArrayOutputStream)) {
+            gzipOutputStream.write(data);
+        } catch (IOException ex) {
+            throw new RuntimeException("Unexpected exception in compressing the payload", ex);
+        }
+        return byteArrayOutputStream.toByteArray();
+    }
+}
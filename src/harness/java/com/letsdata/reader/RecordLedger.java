@@ -0,0 +1,85 @@
+package com.letsdata.reader;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * The positions (kinesis sequence numbers / kafka partition:offset) of the written and the read records by partition
+ * key, so the harness can tell which records were lost or duplicated instead of only comparing the totals - a lost
+ * record and a duplicated one cancel out in the totals.
+ *
+ * Thread safe - the readers record from their own threads.
+ */
+public class RecordLedger {
+    private static final int MAX_REPORTED_RECORDS = 10;
+
+    private final Map<String, Map<String, AtomicInteger>> writtenMap = new ConcurrentHashMap<>();
+    private final Map<String, Map<String, AtomicInteger>> readMap = new ConcurrentHashMap<>();
+
+    public void written(String key, String position) {
+        count(writtenMap, key, position);
+    }
+
+    public void read(String key, String position) {
+        count(readMap, key, position);
+    }
+
+    /**
+     * @return the lost (written, never read), duplicated (read more than once) and unknown (read, never written) records
+     */
+    public Result check() {
+        Result result = new Result();
+        for (Map.Entry<String, Map<String, AtomicInteger>> keyEntry : writtenMap.entrySet()) {
+            Map<String, AtomicInteger> readPositionMap = readMap.get(keyEntry.getKey());
+            for (String position : keyEntry.getValue().keySet()) {
+                AtomicInteger readCount = readPositionMap == null ? null : readPositionMap.get(position);
+                if (readCount == null) {
+                    result.lostCount++;
+                    result.report("lost " + keyEntry.getKey() + " " + position);
+                } else if (readCount.get() > 1) {
+                    result.duplicatedCount++;
+                    result.report("read " + readCount.get() + " times " + keyEntry.getKey() + " " + position);
+                }
+            }
+        }
+        for (Map.Entry<String, Map<String, AtomicInteger>> keyEntry : readMap.entrySet()) {
+            Map<String, AtomicInteger> writtenPositionMap = writtenMap.get(keyEntry.getKey());
+            for (String position : keyEntry.getValue().keySet()) {
+                if (writtenPositionMap == null || !writtenPositionMap.containsKey(position)) {
+                    result.unknownCount++;
+                    result.report("read but not written " + keyEntry.getKey() + " " + position);
+                }
+            }
+        }
+        return result;
+    }
+
+    private static void count(Map<String, Map<String, AtomicInteger>> map, String key, String position) {
+        map.computeIfAbsent(key, k -> new ConcurrentHashMap<>()).computeIfAbsent(position, p -> new AtomicInteger()).incrementAndGet();
+    }
+
+    public static class Result {
+        private final List<String> reportList = new ArrayList<>();
+        private long lostCount;
+        private long duplicatedCount;
+        private long unknownCount;
+
+        public boolean isClean() {
+            return lostCount == 0 && duplicatedCount == 0 && unknownCount == 0;
+        }
+
+        private void report(String record) {
+            if (reportList.size() < MAX_REPORTED_RECORDS) {
+                reportList.add(record);
+            }
+        }
+
+        @Override
+        public String toString() {
+            return lostCount + " records lost, " + duplicatedCount + " duplicated, " + unknownCount + " read but not written" + (reportList.isEmpty() ? "" : " - e.g. " + reportList);
+        }
+    }
+}
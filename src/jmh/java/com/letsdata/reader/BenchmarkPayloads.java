@@ -0,0 +1,45 @@
+package com.letsdata.reader;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Generates write connector like payloads for the benchmarks - json documents with a few metadata fields and a large
+ * text field, gzip compressed the same way the write connector compresses each record.
+ */
+public class BenchmarkPayloads {
+    private static final String[] WORDS = {"the", "data", "record", "letsdata", "stream", "shard", "partition", "crawl", "document", "extract", "target", "uri", "error", "kinesis", "kafka", "write", "connector", "dataset", "commoncrawl", "warc", "html", "content", "language", "english", "timestamp"};
+
+    public static byte[] writeConnectorJson(int size, long seed) {
+        Random random = new Random(seed);
+        StringBuilder content = new StringBuilder(size);
+        while (content.length() < size) {
+            content.append(WORDS[random.nextInt(WORDS.length)]).append(' ');
+        }
+
+        String json = "{" +
+                "\"documentId\":\"" + Long.toHexString(random.nextLong()) + "\"," +
+                "\"documentType\":\"WEB_PAGE\"," +
+                "\"url\":\"https://example.com/" + Long.toHexString(random.nextLong()) + "\"," +
+                "\"language\":\"en\"," +
+                "\"crawlTimestamp\":" + (1685331931671L + random.nextInt()) + "," +
+                "\"content\":\"" + content + "\"" +
+                "}";
+        // the document is truncated to the exact size - the benchmarks do not parse the json
+        return Arrays.copyOf(json.getBytes(StandardCharsets.UTF_8), size);
+    }
+
+    public static byte[] gzip(byte[] data) {
+        ByteArrayOutputStream byteArrayOutputStream = new ByteArrayOutputStream();
+        try (GZIPOutputStream gzipOutputStream = new GZIPOutputStream(byteArrayOutputStream)) {
+            gzipOutputStream.write(data);
+        } catch (IOException ex) {
+            throw new RuntimeException("IOException in compressing the benchmark payload", ex);
+        }
+        return byteArrayOutputStream.toByteArray();
+    }
+}
@@ -0,0 +1,74 @@
+package com.letsdata.reader;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * GZipUtil.decompressByteArr compared with the GZipDecoder modes on 1 KB, 64 KB and 1 MB payloads.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class GZipDecodeBenchmark {
+    @Param({"1024", "65536", "1048576"})
+    public int payloadSize;
+
+    private byte[] compressed;
+    private ByteBuffer compressedBuffer;
+    private ByteBuffer compressedDirectBuffer;
+    private GZipDecoder gZipDecoder;
+    private GZipDecoder.Sink countingSink;
+    private long decodedLength;
+
+    @Setup
+    public void setup() {
+        compressed = BenchmarkPayloads.gzip(BenchmarkPayloads.writeConnectorJson(payloadSize, 42));
+        compressedBuffer = ByteBuffer.wrap(compressed);
+        compressedDirectBuffer = ByteBuffer.allocateDirect(compressed.length);
+        compressedDirectBuffer.put(compressed);
+        compressedDirectBuffer.flip();
+        gZipDecoder = new GZipDecoder(64 * 1024, Integer.MAX_VALUE - 8);
+        countingSink = (bytes, offset, length) -> decodedLength += length;
+    }
+
+    @Benchmark
+    public byte[] gZipUtilDecompressByteArr() {
+        return GZipUtil.decompressByteArr(compressed);
+    }
+
+    @Benchmark
+    public ByteBuffer gZipDecoderDecode() {
+        return gZipDecoder.decode(compressedBuffer);
+    }
+
+    @Benchmark
+    public ByteBuffer gZipDecoderDecodeDirect() {
+        return gZipDecoder.decode(compressedDirectBuffer);
+    }
+
+    @Benchmark
+    public CharSequence gZipDecoderDecodeToChars() {
+        return gZipDecoder.decodeToChars(compressedBuffer);
+    }
+
+    @Benchmark
+    public long gZipDecoderDecodeToSink() {
+        gZipDecoder.decode(compressedBuffer, countingSink);
+        return decodedLength;
+    }
+}
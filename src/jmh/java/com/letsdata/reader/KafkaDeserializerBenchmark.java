@@ -0,0 +1,72 @@
+package com.letsdata.reader;
+
+import org.apache.kafka.clients.consumer.ConsumerRecord;
+import org.apache.kafka.common.serialization.ByteArrayDeserializer;
+import org.apache.kafka.common.serialization.ByteBufferDeserializer;
+import org.apache.kafka.common.serialization.StringDeserializer;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The kafka StringDeserializer compared with the byte array / byte buffer deserializers, and the LazyKafkaRecord view
+ * over the byte array deserializer (filter only and decode on access).
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class KafkaDeserializerBenchmark {
+    private static final String TOPIC = "commoncrawl1";
+
+    @Param({"1024", "65536", "1048576"})
+    public int payloadSize;
+
+    private byte[] value;
+    private final StringDeserializer stringDeserializer = new StringDeserializer();
+    private final ByteArrayDeserializer byteArrayDeserializer = new ByteArrayDeserializer();
+    private final ByteBufferDeserializer byteBufferDeserializer = new ByteBufferDeserializer();
+
+    @Setup
+    public void setup() {
+        value = BenchmarkPayloads.writeConnectorJson(payloadSize, 42);
+    }
+
+    @Benchmark
+    public String stringDeserializer() {
+        return stringDeserializer.deserialize(TOPIC, value);
+    }
+
+    @Benchmark
+    public byte[] byteArrayDeserializer() {
+        return byteArrayDeserializer.deserialize(TOPIC, value);
+    }
+
+    @Benchmark
+    public ByteBuffer byteBufferDeserializer() {
+        return byteBufferDeserializer.deserialize(TOPIC, value);
+    }
+
+    @Benchmark
+    public boolean byteArrayLazyRecordFilter() {
+        return new LazyKafkaRecord(new ConsumerRecord<>(TOPIC, 0, 0L, null, byteArrayDeserializer.deserialize(TOPIC, value))).isGzipValue();
+    }
+
+    @Benchmark
+    public String byteArrayLazyRecordValueAsString() {
+        return new LazyKafkaRecord(new ConsumerRecord<>(TOPIC, 0, 0L, null, byteArrayDeserializer.deserialize(TOPIC, value))).valueAsString();
+    }
+}
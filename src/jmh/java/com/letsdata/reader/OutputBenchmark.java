@@ -0,0 +1,90 @@
+package com.letsdata.reader;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.BufferedOutputStream;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The stdout printing paths of Main / KafkaMain - an autoflush PrintStream (like System.out) over a discarding stream,
+ * so the benchmark measures the encoding, copying and flushing rather than the terminal.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class OutputBenchmark {
+    @Param({"1024", "65536", "1048576"})
+    public int payloadSize;
+
+    private byte[] compressed;
+    private ByteBuffer compressedBuffer;
+    private String recordStr;
+    private PrintStream stdoutLikePrintStream;
+    private PrintStream bufferedPrintStream;
+    private GZipDecoder.Sink stdoutLikeSink;
+
+    @Setup
+    public void setup() {
+        byte[] payload = BenchmarkPayloads.writeConnectorJson(payloadSize, 42);
+        compressed = BenchmarkPayloads.gzip(payload);
+        compressedBuffer = ByteBuffer.wrap(compressed);
+        recordStr = new String(payload);
+        OutputStream discardingOutputStream = new OutputStream() {
+            @Override
+            public void write(int b) {
+            }
+
+            @Override
+            public void write(byte[] b, int off, int len) {
+            }
+        };
+        stdoutLikePrintStream = new PrintStream(discardingOutputStream, true);
+        bufferedPrintStream = new PrintStream(new BufferedOutputStream(discardingOutputStream, 1024 * 1024), false);
+        stdoutLikeSink = stdoutLikePrintStream::write;
+    }
+
+    // KafkaMain - println of the deserialized value
+    @Benchmark
+    public void printlnString() {
+        stdoutLikePrintStream.println(recordStr);
+    }
+
+    // Main before GZipDecoder - decompress, new String, string concatenation and println
+    @Benchmark
+    public void printlnDecompressedString() {
+        String str = new String(GZipUtil.decompressByteArr(compressed));
+        stdoutLikePrintStream.println("record: " + str);
+    }
+
+    // Main - decoded bytes streamed to the print stream
+    @Benchmark
+    public void printDecodedBytes() {
+        stdoutLikePrintStream.print("record: ");
+        GZipDecoder.forCurrentThread().decode(compressedBuffer, stdoutLikeSink);
+        stdoutLikePrintStream.println();
+    }
+
+    // decoded bytes written to a large buffer that is flushed only when full
+    @Benchmark
+    public void writeDecodedBytesBuffered() {
+        ByteBuffer decoded = GZipDecoder.forCurrentThread().decode(compressedBuffer);
+        bufferedPrintStream.write(decoded.array(), decoded.arrayOffset() + decoded.position(), decoded.remaining());
+        bufferedPrintStream.write('\n');
+    }
+}
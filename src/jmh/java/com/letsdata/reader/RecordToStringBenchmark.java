@@ -0,0 +1,56 @@
+package com.letsdata.reader;
+
+import com.amazonaws.services.kinesis.model.Record;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Kinesis Record to String conversion - the original Main path (array copy, decompress, new String) compared with the
+ * GZipDecoder char view.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class RecordToStringBenchmark {
+    @Param({"1024", "65536", "1048576"})
+    public int payloadSize;
+
+    private Record record;
+
+    @Setup
+    public void setup() {
+        byte[] compressed = BenchmarkPayloads.gzip(BenchmarkPayloads.writeConnectorJson(payloadSize, 42));
+        record = new Record().withPartitionKey("partitionKey").withSequenceNumber("49590338271490256608559692538361571095921575989136588898").withData(ByteBuffer.wrap(compressed));
+    }
+
+    @Benchmark
+    public String gZipUtilNewString() {
+        byte[] dataBytes = record.getData().array();
+        return new String(GZipUtil.decompressByteArr(dataBytes));
+    }
+
+    @Benchmark
+    public CharSequence gZipDecoderCharView() {
+        return GZipDecoder.forCurrentThread().decodeToChars(record.getData());
+    }
+
+    @Benchmark
+    public String gZipDecoderToString() {
+        return GZipDecoder.forCurrentThread().decodeToChars(record.getData()).toString();
+    }
+}
@@ -0,0 +1,73 @@
+package com.letsdata.reader;
+
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Decides the getRecords limit and the delay before the next getRecords call of a shard, so a shard reader stays at the
+ * kinesis shard read limits (5 getRecords calls / sec and 2 MB / sec) without tripping them.
+ *
+ * - behind the tip of the stream: full batches grow the limit up to 10000 records and calls are made as often as the
+ *   call and byte budgets allow (a large response is followed by a longer wait, so the 2 MB / sec budget is not exceeded)
+ * - caught up: the limit shrinks with the returned record counts and the interval between empty polls grows up to 1 sec
+ * - throttled: the limit is halved and the next call waits a jittered exponential backoff
+ *
+ * Not thread safe - each shard reader owns its pacer.
+ */
+public class AdaptiveShardPacer {
+    // kinesis allows 5 getRecords calls per second per shard
+    private static final long MIN_GET_RECORDS_INTERVAL_MILLIS = 200;
+    // poll interval once a shard has caught up with the tip of the stream
+    private static final long CAUGHT_UP_GET_RECORDS_INTERVAL_MILLIS = 1000;
+    // kinesis allows 2 MB / sec reads per shard
+    private static final long MAX_READ_BYTES_PER_SECOND = 2 * 1024 * 1024;
+    private static final int MAX_LIMIT = 10000;
+    private static final int MIN_LIMIT = 100;
+    private static final int INITIAL_LIMIT = 1000;
+    private static final long MAX_BACKOFF_MILLIS = 10000;
+
+    private int limit = INITIAL_LIMIT;
+    private long caughtUpIntervalMillis = MIN_GET_RECORDS_INTERVAL_MILLIS;
+    private int consecutiveThrottleCount;
+
+    public int getLimit() {
+        return limit;
+    }
+
+    /**
+     * @return the delay in millis from the start of this getRecords call to the start of the next one
+     */
+    public long onRecords(int recordCount, long byteCount, Long millisBehindLatest) {
+        consecutiveThrottleCount = 0;
+        boolean caughtUp = millisBehindLatest != null && millisBehindLatest == 0;
+        long intervalMillis;
+        if (caughtUp) {
+            // the limit follows the returned record counts, empty polls slow down
+            limit = Math.max(MIN_LIMIT, Math.min(MAX_LIMIT, Math.max(recordCount * 2, limit / 2)));
+            caughtUpIntervalMillis = recordCount == 0 ? Math.min(CAUGHT_UP_GET_RECORDS_INTERVAL_MILLIS, caughtUpIntervalMillis * 2) : MIN_GET_RECORDS_INTERVAL_MILLIS;
+            intervalMillis = caughtUpIntervalMillis;
+        } else {
+            if (recordCount >= limit) {
+                limit = Math.min(MAX_LIMIT, limit * 2);
+            }
+            caughtUpIntervalMillis = MIN_GET_RECORDS_INTERVAL_MILLIS;
+            intervalMillis = MIN_GET_RECORDS_INTERVAL_MILLIS;
+        }
+        // the bytes returned by this call use up the shard's read budget for byteCount / 2 MB seconds
+        return Math.max(intervalMillis, byteCount * 1000 / MAX_READ_BYTES_PER_SECOND);
+    }
+
+    /**
+     * @return the delay in millis before the next call after a throttled call - exponential with full jitter in its
+     * upper half, so shards throttled together do not retry together
+     */
+    public long onThrottled() {
+        limit = Math.max(MIN_LIMIT, limit / 2);
+        consecutiveThrottleCount++;
+        long backoffMillis = Math.min(MAX_BACKOFF_MILLIS, MIN_GET_RECORDS_INTERVAL_MILLIS << Math.min(consecutiveThrottleCount, 16));
+        return backoffMillis / 2 + ThreadLocalRandom.current().nextLong(backoffMillis / 2 + 1);
+    }
+
+    public int getConsecutiveThrottleCount() {
+        return consecutiveThrottleCount;
+    }
+}
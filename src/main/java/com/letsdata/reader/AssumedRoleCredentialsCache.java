@@ -0,0 +1,163 @@
+package com.letsdata.reader;
+
+import com.amazonaws.auth.AWSSessionCredentials;
+import com.amazonaws.auth.AWSSessionCredentialsProvider;
+import com.amazonaws.auth.BasicSessionCredentials;
+import com.amazonaws.services.securitytoken.model.AssumeRoleResult;
+import com.amazonaws.services.securitytoken.model.Credentials;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A process wide cache of the assumed role credentials, shared by every reader.
+ *
+ * There is one provider per (base access key id, roleArn, externalId, policy, managedPolicyArnList) - the base
+ * credentials are part of the key since the same role assumed with different base credentials is not interchangeable
+ * (e.g. a trust policy that admits only one of them). Each provider assumes the role once,
+ * caches an immutable credentials object and refreshes it on a background thread well before it expires, so request
+ * threads never wait on sts after the first call. Concurrent refreshes of the same role are de-duplicated - callers
+ * that need credentials while a refresh is in flight wait for that refresh instead of starting their own.
+ */
+public class AssumedRoleCredentialsCache {
+    private static final Logger logger = LoggerFactory.getLogger(AssumedRoleCredentialsCache.class);
+
+    // refresh when less than this much of the credentials lifetime is left
+    private static final long REFRESH_BEFORE_EXPIRY_MILLIS = TimeUnit.MINUTES.toMillis(15);
+    // credentials that expire within this window are not handed out
+    private static final long MIN_REMAINING_VALIDITY_MILLIS = TimeUnit.MINUTES.toMillis(1);
+    private static final long REFRESH_RETRY_DELAY_MILLIS = TimeUnit.SECONDS.toMillis(10);
+
+    private static final MetricsRegistry.Histogram assumeRoleLatencyMillis = MetricsRegistry.getDefault().histogram("sts.assumeRoleLatencyMillis");
+    private static final MetricsRegistry.Meter assumeRoleFailures = MetricsRegistry.getDefault().meter("sts.assumeRoleFailures");
+
+    private static final Map<List<Object>, RoleCredentialsProvider> providerMap = new ConcurrentHashMap<>();
+    private static final ScheduledExecutorService refreshExecutor = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "AssumedRoleCredentialsCache-refresh");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    public static AWSSessionCredentialsProvider getProvider(STSUtil stsUtil, String roleArn, String externalId, String roleAccessPolicyText, String roleSessionName, List<String> managedPolicyArnList) {
+        List<Object> key = Arrays.asList(stsUtil.getAwsAccessKeyId(), roleArn, externalId, roleAccessPolicyText, managedPolicyArnList);
+        return providerMap.computeIfAbsent(key, k -> new RoleCredentialsProvider(stsUtil, roleArn, externalId, roleAccessPolicyText, roleSessionName, managedPolicyArnList));
+    }
+
+    private static class RoleCredentialsProvider implements AWSSessionCredentialsProvider {
+        private final STSUtil stsUtil;
+        private final String roleArn;
+        private final String externalId;
+        private final String roleAccessPolicyText;
+        private final String roleSessionName;
+        private final List<String> managedPolicyArnList;
+
+        private volatile CachedCredentials cachedCredentials;
+        private CompletableFuture<Void> inflightRefresh;
+        private ScheduledFuture<?> scheduledRefresh;
+
+        private RoleCredentialsProvider(STSUtil stsUtil, String roleArn, String externalId, String roleAccessPolicyText, String roleSessionName, List<String> managedPolicyArnList) {
+            this.stsUtil = stsUtil;
+            this.roleArn = roleArn;
+            this.externalId = externalId;
+            this.roleAccessPolicyText = roleAccessPolicyText;
+            this.roleSessionName = roleSessionName;
+            this.managedPolicyArnList = managedPolicyArnList;
+        }
+
+        @Override
+        public AWSSessionCredentials getCredentials() {
+            CachedCredentials credentials = cachedCredentials;
+            if (credentials != null && credentials.expirationMillis - System.currentTimeMillis() > MIN_REMAINING_VALIDITY_MILLIS) {
+                return credentials.sessionCredentials;
+            }
+
+            // first call, or the background refresh has been failing - wait for a refresh
+            try {
+                refresh();
+            } catch (CompletionException ex) {
+                logger.error("assume role for role arn " + roleArn + " threw an exception ", ex.getCause());
+            }
+            credentials = cachedCredentials;
+            if (credentials == null || credentials.expirationMillis <= System.currentTimeMillis()) {
+                throw new RuntimeException("Credentials could not be obtained");
+            }
+            return credentials.sessionCredentials;
+        }
+
+        @Override
+        public void refresh() {
+            startRefresh().join();
+        }
+
+        private synchronized CompletableFuture<Void> startRefresh() {
+            if (inflightRefresh != null) {
+                return inflightRefresh;
+            }
+
+            CompletableFuture<Void> refreshFuture = new CompletableFuture<>();
+            inflightRefresh = refreshFuture;
+            refreshExecutor.execute(() -> {
+                Exception failure = null;
+                try {
+                    assumeRole();
+                } catch (Exception ex) {
+                    failure = ex;
+                    assumeRoleFailures.mark();
+                    logger.error("assume role refresh for role arn " + roleArn + " threw an exception ", ex);
+                    scheduleRefresh(REFRESH_RETRY_DELAY_MILLIS);
+                }
+                synchronized (RoleCredentialsProvider.this) {
+                    inflightRefresh = null;
+                }
+                if (failure == null) {
+                    refreshFuture.complete(null);
+                } else {
+                    refreshFuture.completeExceptionally(failure);
+                }
+            });
+            return refreshFuture;
+        }
+
+        private void assumeRole() {
+            long startMillis = System.currentTimeMillis();
+            AssumeRoleResult stsAssumeRoleResult = stsUtil.assumeRole(roleArn, externalId, roleAccessPolicyText, roleSessionName, managedPolicyArnList);
+            Credentials credentials = stsAssumeRoleResult.getCredentials();
+            long expirationMillis = credentials.getExpiration().getTime();
+            assumeRoleLatencyMillis.record(System.currentTimeMillis() - startMillis);
+            this.cachedCredentials = new CachedCredentials(new BasicSessionCredentials(credentials.getAccessKeyId(), credentials.getSecretAccessKey(), credentials.getSessionToken()), expirationMillis);
+
+            long remainingMillis = expirationMillis - System.currentTimeMillis();
+            // short lived sessions are refreshed half way through their lifetime
+            long refreshDelayMillis = Math.max(remainingMillis - REFRESH_BEFORE_EXPIRY_MILLIS, remainingMillis / 2);
+            logger.debug("assumed role arn " + roleArn + " in " + (System.currentTimeMillis() - startMillis) + " ms, next refresh in " + refreshDelayMillis + " ms");
+            scheduleRefresh(Math.max(0, refreshDelayMillis));
+        }
+
+        private synchronized void scheduleRefresh(long delayMillis) {
+            if (scheduledRefresh != null) {
+                scheduledRefresh.cancel(false);
+            }
+            scheduledRefresh = refreshExecutor.schedule(this::startRefresh, delayMillis, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    private static class CachedCredentials {
+        private final BasicSessionCredentials sessionCredentials;
+        private final long expirationMillis;
+
+        private CachedCredentials(BasicSessionCredentials sessionCredentials, long expirationMillis) {
+            this.sessionCredentials = sessionCredentials;
+            this.expirationMillis = expirationMillis;
+        }
+    }
+}
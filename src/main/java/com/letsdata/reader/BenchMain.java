@@ -0,0 +1,470 @@
+package com.letsdata.reader;
+
+import com.amazonaws.arn.Arn;
+import com.amazonaws.auth.AWSStaticCredentialsProvider;
+import com.amazonaws.auth.BasicAWSCredentials;
+import com.amazonaws.services.kinesis.model.ShardIteratorType;
+import net.sourceforge.argparse4j.ArgumentParsers;
+import net.sourceforge.argparse4j.impl.Arguments;
+import net.sourceforge.argparse4j.inf.ArgumentParser;
+import net.sourceforge.argparse4j.inf.ArgumentParserException;
+import net.sourceforge.argparse4j.inf.Namespace;
+import software.amazon.awssdk.services.kinesis.KinesisAsyncClient;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.time.Instant;
+import java.time.format.DateTimeParseException;
+import java.util.Properties;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+
+/**
+ * A non-interactive, scriptable read benchmark - reads a kinesis stream (stream drainer / fan-out reader and the record
+ * pipeline), a kafka topic (the parallel consumer) or replays local files (the record pipeline) until the source is done,
+ * --recordCount records have been read or --durationSeconds have passed, and prints a {@link ThroughputReporter} report
+ * every --reportIntervalSeconds and at the end. The records are decoded as in the readers but not printed - the text
+ * output is counted and dropped, the columnar / binary outputFormat is written to --outputDir.
+ *
+ * - kinesis: drain reads from TRIM_HORIZON until caught up, tail from LATEST
+ * - kafka: drain reads from the beginning of the partitions, tail from the end (or --startTimestamp), in a new consumer
+ *   group unless --groupId is given
+ * - replay: the files of the kinesis_reader export mode / binary outputFormat in --inputPath ({@link ReplayShardRecordSource})
+ */
+public class BenchMain {
+    private static final long BOUND_CHECK_INTERVAL_MILLIS = 100;
+    // how long a kill waits for the final report
+    private static final long SHUTDOWN_REPORT_WAIT_MILLIS = 30000;
+    private static final int MAX_PENDING_RECORDS_PER_PARTITION = 5000;
+    private static final int COMMIT_RECORD_COUNT = 10000;
+    private static final long COMMIT_INTERVAL_MILLIS = 5000;
+    private static final long BROKER_CACHE_TTL_MILLIS = TimeUnit.MINUTES.toMillis(60);
+    private static final String KAFKA_ROLE_ACCESS_POLICY_TEXT = "{\n" +
+            "    \"Version\": \"2012-10-17\",\n" +
+            "    \"Statement\": [\n" +
+            "        {\n" +
+            "            \"Effect\": \"Allow\",\n" +
+            "            \"Action\": [\n" +
+            "                \"kafka:*\",\n" +
+            "                \"kafka-cluster:*\"\n" +
+            "            ],\n" +
+            "            \"Resource\": \"*\"\n" +
+            "        }\n" +
+            "    ]\n" +
+            "}";
+
+    // $ > bench.sh kinesis --mode drain --streamName 'streamName' --customerAccessRoleArn 'customerAccessRoleArn' --externalId 'externalId' --awsRegion 'awsRegion' --awsAccessKeyId 'awsAccessKeyId' --awsSecretKey 'awsSecretKey' --threadCount 16 --decodeThreadCount 8
+    // $ > bench.sh kafka --mode drain --clusterArn 'clusterArn' --customerAccessRoleArn 'customerAccessRoleArn' --externalId 'externalId' --awsRegion 'awsRegion' --awsAccessKeyId 'awsAccessKeyId' --awsSecretKey 'awsSecretKey' --topicName 'topicName' --recordCount 1000000
+    // $ > bench.sh replay --inputPath 'export' --passCount 10 --decodeThreadCount 4
+    public static void main(String[] args) {
+        ArgumentParser parser = ArgumentParsers.newFor("letsdatabench").build();
+        parser.addArgument("target").choices("kinesis", "kafka", "replay").required(true).help("What to read - \"kinesis\" a stream with the stream reader and record pipeline, \"kafka\" a topic with the parallel consumer, \"replay\" local export / binary files with the record pipeline (no AWS)");
+        parser.addArgument("--mode").choices("drain", "tail").required(false).help("\"drain\" - read from the start of the stream / topic (a kinesis drain ends once caught up), \"tail\" - read from the tip - default to drain").setDefault("drain");
+        parser.addArgument("--recordCount").required(false).type(Long.class).help("Stop after reading these many records");
+        parser.addArgument("--durationSeconds").required(false).type(Long.class).help("Stop after these many seconds");
+        parser.addArgument("--reportIntervalSeconds").required(false).type(Integer.class).help("Print the throughput of the last interval every these many seconds - 0 prints the final report only, default to 5").setDefault(5);
+        parser.addArgument("--awsRegion").required(false).type(String.class).help("The awsRegion - default to us-east-1").setDefault("us-east-1");
+        parser.addArgument("--awsAccessKeyId").required(false).type(String.class).help("The awsAccessKeyId for the customerAccountForAccess for the dataset (kinesis / kafka)");
+        parser.addArgument("--awsSecretKey").required(false).type(String.class).help("The awsSecretKey for the customerAccountForAccess for the dataset (kinesis / kafka)");
+        parser.addArgument("--customerAccessRoleArn").required(false).type(String.class).help("The customerAccessRoleArn from the dataset that has the been granted the access to the write connector (kinesis / kafka)");
+        parser.addArgument("--externalId").required(false).type(String.class).help("The externalId for the sts assumeRole. This is the dataset createDatetime. (kinesis / kafka)");
+        parser.addArgument("--streamName").required(false).type(String.class).help("The kinesis stream name");
+        parser.addArgument("--endpointUrl").required(false).type(String.class).help("Read a kinesis compatible endpoint with the awsAccessKeyId / awsSecretKey as is - no role is assumed. Polling reads only");
+        parser.addArgument("--readMode").choices("polling", "fanout").required(false).help("How the kinesis shards are read - \"polling\" getRecords calls or \"fanout\" enhanced fan-out subscribeToShard push - default to polling").setDefault("polling");
+        parser.addArgument("--consumerName").required(false).type(String.class).help("The enhanced fan-out stream consumer name for the fanout readMode - default to letsdata-writeconnector-reader").setDefault("letsdata-writeconnector-reader");
+        parser.addArgument("--threadCount").required(false).type(Integer.class).help("The number of threads that read the kinesis shards - default to 8").setDefault(8);
+        parser.addArgument("--readAheadDepth").required(false).type(Integer.class).help("The number of getRecords batches each kinesis shard fetches ahead - default to 0").setDefault(0);
+        parser.addArgument("--queueCapacity").required(false).type(Integer.class).help("The max number of read records buffered before the shard readers / the replay block, rounded up to a power of two - default to 10000 (16384)").setDefault(10000);
+        parser.addArgument("--inputPath").required(false).type(String.class).help("The replay file, or directory of files - jsonl.gz / jsonl files of the kinesis_reader export mode, ldbin files of the binary outputFormat");
+        parser.addArgument("--passCount").required(false).type(Integer.class).help("The number of times the replay reads the files - default to 1").setDefault(1);
+        parser.addArgument("--decodeThreadCount").required(false).type(Integer.class).help("The number of threads that decompress and format the kinesis / replay records - default to 4").setDefault(4);
+        parser.addArgument("--ringBufferDepth").required(false).type(Integer.class).help("The number of records each decode thread buffers, rounded up to a power of two - default to 1024").setDefault(1024);
+        parser.addArgument("--keyAffinity").required(false).action(Arguments.storeTrue()).help("Route the records to the decode / worker threads by partition key instead of by shard / partition");
+        parser.addArgument("--filter").required(false).type(String.class).help("Decode only the kinesis / replay records that match this expression, as in kinesis_reader");
+        parser.addArgument("--fields").required(false).type(String.class).help("Output only these comma separated fields of the kinesis / replay records, as in kinesis_reader");
+        parser.addArgument("--outputFormat").choices("text", "columnar", "binary").required(false).help("The kinesis / replay output - \"text\" is formatted, counted and dropped, \"columnar\" / \"binary\" are written to --outputDir - default to text").setDefault("text");
+        parser.addArgument("--outputDir").required(false).type(String.class).help("The output directory of the columnar / binary outputFormat - default to bench").setDefault("bench");
+        parser.addArgument("--maxFileSizeMB").required(false).type(Integer.class).help("The file size at which the columnar / binary output rolls to a new file - default to 128").setDefault(128);
+        parser.addArgument("--clusterArn").required(false).type(String.class).help("The kafka clusterArn - either the clusterArn or the bootstrapServers is required for kafka");
+        parser.addArgument("--bootstrapServers").required(false).type(String.class).help("Connect to these kafka brokers with PLAINTEXT instead of the clusterArn's brokers with MSK IAM auth");
+        parser.addArgument("--topicName").required(false).type(String.class).help("The kafka topic name");
+        parser.addArgument("--groupId").required(false).type(String.class).help("The kafka consumer group id - default to a new group, letsdata-bench-<millis>, so the offsets of the readers' groups are not moved");
+        parser.addArgument("--startTimestamp").required(false).type(String.class).help("Start the kafka partitions at their first record at or after this ISO-8601 time instead of the --mode position");
+        parser.addArgument("--workerThreadCount").required(false).type(Integer.class).help("The number of threads that process the kafka partitions - default to 8").setDefault(8);
+
+        try {
+            Namespace namespace = parser.parseArgs(args);
+            RecordFilter recordFilter;
+            try {
+                recordFilter = RecordFilter.parse(namespace.getString("filter"), namespace.getString("fields"));
+            } catch (IllegalArgumentException ex) {
+                throw new ArgumentParserException(ex.getMessage(), parser);
+            }
+            switch (namespace.getString("target")) {
+                case "kinesis": {
+                    benchKinesis(parser, namespace, recordFilter);
+                    break;
+                }
+                case "kafka": {
+                    benchKafka(parser, namespace);
+                    break;
+                }
+                case "replay": {
+                    benchReplay(parser, namespace, recordFilter);
+                    break;
+                }
+                default: {
+                    throw new ArgumentParserException("Unknown target " + namespace.getString("target"), parser);
+                }
+            }
+        } catch (ArgumentParserException e) {
+            parser.handleError(e);
+        } catch (IOException ex) {
+            throw new RuntimeException(ex);
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException(ex);
+        }
+    }
+
+    private static void benchKinesis(ArgumentParser parser, Namespace namespace, RecordFilter recordFilter) throws ArgumentParserException, InterruptedException {
+        String region = namespace.getString("awsRegion");
+        String streamName = required(parser, namespace, "streamName");
+        String awsAccessKeyId = required(parser, namespace, "awsAccessKeyId");
+        String awsSecretKey = required(parser, namespace, "awsSecretKey");
+        String endpointUrl = namespace.getString("endpointUrl");
+        boolean isFanout = "fanout".equals(namespace.getString("readMode"));
+        if (endpointUrl != null && isFanout) {
+            throw new ArgumentParserException("the fanout readMode is not supported with an endpointUrl", parser);
+        }
+        boolean isDrain = "drain".equals(namespace.getString("mode"));
+        ShardIteratorType shardIteratorType = isDrain ? ShardIteratorType.TRIM_HORIZON : ShardIteratorType.LATEST;
+        BlockingQueue<ShardRecord> recordQueue = new RingBuffer<>(namespace.getInt("queueCapacity"));
+        String roleSessionName = streamName + System.currentTimeMillis();
+
+        KinesisAsyncClient kinesisAsyncClient = null;
+        ShardRecordSource shardRecordSource;
+        if (endpointUrl != null) {
+            KinesisReader kinesisReader = new KinesisReader(region, endpointUrl, new AWSStaticCredentialsProvider(new BasicAWSCredentials(awsAccessKeyId, awsSecretKey)));
+            shardRecordSource = new KinesisStreamDrainer(kinesisReader, streamName, shardIteratorType, null, null, isDrain, namespace.getInt("threadCount"), namespace.getInt("readAheadDepth"), recordQueue, null);
+        } else {
+            String customerAccessRoleArn = required(parser, namespace, "customerAccessRoleArn");
+            String externalId = required(parser, namespace, "externalId");
+            STSUtil stsUtil = new STSUtil(region, awsAccessKeyId, awsSecretKey);
+            String streamArn = "arn:aws:kinesis:" + region + ":" + Arn.fromString(customerAccessRoleArn).getAccountId() + ":stream/" + streamName;
+            String roleAccessPolicyText = kinesisRoleAccessPolicyText(streamArn);
+            KinesisReader kinesisReader = new KinesisReader(region, stsUtil, customerAccessRoleArn, externalId, roleAccessPolicyText, roleSessionName, null);
+            if (isFanout) {
+                kinesisAsyncClient = KinesisFanOutReader.createKinesisAsyncClient(region, AssumedRoleCredentialsCache.getProvider(stsUtil, customerAccessRoleArn, externalId, roleAccessPolicyText, roleSessionName, null));
+                shardRecordSource = new KinesisFanOutReader(kinesisAsyncClient, kinesisReader, streamName, streamArn, namespace.getString("consumerName"), shardIteratorType, isDrain, namespace.getInt("threadCount"), recordQueue, null);
+            } else {
+                shardRecordSource = new KinesisStreamDrainer(kinesisReader, streamName, shardIteratorType, null, null, isDrain, namespace.getInt("threadCount"), namespace.getInt("readAheadDepth"), recordQueue, null);
+            }
+        }
+        // fan-out pushes the records, there is no fetch latency
+        MetricsRegistry.Histogram fetchLatencyMillis = isFanout ? null : MetricsRegistry.getDefault().histogram("kinesis." + streamName + ".getRecordsLatencyMillis");
+        try {
+            runPipeline("kinesis " + namespace.getString("mode") + " " + streamName, shardRecordSource, recordQueue, streamName, fetchLatencyMillis, recordFilter, namespace);
+        } finally {
+            if (kinesisAsyncClient != null) {
+                kinesisAsyncClient.close();
+            }
+        }
+    }
+
+    private static void benchReplay(ArgumentParser parser, Namespace namespace, RecordFilter recordFilter) throws ArgumentParserException, IOException, InterruptedException {
+        File input = new File(required(parser, namespace, "inputPath"));
+        if (!input.exists()) {
+            throw new ArgumentParserException("the inputPath " + input + " does not exist", parser);
+        }
+        BlockingQueue<ShardRecord> recordQueue = new RingBuffer<>(namespace.getInt("queueCapacity"));
+        ReplayShardRecordSource replaySource = new ReplayShardRecordSource(input, recordQueue, namespace.getInt("passCount"));
+        System.out.println("replay loaded " + replaySource.getRecordCount() + " records (" + replaySource.getCompressedByteCount() + " compressed bytes) from " + input + ", " + namespace.getInt("passCount") + " passes");
+        runPipeline("replay " + input.getName(), replaySource, recordQueue, "replay", null, recordFilter, namespace);
+    }
+
+    /**
+     * Runs the record pipeline on the source until the source is done or the bound is reached, with the throughput
+     * reports.
+     */
+    private static void runPipeline(String name, ShardRecordSource shardRecordSource, BlockingQueue<ShardRecord> recordQueue, String streamName, MetricsRegistry.Histogram fetchLatencyMillis, RecordFilter recordFilter, Namespace namespace) throws InterruptedException {
+        // the file names are timestamped so a rerun does not collide with the files of an earlier run
+        RecordSink recordSink = RecordSink.create(namespace.getString("outputFormat"), new File(namespace.getString("outputDir")), streamName + "-" + System.currentTimeMillis(), namespace.getInt("maxFileSizeMB") * 1024L * 1024L);
+        CountingRecordSink countingRecordSink = recordSink == null ? null : new CountingRecordSink(recordSink);
+        CountingOutputStream countingOutputStream = recordSink == null ? new CountingOutputStream() : null;
+        LongSupplier recordCount = countingRecordSink != null ? () -> countingRecordSink.recordCount : () -> countingOutputStream.lineCount;
+        LongSupplier byteCount = countingRecordSink != null ? () -> countingRecordSink.byteCount : () -> countingOutputStream.byteCount;
+
+        StoppableShardRecordSource stoppableSource = new StoppableShardRecordSource(shardRecordSource);
+        RecordPipeline recordPipeline = new RecordPipeline(stoppableSource, recordQueue, streamName, countingOutputStream, countingRecordSink, namespace.getInt("decodeThreadCount"), namespace.getInt("ringBufferDepth"), recordFilter, null, namespace.getBoolean("keyAffinity"));
+        AtomicReference<Throwable> pipelineFailure = new AtomicReference<>();
+        Thread pipelineThread = new Thread(() -> {
+            try {
+                recordPipeline.run();
+            } catch (Throwable ex) {
+                pipelineFailure.set(ex);
+            }
+        }, "BenchMain-pipeline");
+
+        try (ThroughputReporter throughputReporter = new ThroughputReporter(name, recordCount, byteCount, fetchLatencyMillis, "RecordPipeline-decode-", System.out)) {
+            throughputReporter.start(TimeUnit.SECONDS.toMillis(namespace.getInt("reportIntervalSeconds")));
+            pipelineThread.start();
+            runBounded(pipelineThread, recordCount, namespace, stoppableSource::finish, throughputReporter);
+        } finally {
+            if (recordSink != null) {
+                recordSink.close();
+            }
+        }
+        if (pipelineFailure.get() != null) {
+            throw new RuntimeException("The record pipeline failed", pipelineFailure.get());
+        }
+    }
+
+    private static void benchKafka(ArgumentParser parser, Namespace namespace) throws ArgumentParserException, InterruptedException {
+        String topicName = required(parser, namespace, "topicName");
+        String groupId = namespace.getString("groupId") != null ? namespace.getString("groupId") : "letsdata-bench-" + System.currentTimeMillis();
+        String bootstrapServers = namespace.getString("bootstrapServers");
+        String clusterArn = namespace.getString("clusterArn");
+        if (clusterArn == null && bootstrapServers == null) {
+            throw new ArgumentParserException("either the clusterArn or the bootstrapServers is required", parser);
+        }
+        KafkaReader kafkaReader;
+        if (bootstrapServers != null) {
+            kafkaReader = new KafkaReader(bootstrapServers, groupId, KafkaReader.RecordDeserializer.BYTE_BUFFER, new Properties());
+        } else {
+            String region = namespace.getString("awsRegion");
+            String awsAccessKeyId = required(parser, namespace, "awsAccessKeyId");
+            String awsSecretKey = required(parser, namespace, "awsSecretKey");
+            STSUtil stsUtil = new STSUtil(region, awsAccessKeyId, awsSecretKey);
+            BootstrapBrokerCache bootstrapBrokerCache = new BootstrapBrokerCache(new File(System.getProperty("user.home") + File.separator + ".letsdata" + File.separator + "kafka_bootstrap_brokers.properties"), BROKER_CACHE_TTL_MILLIS);
+            kafkaReader = new KafkaReader(region, clusterArn, groupId, KafkaReader.RecordDeserializer.BYTE_BUFFER, awsAccessKeyId, awsSecretKey, stsUtil, required(parser, namespace, "customerAccessRoleArn"), required(parser, namespace, "externalId"), KAFKA_ROLE_ACCESS_POLICY_TEXT, "KafkaBench" + System.currentTimeMillis(), null, bootstrapBrokerCache);
+        }
+        if (namespace.getString("startTimestamp") != null) {
+            try {
+                kafkaReader.setStartTimestamp(Instant.parse(namespace.getString("startTimestamp")).toEpochMilli());
+            } catch (DateTimeParseException ex) {
+                throw new ArgumentParserException("the startTimestamp " + namespace.getString("startTimestamp") + " is not an ISO-8601 time, e.g. 2023-05-29T10:00:00Z", parser);
+            }
+        } else if ("drain".equals(namespace.getString("mode"))) {
+            // the offset of the first record at or after the epoch is the beginning offset
+            kafkaReader.setStartTimestamp(0);
+        }
+
+        LongAdder recordCount = new LongAdder();
+        LongAdder byteCount = new LongAdder();
+        KafkaParallelConsumer.RecordHandler recordHandler = consumerRecord -> {
+            ByteBuffer value = new LazyKafkaRecord(consumerRecord).decodedValue();
+            if (value != null) {
+                byteCount.add(value.remaining());
+            }
+            recordCount.increment();
+        };
+        KafkaParallelConsumer parallelConsumer = new KafkaParallelConsumer(kafkaReader, recordHandler, namespace.getInt("workerThreadCount"), namespace.getBoolean("keyAffinity"), MAX_PENDING_RECORDS_PER_PARTITION, COMMIT_RECORD_COUNT, COMMIT_INTERVAL_MILLIS);
+        AtomicReference<Throwable> consumerFailure = new AtomicReference<>();
+        Thread consumerThread = new Thread(() -> {
+            try {
+                parallelConsumer.run(topicName, 0);
+            } catch (Throwable ex) {
+                consumerFailure.set(ex);
+            }
+        }, "BenchMain-consumer");
+
+        try (ThroughputReporter throughputReporter = new ThroughputReporter("kafka " + namespace.getString("mode") + " " + topicName, recordCount::sum, byteCount::sum, MetricsRegistry.getDefault().histogram("kafka." + groupId + ".pollLatencyMillis"), "KafkaParallelConsumer-worker", System.out)) {
+            throughputReporter.start(TimeUnit.SECONDS.toMillis(namespace.getInt("reportIntervalSeconds")));
+            consumerThread.start();
+            runBounded(consumerThread, recordCount::sum, namespace, parallelConsumer::stop, throughputReporter);
+        } finally {
+            kafkaReader.close();
+        }
+        if (consumerFailure.get() != null) {
+            throw new RuntimeException("The kafka consumer failed", consumerFailure.get());
+        }
+    }
+
+    /**
+     * Waits for the run thread to end - stops it once --recordCount records have been read, --durationSeconds have
+     * passed or the process is killed - and prints the final report.
+     */
+    private static void runBounded(Thread runThread, LongSupplier recordCount, Namespace namespace, Runnable stop, ThroughputReporter throughputReporter) throws InterruptedException {
+        Long maxRecordCount = namespace.getLong("recordCount");
+        long endMillis = namespace.getLong("durationSeconds") == null ? Long.MAX_VALUE : System.currentTimeMillis() + TimeUnit.SECONDS.toMillis(namespace.getLong("durationSeconds"));
+        CountDownLatch reported = new CountDownLatch(1);
+        Thread shutdownHook = new Thread(() -> {
+            stop.run();
+            try {
+                reported.await(SHUTDOWN_REPORT_WAIT_MILLIS, TimeUnit.MILLISECONDS);
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+            }
+        });
+        Runtime.getRuntime().addShutdownHook(shutdownHook);
+        try {
+            boolean stopped = false;
+            while (runThread.isAlive()) {
+                runThread.join(BOUND_CHECK_INTERVAL_MILLIS);
+                if (!stopped && runThread.isAlive() && ((maxRecordCount != null && recordCount.getAsLong() >= maxRecordCount) || System.currentTimeMillis() >= endMillis)) {
+                    stop.run();
+                    stopped = true;
+                }
+            }
+            throughputReporter.finish();
+        } finally {
+            reported.countDown();
+            try {
+                Runtime.getRuntime().removeShutdownHook(shutdownHook);
+            } catch (IllegalStateException ex) {
+                // stopped by the shutdown hook
+            }
+        }
+    }
+
+    private static String required(ArgumentParser parser, Namespace namespace, String argument) throws ArgumentParserException {
+        String value = namespace.getString(argument);
+        if (value == null) {
+            throw new ArgumentParserException("--" + argument + " is required for the " + namespace.getString("target") + " target", parser);
+        }
+        return value;
+    }
+
+    private static String kinesisRoleAccessPolicyText(String streamArn) {
+        return "{\n" +
+                "    \"Version\": \"2012-10-17\",\n" +
+                "    \"Statement\": [\n" +
+                "        {\n" +
+                "            \"Effect\": \"Allow\",\n" +
+                "            \"Action\": [\n" +
+                "                \"kinesis:GetShardIterator\",\n" +
+                "                \"kinesis:GetRecords\"\n" +
+                "            ],\n" +
+                "            \"Resource\": \"" + streamArn + "\"\n" +
+                "        },\n" +
+                "        {\n" +
+                "            \"Effect\": \"Allow\",\n" +
+                "            \"Action\": [\n" +
+                "                \"kinesis:RegisterStreamConsumer\",\n" +
+                "                \"kinesis:DescribeStreamConsumer\",\n" +
+                "                \"kinesis:SubscribeToShard\"\n" +
+                "            ],\n" +
+                "            \"Resource\": [\n" +
+                "                \"" + streamArn + "\",\n" +
+                "                \"" + streamArn + "/consumer/*\"\n" +
+                "            ]\n" +
+                "        },\n" +
+                "        {\n" +
+                "            \"Effect\": \"Allow\",\n" +
+                "            \"Action\": \"kinesis:ListShards\",\n" +
+                "            \"Resource\": \"*\"\n" +
+                "        }\n" +
+                "    ]\n" +
+                "}";
+    }
+
+    /**
+     * A source that can be ended early - the pipeline stops reading once it is finished and the queued records have been
+     * emitted.
+     */
+    private static class StoppableShardRecordSource implements ShardRecordSource {
+        private final ShardRecordSource shardRecordSource;
+        private volatile boolean finished;
+
+        private StoppableShardRecordSource(ShardRecordSource shardRecordSource) {
+            this.shardRecordSource = shardRecordSource;
+        }
+
+        private void finish() {
+            finished = true;
+            // the shard readers stop queueing, so the pipeline can drain the queue
+            shardRecordSource.stop();
+        }
+
+        @Override
+        public void start() {
+            shardRecordSource.start();
+        }
+
+        @Override
+        public boolean isDone() {
+            return finished || shardRecordSource.isDone();
+        }
+
+        @Override
+        public Throwable getFailure() {
+            return shardRecordSource.getFailure();
+        }
+
+        @Override
+        public void checkpoint(ShardRecord shardRecord) {
+            shardRecordSource.checkpoint(shardRecord);
+        }
+
+        @Override
+        public void stop() {
+            shardRecordSource.stop();
+        }
+    }
+
+    /**
+     * Drops the text output - counts the emitted records (one line each) and bytes. Written by the pipeline's emit thread
+     * only.
+     */
+    private static class CountingOutputStream extends OutputStream {
+        private volatile long lineCount;
+        private volatile long byteCount;
+
+        @Override
+        public void write(int b) {
+            if (b == '\n') {
+                lineCount++;
+            }
+            byteCount++;
+        }
+
+        @Override
+        public void write(byte[] bytes, int offset, int length) {
+            long lines = 0;
+            for (int i = offset; i < offset + length; i++) {
+                if (bytes[i] == '\n') {
+                    lines++;
+                }
+            }
+            lineCount += lines;
+            byteCount += length;
+        }
+    }
+
+    /**
+     * Counts the records and bytes written to the sink. Written by the pipeline's emit thread only.
+     */
+    private static class CountingRecordSink implements RecordSink {
+        private final RecordSink recordSink;
+        private volatile long recordCount;
+        private volatile long byteCount;
+
+        private CountingRecordSink(RecordSink recordSink) {
+            this.recordSink = recordSink;
+        }
+
+        @Override
+        public void write(String source, ByteBuffer record) {
+            recordSink.write(source, record);
+            recordCount++;
+            byteCount += record.remaining();
+        }
+
+        @Override
+        public void flush() {
+            recordSink.flush();
+        }
+
+        @Override
+        public void close() {
+            recordSink.close();
+        }
+    }
+}
@@ -0,0 +1,99 @@
+package com.letsdata.reader;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+
+/**
+ * Reads a {@link BinaryRecordSink} file sequentially from a memory mapped buffer - the records are views of the mapped
+ * file, nothing is copied.
+ *
+ * <pre>
+ * BinaryRecordReader reader = new BinaryRecordReader(file);
+ * while (reader.next()) {
+ *     process(reader.source(), reader.record());
+ * }
+ * </pre>
+ */
+public class BinaryRecordReader {
+    private final MappedByteBuffer mappedBuffer;
+    private final ByteBuffer record;
+    private byte[] sourceBytes = new byte[0];
+    private String source;
+
+    public BinaryRecordReader(File file) throws IOException {
+        try (FileChannel fileChannel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            if (fileChannel.size() > Integer.MAX_VALUE) {
+                throw new IOException("The file " + file + " is larger than 2 GB - write it with a smaller max file size");
+            }
+            // the mapping stays valid after the channel is closed
+            this.mappedBuffer = fileChannel.map(FileChannel.MapMode.READ_ONLY, 0, fileChannel.size());
+        }
+        byte[] magic = new byte[BinaryRecordSink.MAGIC.length];
+        if (mappedBuffer.remaining() < magic.length) {
+            throw new IOException("The file " + file + " is not a binary record file");
+        }
+        mappedBuffer.get(magic);
+        if (!Arrays.equals(magic, BinaryRecordSink.MAGIC)) {
+            throw new IOException("The file " + file + " is not a binary record file");
+        }
+        this.record = mappedBuffer.duplicate();
+    }
+
+    /**
+     * Moves to the next record.
+     *
+     * @return false at the end of the file
+     */
+    public boolean next() {
+        if (mappedBuffer.remaining() < 6) {
+            return false;
+        }
+        int recordLength = mappedBuffer.getInt();
+        int sourceLength = mappedBuffer.getShort() & 0xffff;
+        if (!sourceEquals(sourceLength)) {
+            sourceBytes = new byte[sourceLength];
+            mappedBuffer.get(sourceBytes);
+            source = new String(sourceBytes, StandardCharsets.UTF_8);
+        } else {
+            mappedBuffer.position(mappedBuffer.position() + sourceLength);
+        }
+        record.limit(mappedBuffer.position() + recordLength);
+        record.position(mappedBuffer.position());
+        mappedBuffer.position(mappedBuffer.position() + recordLength);
+        return true;
+    }
+
+    /**
+     * @return the shard / partition of the current record
+     */
+    public String source() {
+        return source;
+    }
+
+    /**
+     * @return a view of the current record in the mapped file, valid until the next call to next()
+     */
+    public ByteBuffer record() {
+        return record;
+    }
+
+    // consecutive records mostly have the same source - its String is reused
+    private boolean sourceEquals(int sourceLength) {
+        if (source == null || sourceLength != sourceBytes.length) {
+            return false;
+        }
+        int position = mappedBuffer.position();
+        for (int i = 0; i < sourceLength; i++) {
+            if (mappedBuffer.get(position + i) != sourceBytes[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
@@ -0,0 +1,52 @@
+package com.letsdata.reader;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Writes the records as length prefixed frames to size-rolled files, for sequential reads from memory mapped files with
+ * {@link BinaryRecordReader}.
+ *
+ * A file is the MAGIC followed by one frame per record - an int record length, a short source length, the UTF-8
+ * source (the shard / partition) and the record bytes, big endian. Files roll at record boundaries.
+ */
+public class BinaryRecordSink implements RecordSink {
+    static final String SUFFIX = "ldbin";
+    static final byte[] MAGIC = {'L', 'D', 'B', '1'};
+    static final int WRITE_BUFFER_SIZE = 1024 * 1024;
+
+    private final RollingFileWriter rollingFileWriter;
+    private final Map<String, byte[]> sourceBytesMap = new HashMap<>();
+    private final ByteBuffer frameHeader = ByteBuffer.allocate(6);
+
+    public BinaryRecordSink(RollingFileWriter rollingFileWriter) {
+        this.rollingFileWriter = rollingFileWriter;
+    }
+
+    @Override
+    public void write(String source, ByteBuffer record) {
+        if (!rollingFileWriter.isFileOpen()) {
+            rollingFileWriter.write(MAGIC, 0, MAGIC.length);
+        }
+        byte[] sourceBytes = sourceBytesMap.computeIfAbsent(source, key -> key.getBytes(StandardCharsets.UTF_8));
+        frameHeader.clear();
+        frameHeader.putInt(record.remaining());
+        frameHeader.putShort((short) sourceBytes.length);
+        rollingFileWriter.write(frameHeader.array(), 0, frameHeader.position());
+        rollingFileWriter.write(sourceBytes, 0, sourceBytes.length);
+        rollingFileWriter.write(record);
+        rollingFileWriter.endRecord();
+    }
+
+    @Override
+    public void flush() {
+        rollingFileWriter.flush();
+    }
+
+    @Override
+    public void close() {
+        rollingFileWriter.close();
+    }
+}
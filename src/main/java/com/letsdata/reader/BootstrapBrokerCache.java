@@ -0,0 +1,82 @@
+package com.letsdata.reader;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Properties;
+
+/**
+ * A local properties file of the MSK bootstrap broker strings by cluster arn, so a reader started again within ttlMillis
+ * connects to the brokers right away - without the sts assume role and the getBootstrapBrokers call. An entry is the
+ * fetch time and the broker string. The file is rewritten (temp file and atomic rename) on each put - entries change
+ * once per ttl at most.
+ */
+public class BootstrapBrokerCache {
+    private static final Logger logger = LoggerFactory.getLogger(BootstrapBrokerCache.class);
+
+    private final File file;
+    private final long ttlMillis;
+
+    public BootstrapBrokerCache(File file, long ttlMillis) {
+        this.file = file;
+        this.ttlMillis = ttlMillis;
+    }
+
+    /**
+     * @return the cached broker string of the cluster, null if there is none or it is older than the ttl
+     */
+    public synchronized String get(String clusterArn) {
+        String entry = load().getProperty(clusterArn);
+        if (entry == null || entry.indexOf(',') < 0) {
+            return null;
+        }
+        try {
+            long fetchMillis = Long.parseLong(entry.substring(0, entry.indexOf(',')));
+            if (System.currentTimeMillis() - fetchMillis >= ttlMillis) {
+                return null;
+            }
+        } catch (NumberFormatException ex) {
+            return null;
+        }
+        return entry.substring(entry.indexOf(',') + 1);
+    }
+
+    public synchronized void put(String clusterArn, String bootstrapBrokers) {
+        Properties properties = load();
+        properties.setProperty(clusterArn, System.currentTimeMillis() + "," + bootstrapBrokers);
+        File parentDir = file.getAbsoluteFile().getParentFile();
+        if (parentDir != null && !parentDir.isDirectory() && !parentDir.mkdirs()) {
+            logger.error("could not create the bootstrap broker cache directory " + parentDir);
+            return;
+        }
+        File tempFile = new File(file.getAbsolutePath() + ".tmp");
+        try {
+            try (FileOutputStream outputStream = new FileOutputStream(tempFile)) {
+                properties.store(outputStream, "letsdata-writeconnector-reader bootstrap brokers");
+            }
+            Files.move(tempFile.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException ex) {
+            // only the next start is slower
+            logger.error("writing the bootstrap broker cache " + file + " threw an exception ", ex);
+        }
+    }
+
+    private Properties load() {
+        Properties properties = new Properties();
+        if (file.exists()) {
+            try (InputStream inputStream = new FileInputStream(file)) {
+                properties.load(inputStream);
+            } catch (IOException ex) {
+                logger.error("reading the bootstrap broker cache " + file + " threw an exception ", ex);
+            }
+        }
+        return properties;
+    }
+}
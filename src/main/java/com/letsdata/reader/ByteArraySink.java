@@ -0,0 +1,37 @@
+package com.letsdata.reader;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * A reusable, growable byte array that collects the bytes written to it as a {@link GZipDecoder.Sink} - e.g. a record
+ * projection whose length is needed before it is written on. Not thread safe.
+ */
+public class ByteArraySink implements GZipDecoder.Sink {
+    private byte[] bytes;
+    private int length;
+
+    public ByteArraySink(int initialCapacity) {
+        this.bytes = new byte[initialCapacity];
+    }
+
+    @Override
+    public void write(byte[] source, int offset, int count) {
+        if (length + count > bytes.length) {
+            bytes = Arrays.copyOf(bytes, Math.max(bytes.length * 2, length + count));
+        }
+        System.arraycopy(source, offset, bytes, length, count);
+        length += count;
+    }
+
+    public void clear() {
+        length = 0;
+    }
+
+    /**
+     * @return a view of the written bytes, valid until the next write / clear
+     */
+    public ByteBuffer buffer() {
+        return ByteBuffer.wrap(bytes, 0, length);
+    }
+}
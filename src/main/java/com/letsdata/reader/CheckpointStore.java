@@ -0,0 +1,67 @@
+package com.letsdata.reader;
+
+/**
+ * Remembers where a reader stopped - the last processed sequence number per kinesis shard and the last processed offset
+ * per kafka partition - so that a restarted reader resumes instead of re-reading the retention window.
+ *
+ * Implementations are expected to keep checkpoint() cheap (it is called per record) and persist asynchronously.
+ */
+public interface CheckpointStore extends AutoCloseable {
+    // checkpoint value of a kinesis shard that has been read to SHARD_END
+    String SHARD_END = "SHARD_END";
+
+    static String kinesisShardKey(String streamName, String shardId) {
+        return "kinesis." + streamName + "." + shardId;
+    }
+
+    static String kafkaPartitionKey(String topicName, int partition) {
+        return "kafka." + topicName + "." + partition;
+    }
+
+    /**
+     * A view of the store whose keys are prefixed with keyPrefix - the reader daemon's datasets share one store, each
+     * through its own prefix, so two datasets of the same stream / topic name do not overwrite each other's checkpoints.
+     * Closing the view only flushes, the store is closed by its owner.
+     */
+    static CheckpointStore withKeyPrefix(CheckpointStore checkpointStore, String keyPrefix) {
+        return new CheckpointStore() {
+            @Override
+            public String getCheckpoint(String key) {
+                return checkpointStore.getCheckpoint(keyPrefix + key);
+            }
+
+            @Override
+            public void checkpoint(String key, String value) {
+                checkpointStore.checkpoint(keyPrefix + key, value);
+            }
+
+            @Override
+            public void flush() {
+                checkpointStore.flush();
+            }
+
+            @Override
+            public void close() {
+                checkpointStore.flush();
+            }
+        };
+    }
+
+    /**
+     * @return the last checkpointed value for the key, null if there is none
+     */
+    String getCheckpoint(String key);
+
+    void checkpoint(String key, String value);
+
+    /**
+     * Persists the checkpoints recorded so far.
+     */
+    void flush();
+
+    /**
+     * Flushes and releases the store's resources.
+     */
+    @Override
+    void close();
+}
@@ -0,0 +1,174 @@
+package com.letsdata.reader;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.List;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+/**
+ * Scans the rows of a {@link ColumnarRecordSink} file - only the requested columns are inflated and decoded, the other
+ * columns of each row group are skipped over in the memory mapped file.
+ */
+public class ColumnarRecordReader {
+    public interface RowConsumer {
+        /**
+         * @param values the raw json value of each requested column in the row, null when the record does not have the
+         *               field - the buffers are only valid during the call
+         */
+        void accept(ByteBuffer[] values);
+    }
+
+    /**
+     * @param columnNames the columns to read - the record fields, {@link ColumnarRecordSink#SOURCE_COLUMN} and
+     *                    {@link ColumnarRecordSink#RAW_COLUMN}
+     * @return the number of rows read
+     */
+    public static long scan(File file, List<String> columnNames, RowConsumer consumer) throws IOException {
+        MappedByteBuffer mappedBuffer;
+        try (FileChannel fileChannel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            if (fileChannel.size() > Integer.MAX_VALUE) {
+                throw new IOException("The file " + file + " is larger than 2 GB - write it with a smaller max file size");
+            }
+            mappedBuffer = fileChannel.map(FileChannel.MapMode.READ_ONLY, 0, fileChannel.size());
+        }
+        byte[] magic = new byte[ColumnarRecordSink.MAGIC.length];
+        if (mappedBuffer.remaining() < magic.length) {
+            throw new IOException("The file " + file + " is not a columnar record file");
+        }
+        mappedBuffer.get(magic);
+        if (!Arrays.equals(magic, ColumnarRecordSink.MAGIC)) {
+            throw new IOException("The file " + file + " is not a columnar record file");
+        }
+
+        byte[][] nameBytes = new byte[columnNames.size()][];
+        for (int i = 0; i < nameBytes.length; i++) {
+            nameBytes[i] = columnNames.get(i).getBytes(StandardCharsets.UTF_8);
+        }
+        ColumnValues[] columnValues = new ColumnValues[nameBytes.length];
+        for (int i = 0; i < columnValues.length; i++) {
+            columnValues[i] = new ColumnValues();
+        }
+        ByteBuffer[] values = new ByteBuffer[nameBytes.length];
+        Inflater inflater = new Inflater();
+        byte[] compressed = new byte[64 * 1024];
+        long totalRowCount = 0;
+        try {
+            while (mappedBuffer.hasRemaining()) {
+                int rowCount = mappedBuffer.getInt();
+                int columnCount = mappedBuffer.getInt();
+                for (ColumnValues column : columnValues) {
+                    column.present = false;
+                }
+                for (int c = 0; c < columnCount; c++) {
+                    byte[] name = new byte[mappedBuffer.getShort() & 0xffff];
+                    mappedBuffer.get(name);
+                    byte encoding = mappedBuffer.get();
+                    int uncompressedLength = mappedBuffer.getInt();
+                    int compressedLength = mappedBuffer.getInt();
+                    int index = indexOf(nameBytes, name);
+                    if (index < 0) {
+                        mappedBuffer.position(mappedBuffer.position() + compressedLength);
+                        continue;
+                    }
+                    if (compressed.length < compressedLength) {
+                        compressed = new byte[compressedLength];
+                    }
+                    mappedBuffer.get(compressed, 0, compressedLength);
+                    columnValues[index].decode(inflater, compressed, compressedLength, encoding, uncompressedLength, rowCount);
+                }
+                for (int row = 0; row < rowCount; row++) {
+                    for (int i = 0; i < values.length; i++) {
+                        values[i] = columnValues[i].value(row);
+                    }
+                    consumer.accept(values);
+                }
+                totalRowCount += rowCount;
+            }
+        } catch (DataFormatException ex) {
+            throw new IOException("Corrupt column in " + file, ex);
+        } finally {
+            inflater.end();
+        }
+        return totalRowCount;
+    }
+
+    private static int indexOf(byte[][] nameBytes, byte[] name) {
+        for (int i = 0; i < nameBytes.length; i++) {
+            if (Arrays.equals(nameBytes[i], name)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * A requested column of the current row group - the inflated payload and the value bounds of each row.
+     */
+    private static class ColumnValues {
+        private byte[] payload = new byte[0];
+        private ByteBuffer view = ByteBuffer.wrap(payload);
+        private int[] rowStarts = new int[0];
+        private int[] rowLengths = new int[0];
+        private boolean present;
+
+        private void decode(Inflater inflater, byte[] compressed, int compressedLength, byte encoding, int uncompressedLength, int rowCount) throws DataFormatException {
+            if (payload.length < uncompressedLength) {
+                payload = new byte[uncompressedLength];
+                view = ByteBuffer.wrap(payload);
+            }
+            inflater.reset();
+            inflater.setInput(compressed, 0, compressedLength);
+            int length = 0;
+            while (length < uncompressedLength && !inflater.finished()) {
+                int count = inflater.inflate(payload, length, uncompressedLength - length);
+                if (count == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+                    throw new DataFormatException("Unexpected end of the column");
+                }
+                length += count;
+            }
+            if (rowStarts.length < rowCount) {
+                rowStarts = new int[rowCount];
+                rowLengths = new int[rowCount];
+            }
+            ByteBuffer buffer = ByteBuffer.wrap(payload, 0, uncompressedLength);
+            if (encoding == ColumnarRecordSink.DICTIONARY) {
+                int dictionarySize = buffer.getInt();
+                int[] dictionaryStarts = new int[dictionarySize];
+                int[] dictionaryLengths = new int[dictionarySize];
+                for (int id = 0; id < dictionarySize; id++) {
+                    dictionaryLengths[id] = buffer.getInt();
+                    dictionaryStarts[id] = buffer.position();
+                    buffer.position(buffer.position() + dictionaryLengths[id]);
+                }
+                for (int row = 0; row < rowCount; row++) {
+                    int id = buffer.getInt();
+                    rowStarts[row] = id < 0 ? 0 : dictionaryStarts[id];
+                    rowLengths[row] = id < 0 ? -1 : dictionaryLengths[id];
+                }
+            } else {
+                for (int row = 0; row < rowCount; row++) {
+                    rowLengths[row] = buffer.getInt();
+                    rowStarts[row] = buffer.position();
+                    buffer.position(buffer.position() + Math.max(0, rowLengths[row]));
+                }
+            }
+            present = true;
+        }
+
+        private ByteBuffer value(int row) {
+            if (!present || rowLengths[row] < 0) {
+                return null;
+            }
+            view.limit(rowStarts[row] + rowLengths[row]);
+            view.position(rowStarts[row]);
+            return view;
+        }
+    }
+}
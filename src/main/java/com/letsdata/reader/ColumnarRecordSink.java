@@ -0,0 +1,538 @@
+package com.letsdata.reader;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.Deflater;
+
+/**
+ * Writes the json records column by column to size-rolled files - a parquet style layout without the dependency, read
+ * back with {@link ColumnarRecordReader}.
+ *
+ * Each top level field of the records is a column of its raw json values (nested objects / arrays are kept as their json
+ * text), plus the {@link #SOURCE_COLUMN} with the shard / partition of each record. Records that are not json objects
+ * are kept whole in the {@link #RAW_COLUMN}. The records are buffered into row groups of up to MAX_ROW_GROUP_ROWS records
+ * / MAX_ROW_GROUP_BYTES bytes (a flush() ends the row group early). In a row group:
+ * - a column with at most MAX_DICTIONARY_SIZE distinct values is dictionary encoded (the distinct values and an id per
+ *   row), other columns are plain encoded (the value of each row)
+ * - each column is deflated on its own, so a reader inflates only the columns it reads and skips the others
+ *
+ * File layout (big endian): the MAGIC, then the row groups - an int row count, an int column count, and per column a
+ * short name length, the UTF-8 name, an encoding byte, the int uncompressed and compressed lengths and the deflated
+ * column. Dictionary columns are an int dictionary size, the values (int length, bytes) and an int id per row (-1 when
+ * the record does not have the field), plain columns are the rows (int length, -1 when missing, bytes). Files roll at
+ * row group boundaries.
+ */
+public class ColumnarRecordSink implements RecordSink {
+    public static final String SOURCE_COLUMN = "$source";
+    public static final String RAW_COLUMN = "$raw";
+
+    static final String SUFFIX = "ldcol";
+    static final byte[] MAGIC = {'L', 'D', 'C', '1'};
+    static final byte PLAIN = 0;
+    static final byte DICTIONARY = 1;
+    static final int WRITE_BUFFER_SIZE = 1024 * 1024;
+
+    private static final int MAX_ROW_GROUP_ROWS = 64 * 1024;
+    private static final int MAX_ROW_GROUP_BYTES = 32 * 1024 * 1024;
+    private static final int MAX_DICTIONARY_SIZE = 4096;
+    private static final int MAX_FIELDS_PER_RECORD = 1024;
+
+    private final RollingFileWriter rollingFileWriter;
+    private final List<Column> columnList = new ArrayList<>();
+    private final Map<ColumnName, Column> columnMap = new HashMap<>();
+    // a reusable lookup key, so finding a record field's column does not allocate
+    private final ColumnName lookupName = new ColumnName(null, 0, 0);
+    private final Column sourceColumn;
+    private final Column rawColumn;
+    private final Map<String, byte[]> sourceValueMap = new HashMap<>();
+    private final Deflater deflater = new Deflater();
+    private final int[] fieldBounds = new int[MAX_FIELDS_PER_RECORD * 4];
+    private byte[] recordBuffer = new byte[0];
+    private byte[] bytes;
+    private ByteBuffer payload = ByteBuffer.allocate(64 * 1024);
+    private byte[] compressed = new byte[64 * 1024];
+    private ByteBuffer rowGroup = ByteBuffer.allocate(1024 * 1024);
+    private int rowCount;
+    private long rowGroupBytes;
+
+    public ColumnarRecordSink(RollingFileWriter rollingFileWriter) {
+        this.rollingFileWriter = rollingFileWriter;
+        this.sourceColumn = column(SOURCE_COLUMN);
+        this.rawColumn = column(RAW_COLUMN);
+    }
+
+    @Override
+    public void write(String source, ByteBuffer record) {
+        int start;
+        int end;
+        if (record.hasArray()) {
+            bytes = record.array();
+            start = record.arrayOffset() + record.position();
+            end = record.arrayOffset() + record.limit();
+        } else {
+            if (recordBuffer.length < record.remaining()) {
+                recordBuffer = new byte[record.remaining()];
+            }
+            record.duplicate().get(recordBuffer, 0, record.remaining());
+            bytes = recordBuffer;
+            start = 0;
+            end = record.remaining();
+        }
+
+        byte[] sourceValue = sourceValueMap.computeIfAbsent(source, key -> ("\"" + key + "\"").getBytes(StandardCharsets.UTF_8));
+        sourceColumn.add(rowCount, sourceValue, 0, sourceValue.length);
+        int fieldCount = scanFields(start, end);
+        if (fieldCount < 0) {
+            rawColumn.add(rowCount, bytes, start, end - start);
+        } else {
+            for (int i = 0; i < fieldCount * 4; i += 4) {
+                lookupName.set(bytes, fieldBounds[i], fieldBounds[i + 1]);
+                Column column = columnMap.get(lookupName);
+                if (column == null) {
+                    column = column(new String(bytes, fieldBounds[i], fieldBounds[i + 1] - fieldBounds[i], StandardCharsets.UTF_8));
+                }
+                // the first occurrence of a duplicate name wins
+                if (column.rowCount <= rowCount) {
+                    column.add(rowCount, bytes, fieldBounds[i + 2], fieldBounds[i + 3] - fieldBounds[i + 2]);
+                }
+            }
+        }
+        rowCount++;
+        rowGroupBytes += end - start;
+        if (rowCount == MAX_ROW_GROUP_ROWS || rowGroupBytes >= MAX_ROW_GROUP_BYTES) {
+            writeRowGroup();
+        }
+    }
+
+    @Override
+    public void flush() {
+        if (rowCount > 0) {
+            writeRowGroup();
+        }
+        rollingFileWriter.flush();
+    }
+
+    @Override
+    public void close() {
+        flush();
+        rollingFileWriter.close();
+        deflater.end();
+    }
+
+    private Column column(String name) {
+        Column column = new Column(name.getBytes(StandardCharsets.UTF_8));
+        columnList.add(column);
+        columnMap.put(new ColumnName(column.nameBytes, 0, column.nameBytes.length), column);
+        return column;
+    }
+
+    private void writeRowGroup() {
+        int columnCount = 0;
+        for (Column column : columnList) {
+            if (column.hasValues) {
+                columnCount++;
+            }
+        }
+        rowGroup.clear();
+        rowGroup.putInt(rowCount);
+        rowGroup.putInt(columnCount);
+        for (Column column : columnList) {
+            if (!column.hasValues) {
+                continue;
+            }
+            column.fillMissing(rowCount);
+            payload.clear();
+            byte encoding = column.encode(this);
+            int compressedLength = deflate();
+            ensureRowGroupCapacity(2 + column.nameBytes.length + 9 + compressedLength);
+            rowGroup.putShort((short) column.nameBytes.length);
+            rowGroup.put(column.nameBytes);
+            rowGroup.put(encoding);
+            rowGroup.putInt(payload.position());
+            rowGroup.putInt(compressedLength);
+            rowGroup.put(compressed, 0, compressedLength);
+            column.reset();
+        }
+        if (!rollingFileWriter.isFileOpen()) {
+            rollingFileWriter.write(MAGIC, 0, MAGIC.length);
+        }
+        rowGroup.flip();
+        rollingFileWriter.write(rowGroup);
+        rollingFileWriter.endRecord();
+        rowCount = 0;
+        rowGroupBytes = 0;
+    }
+
+    private int deflate() {
+        deflater.reset();
+        deflater.setInput(payload.array(), 0, payload.position());
+        deflater.finish();
+        int length = 0;
+        while (!deflater.finished()) {
+            if (length == compressed.length) {
+                compressed = Arrays.copyOf(compressed, compressed.length * 2);
+            }
+            length += deflater.deflate(compressed, length, compressed.length - length);
+        }
+        return length;
+    }
+
+    private void putPayloadInt(int value) {
+        ensurePayloadCapacity(4);
+        payload.putInt(value);
+    }
+
+    private void putPayloadBytes(byte[] source, int offset, int length) {
+        ensurePayloadCapacity(length);
+        payload.put(source, offset, length);
+    }
+
+    private void ensurePayloadCapacity(int length) {
+        if (payload.remaining() < length) {
+            ByteBuffer grown = ByteBuffer.allocate(Math.max(payload.capacity() * 2, payload.position() + length));
+            payload.flip();
+            grown.put(payload);
+            payload = grown;
+        }
+    }
+
+    private void ensureRowGroupCapacity(int length) {
+        if (rowGroup.remaining() < length) {
+            ByteBuffer grown = ByteBuffer.allocate(Math.max(rowGroup.capacity() * 2, rowGroup.position() + length));
+            rowGroup.flip();
+            grown.put(rowGroup);
+            rowGroup = grown;
+        }
+    }
+
+    /**
+     * Finds the top level fields of the json object record - the name (without the quotes) and value bounds of field i
+     * are fieldBounds[4i .. 4i + 3].
+     *
+     * @return the number of fields, -1 if the record is not a json object (or has more than MAX_FIELDS_PER_RECORD
+     * fields)
+     */
+    private int scanFields(int start, int end) {
+        try {
+            int position = skipWhitespace(start, end);
+            if (position >= end || bytes[position] != '{') {
+                return -1;
+            }
+            position = skipWhitespace(position + 1, end);
+            if (position < end && bytes[position] == '}') {
+                return 0;
+            }
+            int fieldCount = 0;
+            while (true) {
+                if (position >= end || bytes[position] != '"' || fieldCount == MAX_FIELDS_PER_RECORD) {
+                    return -1;
+                }
+                int nameEnd = stringEnd(position, end);
+                int colon = skipWhitespace(nameEnd + 1, end);
+                if (colon >= end || bytes[colon] != ':') {
+                    return -1;
+                }
+                int valueStart = skipWhitespace(colon + 1, end);
+                int valueEnd = skipValue(valueStart, end);
+                fieldBounds[fieldCount * 4] = position + 1;
+                fieldBounds[fieldCount * 4 + 1] = nameEnd;
+                fieldBounds[fieldCount * 4 + 2] = valueStart;
+                fieldBounds[fieldCount * 4 + 3] = valueEnd;
+                fieldCount++;
+                position = skipWhitespace(valueEnd, end);
+                if (position >= end) {
+                    return -1;
+                }
+                if (bytes[position] == '}') {
+                    return fieldCount;
+                }
+                if (bytes[position] != ',') {
+                    return -1;
+                }
+                position = skipWhitespace(position + 1, end);
+            }
+        } catch (IllegalStateException ex) {
+            return -1;
+        }
+    }
+
+    private int skipValue(int position, int end) {
+        if (position >= end) {
+            throw new IllegalStateException();
+        }
+        byte first = bytes[position];
+        if (first == '"') {
+            return stringEnd(position, end) + 1;
+        }
+        if (first == '{' || first == '[') {
+            int depth = 0;
+            while (position < end) {
+                byte b = bytes[position];
+                if (b == '"') {
+                    position = stringEnd(position, end);
+                } else if (b == '{' || b == '[') {
+                    depth++;
+                } else if ((b == '}' || b == ']') && --depth == 0) {
+                    return position + 1;
+                }
+                position++;
+            }
+            throw new IllegalStateException();
+        }
+        // number, true, false, null
+        int valueEnd = position;
+        while (valueEnd < end) {
+            byte b = bytes[valueEnd];
+            if (b == ',' || b == '}' || b == ']' || b == ' ' || b == '\n' || b == '\r' || b == '\t') {
+                break;
+            }
+            valueEnd++;
+        }
+        if (valueEnd == position) {
+            throw new IllegalStateException();
+        }
+        return valueEnd;
+    }
+
+    private int stringEnd(int position, int end) {
+        position++;
+        while (position < end) {
+            byte b = bytes[position];
+            if (b == '"') {
+                return position;
+            }
+            position += b == '\\' ? 2 : 1;
+        }
+        throw new IllegalStateException();
+    }
+
+    private int skipWhitespace(int position, int end) {
+        while (position < end) {
+            byte b = bytes[position];
+            if (b != ' ' && b != '\n' && b != '\r' && b != '\t') {
+                break;
+            }
+            position++;
+        }
+        return position;
+    }
+
+    /**
+     * A column name as a byte range, so the columns can be looked up by the field name bytes of a record.
+     */
+    private static class ColumnName {
+        private byte[] bytes;
+        private int start;
+        private int end;
+        private int hash;
+
+        private ColumnName(byte[] bytes, int start, int end) {
+            if (bytes != null) {
+                set(bytes, start, end);
+            }
+        }
+
+        private void set(byte[] bytes, int start, int end) {
+            this.bytes = bytes;
+            this.start = start;
+            this.end = end;
+            int h = 1;
+            for (int i = start; i < end; i++) {
+                h = 31 * h + bytes[i];
+            }
+            this.hash = h;
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+
+        @Override
+        public boolean equals(Object other) {
+            if (!(other instanceof ColumnName)) {
+                return false;
+            }
+            ColumnName name = (ColumnName) other;
+            if (name.end - name.start != end - start) {
+                return false;
+            }
+            for (int i = 0; i < end - start; i++) {
+                if (bytes[start + i] != name.bytes[name.start + i]) {
+                    return false;
+                }
+            }
+            return true;
+        }
+    }
+
+    /**
+     * The values of a column in the current row group. The values are appended to valueBytes - while the column has few
+     * distinct values only the distinct values are stored and the rows refer to them by id.
+     */
+    private static class Column {
+        private final byte[] nameBytes;
+        private byte[] valueBytes = new byte[1024];
+        private int valueLength;
+        // per row: the value start / length in valueBytes (length -1 when missing) and the dictionary id
+        private int[] rowStarts = new int[1024];
+        private int[] rowLengths = new int[1024];
+        private int[] rowIds = new int[1024];
+        private int rowCount;
+        private boolean hasValues;
+        // the dictionary - the distinct value ids in an open addressing table of twice the dictionary capacity, grown up
+        // to MAX_DICTIONARY_SIZE values
+        private int[] dictionaryStarts = new int[64];
+        private int[] dictionaryLengths = new int[64];
+        private int[] dictionaryTable = new int[128];
+        private int dictionarySize;
+        private boolean plain;
+
+        private Column(byte[] nameBytes) {
+            this.nameBytes = nameBytes;
+            Arrays.fill(dictionaryTable, -1);
+        }
+
+        private void add(int row, byte[] source, int offset, int length) {
+            fillMissing(row);
+            ensureRowCapacity(row + 1);
+            if (!plain) {
+                int slot = hash(source, offset, length) & (dictionaryTable.length - 1);
+                while (dictionaryTable[slot] >= 0) {
+                    int id = dictionaryTable[slot];
+                    if (rangeEquals(valueBytes, dictionaryStarts[id], dictionaryLengths[id], source, offset, length)) {
+                        rowStarts[row] = dictionaryStarts[id];
+                        rowLengths[row] = length;
+                        rowIds[row] = id;
+                        rowCount = row + 1;
+                        hasValues = true;
+                        return;
+                    }
+                    slot = (slot + 1) & (dictionaryTable.length - 1);
+                }
+                if (dictionarySize == MAX_DICTIONARY_SIZE) {
+                    // too many distinct values - the rows are stored as they are from here on
+                    plain = true;
+                } else {
+                    if (dictionarySize == dictionaryStarts.length) {
+                        growDictionary();
+                        slot = hash(source, offset, length) & (dictionaryTable.length - 1);
+                        while (dictionaryTable[slot] >= 0) {
+                            slot = (slot + 1) & (dictionaryTable.length - 1);
+                        }
+                    }
+                    dictionaryTable[slot] = dictionarySize;
+                    dictionaryStarts[dictionarySize] = valueLength;
+                    dictionaryLengths[dictionarySize] = length;
+                    rowIds[row] = dictionarySize++;
+                }
+            }
+            if (valueLength + length > valueBytes.length) {
+                valueBytes = Arrays.copyOf(valueBytes, Math.max(valueBytes.length * 2, valueLength + length));
+            }
+            System.arraycopy(source, offset, valueBytes, valueLength, length);
+            rowStarts[row] = valueLength;
+            rowLengths[row] = length;
+            valueLength += length;
+            rowCount = row + 1;
+            hasValues = true;
+        }
+
+        private void growDictionary() {
+            dictionaryStarts = Arrays.copyOf(dictionaryStarts, dictionaryStarts.length * 2);
+            dictionaryLengths = Arrays.copyOf(dictionaryLengths, dictionaryLengths.length * 2);
+            dictionaryTable = new int[dictionaryStarts.length * 2];
+            Arrays.fill(dictionaryTable, -1);
+            for (int id = 0; id < dictionarySize; id++) {
+                int slot = hash(valueBytes, dictionaryStarts[id], dictionaryLengths[id]) & (dictionaryTable.length - 1);
+                while (dictionaryTable[slot] >= 0) {
+                    slot = (slot + 1) & (dictionaryTable.length - 1);
+                }
+                dictionaryTable[slot] = id;
+            }
+        }
+
+        /**
+         * Marks the rows before row that have no value as missing.
+         */
+        private void fillMissing(int row) {
+            ensureRowCapacity(row);
+            while (rowCount < row) {
+                rowLengths[rowCount] = -1;
+                rowIds[rowCount] = -1;
+                rowCount++;
+            }
+        }
+
+        /**
+         * Writes the column's payload to the sink's payload buffer.
+         *
+         * @return the encoding
+         */
+        private byte encode(ColumnarRecordSink sink) {
+            if (plain) {
+                for (int row = 0; row < rowCount; row++) {
+                    sink.putPayloadInt(rowLengths[row]);
+                    if (rowLengths[row] > 0) {
+                        sink.putPayloadBytes(valueBytes, rowStarts[row], rowLengths[row]);
+                    }
+                }
+                return PLAIN;
+            }
+            sink.putPayloadInt(dictionarySize);
+            for (int id = 0; id < dictionarySize; id++) {
+                sink.putPayloadInt(dictionaryLengths[id]);
+                sink.putPayloadBytes(valueBytes, dictionaryStarts[id], dictionaryLengths[id]);
+            }
+            for (int row = 0; row < rowCount; row++) {
+                sink.putPayloadInt(rowIds[row]);
+            }
+            return DICTIONARY;
+        }
+
+        private void reset() {
+            valueLength = 0;
+            rowCount = 0;
+            hasValues = false;
+            if (dictionarySize > 0) {
+                Arrays.fill(dictionaryTable, -1);
+            }
+            dictionarySize = 0;
+            plain = false;
+        }
+
+        private void ensureRowCapacity(int capacity) {
+            if (capacity > rowStarts.length) {
+                int grownLength = Math.max(rowStarts.length * 2, capacity);
+                rowStarts = Arrays.copyOf(rowStarts, grownLength);
+                rowLengths = Arrays.copyOf(rowLengths, grownLength);
+                rowIds = Arrays.copyOf(rowIds, grownLength);
+            }
+        }
+
+        private static int hash(byte[] source, int offset, int length) {
+            int h = 1;
+            for (int i = offset; i < offset + length; i++) {
+                h = 31 * h + source[i];
+            }
+            return h ^ (h >>> 16);
+        }
+
+        private static boolean rangeEquals(byte[] left, int leftOffset, int leftLength, byte[] right, int rightOffset, int rightLength) {
+            if (leftLength != rightLength) {
+                return false;
+            }
+            for (int i = 0; i < leftLength; i++) {
+                if (left[leftOffset + i] != right[rightOffset + i]) {
+                    return false;
+                }
+            }
+            return true;
+        }
+    }
+}
@@ -0,0 +1,79 @@
+package com.letsdata.reader;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.function.Consumer;
+
+/**
+ * The checkpoint position of a shard / partition whose records complete out of order - with key affinity lanes the
+ * records of a key are processed in order, but the keys of a shard are spread across the lanes. Records are added in
+ * the shard's order and completed in any order. The watermark is the last record whose predecessors have all been
+ * completed, the furthest position that is safe to checkpoint / commit.
+ *
+ * The pending records are held in a growable ring (a preallocated list) indexed by the sequence number that add()
+ * returns, so tracking a record does not allocate. Thread safe - onAdvance is called under the lock, so the watermarks are passed on in order.
+ */
+public class CompletionWatermark<T> {
+    private static final int INITIAL_CAPACITY = 64;
+
+    private final Consumer<T> onAdvance;
+    private List<T> items = new ArrayList<>(Collections.<T>nCopies(INITIAL_CAPACITY, null));
+    private boolean[] completed = new boolean[INITIAL_CAPACITY];
+    // the sequence number of the first record that has not been completed
+    private long headSequence;
+    private long nextSequence;
+
+    /**
+     * @param onAdvance called with the new watermark record each time the watermark moves
+     */
+    public CompletionWatermark(Consumer<T> onAdvance) {
+        this.onAdvance = onAdvance;
+    }
+
+    /**
+     * @return the record's sequence number, to complete it with
+     */
+    public synchronized long add(T item) {
+        if (nextSequence - headSequence == items.size()) {
+            grow();
+        }
+        int index = (int) (nextSequence & (items.size() - 1));
+        items.set(index, item);
+        completed[index] = false;
+        return nextSequence++;
+    }
+
+    public synchronized void complete(long sequence) {
+        int mask = items.size() - 1;
+        completed[(int) (sequence & mask)] = true;
+        if (sequence != headSequence) {
+            return;
+        }
+        T watermark = null;
+        while (headSequence < nextSequence && completed[(int) (headSequence & mask)]) {
+            watermark = items.set((int) (headSequence & mask), null);
+            headSequence++;
+        }
+        onAdvance.accept(watermark);
+    }
+
+    /**
+     * @return the number of added records that are not below the watermark yet
+     */
+    public synchronized int pendingCount() {
+        return (int) (nextSequence - headSequence);
+    }
+
+    private void grow() {
+        int capacity = items.size();
+        List<T> grownItems = new ArrayList<>(Collections.<T>nCopies(capacity * 2, null));
+        boolean[] grownCompleted = new boolean[capacity * 2];
+        for (long sequence = headSequence; sequence < nextSequence; sequence++) {
+            grownItems.set((int) (sequence & (capacity * 2 - 1)), items.get((int) (sequence & (capacity - 1))));
+            grownCompleted[(int) (sequence & (capacity * 2 - 1))] = completed[(int) (sequence & (capacity - 1))];
+        }
+        items = grownItems;
+        completed = grownCompleted;
+    }
+}
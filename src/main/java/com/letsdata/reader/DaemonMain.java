@@ -0,0 +1,426 @@
+package com.letsdata.reader;
+
+import com.amazonaws.arn.Arn;
+import com.amazonaws.auth.AWSCredentialsProvider;
+import com.amazonaws.services.kinesis.model.ShardIteratorType;
+import net.sourceforge.argparse4j.ArgumentParsers;
+import net.sourceforge.argparse4j.inf.ArgumentParser;
+import net.sourceforge.argparse4j.inf.ArgumentParserException;
+import net.sourceforge.argparse4j.inf.Namespace;
+import org.apache.kafka.clients.consumer.ConsumerRecord;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A long running reader of many datasets - the kinesis streams and kafka topics listed in a config file are read
+ * concurrently into one output file per dataset.
+ *
+ * The datasets share the process resources instead of each running its own reader:
+ * - one scheduler: the shard readers of every stream and the partition workers of every topic run on one thread pool
+ *   sized by threadCount (a kafka dataset also has its poll thread and a kinesis dataset its decode threads).
+ * - one client per region: the kinesis / kafka clients and their connection pools are shared by the datasets in the
+ *   region, each request is signed with its dataset's role session ({@link SharedAwsClients}).
+ * - one session per role: the datasets with the same customerAccessRoleArn / externalId are read with one assumed role
+ *   session whose policy covers all of them.
+ * - one checkpoint file: every dataset resumes from its checkpoints after a restart - the keys of a dataset are prefixed
+ *   with its name, as are its metrics (kinesis.&lt;dataset&gt;.&lt;streamName&gt;.*, kafka.&lt;dataset&gt;.&lt;topic&gt;.*), so datasets
+ *   of the same stream / topic name do not collide.
+ *
+ * A dataset that fails is restarted (from its checkpoints) after a delay, the other datasets keep running.
+ */
+public class DaemonMain {
+    private static final Logger logger = LoggerFactory.getLogger(DaemonMain.class);
+
+    private static final long CHECKPOINT_FLUSH_INTERVAL_MILLIS = 1000;
+    private static final long RESTART_DELAY_MILLIS = TimeUnit.SECONDS.toMillis(30);
+    private static final int OUTPUT_BUFFER_SIZE = 256 * 1024;
+    private static final int MAX_PENDING_RECORDS_PER_PARTITION = 5000;
+    private static final int COMMIT_RECORD_COUNT = 10000;
+    private static final long COMMIT_INTERVAL_MILLIS = 5000;
+
+    // $ > reader_daemon --config 'reader_daemon.properties'
+    public static void main(String[] args) {
+        ArgumentParser parser = ArgumentParsers.newFor("letsdatawriteconnector").build();
+        parser.addArgument("--config").required(true).type(String.class).help("The daemon config properties file - the awsAccessKeyId / awsSecretKey, the outputDir and the datasets to read (see the README)");
+
+        try {
+            Namespace namespace = parser.parseArgs(args);
+            Properties config = new Properties();
+            try (InputStream inputStream = new FileInputStream(namespace.getString("config"))) {
+                config.load(inputStream);
+            } catch (IOException ex) {
+                throw new ArgumentParserException("could not read the config file " + namespace.getString("config") + ": " + ex.getMessage(), parser);
+            }
+
+            List<Dataset> datasetList = parseDatasets(config);
+
+            int metricsIntervalSeconds = Integer.parseInt(config.getProperty("metricsIntervalSeconds", "0"));
+            if (metricsIntervalSeconds > 0) {
+                MetricsRegistry.getDefault().startDump(TimeUnit.SECONDS.toMillis(metricsIntervalSeconds));
+            }
+
+            File outputDir = new File(required(config, "outputDir"));
+            if (!outputDir.isDirectory() && !outputDir.mkdirs()) {
+                throw new ArgumentParserException("could not create the outputDir " + outputDir, parser);
+            }
+            int brokerCacheTtlMinutes = Integer.parseInt(config.getProperty("brokerCacheTtlMinutes", "60"));
+            BootstrapBrokerCache bootstrapBrokerCache = brokerCacheTtlMinutes > 0 ? new BootstrapBrokerCache(new File(config.getProperty("brokerCacheFile", System.getProperty("user.home") + File.separator + ".letsdata" + File.separator + "kafka_bootstrap_brokers.properties")), TimeUnit.MINUTES.toMillis(brokerCacheTtlMinutes)) : null;
+            SharedAwsClients sharedAwsClients = new SharedAwsClients(required(config, "awsAccessKeyId"), required(config, "awsSecretKey"), bootstrapBrokerCache);
+            CheckpointStore checkpointStore = new FileCheckpointStore(new File(config.getProperty("checkpointFile", new File(outputDir, "reader_daemon.checkpoints").getPath())), CHECKPOINT_FLUSH_INTERVAL_MILLIS);
+            ScheduledExecutorService scheduler = new ScheduledThreadPoolExecutor(Integer.parseInt(config.getProperty("threadCount", "16")), runnable -> {
+                Thread thread = new Thread(runnable, "ReaderDaemon-worker");
+                thread.setDaemon(true);
+                return thread;
+            });
+
+            // the datasets of a role share one session, so its policy covers all of them
+            Map<List<String>, List<Dataset>> roleDatasetMap = new LinkedHashMap<>();
+            for (Dataset dataset : datasetList) {
+                roleDatasetMap.computeIfAbsent(Arrays.asList(dataset.customerAccessRoleArn, dataset.externalId), key -> new ArrayList<>()).add(dataset);
+            }
+            for (List<Dataset> roleDatasetList : roleDatasetMap.values()) {
+                String roleAccessPolicyText = roleAccessPolicyText(roleDatasetList);
+                for (Dataset dataset : roleDatasetList) {
+                    dataset.credentialsProvider = sharedAwsClients.getCredentialsProvider(dataset.region, dataset.customerAccessRoleArn, dataset.externalId, roleAccessPolicyText, null);
+                }
+            }
+
+            List<DatasetRunner> datasetRunnerList = new ArrayList<>();
+            for (Dataset dataset : datasetList) {
+                datasetRunnerList.add(new DatasetRunner(dataset, sharedAwsClients, scheduler, CheckpointStore.withKeyPrefix(checkpointStore, dataset.name + "."), new File(outputDir, dataset.name + ".out"), config));
+            }
+            Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+                for (DatasetRunner datasetRunner : datasetRunnerList) {
+                    datasetRunner.stop();
+                }
+                for (DatasetRunner datasetRunner : datasetRunnerList) {
+                    datasetRunner.join();
+                }
+                scheduler.shutdownNow();
+                checkpointStore.close();
+                sharedAwsClients.shutdown();
+            }));
+
+            for (DatasetRunner datasetRunner : datasetRunnerList) {
+                datasetRunner.start();
+            }
+            System.out.println("reader daemon started - datasets: " + datasetList.size() + ", roles: " + roleDatasetMap.size());
+            for (DatasetRunner datasetRunner : datasetRunnerList) {
+                datasetRunner.join();
+            }
+        } catch (ArgumentParserException e) {
+            parser.handleError(e);
+        } catch (IllegalArgumentException e) {
+            // a missing / malformed config value
+            parser.handleError(new ArgumentParserException(e.getMessage(), parser));
+        }
+    }
+
+    private static List<Dataset> parseDatasets(Properties config) {
+        List<Dataset> datasetList = new ArrayList<>();
+        Set<String> datasetNameSet = new LinkedHashSet<>();
+        for (String datasetName : required(config, "datasets").split(",")) {
+            datasetName = datasetName.trim();
+            if (datasetName.isEmpty()) {
+                continue;
+            }
+            if (!datasetNameSet.add(datasetName)) {
+                throw new IllegalArgumentException("the dataset " + datasetName + " is listed twice");
+            }
+            String prefix = "dataset." + datasetName + ".";
+            Dataset dataset = new Dataset();
+            dataset.name = datasetName;
+            dataset.type = required(config, prefix + "type");
+            if (!"kinesis".equals(dataset.type) && !"kafka".equals(dataset.type)) {
+                throw new IllegalArgumentException(prefix + "type should be kinesis or kafka");
+            }
+            dataset.region = config.getProperty(prefix + "awsRegion", "us-east-1");
+            dataset.customerAccessRoleArn = required(config, prefix + "customerAccessRoleArn");
+            dataset.externalId = required(config, prefix + "externalId");
+            if ("kinesis".equals(dataset.type)) {
+                dataset.streamName = required(config, prefix + "streamName");
+                dataset.readAheadDepth = Integer.parseInt(config.getProperty(prefix + "readAheadDepth", "0"));
+                dataset.decodeThreadCount = Integer.parseInt(config.getProperty(prefix + "decodeThreadCount", "2"));
+            } else {
+                dataset.clusterArn = required(config, prefix + "clusterArn");
+                dataset.topicName = required(config, prefix + "topicName");
+                dataset.groupId = config.getProperty(prefix + "groupId", "foo");
+            }
+            dataset.recordFilter = RecordFilter.parse(config.getProperty(prefix + "filter"), config.getProperty(prefix + "fields"));
+            dataset.dedup = Boolean.parseBoolean(config.getProperty(prefix + "dedup", "false"));
+            dataset.dedupContentHashCapacity = Integer.parseInt(config.getProperty(prefix + "dedupContentHashCapacity", "0"));
+            datasetList.add(dataset);
+        }
+        if (datasetList.isEmpty()) {
+            throw new IllegalArgumentException("datasets should list at least one dataset");
+        }
+        return datasetList;
+    }
+
+    private static String required(Properties config, String key) {
+        String value = config.getProperty(key);
+        if (value == null || value.trim().isEmpty()) {
+            throw new IllegalArgumentException("the config is missing " + key);
+        }
+        return value.trim();
+    }
+
+    /**
+     * The session policy of the datasets that share a role - the read actions on each of their streams, and kafka
+     * access if any of them is a kafka dataset.
+     */
+    private static String roleAccessPolicyText(List<Dataset> roleDatasetList) {
+        List<String> streamResourceList = new ArrayList<>();
+        boolean hasKafkaDataset = false;
+        for (Dataset dataset : roleDatasetList) {
+            if ("kinesis".equals(dataset.type)) {
+                String streamArn = "arn:aws:kinesis:" + dataset.region + ":" + Arn.fromString(dataset.customerAccessRoleArn).getAccountId() + ":stream/" + dataset.streamName;
+                streamResourceList.add("                \"" + streamArn + "\"");
+            } else {
+                hasKafkaDataset = true;
+            }
+        }
+        List<String> statementList = new ArrayList<>();
+        if (!streamResourceList.isEmpty()) {
+            statementList.add("        {\n" +
+                    "            \"Effect\": \"Allow\",\n" +
+                    "            \"Action\": [\n" +
+                    "                \"kinesis:DescribeStream\",\n" +
+                    "                \"kinesis:GetShardIterator\",\n" +
+                    "                \"kinesis:GetRecords\"\n" +
+                    "            ],\n" +
+                    "            \"Resource\": [\n" +
+                    String.join(",\n", streamResourceList) + "\n" +
+                    "            ]\n" +
+                    "        },\n" +
+                    "        {\n" +
+                    "            \"Effect\": \"Allow\",\n" +
+                    "            \"Action\": \"kinesis:ListShards\",\n" +
+                    "            \"Resource\": \"*\"\n" +
+                    "        }");
+        }
+        if (hasKafkaDataset) {
+            statementList.add("        {\n" +
+                    "            \"Effect\": \"Allow\",\n" +
+                    "            \"Action\": [\n" +
+                    "                \"kafka:*\",\n" +
+                    "                \"kafka-cluster:*\"\n" +
+                    "            ],\n" +
+                    "            \"Resource\": \"*\"\n" +
+                    "        }");
+        }
+        return "{\n" +
+                "    \"Version\": \"2012-10-17\",\n" +
+                "    \"Statement\": [\n" +
+                String.join(",\n", statementList) + "\n" +
+                "    ]\n" +
+                "}";
+    }
+
+    private static class Dataset {
+        private String name;
+        private String type;
+        private String region;
+        private String customerAccessRoleArn;
+        private String externalId;
+        private AWSCredentialsProvider credentialsProvider;
+        // kinesis
+        private String streamName;
+        private int readAheadDepth;
+        private int decodeThreadCount;
+        // kafka
+        private String clusterArn;
+        private String topicName;
+        private String groupId;
+        private RecordFilter recordFilter;
+        private boolean dedup;
+        private int dedupContentHashCapacity;
+    }
+
+    /**
+     * Reads a dataset on its own runner thread until stopped - the reads themselves run on the shared scheduler. A
+     * failed read is logged and restarted from the checkpoints after RESTART_DELAY_MILLIS.
+     */
+    private static class DatasetRunner {
+        private final Dataset dataset;
+        private final SharedAwsClients sharedAwsClients;
+        private final ScheduledExecutorService scheduler;
+        private final CheckpointStore checkpointStore;
+        private final File outputFile;
+        private final String awsAccessKeyId;
+        private final String awsSecretKey;
+        private final Thread thread;
+        private final MetricsRegistry.Meter restarts;
+        // kafka only - the kinesis datasets filter in the record pipeline
+        private final MetricsRegistry.Meter filteredRecords;
+
+        private volatile boolean stopped;
+        private volatile ShardRecordSource shardRecordSource;
+        private volatile KafkaParallelConsumer kafkaParallelConsumer;
+
+        private DatasetRunner(Dataset dataset, SharedAwsClients sharedAwsClients, ScheduledExecutorService scheduler, CheckpointStore checkpointStore, File outputFile, Properties config) {
+            this.dataset = dataset;
+            this.sharedAwsClients = sharedAwsClients;
+            this.scheduler = scheduler;
+            this.checkpointStore = checkpointStore;
+            this.outputFile = outputFile;
+            this.awsAccessKeyId = config.getProperty("awsAccessKeyId").trim();
+            this.awsSecretKey = config.getProperty("awsSecretKey").trim();
+            this.thread = new Thread(this::run, "ReaderDaemon-" + dataset.name);
+            this.restarts = MetricsRegistry.getDefault().meter("daemon." + dataset.name + ".restarts");
+            this.filteredRecords = "kafka".equals(dataset.type) ? MetricsRegistry.getDefault().meter("kafka." + dataset.name + "." + dataset.topicName + ".filteredRecords") : null;
+        }
+
+        private void start() {
+            thread.start();
+        }
+
+        private void stop() {
+            stopped = true;
+            ShardRecordSource currentShardRecordSource = shardRecordSource;
+            if (currentShardRecordSource != null) {
+                currentShardRecordSource.stop();
+            }
+            KafkaParallelConsumer currentKafkaParallelConsumer = kafkaParallelConsumer;
+            if (currentKafkaParallelConsumer != null) {
+                currentKafkaParallelConsumer.stop();
+            }
+            thread.interrupt();
+        }
+
+        private void join() {
+            try {
+                thread.join();
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        private void run() {
+            while (!stopped) {
+                try {
+                    if ("kinesis".equals(dataset.type)) {
+                        readStream();
+                    } else {
+                        readTopic();
+                    }
+                } catch (Exception ex) {
+                    if (stopped) {
+                        break;
+                    }
+                    logger.error("dataset " + dataset.name + " read failed, restarting in " + RESTART_DELAY_MILLIS + " ms", ex);
+                    restarts.mark();
+                    try {
+                        Thread.sleep(RESTART_DELAY_MILLIS);
+                    } catch (InterruptedException interruptedException) {
+                        break;
+                    }
+                }
+            }
+        }
+
+        private void readStream() throws IOException, InterruptedException {
+            KinesisReader kinesisReader = new KinesisReader(sharedAwsClients.getAmazonKinesis(dataset.region), dataset.credentialsProvider);
+            BlockingQueue<ShardRecord> recordQueue = new RingBuffer<>(10000);
+            // TRIM_HORIZON for the shards without a checkpoint, the checkpointed shards resume after their checkpoints
+            KinesisStreamDrainer kinesisStreamDrainer = new KinesisStreamDrainer(kinesisReader, dataset.streamName, ShardIteratorType.TRIM_HORIZON, null, null, false, scheduler, dataset.readAheadDepth, recordQueue, checkpointStore);
+            kinesisStreamDrainer.setMetricsScope(dataset.name);
+            shardRecordSource = kinesisStreamDrainer;
+            if (stopped) {
+                shardRecordSource = null;
+                return;
+            }
+            // the pipeline writes large chunks from its direct buffers to the file channel
+            try (OutputStream outputStream = new FileOutputStream(outputFile, true)) {
+                RecordPipeline recordPipeline = new RecordPipeline(shardRecordSource, recordQueue, dataset.streamName, outputStream, dataset.decodeThreadCount, 1024, dataset.recordFilter, newRecordDeduplicator());
+                recordPipeline.setMetricsScope(dataset.name);
+                recordPipeline.run();
+            } finally {
+                shardRecordSource = null;
+            }
+        }
+
+        private void readTopic() throws IOException {
+            // the MSK IAM auth library assumes the role for the consumer's broker connections on its own
+            String bootstrapBrokers = sharedAwsClients.getBootstrapBrokers(dataset.region, dataset.clusterArn, dataset.credentialsProvider);
+            KafkaReader kafkaReader = new KafkaReader(bootstrapBrokers, dataset.groupId, KafkaReader.RecordDeserializer.BYTE_BUFFER, KafkaReader.mskIamConfig(dataset.region, awsAccessKeyId, awsSecretKey, dataset.customerAccessRoleArn, dataset.externalId));
+            kafkaReader.setMetricsScope(dataset.name);
+            try (PrintStream outputStream = new PrintStream(new BufferedOutputStream(new FileOutputStream(outputFile, true), OUTPUT_BUFFER_SIZE), false)) {
+                kafkaParallelConsumer = new KafkaParallelConsumer(kafkaReader, consumerRecord -> write(consumerRecord, outputStream), scheduler, MAX_PENDING_RECORDS_PER_PARTITION, COMMIT_RECORD_COUNT, COMMIT_INTERVAL_MILLIS);
+                kafkaParallelConsumer.setRecordDeduplicator(newRecordDeduplicator());
+                // the assigned partitions resume after their checkpoints, and the output is flushed before each commit /
+                // checkpoint - so a checkpointed record is in the output file
+                kafkaParallelConsumer.setCheckpointStore(checkpointStore);
+                kafkaParallelConsumer.setFlusher(() -> {
+                    synchronized (outputStream) {
+                        outputStream.flush();
+                    }
+                });
+                try {
+                    // a consumer stopped before it runs returns right after subscribing
+                    kafkaParallelConsumer.run(dataset.topicName, 0);
+                } finally {
+                    kafkaParallelConsumer = null;
+                }
+            } finally {
+                kafkaReader.close();
+            }
+        }
+
+        /**
+         * A new deduplicator for each read - the records are marked as seen before they are checkpointed, so the
+         * watermarks of a failed read are ahead of the checkpoints its restart resumes from.
+         */
+        private RecordDeduplicator newRecordDeduplicator() {
+            return dataset.dedup ? new RecordDeduplicator(dataset.dedupContentHashCapacity) : null;
+        }
+
+        /**
+         * Writes the record value (the projected fields with a projection) unless it is filtered out - the consumer has
+         * dropped the duplicates.
+         */
+        private void write(ConsumerRecord consumerRecord, PrintStream outputStream) {
+            LazyKafkaRecord lazyKafkaRecord = new LazyKafkaRecord(consumerRecord);
+            if (dataset.recordFilter == null) {
+                synchronized (outputStream) {
+                    lazyKafkaRecord.writeValue(outputStream::write);
+                    outputStream.write('\n');
+                }
+                return;
+            }
+            RecordFilter.Matcher matcher = dataset.recordFilter.matcher();
+            String key = dataset.recordFilter.usesKey() ? lazyKafkaRecord.keyAsString() : null;
+            ByteBuffer value = matcher.rejectsKey(key) ? null : lazyKafkaRecord.decodedValue();
+            if (value == null || !matcher.matches(key, value)) {
+                filteredRecords.mark();
+                return;
+            }
+            synchronized (outputStream) {
+                matcher.write(value, outputStream::write);
+                outputStream.write('\n');
+            }
+        }
+    }
+}
@@ -0,0 +1,91 @@
+package com.letsdata.reader;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A pool of fixed size, off-heap (direct) buffers for the record payloads of the read pipeline.
+ *
+ * The decoded records are written to pooled slabs instead of heap arrays, so the payload bytes never reach the garbage
+ * collector - the heap holds only the slab handles. Slabs are reference counted: a slab can be shared (e.g. by two output
+ * chunks, each holding a slice of it) and goes back to the pool when its last holder releases it. A pool that is empty
+ * allocates a new slab, and a released slab beyond maxIdleSlabCount is dropped, so the direct memory in use follows the
+ * payload bytes in flight and steady state reads allocate nothing.
+ */
+public class DirectBufferPool {
+    private final int slabSize;
+    private final RingBuffer<Slab> idleSlabRing;
+    private final AtomicLong allocatedSlabCount = new AtomicLong();
+    private final MetricsRegistry.Gauge directBytes;
+
+    /**
+     * @param name             the metrics name of the pool - its allocated direct bytes are the gauge
+     *                         bufferPool.&lt;name&gt;.directBytes
+     * @param slabSize         the size of each slab in bytes
+     * @param maxIdleSlabCount the max number of released slabs kept for reuse
+     */
+    public DirectBufferPool(String name, int slabSize, int maxIdleSlabCount) {
+        this.slabSize = slabSize;
+        this.idleSlabRing = new RingBuffer<>(maxIdleSlabCount);
+        this.directBytes = MetricsRegistry.getDefault().gauge("bufferPool." + name + ".directBytes");
+    }
+
+    public int getSlabSize() {
+        return slabSize;
+    }
+
+    /**
+     * @return a cleared slab with a reference count of 1 - the caller releases it when done
+     */
+    public Slab acquire() {
+        Slab slab = idleSlabRing.poll();
+        if (slab == null) {
+            slab = new Slab(ByteBuffer.allocateDirect(slabSize));
+            directBytes.set(allocatedSlabCount.incrementAndGet() * slabSize);
+        }
+        slab.buffer.clear();
+        slab.referenceCount.set(1);
+        return slab;
+    }
+
+    private void recycle(Slab slab) {
+        if (!idleSlabRing.offer(slab)) {
+            // the direct memory is freed when the buffer is collected
+            directBytes.set(allocatedSlabCount.decrementAndGet() * slabSize);
+        }
+    }
+
+    public class Slab {
+        private final ByteBuffer buffer;
+        private final AtomicInteger referenceCount = new AtomicInteger();
+
+        private Slab(ByteBuffer buffer) {
+            this.buffer = buffer;
+        }
+
+        /**
+         * The slab's buffer - its position / limit belong to the holder that acquired the slab, other holders use
+         * slices of it.
+         */
+        public ByteBuffer buffer() {
+            return buffer;
+        }
+
+        public Slab retain() {
+            if (referenceCount.getAndIncrement() <= 0) {
+                throw new IllegalStateException("retain of a released slab");
+            }
+            return this;
+        }
+
+        public void release() {
+            int count = referenceCount.decrementAndGet();
+            if (count == 0) {
+                recycle(this);
+            } else if (count < 0) {
+                throw new IllegalStateException("release of a released slab");
+            }
+        }
+    }
+}
@@ -0,0 +1,107 @@
+package com.letsdata.reader;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * A CheckpointStore that keeps the checkpoints in memory and writes them to a local properties file in the background.
+ *
+ * checkpoint() only updates the in-memory map. A background thread coalesces the updates and rewrites the file every
+ * flushIntervalMillis when there are changes - the file is written to a temp file, fsync'd and atomically renamed so a
+ * crash leaves either the previous or the new checkpoints, never a partial file.
+ */
+public class FileCheckpointStore implements CheckpointStore {
+    private static final Logger logger = LoggerFactory.getLogger(FileCheckpointStore.class);
+
+    private final File file;
+    private final Map<String, String> checkpointMap = new ConcurrentHashMap<>();
+    private final AtomicBoolean dirty = new AtomicBoolean(false);
+    private final ScheduledExecutorService flushExecutor;
+
+    public FileCheckpointStore(File file, long flushIntervalMillis) {
+        this.file = file;
+        if (file.exists()) {
+            Properties properties = new Properties();
+            try (InputStream inputStream = new FileInputStream(file)) {
+                properties.load(inputStream);
+            } catch (IOException ex) {
+                throw new RuntimeException("Unexpected exception in reading the checkpoint file " + file, ex);
+            }
+            for (String key : properties.stringPropertyNames()) {
+                checkpointMap.put(key, properties.getProperty(key));
+            }
+            logger.debug("loaded " + checkpointMap.size() + " checkpoints from " + file);
+        }
+
+        this.flushExecutor = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "FileCheckpointStore-flush");
+            thread.setDaemon(true);
+            return thread;
+        });
+        this.flushExecutor.scheduleWithFixedDelay(() -> {
+            try {
+                flush();
+            } catch (Exception ex) {
+                logger.error("checkpoint flush to " + file + " threw an exception ", ex);
+            }
+        }, flushIntervalMillis, flushIntervalMillis, TimeUnit.MILLISECONDS);
+    }
+
+    @Override
+    public String getCheckpoint(String key) {
+        return checkpointMap.get(key);
+    }
+
+    @Override
+    public void checkpoint(String key, String value) {
+        checkpointMap.put(key, value);
+        dirty.set(true);
+    }
+
+    @Override
+    public synchronized void flush() {
+        if (!dirty.getAndSet(false)) {
+            return;
+        }
+
+        Properties properties = new Properties();
+        properties.putAll(checkpointMap);
+        File tempFile = new File(file.getAbsolutePath() + ".tmp");
+        try {
+            try (FileOutputStream outputStream = new FileOutputStream(tempFile)) {
+                properties.store(outputStream, "letsdata-writeconnector-reader checkpoints");
+                outputStream.getChannel().force(true);
+            }
+            Files.move(tempFile.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException ex) {
+            dirty.set(true);
+            throw new RuntimeException("Unexpected exception in writing the checkpoint file " + file, ex);
+        }
+    }
+
+    @Override
+    public void close() {
+        flushExecutor.shutdown();
+        try {
+            flushExecutor.awaitTermination(10, TimeUnit.SECONDS);
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
+        flush();
+    }
+}
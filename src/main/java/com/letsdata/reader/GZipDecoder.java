@@ -0,0 +1,243 @@
+package com.letsdata.reader;
+
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.StandardCharsets;
+import java.util.zip.CRC32;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+/**
+ * A reusable GZIP decoder for the write connector records - an allocation-light replacement for
+ * {@link GZipUtil#decompressByteArr(byte[])}.
+ *
+ * The decoder owns an Inflater, an output buffer and a char buffer that are reused across records. The returned
+ * ByteBuffer / CharSequence are views over these buffers and are only valid until the next decode call on the same
+ * decoder. Decoders are not thread safe - use {@link #forCurrentThread()} to get the calling thread's decoder.
+ *
+ * A decoder created with initialOutputSize == maxOutputSize is bounded - it never grows its buffers and does not
+ * allocate per record, records that decompress to more than maxOutputSize fail. Use the streaming
+ * {@link #decode(ByteBuffer, Sink)} for records of unknown size.
+ */
+public class GZipDecoder {
+    public interface Sink {
+        void write(byte[] bytes, int offset, int length);
+    }
+
+    private static final int DEFAULT_INITIAL_OUTPUT_SIZE = 64 * 1024;
+    private static final int DEFAULT_MAX_OUTPUT_SIZE = Integer.MAX_VALUE - 8;
+
+    private static final ThreadLocal<GZipDecoder> threadLocalDecoder = ThreadLocal.withInitial(() -> new GZipDecoder(DEFAULT_INITIAL_OUTPUT_SIZE, DEFAULT_MAX_OUTPUT_SIZE));
+
+    private static final int HEADER_SIZE = 10;
+    private static final int TRAILER_SIZE = 8;
+    private static final int FLAG_FHCRC = 2;
+    private static final int FLAG_FEXTRA = 4;
+    private static final int FLAG_FNAME = 8;
+    private static final int FLAG_FCOMMENT = 16;
+
+    private final int maxOutputSize;
+    private final Inflater inflater = new Inflater(true);
+    private final CRC32 crc32 = new CRC32();
+    private final CharsetDecoder utf8Decoder = StandardCharsets.UTF_8.newDecoder().onMalformedInput(CodingErrorAction.REPLACE).onUnmappableCharacter(CodingErrorAction.REPLACE);
+    private byte[] inputBuffer = new byte[0];
+    private byte[] outputBuffer;
+    private ByteBuffer outputView;
+    private int outputLength;
+    private long decodedLength;
+    private CharBuffer charBuffer = CharBuffer.allocate(0);
+
+    public GZipDecoder(int initialOutputSize, int maxOutputSize) {
+        this.maxOutputSize = maxOutputSize;
+        this.outputBuffer = new byte[Math.min(initialOutputSize, maxOutputSize)];
+        this.outputView = ByteBuffer.wrap(outputBuffer);
+    }
+
+    public static GZipDecoder forCurrentThread() {
+        return threadLocalDecoder.get();
+    }
+
+    /**
+     * Decompresses the record data. The data buffer's position and limit are not changed.
+     *
+     * @return a view of the decompressed bytes, valid until the next decode call on this decoder
+     */
+    public ByteBuffer decode(ByteBuffer data) {
+        inflate(data, null);
+        outputView.clear();
+        outputView.limit(outputLength);
+        return outputView;
+    }
+
+    /**
+     * Decompresses the record data and decodes it as UTF-8.
+     *
+     * @return a view of the decompressed chars, valid until the next decode call on this decoder
+     */
+    public CharSequence decodeToChars(ByteBuffer data) {
+        ByteBuffer decoded = decode(data);
+        if (charBuffer.capacity() < outputLength) {
+            // utf-8 never decodes to more chars than bytes
+            charBuffer = CharBuffer.allocate(outputBuffer.length);
+        }
+        charBuffer.clear();
+        utf8Decoder.reset();
+        CoderResult coderResult = utf8Decoder.decode(decoded, charBuffer, true);
+        if (!coderResult.isUnderflow()) {
+            throw new RuntimeException("Unexpected result in decoding the data record " + coderResult);
+        }
+        utf8Decoder.flush(charBuffer);
+        charBuffer.flip();
+        return charBuffer;
+    }
+
+    /**
+     * Decompresses the record data in chunks of the decoder's output buffer size and writes each chunk to the sink -
+     * the whole record is never held in memory and the output buffer never grows.
+     */
+    public void decode(ByteBuffer data, Sink sink) {
+        inflate(data, sink);
+    }
+
+    /**
+     * @return the decompressed size of the last decoded record (including the chunks already written to a sink)
+     */
+    public long getDecodedLength() {
+        return decodedLength;
+    }
+
+    private void inflate(ByteBuffer data, Sink sink) {
+        byte[] input;
+        int offset;
+        int length = data.remaining();
+        if (data.hasArray()) {
+            input = data.array();
+            offset = data.arrayOffset() + data.position();
+        } else {
+            // direct or read only buffers are copied to the reused input buffer
+            if (inputBuffer.length < length) {
+                inputBuffer = new byte[length];
+            }
+            int position = data.position();
+            data.get(inputBuffer, 0, length);
+            data.position(position);
+            input = inputBuffer;
+            offset = 0;
+        }
+        inflateMembers(input, offset, offset + length, sink);
+    }
+
+    private void inflateMembers(byte[] input, int offset, int end, Sink sink) {
+        outputLength = 0;
+        decodedLength = 0;
+        int position = offset;
+        do {
+            position = readHeader(input, position, end);
+            inflater.reset();
+            crc32.reset();
+            inflater.setInput(input, position, end - position);
+            long memberSize = 0;
+            try {
+                while (!inflater.finished()) {
+                    if (outputLength == outputBuffer.length) {
+                        if (sink != null) {
+                            sink.write(outputBuffer, 0, outputLength);
+                            outputLength = 0;
+                        } else {
+                            growOutputBuffer();
+                        }
+                    }
+                    int count = inflater.inflate(outputBuffer, outputLength, outputBuffer.length - outputLength);
+                    if (count == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+                        throw new RuntimeException("Unexpected end of the compressed data record");
+                    }
+                    crc32.update(outputBuffer, outputLength, count);
+                    outputLength += count;
+                    memberSize += count;
+                }
+            } catch (DataFormatException ex) {
+                throw new RuntimeException("DataFormatException in decompressing the data record", ex);
+            }
+            position = end - inflater.getRemaining();
+            readTrailer(input, position, end, memberSize);
+            decodedLength += memberSize;
+            position += TRAILER_SIZE;
+            // concatenated gzip members decompress to the concatenation of their data, same as GZIPInputStream
+        } while (end - position >= HEADER_SIZE && input[position] == (byte) 0x1f && input[position + 1] == (byte) 0x8b);
+
+        if (sink != null && outputLength > 0) {
+            sink.write(outputBuffer, 0, outputLength);
+            outputLength = 0;
+        }
+    }
+
+    private int readHeader(byte[] input, int offset, int end) {
+        if (end - offset < HEADER_SIZE || input[offset] != (byte) 0x1f || input[offset + 1] != (byte) 0x8b) {
+            throw new RuntimeException("Not in GZIP format");
+        }
+        if (input[offset + 2] != 8) {
+            throw new RuntimeException("Unsupported GZIP compression method " + input[offset + 2]);
+        }
+        int flags = input[offset + 3] & 0xff;
+        int position = offset + HEADER_SIZE;
+        if ((flags & FLAG_FEXTRA) != 0) {
+            position += 2 + readUnsignedShort(input, position, end);
+        }
+        if ((flags & FLAG_FNAME) != 0) {
+            position = skipZeroTerminated(input, position, end);
+        }
+        if ((flags & FLAG_FCOMMENT) != 0) {
+            position = skipZeroTerminated(input, position, end);
+        }
+        if ((flags & FLAG_FHCRC) != 0) {
+            position += 2;
+        }
+        if (position > end) {
+            throw new RuntimeException("Unexpected end of the GZIP header");
+        }
+        return position;
+    }
+
+    private void readTrailer(byte[] input, int offset, int end, long memberSize) {
+        if (end - offset < TRAILER_SIZE) {
+            throw new RuntimeException("Unexpected end of the GZIP trailer");
+        }
+        if (readInt(input, offset) != (int) crc32.getValue()) {
+            throw new RuntimeException("Corrupt GZIP trailer - crc mismatch");
+        }
+        if (readInt(input, offset + 4) != (int) memberSize) {
+            throw new RuntimeException("Corrupt GZIP trailer - size mismatch");
+        }
+    }
+
+    private void growOutputBuffer() {
+        if (outputBuffer.length >= maxOutputSize) {
+            throw new RuntimeException("Decompressed data record exceeds the max output size " + maxOutputSize);
+        }
+        byte[] grownBuffer = new byte[(int) Math.min(maxOutputSize, Math.max(1024L, outputBuffer.length * 2L))];
+        System.arraycopy(outputBuffer, 0, grownBuffer, 0, outputLength);
+        outputBuffer = grownBuffer;
+        outputView = ByteBuffer.wrap(outputBuffer);
+    }
+
+    private static int skipZeroTerminated(byte[] input, int position, int end) {
+        while (position < end && input[position] != 0) {
+            position++;
+        }
+        return position + 1;
+    }
+
+    private static int readUnsignedShort(byte[] input, int position, int end) {
+        if (end - position < 2) {
+            throw new RuntimeException("Unexpected end of the GZIP header");
+        }
+        return (input[position] & 0xff) | ((input[position + 1] & 0xff) << 8);
+    }
+
+    private static int readInt(byte[] input, int position) {
+        return (input[position] & 0xff) | ((input[position + 1] & 0xff) << 8) | ((input[position + 2] & 0xff) << 16) | ((input[position + 3] & 0xff) << 24);
+    }
+}
@@ -1,6 +1,7 @@
 package com.letsdata.reader;
 
 import net.sourceforge.argparse4j.ArgumentParsers;
+import net.sourceforge.argparse4j.impl.Arguments;
 import net.sourceforge.argparse4j.inf.ArgumentParser;
 import net.sourceforge.argparse4j.inf.ArgumentParserException;
 import net.sourceforge.argparse4j.inf.Namespace;
@@ -8,11 +9,29 @@ import org.apache.kafka.clients.consumer.ConsumerRecord;
 import org.apache.kafka.clients.consumer.ConsumerRecords;
 
 import java.io.BufferedReader;
+import java.io.File;
 import java.io.InputStreamReader;
+import java.nio.ByteBuffer;
+import java.time.Instant;
+import java.time.format.DateTimeParseException;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.Iterator;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.TimeUnit;
 
 public class KafkaMain {
+    private static final long CHECKPOINT_FLUSH_INTERVAL_MILLIS = 1000;
+    private static final int MAX_PENDING_RECORDS_PER_PARTITION = 5000;
+    private static final int COMMIT_RECORD_COUNT = 10000;
+    private static final long COMMIT_INTERVAL_MILLIS = 5000;
+    private static final ThreadLocal<ByteArraySink> projectionSink = ThreadLocal.withInitial(() -> new ByteArraySink(4096));
+    // the sink source ("<topic>-<partition>") of each partition of the consumed topic by partition, copy on write
+    private static volatile String[] partitionSources = new String[0];
+
     // $ > kafka_reader --clusterArn 'clusterArn' --customerAccessRoleArn 'customerAccessRoleArn' --externalId 'externalId' --awsRegion 'awsRegion' --awsAccessKeyId 'awsAccessKeyId' --awsSecretKey 'awsSecretKey' --topicName 'topicName'
+    // $ > kafka_reader --clusterArn 'clusterArn' --customerAccessRoleArn 'customerAccessRoleArn' --externalId 'externalId' --awsRegion 'awsRegion' --awsAccessKeyId 'awsAccessKeyId' --awsSecretKey 'awsSecretKey' --topicName 'topicName' --mode consume --outputFormat columnar --outputDir 'output'
     public static void main(String[] args) {
         ArgumentParser parser = ArgumentParsers.newFor("letsdatawriteconnector").build();
         parser.addArgument("--awsRegion").required(false).type(String.class).help("The awsRegion - default to us-east-1").setDefault("us-east-1");
@@ -20,8 +39,27 @@ public class KafkaMain {
         parser.addArgument("--customerAccessRoleArn").required(true).type(String.class).help("The customerAccessRoleArn from the dataset that has the been granted the access to the write connector");
         parser.addArgument("--externalId").required(true).type(String.class).help("The externalId for the sts assumeRole. This is the dataset createDatetime.");
         parser.addArgument("--awsSecretKey").required(true).type(String.class).help("The awsSecretKey for the customerAccountForAccess for the dataset");
-        parser.addArgument("--clusterArn").required(true).type(String.class).help("The kafka clusterArn");
+        parser.addArgument("--clusterArn").required(false).type(String.class).help("The kafka clusterArn - either the clusterArn or the bootstrapServers is required");
+        parser.addArgument("--bootstrapServers").required(false).type(String.class).help("Connect to these brokers with PLAINTEXT (e.g. a local broker) instead of looking up the clusterArn's brokers and using MSK IAM auth");
         parser.addArgument("--topicName").required(true).type(String.class).help("The kafka topic name");
+        parser.addArgument("--groupId").required(false).type(String.class).help("The kafka consumer group id - default to foo").setDefault("foo");
+        parser.addArgument("--deserializer").required(false).type(String.class).choices("string", "byteArray", "byteBuffer").help("The record key / value deserializer. byteArray / byteBuffer skip the String decode on the poll thread and print the raw (or gunzipped) value bytes - default to string").setDefault("string");
+        parser.addArgument("--mode").required(false).type(String.class).choices("interactive", "consume").help("interactive reads the consumer methods to invoke from stdin, consume polls the topic on a worker pool and commits the processed offsets - default to interactive").setDefault("interactive");
+        parser.addArgument("--workerThreadCount").required(false).type(Integer.class).help("The number of threads that process the polled partitions in the consume mode - default to 8").setDefault(8);
+        parser.addArgument("--keyAffinity").required(false).action(Arguments.storeTrue()).help("Process the records on the --workerThreadCount threads by record key instead of by partition in the consume mode - records stay in order per key (not per partition) and a hot partition is processed in parallel. A partition is committed up to the last record whose predecessors have all been processed");
+        parser.addArgument("--durationSeconds").required(false).type(Long.class).help("Stop the consume mode after these many seconds - default to run until killed");
+        parser.addArgument("--metricsIntervalSeconds").required(false).type(Integer.class).help("Log the throughput, latency and lag metrics every these many seconds (they are always available through JMX) - default to 0, not logged").setDefault(0);
+        parser.addArgument("--filter").required(false).type(String.class).help("Print only the records that match this expression, e.g. 'documentType == \"WEB_PAGE\" && crawlTimestamp >= 1685331931671 || $key ^= \"doc\"' - $key predicates (the record key) are checked before the value is decompressed");
+        parser.addArgument("--fields").required(false).type(String.class).help("Print only these comma separated (dotted path) fields of the record values, as a json object keyed by the field paths");
+        parser.addArgument("--dedup").required(false).action(Arguments.storeTrue()).help("Drop the records that have already been printed - the records re-polled after a rebalance or a re-assignment (by the per partition offset high-watermark)");
+        parser.addArgument("--dedupContentHashCapacity").required(false).type(Integer.class).help("With --dedup, also drop the records whose value bytes match one of this many most recently seen records (records produced twice) - 24 bytes per record, default to 0, offsets only").setDefault(0);
+        parser.addArgument("--outputFormat").choices("text", "columnar", "binary").required(false).help("How the consume mode writes the records - \"text\" lines to stdout, \"columnar\" dictionary encoded, compressed column files or \"binary\" length prefixed record files in --outputDir - default to text").setDefault("text");
+        parser.addArgument("--outputDir").required(false).type(String.class).help("The output directory of the columnar / binary outputFormat - default to output").setDefault("output");
+        parser.addArgument("--maxFileSizeMB").required(false).type(Integer.class).help("The file size at which the columnar / binary output rolls to a new file - default to 128").setDefault(128);
+        parser.addArgument("--startTimestamp").required(false).type(String.class).help("Start the partitions without a checkpoint at their first record at or after this ISO-8601 time, e.g. 2023-05-29T10:00:00Z (a partial replay) - default to the group's committed offsets");
+        parser.addArgument("--brokerCacheFile").required(false).type(String.class).help("The local file that caches the clusterArn's bootstrap brokers, so a restart within --brokerCacheTtlMinutes skips the broker lookup - default to ~/.letsdata/kafka_bootstrap_brokers.properties").setDefault(System.getProperty("user.home") + File.separator + ".letsdata" + File.separator + "kafka_bootstrap_brokers.properties");
+        parser.addArgument("--brokerCacheTtlMinutes").required(false).type(Integer.class).help("How long the cached bootstrap brokers are used - 0 looks the brokers up on every start, default to 60").setDefault(60);
+        parser.addArgument("--checkpointFile").required(false).type(String.class).help("The local file that stores the last polled offset per partition. When set, assigned / subscribed partitions resume from the checkpoints");
 
         try {
             Namespace namespace = parser.parseArgs(args);
@@ -44,64 +82,285 @@ public class KafkaMain {
                     "        }\n" +
                     "    ]\n" +
                     "}";
+            if (namespace.getInt("metricsIntervalSeconds") > 0) {
+                MetricsRegistry.getDefault().startDump(TimeUnit.SECONDS.toMillis(namespace.getInt("metricsIntervalSeconds")));
+            }
             String action;
             BufferedReader reader = new BufferedReader(new InputStreamReader(System.in));
             String roleSessionName = "KafkaReader" + System.currentTimeMillis();
-            KafkaReader kafkaReader = new KafkaReader(region, clusterArn, namespace.getString("awsAccessKeyId"), namespace.getString("awsSecretKey"), stsUtil, customerAccessRoleArn, externalId, roleAccessPolicyText, roleSessionName, null);
-            do {
-                System.out.println("> Enter the kafka consumer method to invoke. [\"listTopics\", \"listSubscriptions\", \"subscribeTopic\", \"pollTopic\", \"commitPolledRecords\", \"topicPartitionPositions\",\"assignTopicPartitions\", \"listAssignments\",\"quit\"]");
-
-                action = reader.readLine();
-                switch (action) {
-                    case "listTopics": {
-                        System.out.println(kafkaReader.listTopics());
-                        break;
-                    }
-                    case "listSubscriptions": {
-                        System.out.println(kafkaReader.listSubscriptions());
-                        break;
+            try (CheckpointStore checkpointStore = namespace.getString("checkpointFile") == null ? null : new FileCheckpointStore(new File(namespace.getString("checkpointFile")), CHECKPOINT_FLUSH_INTERVAL_MILLIS)) {
+                KafkaReader.RecordDeserializer recordDeserializer = "byteArray".equals(namespace.getString("deserializer")) ? KafkaReader.RecordDeserializer.BYTE_ARRAY : "byteBuffer".equals(namespace.getString("deserializer")) ? KafkaReader.RecordDeserializer.BYTE_BUFFER : KafkaReader.RecordDeserializer.STRING;
+                RecordFilter recordFilter;
+                try {
+                    recordFilter = RecordFilter.parse(namespace.getString("filter"), namespace.getString("fields"));
+                } catch (IllegalArgumentException ex) {
+                    throw new ArgumentParserException(ex.getMessage(), parser);
+                }
+                RecordDeduplicator recordDeduplicator = namespace.getBoolean("dedup") ? new RecordDeduplicator(namespace.getInt("dedupContentHashCapacity")) : null;
+                String bootstrapServers = namespace.getString("bootstrapServers");
+                if (clusterArn == null && bootstrapServers == null) {
+                    throw new ArgumentParserException("either the clusterArn or the bootstrapServers is required", parser);
+                }
+                BootstrapBrokerCache bootstrapBrokerCache = namespace.getInt("brokerCacheTtlMinutes") > 0 ? new BootstrapBrokerCache(new File(namespace.getString("brokerCacheFile")), TimeUnit.MINUTES.toMillis(namespace.getInt("brokerCacheTtlMinutes"))) : null;
+                KafkaReader kafkaReader = bootstrapServers != null
+                        ? new KafkaReader(bootstrapServers, namespace.getString("groupId"), recordDeserializer, new Properties())
+                        : new KafkaReader(region, clusterArn, namespace.getString("groupId"), recordDeserializer, namespace.getString("awsAccessKeyId"), namespace.getString("awsSecretKey"), stsUtil, customerAccessRoleArn, externalId, roleAccessPolicyText, roleSessionName, null, bootstrapBrokerCache);
+                if (namespace.getString("startTimestamp") != null) {
+                    try {
+                        kafkaReader.setStartTimestamp(Instant.parse(namespace.getString("startTimestamp")).toEpochMilli());
+                    } catch (DateTimeParseException ex) {
+                        throw new ArgumentParserException("the startTimestamp " + namespace.getString("startTimestamp") + " is not an ISO-8601 time, e.g. 2023-05-29T10:00:00Z", parser);
                     }
-                    case "subscribeTopic": {
-                        kafkaReader.subscribe(namespace.getString("topicName"));
-                        break;
+                }
+                if ("consume".equals(namespace.getString("mode"))) {
+                    RecordSink recordSink = RecordSink.create(namespace.getString("outputFormat"), new File(namespace.getString("outputDir")), namespace.getString("topicName") + "-" + System.currentTimeMillis(), namespace.getInt("maxFileSizeMB") * 1024L * 1024L);
+                    consume(kafkaReader, namespace.getString("topicName"), namespace.getInt("workerThreadCount"), namespace.getBoolean("keyAffinity"), namespace.getLong("durationSeconds"), checkpointStore, recordFilter, recordDeduplicator, recordSink);
+                    return;
+                }
+                // the metrics of the --topicName, looked up once instead of per record
+                MetricsRegistry.Meter filteredRecords = MetricsRegistry.getDefault().meter("kafka." + namespace.getString("topicName") + ".filteredRecords");
+                MetricsRegistry.Meter duplicateRecords = MetricsRegistry.getDefault().meter("kafka." + namespace.getString("topicName") + ".duplicateRecords");
+                // connect, authenticate and fetch the topic metadata now - the one consumer is reused by all the commands, so
+                // the first command does not wait for the connection setup
+                kafkaReader.partitionsFor(namespace.getString("topicName"));
+                do {
+                    System.out.println("> Enter the kafka consumer method to invoke. [\"listTopics\", \"listSubscriptions\", \"subscribeTopic\", \"pollTopic\", \"commitPolledRecords\", \"topicPartitionPositions\",\"assignTopicPartitions\", \"listAssignments\",\"quit\"]");
+
+                    action = reader.readLine();
+                    if (action == null) {
+                        // the end of stdin (e.g. a piped script) quits
+                        action = "quit";
                     }
-                    case "pollTopic": {
-                        ConsumerRecords consumerRecords = kafkaReader.pollTopic(60000);
-                        System.out.println("Polled "+consumerRecords.count()+ " records");
-                        Iterator<ConsumerRecord> iter = consumerRecords.records(namespace.getString("topicName")).iterator();
-                        while (iter.hasNext()) {
-                            System.out.println(iter.next().value());
+                    switch (action) {
+                        case "listTopics": {
+                            System.out.println(kafkaReader.listTopics());
+                            break;
+                        }
+                        case "listSubscriptions": {
+                            System.out.println(kafkaReader.listSubscriptions());
+                            break;
+                        }
+                        case "subscribeTopic": {
+                            kafkaReader.subscribe(namespace.getString("topicName"), checkpointStore);
+                            break;
+                        }
+                        case "pollTopic": {
+                            ConsumerRecords consumerRecords = kafkaReader.pollTopic(60000);
+                            System.out.println("Polled "+consumerRecords.count()+ " records");
+                            Iterator<ConsumerRecord> iter = consumerRecords.records(namespace.getString("topicName")).iterator();
+                            while (iter.hasNext()) {
+                                ConsumerRecord consumerRecord = iter.next();
+                                if (isFirst(consumerRecord, recordDeduplicator, duplicateRecords)) {
+                                    printValue(consumerRecord, recordFilter, filteredRecords);
+                                }
+                                if (checkpointStore != null) {
+                                    checkpointStore.checkpoint(CheckpointStore.kafkaPartitionKey(consumerRecord.topic(), consumerRecord.partition()), String.valueOf(consumerRecord.offset()));
+                                }
+                            }
+                            break;
+                        }
+                        case "commitPolledRecords": {
+                            kafkaReader.commitSync();
+                            break;
+                        }
+                        case "topicPartitionPositions": {
+                            // the assigned / subscribed topics, or the --topicName before subscribing
+                            Map<String, TopicOffsets> topicOffsetsMap = kafkaReader.offsets();
+                            if (topicOffsetsMap.isEmpty()) {
+                                topicOffsetsMap = kafkaReader.offsets(Collections.singletonList(namespace.getString("topicName")));
+                            }
+                            for (TopicOffsets topicOffsets : topicOffsetsMap.values()) {
+                                System.out.println(topicOffsets);
+                            }
+                            break;
+                        }
+                        case "listAssignments": {
+                            System.out.println(kafkaReader.assignments());
+                            break;
+                        }
+                        case "assignTopicPartitions": {
+                            kafkaReader.assign(namespace.getString("topicName"), checkpointStore);
+                            break;
+                        }
+                        case "quit":{
+                            break;
+                        }
+                        default: {
+                            System.out.println("ERROR: Unknown action " + action +", try again");
                         }
-                        break;
-                    }
-                    case "commitPolledRecords": {
-                        kafkaReader.commitSync();
-                        break;
-                    }
-                    case "topicPartitionPositions": {
-                        System.out.println(kafkaReader.positions());
-                        break;
-                    }
-                    case "listAssignments": {
-                        System.out.println(kafkaReader.assignments());
-                        break;
-                    }
-                    case "assignTopicPartitions": {
-                        kafkaReader.assign(namespace.getString("topicName"));
-                        break;
-                    }
-                    case "quit":{
-                        break;
-                    }
-                    default: {
-                        System.out.println("ERROR: Unknown action " + action +", try again");
                     }
-                }
-            } while (!"quit".equalsIgnoreCase(action));
+                } while (!"quit".equalsIgnoreCase(action));
+            }
         } catch (ArgumentParserException e) {
             parser.handleError(e);
         } catch (Exception ex) {
             throw new RuntimeException(ex);
         }
     }
+
+    /**
+     * @param filteredRecords the filteredRecords meter of the record's topic
+     */
+    private static void printValue(ConsumerRecord consumerRecord, RecordFilter recordFilter, MetricsRegistry.Meter filteredRecords) {
+        if (recordFilter != null) {
+            printFilteredValue(new LazyKafkaRecord(consumerRecord), recordFilter, filteredRecords);
+            return;
+        }
+        if (consumerRecord.value() == null || consumerRecord.value() instanceof String) {
+            System.out.println(consumerRecord.value());
+            return;
+        }
+        // raw bytes are written as is (gzipped values are inflated), no String is created
+        LazyKafkaRecord lazyKafkaRecord = new LazyKafkaRecord(consumerRecord);
+        synchronized (System.out) {
+            lazyKafkaRecord.writeValue(System.out::write);
+            System.out.println();
+        }
+        if (lazyKafkaRecord.isGzipValue()) {
+            MetricsRegistry.getDefault().getPartitionMetrics(consumerRecord.topic(), consumerRecord.partition()).decompressedBytes.mark(GZipDecoder.forCurrentThread().getDecodedLength());
+        }
+    }
+
+    /**
+     * Prints the record value if it matches the filter (the projected fields only, with a projection). The key is checked
+     * before the value is decompressed and the value is never decoded to a String.
+     */
+    private static void printFilteredValue(LazyKafkaRecord lazyKafkaRecord, RecordFilter recordFilter, MetricsRegistry.Meter filteredRecords) {
+        ByteBuffer value = matchValue(lazyKafkaRecord, recordFilter, filteredRecords);
+        if (value == null) {
+            return;
+        }
+        synchronized (System.out) {
+            recordFilter.matcher().write(value, System.out::write);
+            System.out.println();
+        }
+    }
+
+    /**
+     * @return the decoded value if it matches the filter, null if the record is filtered out
+     */
+    private static ByteBuffer matchValue(LazyKafkaRecord lazyKafkaRecord, RecordFilter recordFilter, MetricsRegistry.Meter filteredRecords) {
+        RecordFilter.Matcher matcher = recordFilter.matcher();
+        String key = recordFilter.usesKey() ? lazyKafkaRecord.keyAsString() : null;
+        ByteBuffer value = matcher.rejectsKey(key) ? null : lazyKafkaRecord.decodedValue();
+        if (value != null && lazyKafkaRecord.isGzipValue()) {
+            MetricsRegistry.getDefault().getPartitionMetrics(lazyKafkaRecord.topic(), lazyKafkaRecord.partition()).decompressedBytes.mark(GZipDecoder.forCurrentThread().getDecodedLength());
+        }
+        if (value == null || !matcher.matches(key, value)) {
+            filteredRecords.mark();
+            return null;
+        }
+        return value;
+    }
+
+    /**
+     * Writes the decoded record value (the projected fields only, with a projection) to the sink, with the partition as
+     * the record source. Null values (tombstones) are not written.
+     */
+    private static void writeValue(ConsumerRecord consumerRecord, RecordFilter recordFilter, MetricsRegistry.Meter filteredRecords, RecordSink recordSink) {
+        LazyKafkaRecord lazyKafkaRecord = new LazyKafkaRecord(consumerRecord);
+        ByteBuffer value;
+        if (recordFilter != null) {
+            ByteBuffer matchedValue = matchValue(lazyKafkaRecord, recordFilter, filteredRecords);
+            if (matchedValue == null) {
+                return;
+            }
+            ByteArraySink byteArraySink = projectionSink.get();
+            byteArraySink.clear();
+            recordFilter.matcher().write(matchedValue, byteArraySink);
+            value = byteArraySink.buffer();
+        } else {
+            value = lazyKafkaRecord.decodedValue();
+            if (value == null) {
+                return;
+            }
+            if (lazyKafkaRecord.isGzipValue()) {
+                MetricsRegistry.getDefault().getPartitionMetrics(consumerRecord.topic(), consumerRecord.partition()).decompressedBytes.mark(GZipDecoder.forCurrentThread().getDecodedLength());
+            }
+        }
+        String source = partitionSource(consumerRecord);
+        synchronized (recordSink) {
+            recordSink.write(source, value);
+        }
+    }
+
+    /**
+     * The sink source of the record's partition - built once per partition, consume reads one topic.
+     */
+    private static String partitionSource(ConsumerRecord consumerRecord) {
+        int partition = consumerRecord.partition();
+        String[] sources = partitionSources;
+        if (partition < sources.length && sources[partition] != null) {
+            return sources[partition];
+        }
+        synchronized (KafkaMain.class) {
+            sources = Arrays.copyOf(partitionSources, Math.max(partitionSources.length, partition + 1));
+            if (sources[partition] == null) {
+                sources[partition] = consumerRecord.topic() + "-" + partition;
+            }
+            partitionSources = sources;
+            return sources[partition];
+        }
+    }
+
+    /**
+     * @return true if the record has not been seen before (always true without a deduplicator)
+     */
+    private static boolean isFirst(ConsumerRecord consumerRecord, RecordDeduplicator recordDeduplicator, MetricsRegistry.Meter duplicateRecords) {
+        if (recordDeduplicator == null) {
+            return true;
+        }
+        LazyKafkaRecord lazyKafkaRecord = new LazyKafkaRecord(consumerRecord);
+        if (recordDeduplicator.isFirst(CheckpointStore.kafkaPartitionKey(consumerRecord.topic(), consumerRecord.partition()), consumerRecord.offset(), lazyKafkaRecord.valueBuffer())) {
+            return true;
+        }
+        duplicateRecords.mark();
+        return false;
+    }
+
+    /**
+     * @param recordSink the file output of the records, null to print them to stdout
+     */
+    private static void consume(KafkaReader kafkaReader, String topicName, int workerThreadCount, boolean keyAffinity, Long durationSeconds, CheckpointStore checkpointStore, RecordFilter recordFilter, RecordDeduplicator recordDeduplicator, RecordSink recordSink) {
+        MetricsRegistry.Meter filteredRecords = MetricsRegistry.getDefault().meter("kafka." + topicName + ".filteredRecords");
+        KafkaParallelConsumer.RecordHandler recordHandler = consumerRecord -> {
+            if (recordSink != null) {
+                writeValue(consumerRecord, recordFilter, filteredRecords, recordSink);
+            } else {
+                printValue(consumerRecord, recordFilter, filteredRecords);
+            }
+        };
+        KafkaParallelConsumer parallelConsumer = new KafkaParallelConsumer(kafkaReader, recordHandler, workerThreadCount, keyAffinity, MAX_PENDING_RECORDS_PER_PARTITION, COMMIT_RECORD_COUNT, COMMIT_INTERVAL_MILLIS);
+        // the offsets are committed and checkpointed after the sink flush that follows their records' writes (a columnar
+        // sink writes a row group per flush), a restarted consume resumes after the checkpoints
+        parallelConsumer.setCheckpointStore(checkpointStore);
+        // the duplicates are dropped on the poll thread, in offset order, also with key affinity
+        parallelConsumer.setRecordDeduplicator(recordDeduplicator);
+        if (recordSink != null) {
+            parallelConsumer.setFlusher(() -> {
+                synchronized (recordSink) {
+                    recordSink.flush();
+                }
+            });
+        } else {
+            parallelConsumer.setFlusher(System.out::flush);
+        }
+        Thread shutdownHook = new Thread(parallelConsumer::stop);
+        Runtime.getRuntime().addShutdownHook(shutdownHook);
+        try {
+            parallelConsumer.run(topicName, durationSeconds == null ? 0 : durationSeconds * 1000);
+            try {
+                Runtime.getRuntime().removeShutdownHook(shutdownHook);
+            } catch (IllegalStateException ex) {
+                // stopped by the shutdown hook
+            }
+        } finally {
+            if (recordSink != null) {
+                synchronized (recordSink) {
+                    recordSink.close();
+                }
+            }
+            kafkaReader.close();
+        }
+    }
 }
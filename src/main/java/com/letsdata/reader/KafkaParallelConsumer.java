@@ -0,0 +1,538 @@
+package com.letsdata.reader;
+
+import org.apache.kafka.clients.consumer.ConsumerRebalanceListener;
+import org.apache.kafka.clients.consumer.ConsumerRecord;
+import org.apache.kafka.clients.consumer.ConsumerRecords;
+import org.apache.kafka.clients.consumer.OffsetAndMetadata;
+import org.apache.kafka.common.TopicPartition;
+import org.apache.kafka.common.errors.WakeupException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * A non-interactive, high throughput consumer on top of a KafkaReader.
+ *
+ * One thread polls the consumer (the KafkaConsumer is not thread safe) and hands each partition's record batches to
+ * that partition's worker. Partition workers run on a shared worker pool, one batch at a time, so records are processed
+ * in order within a partition and in parallel across partitions. The offsets of the processed records are committed
+ * with commitAsync every commitRecordCount records or commitIntervalMillis, whichever comes first, and synchronously
+ * when partitions are revoked (once the records queued for them have been handled) and on shutdown - a partition's
+ * committed offset only advances once the commit has succeeded. With a flusher, the handlers' output is flushed before every commit and only the offsets of the records
+ * processed before the flush started are committed, so a crash does not lose committed records that were still in an
+ * output buffer. With a CheckpointStore, the committed offsets are also checkpointed and the assigned partitions that
+ * have a checkpoint resume after it. Partitions whose workers have more than maxPendingRecordsPerPartition
+ * unprocessed records are paused until the worker catches up (backpressure).
+ *
+ * With key affinity the records are handed to keyLaneCount key lanes by record key instead of to their partition's
+ * worker - records stay in order per key (keyless records per partition) and a hot partition is processed by every lane.
+ * A partition's records then complete out of order, so its processed offset advances through a
+ * {@link CompletionWatermark} - only up to the last record whose predecessors have all been processed.
+ *
+ * With a RecordDeduplicator, the duplicates are dropped on the poll thread before the records are handed to the workers /
+ * lanes, so each partition is checked in offset order. A dropped record is not handled but its offset is processed. The
+ * watermark of a revoked partition is rolled back to its committed offset, so the records that were checked but not
+ * handled are not dropped when the partition comes back and they are polled again.
+ */
+public class KafkaParallelConsumer {
+    private static final Logger logger = LoggerFactory.getLogger(KafkaParallelConsumer.class);
+
+    private static final Duration POLL_TIMEOUT = Duration.ofMillis(500);
+    private static final long REVOKE_WAIT_MILLIS = TimeUnit.SECONDS.toMillis(30);
+
+    public interface RecordHandler {
+        void handle(ConsumerRecord consumerRecord) throws Exception;
+    }
+
+    private final KafkaReader kafkaReader;
+    private final RecordHandler recordHandler;
+    private final ExecutorService workerExecutor;
+    private final boolean ownsWorkerExecutor;
+    private final int maxPendingRecordsPerPartition;
+    private final int commitRecordCount;
+    private final long commitIntervalMillis;
+    // key affinity only
+    private final KeyLane[] keyLanes;
+    // accessed from the poll thread only
+    private final Map<TopicPartition, PartitionWorker> partitionWorkerMap = new HashMap<>();
+    private final Set<TopicPartition> pausedPartitionSet = new HashSet<>();
+    private final AtomicInteger uncommittedRecordCount = new AtomicInteger();
+    private final AtomicReference<Throwable> failure = new AtomicReference<>();
+    private final CountDownLatch terminated = new CountDownLatch(1);
+    private CheckpointStore checkpointStore;
+    private Runnable flusher;
+    private RecordDeduplicator recordDeduplicator;
+    // poll thread only
+    private MetricsRegistry.Meter duplicateRecords;
+    private volatile boolean stopped;
+
+    public KafkaParallelConsumer(KafkaReader kafkaReader, RecordHandler recordHandler, int workerThreadCount, int maxPendingRecordsPerPartition, int commitRecordCount, long commitIntervalMillis) {
+        this(kafkaReader, recordHandler, Executors.newFixedThreadPool(workerThreadCount, runnable -> {
+            Thread thread = new Thread(runnable, "KafkaParallelConsumer-worker");
+            thread.setDaemon(true);
+            return thread;
+        }), true, 0, maxPendingRecordsPerPartition, commitRecordCount, commitIntervalMillis);
+    }
+
+    /**
+     * @param keyAffinity process the records on workerThreadCount key lanes by record key instead of by partition
+     */
+    public KafkaParallelConsumer(KafkaReader kafkaReader, RecordHandler recordHandler, int workerThreadCount, boolean keyAffinity, int maxPendingRecordsPerPartition, int commitRecordCount, long commitIntervalMillis) {
+        this(kafkaReader, recordHandler, Executors.newFixedThreadPool(workerThreadCount, runnable -> {
+            Thread thread = new Thread(runnable, "KafkaParallelConsumer-worker");
+            thread.setDaemon(true);
+            return thread;
+        }), true, keyAffinity ? workerThreadCount : 0, maxPendingRecordsPerPartition, commitRecordCount, commitIntervalMillis);
+    }
+
+    /**
+     * A consumer whose partition workers run on a shared executor (e.g. the reader daemon's process wide scheduler) - the
+     * executor is not shut down when the consumer stops.
+     */
+    public KafkaParallelConsumer(KafkaReader kafkaReader, RecordHandler recordHandler, ExecutorService workerExecutor, int maxPendingRecordsPerPartition, int commitRecordCount, long commitIntervalMillis) {
+        this(kafkaReader, recordHandler, workerExecutor, false, 0, maxPendingRecordsPerPartition, commitRecordCount, commitIntervalMillis);
+    }
+
+    private KafkaParallelConsumer(KafkaReader kafkaReader, RecordHandler recordHandler, ExecutorService workerExecutor, boolean ownsWorkerExecutor, int keyLaneCount, int maxPendingRecordsPerPartition, int commitRecordCount, long commitIntervalMillis) {
+        this.kafkaReader = kafkaReader;
+        this.recordHandler = recordHandler;
+        this.maxPendingRecordsPerPartition = maxPendingRecordsPerPartition;
+        this.commitRecordCount = commitRecordCount;
+        this.commitIntervalMillis = commitIntervalMillis;
+        this.workerExecutor = workerExecutor;
+        this.ownsWorkerExecutor = ownsWorkerExecutor;
+        if (keyLaneCount > 0) {
+            this.keyLanes = new KeyLane[keyLaneCount];
+            for (int i = 0; i < keyLaneCount; i++) {
+                keyLanes[i] = new KeyLane();
+            }
+        } else {
+            this.keyLanes = null;
+        }
+    }
+
+    /**
+     * Checkpoints the committed offsets to the store and positions the assigned partitions that have a checkpoint after
+     * their checkpointed offset. Must be called before run().
+     */
+    public void setCheckpointStore(CheckpointStore checkpointStore) {
+        this.checkpointStore = checkpointStore;
+    }
+
+    /**
+     * Flushes the record handlers' output before each commit - it is called on the poll thread, concurrently with the
+     * handlers. Must be called before run().
+     */
+    public void setFlusher(Runnable flusher) {
+        this.flusher = flusher;
+    }
+
+    /**
+     * Drops the records the deduplicator has seen before. Must be called before run().
+     */
+    public void setRecordDeduplicator(RecordDeduplicator recordDeduplicator) {
+        this.recordDeduplicator = recordDeduplicator;
+    }
+
+    /**
+     * Subscribes to the topic and consumes it on the calling thread until stop() is called, durationMillis (if > 0)
+     * has passed or a record handler fails.
+     */
+    public void run(String topicName, long durationMillis) {
+        long endMillis = durationMillis > 0 ? System.currentTimeMillis() + durationMillis : Long.MAX_VALUE;
+        try {
+            kafkaReader.subscribe(topicName, checkpointStore, new RebalanceListener());
+            duplicateRecords = MetricsRegistry.getDefault().meter("kafka." + kafkaReader.metricsTopicName(topicName) + ".duplicateRecords");
+            long lastCommitMillis = System.currentTimeMillis();
+            while (!stopped && failure.get() == null && System.currentTimeMillis() < endMillis) {
+                ConsumerRecords consumerRecords;
+                try {
+                    consumerRecords = kafkaReader.poll(POLL_TIMEOUT);
+                } catch (WakeupException ex) {
+                    break;
+                }
+
+                for (TopicPartition topicPartition : (Set<TopicPartition>) consumerRecords.partitions()) {
+                    List<ConsumerRecord> batch = consumerRecords.records(topicPartition);
+                    getPartitionWorker(topicPartition).submit(batch);
+                }
+                applyBackpressure();
+
+                long nowMillis = System.currentTimeMillis();
+                if (uncommittedRecordCount.get() >= commitRecordCount || nowMillis - lastCommitMillis >= commitIntervalMillis) {
+                    commitProcessedOffsets(partitionWorkerMap.values(), false);
+                    lastCommitMillis = nowMillis;
+                }
+            }
+
+            // let the workers finish the records that have been handed to them and commit them
+            for (PartitionWorker partitionWorker : partitionWorkerMap.values()) {
+                partitionWorker.awaitIdle(REVOKE_WAIT_MILLIS);
+            }
+            commitProcessedOffsets(partitionWorkerMap.values(), true);
+        } finally {
+            if (ownsWorkerExecutor) {
+                workerExecutor.shutdownNow();
+            }
+            terminated.countDown();
+        }
+
+        if (failure.get() != null) {
+            throw new RuntimeException("Kafka record handler failed", failure.get());
+        }
+    }
+
+    /**
+     * Stops a running consumer and waits for it to commit its processed offsets. Safe to call from any thread (for
+     * example a shutdown hook).
+     */
+    public void stop() {
+        stopped = true;
+        kafkaReader.wakeup();
+        try {
+            terminated.await(REVOKE_WAIT_MILLIS * 2, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private PartitionWorker getPartitionWorker(TopicPartition topicPartition) {
+        PartitionWorker partitionWorker = partitionWorkerMap.get(topicPartition);
+        if (partitionWorker == null) {
+            partitionWorker = new PartitionWorker(topicPartition);
+            partitionWorkerMap.put(topicPartition, partitionWorker);
+        }
+        return partitionWorker;
+    }
+
+    private KeyLane getKeyLane(ConsumerRecord consumerRecord) {
+        Object key = consumerRecord.key();
+        int hash;
+        if (key == null) {
+            // keyless records have no key order, they are kept in order per partition
+            hash = consumerRecord.partition();
+        } else if (key instanceof byte[]) {
+            hash = Arrays.hashCode((byte[]) key);
+        } else {
+            // a String or the content of a ByteBuffer
+            hash = key.hashCode();
+        }
+        return keyLanes[(hash & 0x7fffffff) % keyLanes.length];
+    }
+
+    private void applyBackpressure() {
+        List<TopicPartition> pauseList = new ArrayList<>();
+        List<TopicPartition> resumeList = new ArrayList<>();
+        for (PartitionWorker partitionWorker : partitionWorkerMap.values()) {
+            int pendingRecordCount = partitionWorker.pendingRecordCount.get();
+            boolean paused = pausedPartitionSet.contains(partitionWorker.topicPartition);
+            if (!paused && pendingRecordCount > maxPendingRecordsPerPartition) {
+                pauseList.add(partitionWorker.topicPartition);
+            } else if (paused && pendingRecordCount <= maxPendingRecordsPerPartition / 2) {
+                resumeList.add(partitionWorker.topicPartition);
+            }
+        }
+        if (!pauseList.isEmpty()) {
+            logger.debug("pausing partitions " + pauseList);
+            kafkaReader.pause(pauseList);
+            pausedPartitionSet.addAll(pauseList);
+        }
+        if (!resumeList.isEmpty()) {
+            logger.debug("resuming partitions " + resumeList);
+            kafkaReader.resume(resumeList);
+            pausedPartitionSet.removeAll(resumeList);
+        }
+    }
+
+    private void commitProcessedOffsets(Collection<PartitionWorker> partitionWorkers, boolean sync) {
+        Map<TopicPartition, OffsetAndMetadata> offsetMap = new HashMap<>();
+        Map<PartitionWorker, Long> committingOffsetMap = new HashMap<>();
+        for (PartitionWorker partitionWorker : partitionWorkers) {
+            long processedOffset = partitionWorker.processedOffset;
+            if (processedOffset > partitionWorker.committedOffset || (sync && processedOffset >= 0)) {
+                // the committed offset is the offset of the next record to read
+                offsetMap.put(partitionWorker.topicPartition, new OffsetAndMetadata(processedOffset + 1));
+                committingOffsetMap.put(partitionWorker, processedOffset);
+            }
+        }
+        uncommittedRecordCount.set(0);
+        if (offsetMap.isEmpty()) {
+            return;
+        }
+
+        // the records up to the offsets have been handled before the flush, their output is out of the buffers after it
+        if (flusher != null) {
+            flusher.run();
+        }
+        if (checkpointStore != null) {
+            for (Map.Entry<PartitionWorker, Long> entry : committingOffsetMap.entrySet()) {
+                TopicPartition topicPartition = entry.getKey().topicPartition;
+                checkpointStore.checkpoint(CheckpointStore.kafkaPartitionKey(topicPartition.topic(), topicPartition.partition()), String.valueOf(entry.getValue()));
+            }
+        }
+        if (sync) {
+            commitSync(offsetMap);
+            onCommitted(committingOffsetMap);
+        } else {
+            // the callback is called on the poll thread, from a later poll / commit
+            kafkaReader.commitAsync(offsetMap, (offsets, ex) -> {
+                if (ex != null) {
+                    // the committed offsets have not moved, the next commit of these partitions includes the offsets again
+                    logger.error("commitAsync of " + offsets + " threw an exception ", ex);
+                } else {
+                    onCommitted(committingOffsetMap);
+                }
+            });
+        }
+    }
+
+    /**
+     * A commitSync that a stop() wakeup does not abort - a wakeup that lands outside poll() is raised by the next
+     * blocking consumer call (and then cleared), so the commit is retried once.
+     */
+    private void commitSync(Map<TopicPartition, OffsetAndMetadata> offsetMap) {
+        try {
+            kafkaReader.commitSync(offsetMap);
+        } catch (WakeupException ex) {
+            kafkaReader.commitSync(offsetMap);
+        }
+    }
+
+    private void onCommitted(Map<PartitionWorker, Long> committedOffsetMap) {
+        for (Map.Entry<PartitionWorker, Long> entry : committedOffsetMap.entrySet()) {
+            PartitionWorker partitionWorker = entry.getKey();
+            partitionWorker.committedOffset = Math.max(partitionWorker.committedOffset, entry.getValue());
+        }
+    }
+
+    private class RebalanceListener implements ConsumerRebalanceListener {
+        @Override
+        public void onPartitionsRevoked(Collection<TopicPartition> partitions) {
+            List<PartitionWorker> revokedWorkerList = new ArrayList<>();
+            for (TopicPartition topicPartition : partitions) {
+                PartitionWorker partitionWorker = partitionWorkerMap.remove(topicPartition);
+                if (partitionWorker != null) {
+                    revokedWorkerList.add(partitionWorker);
+                }
+                pausedPartitionSet.remove(topicPartition);
+            }
+            // the queued records are handled before the commit - only what is still queued after REVOKE_WAIT_MILLIS is skipped
+            for (PartitionWorker partitionWorker : revokedWorkerList) {
+                partitionWorker.awaitIdle(REVOKE_WAIT_MILLIS);
+                partitionWorker.revoked = true;
+            }
+            commitProcessedOffsets(revokedWorkerList, true);
+            if (recordDeduplicator != null) {
+                for (PartitionWorker partitionWorker : revokedWorkerList) {
+                    recordDeduplicator.rollback(partitionWorker.deduplicatorKey, partitionWorker.committedOffset);
+                }
+            }
+        }
+
+        @Override
+        public void onPartitionsAssigned(Collection<TopicPartition> partitions) {
+            logger.debug("assigned partitions " + partitions);
+        }
+    }
+
+    /**
+     * Processes a partition's batches in order. At most one run() of a worker is scheduled at a time.
+     */
+    private class PartitionWorker implements Runnable {
+        private final TopicPartition topicPartition;
+        private final ConcurrentLinkedQueue<PartitionBatch> batchQueue = new ConcurrentLinkedQueue<>();
+        private final AtomicInteger pendingRecordCount = new AtomicInteger();
+        private final AtomicBoolean scheduled = new AtomicBoolean(false);
+        private volatile long processedOffset = -1;
+        private volatile boolean revoked;
+        // accessed from the poll thread only
+        private long committedOffset = -1;
+        // key affinity only - the processed offset is the watermark of the records completed on the key lanes
+        private final CompletionWatermark<Long> completionWatermark;
+        private final String deduplicatorKey;
+
+        private PartitionWorker(TopicPartition topicPartition) {
+            this.topicPartition = topicPartition;
+            this.completionWatermark = keyLanes == null ? null : new CompletionWatermark<>(offset -> processedOffset = offset);
+            this.deduplicatorKey = CheckpointStore.kafkaPartitionKey(topicPartition.topic(), topicPartition.partition());
+        }
+
+        /**
+         * Hands the records to the worker / the key lanes - the duplicates are dropped here, on the poll thread.
+         */
+        private void submit(List<ConsumerRecord> batch) {
+            if (keyLanes != null) {
+                for (ConsumerRecord consumerRecord : batch) {
+                    long sequence = completionWatermark.add(consumerRecord.offset());
+                    if (isDuplicate(consumerRecord)) {
+                        // keeps its place in the watermark, completed right away
+                        completionWatermark.complete(sequence);
+                    } else {
+                        pendingRecordCount.incrementAndGet();
+                        getKeyLane(consumerRecord).submit(new KeyedRecord(this, consumerRecord, sequence));
+                    }
+                }
+                return;
+            }
+            List<ConsumerRecord> recordList = batch;
+            if (recordDeduplicator != null) {
+                recordList = new ArrayList<>(batch.size());
+                for (ConsumerRecord consumerRecord : batch) {
+                    if (!isDuplicate(consumerRecord)) {
+                        recordList.add(consumerRecord);
+                    }
+                }
+            }
+            pendingRecordCount.addAndGet(recordList.size());
+            batchQueue.add(new PartitionBatch(recordList, batch.get(batch.size() - 1).offset()));
+            schedule();
+        }
+
+        private boolean isDuplicate(ConsumerRecord consumerRecord) {
+            if (recordDeduplicator == null || recordDeduplicator.isFirst(deduplicatorKey, consumerRecord.offset(), new LazyKafkaRecord(consumerRecord).valueBuffer())) {
+                return false;
+            }
+            duplicateRecords.mark();
+            return true;
+        }
+
+        private void schedule() {
+            if (scheduled.compareAndSet(false, true)) {
+                workerExecutor.execute(this);
+            }
+        }
+
+        @Override
+        public void run() {
+            try {
+                PartitionBatch batch;
+                while ((batch = batchQueue.poll()) != null) {
+                    for (ConsumerRecord consumerRecord : batch.recordList) {
+                        if (!revoked && failure.get() == null) {
+                            recordHandler.handle(consumerRecord);
+                            processedOffset = consumerRecord.offset();
+                            uncommittedRecordCount.incrementAndGet();
+                        }
+                        pendingRecordCount.decrementAndGet();
+                    }
+                    if (!revoked && failure.get() == null) {
+                        // past the dropped duplicates at the end of the batch
+                        processedOffset = batch.lastOffset;
+                    }
+                }
+            } catch (Exception ex) {
+                logger.error(topicPartition + " record handler threw an exception ", ex);
+                failure.compareAndSet(null, ex);
+                batchQueue.clear();
+                pendingRecordCount.set(0);
+            } finally {
+                scheduled.set(false);
+                if (!batchQueue.isEmpty()) {
+                    schedule();
+                }
+            }
+        }
+
+        private boolean isIdle() {
+            return keyLanes != null ? pendingRecordCount.get() == 0 : !scheduled.get() && batchQueue.isEmpty();
+        }
+
+        private void awaitIdle(long timeoutMillis) {
+            long endMillis = System.currentTimeMillis() + timeoutMillis;
+            while (!isIdle() && failure.get() == null && System.currentTimeMillis() < endMillis) {
+                try {
+                    Thread.sleep(10);
+                } catch (InterruptedException ex) {
+                    Thread.currentThread().interrupt();
+                    return;
+                }
+            }
+        }
+    }
+
+    private static class PartitionBatch {
+        private final List<ConsumerRecord> recordList;
+        private final long lastOffset;
+
+        private PartitionBatch(List<ConsumerRecord> recordList, long lastOffset) {
+            this.recordList = recordList;
+            this.lastOffset = lastOffset;
+        }
+    }
+
+    private static class KeyedRecord {
+        private final PartitionWorker partitionWorker;
+        private final ConsumerRecord consumerRecord;
+        private final long sequence;
+
+        private KeyedRecord(PartitionWorker partitionWorker, ConsumerRecord consumerRecord, long sequence) {
+            this.partitionWorker = partitionWorker;
+            this.consumerRecord = consumerRecord;
+            this.sequence = sequence;
+        }
+    }
+
+    /**
+     * Processes the records of its keys in order, across partitions. At most one run() of a lane is scheduled at a time.
+     */
+    private class KeyLane implements Runnable {
+        private final ConcurrentLinkedQueue<KeyedRecord> recordQueue = new ConcurrentLinkedQueue<>();
+        private final AtomicBoolean scheduled = new AtomicBoolean(false);
+
+        private void submit(KeyedRecord keyedRecord) {
+            recordQueue.add(keyedRecord);
+            schedule();
+        }
+
+        private void schedule() {
+            if (scheduled.compareAndSet(false, true)) {
+                workerExecutor.execute(this);
+            }
+        }
+
+        @Override
+        public void run() {
+            KeyedRecord keyedRecord = null;
+            try {
+                while ((keyedRecord = recordQueue.poll()) != null) {
+                    PartitionWorker partitionWorker = keyedRecord.partitionWorker;
+                    if (!partitionWorker.revoked && failure.get() == null) {
+                        recordHandler.handle(keyedRecord.consumerRecord);
+                        partitionWorker.completionWatermark.complete(keyedRecord.sequence);
+                        uncommittedRecordCount.incrementAndGet();
+                    }
+                    partitionWorker.pendingRecordCount.decrementAndGet();
+                }
+            } catch (Exception ex) {
+                logger.error(keyedRecord.partitionWorker.topicPartition + " record handler threw an exception ", ex);
+                failure.compareAndSet(null, ex);
+                keyedRecord.partitionWorker.pendingRecordCount.decrementAndGet();
+                while ((keyedRecord = recordQueue.poll()) != null) {
+                    keyedRecord.partitionWorker.pendingRecordCount.decrementAndGet();
+                }
+            } finally {
+                scheduled.set(false);
+                if (!recordQueue.isEmpty()) {
+                    schedule();
+                }
+            }
+        }
+    }
+}
@@ -1,108 +1,210 @@
 package com.letsdata.reader;
 
-import com.amazonaws.auth.AWSSessionCredentials;
-import com.amazonaws.auth.AWSSessionCredentialsProvider;
 import com.amazonaws.services.kafka.AWSKafka;
 import com.amazonaws.services.kafka.AWSKafkaClientBuilder;
 import com.amazonaws.services.kafka.model.GetBootstrapBrokersRequest;
 import com.amazonaws.services.kafka.model.GetBootstrapBrokersResult;
-import com.amazonaws.services.securitytoken.model.AssumeRoleResult;
-import com.amazonaws.services.securitytoken.model.Credentials;
+import org.apache.kafka.clients.consumer.Consumer;
+import org.apache.kafka.clients.consumer.ConsumerRebalanceListener;
+import org.apache.kafka.clients.consumer.ConsumerRecord;
 import org.apache.kafka.clients.consumer.ConsumerRecords;
 import org.apache.kafka.clients.consumer.KafkaConsumer;
+import org.apache.kafka.clients.consumer.OffsetAndMetadata;
+import org.apache.kafka.clients.consumer.OffsetAndTimestamp;
+import org.apache.kafka.clients.consumer.OffsetCommitCallback;
 import org.apache.kafka.common.PartitionInfo;
 import org.apache.kafka.common.TopicPartition;
+import org.apache.kafka.common.errors.TimeoutException;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.net.InetAddress;
 import java.net.UnknownHostException;
+import java.time.Duration;
 import java.util.*;
-import java.util.concurrent.TimeUnit;
 
 public class KafkaReader {
     private static final Logger logger = LoggerFactory.getLogger(KafkaReader.class);
 
-    private final STSUtil stsUtil;
+    // the partition lag gauges are updated from a poll at most this often
+    private static final long LAG_UPDATE_INTERVAL_MILLIS = 10000;
+    // the lag update from poll() waits at most this long for the end offsets - the poll thread is not held up by a slow broker
+    private static final Duration LAG_UPDATE_TIMEOUT = Duration.ofMillis(200);
+    // the partitions of a topic are looked up again after this long - partitions are rarely added
+    private static final long METADATA_CACHE_TTL_MILLIS = 30000;
+
+    /**
+     * The key / value deserializer of the consumer. STRING decodes every record to a String on the poll thread,
+     * BYTE_ARRAY / BYTE_BUFFER hand the raw bytes to the caller - use {@link LazyKafkaRecord} to decode them on access.
+     */
+    public enum RecordDeserializer {
+        STRING("org.apache.kafka.common.serialization.StringDeserializer"),
+        BYTE_ARRAY("org.apache.kafka.common.serialization.ByteArrayDeserializer"),
+        BYTE_BUFFER("org.apache.kafka.common.serialization.ByteBufferDeserializer");
+
+        private final String className;
+
+        RecordDeserializer(String className) {
+            this.className = className;
+        }
+    }
+
     private final AWSKafka awsKafka;
-    private final KafkaConsumer kafkaConsumer;
-    private final String roleArn;
-    private final String externalId;
-    private final String roleAccessPolicyText;
-    private final String roleSessionName;
-    private final List<String> managedPolicyArnList;
-
-    public KafkaReader(String region, String clusterArn, String awsAccessKeyId, String awsSecretAccessKey, STSUtil stsUtil, String roleArn, String externalId, String roleAccessPolicyText, String roleSessionName, List<String> managedPolicyArnList) {
-        this.stsUtil = stsUtil;
-        this.roleArn = roleArn;
-        this.externalId = externalId;
-        this.roleAccessPolicyText = roleAccessPolicyText;
-        this.roleSessionName = roleSessionName;
-        this.managedPolicyArnList = managedPolicyArnList;
+    private final Consumer kafkaConsumer;
+    private final BootstrapBrokerCache bootstrapBrokerCache;
+    private final String groupId;
+    private final MetricsRegistry metricsRegistry = MetricsRegistry.getDefault();
+    private MetricsRegistry.Histogram pollLatencyMillis;
+    private String metricsScope;
+    private final Map<String, CachedPartitionList> partitionListCache = new HashMap<>();
+    // the partitions that have been positioned at the start timestamp - a partition starts there once
+    private final Set<TopicPartition> timestampStartedPartitionSet = new HashSet<>();
+    private Long startTimestampMillis;
+    private long lastLagUpdateMillis;
+
+    public KafkaReader(String region, String clusterArn, String groupId, String awsAccessKeyId, String awsSecretAccessKey, STSUtil stsUtil, String roleArn, String externalId, String roleAccessPolicyText, String roleSessionName, List<String> managedPolicyArnList) {
+        this(region, clusterArn, groupId, RecordDeserializer.STRING, awsAccessKeyId, awsSecretAccessKey, stsUtil, roleArn, externalId, roleAccessPolicyText, roleSessionName, managedPolicyArnList);
+    }
 
+    public KafkaReader(String region, String clusterArn, String groupId, RecordDeserializer recordDeserializer, String awsAccessKeyId, String awsSecretAccessKey, STSUtil stsUtil, String roleArn, String externalId, String roleAccessPolicyText, String roleSessionName, List<String> managedPolicyArnList) {
+        this(region, clusterArn, groupId, recordDeserializer, awsAccessKeyId, awsSecretAccessKey, stsUtil, roleArn, externalId, roleAccessPolicyText, roleSessionName, managedPolicyArnList, null);
+    }
+
+    /**
+     * @param bootstrapBrokerCache the cluster's bootstrap brokers are read from / written to this cache, null to look them
+     *                             up on every start
+     */
+    public KafkaReader(String region, String clusterArn, String groupId, RecordDeserializer recordDeserializer, String awsAccessKeyId, String awsSecretAccessKey, STSUtil stsUtil, String roleArn, String externalId, String roleAccessPolicyText, String roleSessionName, List<String> managedPolicyArnList, BootstrapBrokerCache bootstrapBrokerCache) {
+        this.bootstrapBrokerCache = bootstrapBrokerCache;
+        this.groupId = groupId;
+        this.pollLatencyMillis = metricsRegistry.histogram("kafka." + groupId + ".pollLatencyMillis");
+
+        // the role is only assumed on the first request of the client - not at all when the brokers are cached
         this.awsKafka = AWSKafkaClientBuilder.
                 standard().
                 withRegion(region).
-                withCredentials(new AWSSessionCredentialsProvider() {
-                    private volatile Credentials credentials;
-
-                    @Override
-                    public AWSSessionCredentials getCredentials() {
-                        if (credentials == null || credentials.getExpiration().before(new Date(System.currentTimeMillis() + TimeUnit.MINUTES.toMillis(1)))) {
-                            refresh();
-                        }
-                        if (credentials != null && !credentials.getExpiration().before(new Date())) {
-                            return new AWSSessionCredentials() {
-                                @Override
-                                public String getSessionToken() {
-                                    return credentials.getSessionToken();
-                                }
-
-                                @Override
-                                public String getAWSAccessKeyId() {
-                                    return credentials.getAccessKeyId();
-                                }
-
-                                @Override
-                                public String getAWSSecretKey() {
-                                    return credentials.getSecretAccessKey();
-                                }
-                            };
-                        } else {
-                            throw new RuntimeException("Credentials could not be obtained");
-                        }
-                    }
-
-                    @Override
-                    public void refresh() {
-                        AssumeRoleResult stsAssumeRoleResult = stsUtil.assumeRole(roleArn, externalId, roleAccessPolicyText, roleSessionName,  managedPolicyArnList);
-                        this.credentials = stsAssumeRoleResult.getCredentials();
-                    }
-                }).
+                withCredentials(AssumedRoleCredentialsCache.getProvider(stsUtil, roleArn, externalId, roleAccessPolicyText, roleSessionName, managedPolicyArnList)).
                 build();
 
+        this.kafkaConsumer = createConsumer(getBootstrapBrokers(clusterArn), groupId, recordDeserializer, mskIamConfig(region, awsAccessKeyId, awsSecretAccessKey, roleArn, externalId));
+    }
+
+    /**
+     * The consumer config for MSK IAM auth with the role - the auth library assumes the role for the consumer's
+     * connections.
+     */
+    public static Properties mskIamConfig(String region, String awsAccessKeyId, String awsSecretAccessKey, String roleArn, String externalId) {
+        Properties securityConfig = new Properties();
+        securityConfig.put("security.protocol", "SASL_SSL");
+        securityConfig.put("sasl.mechanism", "AWS_MSK_IAM");
+        securityConfig.put("sasl.client.callback.handler.class", "software.amazon.msk.auth.iam.IAMClientCallbackHandler");
+        securityConfig.put("sasl.jaas.config", "software.amazon.msk.auth.iam.IAMLoginModule required awsRoleArn=\""+roleArn+"\" awsRoleAccessKeyId=\""+awsAccessKeyId+"\" awsRoleSecretAccessKey=\""+awsSecretAccessKey+"\" awsRoleExternalId=\""+externalId+"\" awsRoleSessionName=\"KafkaConsumer"+UUID.randomUUID().toString()+"\"  awsStsRegion=\""+region+"\";");
+        return securityConfig;
+    }
+
+    /**
+     * A reader of the given brokers (a local broker, or a cluster whose brokers are already known) - the MSK bootstrap
+     * broker lookup and IAM auth are skipped.
+     *
+     * @param extraConfig additional consumer config - security.protocol / sasl.* for a secured cluster, auto.offset.reset
+     *                    ... - empty for a PLAINTEXT cluster with the consumer defaults
+     */
+    public KafkaReader(String bootstrapServers, String groupId, RecordDeserializer recordDeserializer, Properties extraConfig) {
+        this.bootstrapBrokerCache = null;
+        this.groupId = groupId;
+        this.pollLatencyMillis = metricsRegistry.histogram("kafka." + groupId + ".pollLatencyMillis");
+        this.awsKafka = null;
+        this.kafkaConsumer = createConsumer(bootstrapServers, groupId, recordDeserializer, extraConfig);
+    }
+
+    /**
+     * A reader of an existing consumer, e.g. a MockConsumer in the tests.
+     */
+    KafkaReader(Consumer kafkaConsumer, String groupId) {
+        this.bootstrapBrokerCache = null;
+        this.groupId = groupId;
+        this.pollLatencyMillis = metricsRegistry.histogram("kafka." + groupId + ".pollLatencyMillis");
+        this.awsKafka = null;
+        this.kafkaConsumer = kafkaConsumer;
+    }
+
+    private static KafkaConsumer createConsumer(String bootstrapServers, String groupId, RecordDeserializer recordDeserializer, Properties extraConfig) {
         Properties consumerConfig = new Properties();
         try {
             consumerConfig.put("client.id", InetAddress.getLocalHost().getHostName());
-            consumerConfig.put("group.id", "foo");
-            consumerConfig.put("bootstrap.servers", getBootstrapBrokers(clusterArn));
-            consumerConfig.put("security.protocol", "SASL_SSL");
-            consumerConfig.put("sasl.mechanism", "AWS_MSK_IAM");
-            consumerConfig.put("sasl.client.callback.handler.class", "software.amazon.msk.auth.iam.IAMClientCallbackHandler");
-            consumerConfig.put("sasl.jaas.config", "software.amazon.msk.auth.iam.IAMLoginModule required awsRoleArn=\""+roleArn+"\" awsRoleAccessKeyId=\""+awsAccessKeyId+"\" awsRoleSecretAccessKey=\""+awsSecretAccessKey+"\" awsRoleExternalId=\""+externalId+"\" awsRoleSessionName=\"KafkaConsumer"+UUID.randomUUID().toString()+"\"  awsStsRegion=\""+region+"\";");
-            consumerConfig.put("key.deserializer", "org.apache.kafka.common.serialization.StringDeserializer");
-            consumerConfig.put("value.deserializer", "org.apache.kafka.common.serialization.StringDeserializer");
+            consumerConfig.put("group.id", groupId);
+            consumerConfig.put("bootstrap.servers", bootstrapServers);
+            consumerConfig.putAll(extraConfig);
+            consumerConfig.put("key.deserializer", recordDeserializer.className);
+            consumerConfig.put("value.deserializer", recordDeserializer.className);
             logger.debug("creating new consumerClient");
-            kafkaConsumer = new KafkaConsumer(consumerConfig);
+            return new KafkaConsumer(consumerConfig);
         } catch (UnknownHostException e) {
             throw new RuntimeException("Unexpected exception in creating kafka consumer", e);
         }
     }
 
     public String getBootstrapBrokers(String clusterArn) {
+        if (awsKafka == null) {
+            throw new IllegalStateException("The reader was created with bootstrap servers, there is no MSK client");
+        }
+        if (bootstrapBrokerCache != null) {
+            String bootstrapBrokers = bootstrapBrokerCache.get(clusterArn);
+            if (bootstrapBrokers != null) {
+                logger.debug("using the cached bootstrap brokers of " + clusterArn);
+                return bootstrapBrokers;
+            }
+        }
         GetBootstrapBrokersRequest getBootstrapBrokersRequest = new GetBootstrapBrokersRequest().withClusterArn(clusterArn);
         GetBootstrapBrokersResult getBootstrapBrokersResult = awsKafka.getBootstrapBrokers(getBootstrapBrokersRequest);
-        return getBootstrapBrokersResult.getBootstrapBrokerStringSaslIam();
+        String bootstrapBrokers = getBootstrapBrokersResult.getBootstrapBrokerStringSaslIam();
+        if (bootstrapBrokerCache != null && bootstrapBrokers != null) {
+            bootstrapBrokerCache.put(clusterArn, bootstrapBrokers);
+        }
+        return bootstrapBrokers;
+    }
+
+    /**
+     * Names the reader's metrics kafka.&lt;metricsScope&gt;.&lt;topic&gt;.* and kafka.&lt;metricsScope&gt;.&lt;groupId&gt;.pollLatencyMillis
+     * instead of kafka.&lt;topic&gt;.* and kafka.&lt;groupId&gt;.pollLatencyMillis - the reader daemon scopes them by dataset,
+     * so two datasets of the same topic name have their own metrics. Set before the first poll.
+     */
+    public void setMetricsScope(String metricsScope) {
+        this.metricsScope = metricsScope;
+        this.pollLatencyMillis = metricsRegistry.histogram("kafka." + metricsScope + "." + groupId + ".pollLatencyMillis");
+    }
+
+    /**
+     * The name of the topic in the reader's metrics - the topic name, prefixed with the metrics scope if there is one.
+     */
+    String metricsTopicName(String topicName) {
+        return metricsScope == null ? topicName : metricsScope + "." + topicName;
+    }
+
+    /**
+     * Starts the partitions that are assigned / subscribed from now on at their first record at or after the timestamp (a
+     * partial replay) - partitions with a checkpoint still resume after it. A partition is positioned at the timestamp
+     * once, a partition that comes back after a rebalance resumes from the group's committed offset.
+     */
+    public void setStartTimestamp(long startTimestampMillis) {
+        this.startTimestampMillis = startTimestampMillis;
+    }
+
+    /**
+     * The partitions of the topic, from a metadata cache that is refreshed every METADATA_CACHE_TTL_MILLIS.
+     */
+    public List<PartitionInfo> partitionsFor(String topicName) {
+        long nowMillis = System.currentTimeMillis();
+        CachedPartitionList cachedPartitionList = partitionListCache.get(topicName);
+        if (cachedPartitionList == null || nowMillis - cachedPartitionList.fetchMillis >= METADATA_CACHE_TTL_MILLIS) {
+            List<PartitionInfo> partitionInfoList = kafkaConsumer.partitionsFor(topicName);
+            if (partitionInfoList == null) {
+                throw new RuntimeException("The topic " + topicName + " does not exist");
+            }
+            cachedPartitionList = new CachedPartitionList(partitionInfoList, nowMillis);
+            partitionListCache.put(topicName, cachedPartitionList);
+        }
+        return cachedPartitionList.partitionInfoList;
     }
 
     public Map<String, List<PartitionInfo>> listTopics() {
@@ -114,49 +216,314 @@ public class KafkaReader {
     }
 
     public void subscribe(String topicName) {
-        kafkaConsumer.subscribe(Arrays.asList(topicName));
+        subscribe(topicName, (CheckpointStore) null);
+    }
+
+    public void subscribe(String topicName, ConsumerRebalanceListener consumerRebalanceListener) {
+        subscribe(topicName, null, consumerRebalanceListener);
+    }
+
+    /**
+     * Subscribes to the topic - the partitions assigned by the group that have a checkpoint are positioned after their
+     * checkpointed offset, the others use the group's committed offsets.
+     */
+    public void subscribe(String topicName, CheckpointStore checkpointStore) {
+        subscribe(topicName, checkpointStore, null);
+    }
+
+    /**
+     * Subscribes to the topic like subscribe(topicName, checkpointStore) - the listener (if not null) is called after the
+     * assigned partitions have been positioned.
+     */
+    public void subscribe(String topicName, CheckpointStore checkpointStore, ConsumerRebalanceListener consumerRebalanceListener) {
+        if (checkpointStore == null && startTimestampMillis == null) {
+            if (consumerRebalanceListener == null) {
+                kafkaConsumer.subscribe(Arrays.asList(topicName));
+            } else {
+                kafkaConsumer.subscribe(Arrays.asList(topicName), consumerRebalanceListener);
+            }
+            return;
+        }
+
+        kafkaConsumer.subscribe(Arrays.asList(topicName), new ConsumerRebalanceListener() {
+            @Override
+            public void onPartitionsRevoked(Collection<TopicPartition> partitions) {
+                if (consumerRebalanceListener != null) {
+                    consumerRebalanceListener.onPartitionsRevoked(partitions);
+                }
+            }
+
+            @Override
+            public void onPartitionsAssigned(Collection<TopicPartition> partitions) {
+                seekToCheckpoints(partitions, checkpointStore, false);
+                if (consumerRebalanceListener != null) {
+                    consumerRebalanceListener.onPartitionsAssigned(partitions);
+                }
+            }
+        });
     }
 
     public ConsumerRecords pollTopic(long timeout) {
-        return kafkaConsumer.poll(timeout);
+        long startMillis = System.currentTimeMillis();
+        return recordPollMetrics(kafkaConsumer.poll(timeout), startMillis);
+    }
+
+    public ConsumerRecords poll(Duration timeout) {
+        long startMillis = System.currentTimeMillis();
+        return recordPollMetrics(kafkaConsumer.poll(timeout), startMillis);
+    }
+
+    private ConsumerRecords recordPollMetrics(ConsumerRecords consumerRecords, long startMillis) {
+        long nowMillis = System.currentTimeMillis();
+        pollLatencyMillis.record(nowMillis - startMillis);
+        // one metrics lookup per partition of the poll
+        for (Object partitionObject : consumerRecords.partitions()) {
+            TopicPartition topicPartition = (TopicPartition) partitionObject;
+            List<ConsumerRecord> recordList = consumerRecords.records(topicPartition);
+            long byteCount = 0;
+            for (ConsumerRecord consumerRecord : recordList) {
+                byteCount += Math.max(0, consumerRecord.serializedKeySize()) + Math.max(0, consumerRecord.serializedValueSize());
+            }
+            MetricsRegistry.PartitionMetrics partitionMetrics = metricsRegistry.getPartitionMetrics(metricsTopicName(topicPartition.topic()), topicPartition.partition());
+            partitionMetrics.records.mark(recordList.size());
+            partitionMetrics.compressedBytes.mark(byteCount);
+        }
+
+        if (nowMillis - lastLagUpdateMillis >= LAG_UPDATE_INTERVAL_MILLIS) {
+            lastLagUpdateMillis = nowMillis;
+            try {
+                lag(LAG_UPDATE_TIMEOUT);
+            } catch (TimeoutException ex) {
+                // the lag metrics keep their previous values until the next update
+                logger.debug("lag update timed out after " + LAG_UPDATE_TIMEOUT.toMillis() + " ms");
+            } catch (Exception ex) {
+                logger.error("lag update threw an exception ", ex);
+            }
+        }
+        return consumerRecords;
+    }
+
+    /**
+     * The lag of each assigned partition - the end offset minus the consumer position. Also updates the partition lag
+     * metrics.
+     */
+    public Map<TopicPartition, Long> lag() {
+        return lag(null);
+    }
+
+    /**
+     * @param timeout the longest wait for the end offsets (a TimeoutException after it), null for the consumer's default
+     *                api timeout
+     */
+    private Map<TopicPartition, Long> lag(Duration timeout) {
+        Map<TopicPartition, Long> lagMap = new HashMap<>();
+        Set<TopicPartition> assignment = kafkaConsumer.assignment();
+        if (assignment.isEmpty()) {
+            return lagMap;
+        }
+        Map<TopicPartition, Long> endOffsetMap = timeout == null ? kafkaConsumer.endOffsets(assignment) : kafkaConsumer.endOffsets(assignment, timeout);
+        for (TopicPartition topicPartition : assignment) {
+            Long endOffset = endOffsetMap.get(topicPartition);
+            long position = position(topicPartition);
+            if (endOffset == null || position == TopicOffsets.NO_OFFSET) {
+                continue;
+            }
+            long lag = Math.max(0, endOffset - position);
+            lagMap.put(topicPartition, lag);
+            metricsRegistry.getPartitionMetrics(metricsTopicName(topicPartition.topic()), topicPartition.partition()).lag.set(lag);
+        }
+        return lagMap;
     }
 
     public void commitSync() {
         kafkaConsumer.commitSync();
     }
 
+    public void commitSync(Map<TopicPartition, OffsetAndMetadata> offsets) {
+        kafkaConsumer.commitSync(offsets);
+    }
+
+    public void commitAsync(Map<TopicPartition, OffsetAndMetadata> offsets, OffsetCommitCallback callback) {
+        kafkaConsumer.commitAsync(offsets, callback);
+    }
+
+    public void pause(Collection<TopicPartition> topicPartitions) {
+        kafkaConsumer.pause(topicPartitions);
+    }
+
+    public void resume(Collection<TopicPartition> topicPartitions) {
+        kafkaConsumer.resume(topicPartitions);
+    }
+
+    /**
+     * Aborts a blocked poll - the only KafkaReader method that is safe to call from another thread.
+     */
+    public void wakeup() {
+        kafkaConsumer.wakeup();
+    }
+
+    public void close() {
+        kafkaConsumer.close();
+    }
+
     public Set<TopicPartition> assignments() {
         return kafkaConsumer.assignment();
     }
 
     public void assign(String topicName) {
+        assign(topicName, null);
+    }
+
+    /**
+     * Assigns all the partitions of the topic - partitions that have a checkpoint are positioned after their
+     * checkpointed offset, the others are positioned at the start timestamp if set, else at the beginning.
+     */
+    public void assign(String topicName, CheckpointStore checkpointStore) {
         Set<TopicPartition> topicPartitionSet = new HashSet<>();
-        List<PartitionInfo> partitionInfoList = kafkaConsumer.partitionsFor(topicName);
+        List<PartitionInfo> partitionInfoList = partitionsFor(topicName);
         for(PartitionInfo partitionInfo : partitionInfoList) {
             topicPartitionSet.add(new TopicPartition(topicName, partitionInfo.partition()));
         }
         kafkaConsumer.assign(topicPartitionSet);
-        kafkaConsumer.seekToBeginning(topicPartitionSet);
-    }
-
-    public Map<String, Map<Integer, Long>> positions() {
-        Map<String, Map<Integer, Long>> topicNamePartitionPositionMap = new HashMap<>();
-        Map<String, List<PartitionInfo>> topicPartitionInfoMap = listTopics();
-        for (String topic : topicPartitionInfoMap.keySet()) {
-            for (PartitionInfo topicPartitionInfo : topicPartitionInfoMap.get(topic)){
-                String topicName = topicPartitionInfo.topic();
-                int partition = topicPartitionInfo.partition();
-                TopicPartition topicPartition = new TopicPartition(topicName, partition);
-                long position = kafkaConsumer.position(topicPartition);
-                if (!topicNamePartitionPositionMap.containsKey(topicName)) {
-                    topicNamePartitionPositionMap.put(topicName, new HashMap<>());
-                }
-                Long existing = topicNamePartitionPositionMap.get(topicName).put(partition, position);
-                if (existing != null) {
-                    throw new RuntimeException("Unexpected duplicate entry for topic partition");
+        seekToCheckpoints(topicPartitionSet, checkpointStore, true);
+    }
+
+    /**
+     * Positions the partitions after their checkpoints - the others at the start timestamp (if set and not done before),
+     * else at the beginning if seekToBeginningWithoutCheckpoint, else they keep the group's committed offsets. The
+     * timestamp offsets are looked up with one batched offsetsForTimes call.
+     */
+    private void seekToCheckpoints(Collection<TopicPartition> topicPartitions, CheckpointStore checkpointStore, boolean seekToBeginningWithoutCheckpoint) {
+        List<TopicPartition> uncheckpointedPartitionList = new ArrayList<>();
+        for (TopicPartition topicPartition : topicPartitions) {
+            String checkpoint = checkpointStore == null ? null : checkpointStore.getCheckpoint(CheckpointStore.kafkaPartitionKey(topicPartition.topic(), topicPartition.partition()));
+            if (checkpoint != null) {
+                logger.debug("seeking " + topicPartition + " after checkpointed offset " + checkpoint);
+                kafkaConsumer.seek(topicPartition, Long.parseLong(checkpoint) + 1);
+            } else {
+                uncheckpointedPartitionList.add(topicPartition);
+            }
+        }
+        if (startTimestampMillis != null) {
+            Map<TopicPartition, Long> timestampMap = new HashMap<>();
+            for (TopicPartition topicPartition : uncheckpointedPartitionList) {
+                if (timestampStartedPartitionSet.add(topicPartition)) {
+                    timestampMap.put(topicPartition, startTimestampMillis);
                 }
             }
+            if (!timestampMap.isEmpty()) {
+                seekToTimestamp(timestampMap);
+            }
+            uncheckpointedPartitionList.removeAll(timestampMap.keySet());
+        }
+        if (seekToBeginningWithoutCheckpoint && !uncheckpointedPartitionList.isEmpty()) {
+            kafkaConsumer.seekToBeginning(uncheckpointedPartitionList);
+        }
+    }
+
+    private void seekToTimestamp(Map<TopicPartition, Long> timestampMap) {
+        Map<TopicPartition, OffsetAndTimestamp> offsetMap = kafkaConsumer.offsetsForTimes(timestampMap);
+        List<TopicPartition> endPartitionList = new ArrayList<>();
+        for (TopicPartition topicPartition : timestampMap.keySet()) {
+            OffsetAndTimestamp offsetAndTimestamp = offsetMap.get(topicPartition);
+            if (offsetAndTimestamp != null) {
+                logger.debug("seeking " + topicPartition + " to offset " + offsetAndTimestamp.offset() + " at timestamp " + startTimestampMillis);
+                kafkaConsumer.seek(topicPartition, offsetAndTimestamp.offset());
+            } else {
+                // no record at or after the timestamp yet
+                endPartitionList.add(topicPartition);
+            }
+        }
+        if (!endPartitionList.isEmpty()) {
+            kafkaConsumer.seekToEnd(endPartitionList);
+        }
+    }
+
+    /**
+     * The offsets of the topics of the current assignment (or subscription, before the first assignment).
+     */
+    public Map<String, TopicOffsets> offsets() {
+        Set<String> topicNameSet = new TreeSet<>();
+        Set<TopicPartition> assignment = kafkaConsumer.assignment();
+        for (TopicPartition topicPartition : assignment) {
+            topicNameSet.add(topicPartition.topic());
+        }
+        if (topicNameSet.isEmpty()) {
+            topicNameSet.addAll(kafkaConsumer.subscription());
+        }
+        return offsets(topicNameSet);
+    }
+
+    /**
+     * The beginning / end / committed offsets of every partition of the topics and the positions of the assigned
+     * partitions - a batched beginningOffsets, endOffsets and committed call for all the partitions (the partitions come
+     * from the metadata cache) instead of a call per partition. Also updates the partition lag metrics.
+     */
+    public Map<String, TopicOffsets> offsets(Collection<String> topicNames) {
+        Map<String, TopicOffsets> topicOffsetsMap = new LinkedHashMap<>();
+        Set<TopicPartition> topicPartitionSet = new HashSet<>();
+        for (String topicName : topicNames) {
+            List<PartitionInfo> partitionInfoList = partitionsFor(topicName);
+            int partitionCount = 0;
+            for (PartitionInfo partitionInfo : partitionInfoList) {
+                partitionCount = Math.max(partitionCount, partitionInfo.partition() + 1);
+                topicPartitionSet.add(new TopicPartition(topicName, partitionInfo.partition()));
+            }
+            topicOffsetsMap.put(topicName, new TopicOffsets(topicName, partitionCount));
+        }
+        if (topicPartitionSet.isEmpty()) {
+            return topicOffsetsMap;
+        }
+
+        Map<TopicPartition, Long> beginningOffsetMap = kafkaConsumer.beginningOffsets(topicPartitionSet);
+        Map<TopicPartition, Long> endOffsetMap = kafkaConsumer.endOffsets(topicPartitionSet);
+        Map<TopicPartition, OffsetAndMetadata> committedOffsetMap = kafkaConsumer.committed(topicPartitionSet);
+        Set<TopicPartition> assignment = kafkaConsumer.assignment();
+        for (TopicPartition topicPartition : topicPartitionSet) {
+            TopicOffsets topicOffsets = topicOffsetsMap.get(topicPartition.topic());
+            int partition = topicPartition.partition();
+            Long beginningOffset = beginningOffsetMap.get(topicPartition);
+            if (beginningOffset != null) {
+                topicOffsets.setBeginningOffset(partition, beginningOffset);
+            }
+            Long endOffset = endOffsetMap.get(topicPartition);
+            if (endOffset != null) {
+                topicOffsets.setEndOffset(partition, endOffset);
+            }
+            OffsetAndMetadata committedOffset = committedOffsetMap.get(topicPartition);
+            if (committedOffset != null) {
+                topicOffsets.setCommittedOffset(partition, committedOffset.offset());
+            }
+            if (assignment.contains(topicPartition)) {
+                topicOffsets.setPosition(partition, position(topicPartition));
+            }
+            long lag = topicOffsets.lag(partition);
+            if (lag != TopicOffsets.NO_OFFSET) {
+                metricsRegistry.getPartitionMetrics(metricsTopicName(topicPartition.topic()), partition).lag.set(lag);
+            }
+        }
+        return topicOffsetsMap;
+    }
+
+    /**
+     * @return the consumer position of the assigned partition, NO_OFFSET if it does not have one yet - the position is
+     * not fetched from the broker
+     */
+    private long position(TopicPartition topicPartition) {
+        try {
+            return kafkaConsumer.position(topicPartition, Duration.ZERO);
+        } catch (TimeoutException ex) {
+            return TopicOffsets.NO_OFFSET;
+        }
+    }
+
+    private static class CachedPartitionList {
+        private final List<PartitionInfo> partitionInfoList;
+        private final long fetchMillis;
+
+        private CachedPartitionList(List<PartitionInfo> partitionInfoList, long fetchMillis) {
+            this.partitionInfoList = partitionInfoList;
+            this.fetchMillis = fetchMillis;
         }
-        return topicNamePartitionPositionMap;
     }
 }
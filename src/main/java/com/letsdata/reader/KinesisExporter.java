@@ -0,0 +1,197 @@
+package com.letsdata.reader;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Writes the records of a ShardRecordSource to per shard, size-rolled files in an output directory.
+ *
+ * The shard readers only fetch and queue the compressed records. The calling thread routes each record to one of the
+ * writer lanes (by shard, so a shard's records stay in order) and each lane thread decodes and writes its shards' files,
+ * so decompression and file writes run in parallel with, and do not slow down, the network fetch.
+ *
+ * Formats:
+ * - GZ - the records' gzip members are written as is, each followed by a gzip member of a newline. The files are valid
+ *   gzip files of newline separated records (zcat) and nothing is decompressed.
+ * - JSONL - the records are decompressed and written one per line.
+ *
+ * The files are named &lt;streamName&gt;-&lt;runId&gt;-&lt;shardId&gt;-&lt;index&gt;.&lt;suffix&gt; - the run id (the export's start
+ * millis) keeps a rerun into the same directory from colliding with the files of an earlier run.
+ *
+ * With a {@link RecordDeduplicator} the records that have already been exported (replays) are skipped.
+ */
+public class KinesisExporter {
+    private static final Logger logger = LoggerFactory.getLogger(KinesisExporter.class);
+
+    public enum ExportFormat {
+        GZ("jsonl.gz"),
+        JSONL("jsonl");
+
+        private final String fileSuffix;
+
+        ExportFormat(String fileSuffix) {
+            this.fileSuffix = fileSuffix;
+        }
+    }
+
+    private static final int LANE_QUEUE_CAPACITY = 1000;
+    private static final int WRITE_BUFFER_SIZE = 256 * 1024;
+    private static final byte[] NEWLINE = {'\n'};
+    private static final byte[] GZIP_NEWLINE = gzip(NEWLINE);
+    private static final ShardRecord END_OF_RECORDS = new ShardRecord(null, null);
+
+    private final ShardRecordSource shardRecordSource;
+    private final BlockingQueue<ShardRecord> recordQueue;
+    private final String streamName;
+    private final String filePrefix;
+    private final File outputDirectory;
+    private final ExportFormat exportFormat;
+    private final long maxFileBytes;
+    private final List<WriterLane> writerLaneList = new ArrayList<>();
+    private final RecordDeduplicator recordDeduplicator;
+    private final MetricsRegistry.Meter duplicateRecords;
+    private final AtomicLong exportedRecordCount = new AtomicLong();
+    private final AtomicReference<Throwable> failure = new AtomicReference<>();
+
+    public KinesisExporter(ShardRecordSource shardRecordSource, BlockingQueue<ShardRecord> recordQueue, String streamName, File outputDirectory, ExportFormat exportFormat, long maxFileBytes, int laneCount) {
+        this(shardRecordSource, recordQueue, streamName, outputDirectory, exportFormat, maxFileBytes, laneCount, null);
+    }
+
+    public KinesisExporter(ShardRecordSource shardRecordSource, BlockingQueue<ShardRecord> recordQueue, String streamName, File outputDirectory, ExportFormat exportFormat, long maxFileBytes, int laneCount, RecordDeduplicator recordDeduplicator) {
+        this.recordDeduplicator = recordDeduplicator;
+        this.duplicateRecords = MetricsRegistry.getDefault().meter("kinesis." + streamName + ".duplicateRecords");
+        this.shardRecordSource = shardRecordSource;
+        this.recordQueue = recordQueue;
+        this.streamName = streamName;
+        this.filePrefix = streamName + "-" + System.currentTimeMillis();
+        this.outputDirectory = outputDirectory;
+        this.exportFormat = exportFormat;
+        this.maxFileBytes = maxFileBytes;
+        for (int i = 0; i < laneCount; i++) {
+            writerLaneList.add(new WriterLane(i));
+        }
+    }
+
+    /**
+     * Starts the source, exports until the source is done and closes the files.
+     *
+     * @return the number of exported records
+     */
+    public long run() throws InterruptedException {
+        if (!outputDirectory.isDirectory() && !outputDirectory.mkdirs()) {
+            throw new RuntimeException("Could not create the output directory " + outputDirectory);
+        }
+        for (WriterLane writerLane : writerLaneList) {
+            writerLane.thread.start();
+        }
+
+        try {
+            shardRecordSource.start();
+            while ((!shardRecordSource.isDone() || !recordQueue.isEmpty()) && failure.get() == null && shardRecordSource.getFailure() == null) {
+                ShardRecord shardRecord = recordQueue.poll(1, TimeUnit.SECONDS);
+                if (shardRecord != null) {
+                    writerLaneList.get((shardRecord.getShardId().hashCode() & 0x7fffffff) % writerLaneList.size()).queue.put(shardRecord);
+                }
+            }
+        } finally {
+            shardRecordSource.stop();
+            for (WriterLane writerLane : writerLaneList) {
+                writerLane.queue.put(END_OF_RECORDS);
+            }
+            for (WriterLane writerLane : writerLaneList) {
+                writerLane.thread.join();
+            }
+        }
+
+        if (shardRecordSource.getFailure() != null) {
+            throw new RuntimeException("Stream export failed", shardRecordSource.getFailure());
+        }
+        if (failure.get() != null) {
+            throw new RuntimeException("Stream export failed", failure.get());
+        }
+        return exportedRecordCount.get();
+    }
+
+    private class WriterLane implements Runnable {
+        private final BlockingQueue<ShardRecord> queue = new RingBuffer<>(LANE_QUEUE_CAPACITY);
+        private final Map<String, RollingFileWriter> shardWriterMap = new HashMap<>();
+        private final Thread thread;
+
+        private WriterLane(int index) {
+            this.thread = new Thread(this, "KinesisExporter-" + streamName + "-" + index);
+            this.thread.setDaemon(true);
+        }
+
+        @Override
+        public void run() {
+            GZipDecoder gZipDecoder = GZipDecoder.forCurrentThread();
+            try {
+                ShardRecord shardRecord;
+                // after a failure the lane keeps taking (and drops) records so the routing thread never blocks on it
+                while ((shardRecord = queue.take()) != END_OF_RECORDS) {
+                    if (failure.get() != null) {
+                        continue;
+                    }
+                    try {
+                        write(gZipDecoder, shardRecord);
+                    } catch (Exception ex) {
+                        logger.error(thread.getName() + " shardId " + shardRecord.getShardId() + " write threw an exception ", ex);
+                        failure.compareAndSet(null, ex);
+                    }
+                }
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+            } finally {
+                for (RollingFileWriter writer : shardWriterMap.values()) {
+                    try {
+                        writer.close();
+                    } catch (Exception ex) {
+                        failure.compareAndSet(null, ex);
+                    }
+                }
+            }
+        }
+
+        private void write(GZipDecoder gZipDecoder, ShardRecord shardRecord) {
+            if (recordDeduplicator != null && !recordDeduplicator.isFirst(CheckpointStore.kinesisShardKey(streamName, shardRecord.getShardId()), shardRecord.getRecord().getSequenceNumber(), shardRecord.getRecord().getData())) {
+                duplicateRecords.mark();
+                shardRecordSource.checkpoint(shardRecord);
+                return;
+            }
+            RollingFileWriter writer = shardWriterMap.computeIfAbsent(shardRecord.getShardId(), shardId -> new RollingFileWriter(outputDirectory, filePrefix + "-" + shardId, exportFormat.fileSuffix, maxFileBytes, WRITE_BUFFER_SIZE));
+            if (exportFormat == ExportFormat.GZ) {
+                writer.write(shardRecord.getRecord().getData());
+                writer.write(GZIP_NEWLINE, 0, GZIP_NEWLINE.length);
+            } else {
+                gZipDecoder.decode(shardRecord.getRecord().getData(), writer);
+                writer.write(NEWLINE, 0, NEWLINE.length);
+            }
+            writer.endRecord();
+            shardRecordSource.checkpoint(shardRecord);
+            exportedRecordCount.incrementAndGet();
+        }
+    }
+
+    private static byte[] gzip(byte[] bytes) {
+        ByteArrayOutputStream byteArrayOutputStream = new ByteArrayOutputStream();
+        try (GZIPOutputStream gzipOutputStream = new GZIPOutputStream(byteArrayOutputStream)) {
+            gzipOutputStream.write(bytes);
+        } catch (IOException ex) {
+            throw new RuntimeException(ex);
+        }
+        return byteArrayOutputStream.toByteArray();
+    }
+}
@@ -0,0 +1,442 @@
+package com.letsdata.reader;
+
+import com.amazonaws.auth.AWSCredentials;
+import com.amazonaws.auth.AWSCredentialsProvider;
+import com.amazonaws.auth.AWSSessionCredentials;
+import com.amazonaws.services.kinesis.model.Record;
+import com.amazonaws.services.kinesis.model.Shard;
+import com.amazonaws.services.kinesis.model.ShardIteratorType;
+import org.reactivestreams.Subscriber;
+import org.reactivestreams.Subscription;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import software.amazon.awssdk.auth.credentials.AwsCredentialsProvider;
+import software.amazon.awssdk.auth.credentials.AwsSessionCredentials;
+import software.amazon.awssdk.http.Protocol;
+import software.amazon.awssdk.http.nio.netty.Http2Configuration;
+import software.amazon.awssdk.http.nio.netty.NettyNioAsyncHttpClient;
+import software.amazon.awssdk.regions.Region;
+import software.amazon.awssdk.services.kinesis.KinesisAsyncClient;
+import software.amazon.awssdk.services.kinesis.model.ChildShard;
+import software.amazon.awssdk.services.kinesis.model.ConsumerDescription;
+import software.amazon.awssdk.services.kinesis.model.ConsumerStatus;
+import software.amazon.awssdk.services.kinesis.model.ResourceNotFoundException;
+import software.amazon.awssdk.services.kinesis.model.StartingPosition;
+import software.amazon.awssdk.services.kinesis.model.SubscribeToShardEvent;
+import software.amazon.awssdk.services.kinesis.model.SubscribeToShardEventStream;
+import software.amazon.awssdk.services.kinesis.model.SubscribeToShardResponseHandler;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Reads every shard of a stream with enhanced fan-out (SubscribeToShard) and hands the records to a shared bounded
+ * queue - the same record queue that the polling {@link KinesisStreamDrainer} feeds.
+ *
+ * Records are pushed over HTTP/2 as they arrive instead of being polled, and an enhanced fan-out consumer has its own
+ * 2 MB/sec per shard read throughput. Each shard requests one event at a time and only requests the next event once
+ * the current event's records are on the record queue (backpressure) - a full record queue is waited on for
+ * QUEUE_WAIT_MILLIS at a time and the rest of the event is queued from a retry task, so a slow consumer does not hold the
+ * reader's threads blocked. Kinesis ends each subscription after 5 minutes,
+ * the shard is then re-subscribed after the last continuation sequence number. Shards are scheduled by their
+ * {@link ShardGraph} lineage and checkpointed the same way as the polling reader.
+ */
+public class KinesisFanOutReader implements ShardRecordSource {
+    private static final Logger logger = LoggerFactory.getLogger(KinesisFanOutReader.class);
+
+    private static final long RESUBSCRIBE_BACKOFF_MILLIS = 1000;
+    private static final int MAX_CONSECUTIVE_SUBSCRIBE_FAILURES = 10;
+    private static final long CONSUMER_ACTIVE_POLL_MILLIS = 1000;
+    private static final int CONSUMER_ACTIVE_MAX_POLLS = 120;
+    // a full record queue is waited on this long before the event's delivery gives its thread back and retries after the delay
+    private static final long QUEUE_WAIT_MILLIS = 10;
+    private static final long QUEUE_RETRY_DELAY_MILLIS = 50;
+
+    private final KinesisAsyncClient kinesisAsyncClient;
+    private final KinesisReader kinesisReader;
+    private final String streamName;
+    private final String streamArn;
+    private final String consumerName;
+    private final ShardIteratorType shardIteratorType;
+    private final boolean stopWhenCaughtUp;
+    private final BlockingQueue<ShardRecord> recordQueue;
+    private final ShardCheckpointer shardCheckpointer;
+    private final ScheduledExecutorService executorService;
+    private final ShardGraph shardGraph = new ShardGraph();
+    private final AtomicInteger activeShardCount = new AtomicInteger();
+    private final AtomicReference<Throwable> failure = new AtomicReference<>();
+    private volatile boolean stopped;
+    private volatile String consumerArn;
+
+    /**
+     * @param kinesisAsyncClient the sdk v2 client for the subscriptions, see {@link #createKinesisAsyncClient(String, AWSCredentialsProvider)}
+     * @param kinesisReader the polling reader - used to list the shards
+     */
+    public KinesisFanOutReader(KinesisAsyncClient kinesisAsyncClient, KinesisReader kinesisReader, String streamName, String streamArn, String consumerName, ShardIteratorType shardIteratorType, boolean stopWhenCaughtUp, int threadCount, BlockingQueue<ShardRecord> recordQueue, CheckpointStore checkpointStore) {
+        this.kinesisAsyncClient = kinesisAsyncClient;
+        this.kinesisReader = kinesisReader;
+        this.streamName = streamName;
+        this.streamArn = streamArn;
+        this.consumerName = consumerName;
+        this.shardIteratorType = shardIteratorType;
+        this.stopWhenCaughtUp = stopWhenCaughtUp;
+        this.recordQueue = recordQueue;
+        this.shardCheckpointer = new ShardCheckpointer(streamName, checkpointStore);
+        this.executorService = new ScheduledThreadPoolExecutor(threadCount, runnable -> {
+            Thread thread = new Thread(runnable, "KinesisFanOutReader-" + streamName);
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * Creates an sdk v2 async client that uses the (sdk v1) assumed role credentials provider. Every subscription is
+     * an HTTP/2 stream, so the client's concurrency is not capped at the sdk default of 50.
+     */
+    public static KinesisAsyncClient createKinesisAsyncClient(String region, AWSCredentialsProvider credentialsProvider) {
+        AwsCredentialsProvider awsCredentialsProvider = () -> {
+            AWSCredentials credentials = credentialsProvider.getCredentials();
+            return AwsSessionCredentials.create(credentials.getAWSAccessKeyId(), credentials.getAWSSecretKey(), ((AWSSessionCredentials) credentials).getSessionToken());
+        };
+        return KinesisAsyncClient.builder().
+                region(Region.of(region)).
+                credentialsProvider(awsCredentialsProvider).
+                httpClientBuilder(NettyNioAsyncHttpClient.builder().
+                        maxConcurrency(Integer.MAX_VALUE).
+                        protocol(Protocol.HTTP2).
+                        http2Configuration(Http2Configuration.builder().
+                                initialWindowSize(512 * 1024).
+                                healthCheckPingPeriod(Duration.ofSeconds(10)).
+                                build())).
+                build();
+    }
+
+    @Override
+    public void start() {
+        consumerArn = registerConsumer();
+        List<Shard> shardList = kinesisReader.listShards(streamName, null, null);
+        List<String> readyShardIds = shardGraph.addShards(shardList, shardIteratorType == ShardIteratorType.LATEST);
+        logger.debug(streamName + " starting fan-out read of " + readyShardIds.size() + " of " + shardList.size() + " shards with consumer " + consumerArn);
+        startShards(readyShardIds, shardIteratorType);
+    }
+
+    @Override
+    public void checkpoint(ShardRecord shardRecord) {
+        shardCheckpointer.checkpoint(shardRecord);
+    }
+
+    @Override
+    public boolean isDone() {
+        return activeShardCount.get() == 0;
+    }
+
+    @Override
+    public Throwable getFailure() {
+        return failure.get();
+    }
+
+    @Override
+    public void stop() {
+        stopped = true;
+        executorService.shutdownNow();
+    }
+
+    /**
+     * @return the arn of the stream's enhanced fan-out consumer, registering the consumer if it does not exist
+     */
+    private String registerConsumer() {
+        ConsumerDescription consumerDescription;
+        try {
+            consumerDescription = kinesisAsyncClient.describeStreamConsumer(builder -> builder.streamARN(streamArn).consumerName(consumerName)).join().consumerDescription();
+        } catch (CompletionException ex) {
+            if (!(ex.getCause() instanceof ResourceNotFoundException)) {
+                logger.error(streamName + " describeStreamConsumer threw an exception ", ex.getCause());
+                throw new RuntimeException(ex.getCause());
+            }
+            logger.debug(streamName + " registering stream consumer " + consumerName);
+            consumerDescription = null;
+            kinesisAsyncClient.registerStreamConsumer(builder -> builder.streamARN(streamArn).consumerName(consumerName)).join();
+        }
+
+        for (int pollCount = 0; consumerDescription == null || consumerDescription.consumerStatus() != ConsumerStatus.ACTIVE; pollCount++) {
+            if (pollCount >= CONSUMER_ACTIVE_MAX_POLLS) {
+                throw new RuntimeException("Stream consumer " + consumerName + " did not become active");
+            }
+            try {
+                Thread.sleep(CONSUMER_ACTIVE_POLL_MILLIS);
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+                throw new RuntimeException(ex);
+            }
+            consumerDescription = kinesisAsyncClient.describeStreamConsumer(builder -> builder.streamARN(streamArn).consumerName(consumerName)).join().consumerDescription();
+        }
+        return consumerDescription.consumerARN();
+    }
+
+    private void startShards(List<String> shardIds, ShardIteratorType startingShardIteratorType) {
+        for (String shardId : shardIds) {
+            activeShardCount.incrementAndGet();
+            ShardSubscription shardSubscription = new ShardSubscription(shardId, startingShardIteratorType);
+            executorService.execute(shardSubscription::start);
+        }
+    }
+
+    private void onShardEnd(String shardId, List<ChildShard> childShardList) {
+        List<Shard> childList = new ArrayList<>();
+        for (ChildShard childShard : childShardList) {
+            List<String> parentShardIds = childShard.parentShards();
+            childList.add(new Shard().
+                    withShardId(childShard.shardId()).
+                    withParentShardId(parentShardIds.isEmpty() ? null : parentShardIds.get(0)).
+                    withAdjacentParentShardId(parentShardIds.size() < 2 ? null : parentShardIds.get(1)));
+        }
+        shardGraph.addShards(childList, false);
+        List<String> readyShardIds = shardGraph.markFinished(shardId);
+        if (readyShardIds.isEmpty() && !shardGraph.hasChildren(shardId)) {
+            logger.debug(streamName + " shardId " + shardId + " ended with no known children, re-listing shards");
+            readyShardIds = shardGraph.addShards(kinesisReader.listShards(streamName, null, null), false);
+        }
+        // children are read from their start since the parents have been read to SHARD_END
+        startShards(readyShardIds, ShardIteratorType.TRIM_HORIZON);
+    }
+
+    /**
+     * The record data is a read only view of the event's bytes, not a copy - it has no accessible array, the record
+     * consumers check hasArray() and copy such data (e.g. into the GZipDecoder's reused input buffer).
+     */
+    private static Record toRecord(software.amazon.awssdk.services.kinesis.model.Record kinesisRecord) {
+        return new Record().
+                withSequenceNumber(kinesisRecord.sequenceNumber()).
+                withPartitionKey(kinesisRecord.partitionKey()).
+                withApproximateArrivalTimestamp(kinesisRecord.approximateArrivalTimestamp() == null ? null : Date.from(kinesisRecord.approximateArrivalTimestamp())).
+                withData(kinesisRecord.data().asByteBuffer());
+    }
+
+    /**
+     * The subscriptions of a shard. Events and subscription completions are processed one at a time, in order, on the
+     * reader's executor.
+     */
+    private class ShardSubscription {
+        private final String shardId;
+        private final ShardIteratorType startingShardIteratorType;
+        private final MetricsRegistry.ShardMetrics shardMetrics;
+        private String continuationSequenceNumber;
+        private String lastQueuedSequenceNumber;
+        private int consecutiveFailureCount;
+        private boolean finished;
+        private CompletableFuture<Void> processing = CompletableFuture.completedFuture(null);
+
+        private ShardSubscription(String shardId, ShardIteratorType startingShardIteratorType) {
+            this.shardId = shardId;
+            this.startingShardIteratorType = startingShardIteratorType;
+            this.shardMetrics = MetricsRegistry.getDefault().getShardMetrics(streamName, shardId);
+        }
+
+        private void start() {
+            String checkpoint = shardCheckpointer.getCheckpoint(shardId);
+            if (CheckpointStore.SHARD_END.equals(checkpoint)) {
+                logger.debug(streamName + " shardId " + shardId + " is checkpointed at SHARD_END");
+                finish();
+                try {
+                    onShardEnd(shardId, new ArrayList<>());
+                } catch (Exception ex) {
+                    onFailure(ex);
+                }
+                return;
+            }
+            continuationSequenceNumber = checkpoint;
+            subscribe();
+        }
+
+        private void subscribe() {
+            if (stopped) {
+                finish();
+                return;
+            }
+
+            StartingPosition startingPosition = continuationSequenceNumber != null ?
+                    StartingPosition.builder().type(ShardIteratorType.AFTER_SEQUENCE_NUMBER.toString()).sequenceNumber(continuationSequenceNumber).build() :
+                    StartingPosition.builder().type(startingShardIteratorType.toString()).build();
+            SubscribeToShardResponseHandler responseHandler = SubscribeToShardResponseHandler.builder().
+                    onError(ex -> logger.debug(streamName + " shardId " + shardId + " subscription error " + ex)).
+                    subscriber(EventSubscriber::new).
+                    build();
+
+            logger.debug(streamName + " shardId " + shardId + " subscribing at " + startingPosition);
+            kinesisAsyncClient.subscribeToShard(builder -> builder.consumerARN(consumerArn).shardId(shardId).startingPosition(startingPosition), responseHandler).
+                    whenComplete((result, ex) -> enqueue(() -> onSubscriptionComplete(ex)));
+        }
+
+        private synchronized void enqueue(Runnable runnable) {
+            processing = processing.thenRunAsync(() -> {
+                try {
+                    runnable.run();
+                } catch (Exception ex) {
+                    onFailure(ex);
+                }
+            }, executorService);
+        }
+
+        /**
+         * Processes an event after the events and subscription completions enqueued before it - the next one is processed
+         * only once the event's records are on the record queue.
+         */
+        private synchronized void enqueueEvent(SubscribeToShardEvent event, Subscription subscription) {
+            processing = processing.thenComposeAsync(result -> {
+                CompletableFuture<Void> delivered = new CompletableFuture<>();
+                onEvent(event, subscription, 0, delivered);
+                return delivered;
+            }, executorService);
+        }
+
+        /**
+         * Queues the event's records from the queuedRecordCount'th on - when the record queue stays full, the rest of the
+         * event is queued by a task scheduled after QUEUE_RETRY_DELAY_MILLIS.
+         */
+        private void onEvent(SubscribeToShardEvent event, Subscription subscription, int queuedRecordCount, CompletableFuture<Void> delivered) {
+            boolean retrying = false;
+            try {
+                if (finished) {
+                    return;
+                }
+                List<software.amazon.awssdk.services.kinesis.model.Record> kinesisRecordList = event.records();
+                for (; queuedRecordCount < kinesisRecordList.size(); queuedRecordCount++) {
+                    software.amazon.awssdk.services.kinesis.model.Record kinesisRecord = kinesisRecordList.get(queuedRecordCount);
+                    Record record = toRecord(kinesisRecord);
+                    if (!recordQueue.offer(new ShardRecord(shardId, record), QUEUE_WAIT_MILLIS, TimeUnit.MILLISECONDS)) {
+                        if (stopped) {
+                            subscription.cancel();
+                            finish();
+                            return;
+                        }
+                        int retryRecordCount = queuedRecordCount;
+                        executorService.schedule(() -> onEvent(event, subscription, retryRecordCount, delivered), QUEUE_RETRY_DELAY_MILLIS, TimeUnit.MILLISECONDS);
+                        // the retry completes the delivery
+                        retrying = true;
+                        return;
+                    }
+                    shardMetrics.records.mark();
+                    shardMetrics.compressedBytes.mark(record.getData().remaining());
+                    lastQueuedSequenceNumber = kinesisRecord.sequenceNumber();
+                }
+                onEventQueued(event, subscription);
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+                subscription.cancel();
+                finish();
+            } catch (Exception ex) {
+                // e.g. the retry rejected by the executor of a stopped reader
+                subscription.cancel();
+                onFailure(ex);
+            } finally {
+                if (!retrying) {
+                    delivered.complete(null);
+                }
+            }
+        }
+
+        private void onEventQueued(SubscribeToShardEvent event, Subscription subscription) {
+            consecutiveFailureCount = 0;
+
+            if (event.continuationSequenceNumber() == null) {
+                logger.debug(streamName + " shardId " + shardId + " reached SHARD_END");
+                subscription.cancel();
+                shardCheckpointer.shardEnded(shardId, lastQueuedSequenceNumber);
+                finish();
+                try {
+                    onShardEnd(shardId, event.childShards());
+                } catch (Exception ex) {
+                    onFailure(ex);
+                }
+                return;
+            }
+            continuationSequenceNumber = event.continuationSequenceNumber();
+
+            Long millisBehindLatest = event.millisBehindLatest();
+            if (millisBehindLatest != null) {
+                shardMetrics.millisBehindLatest.set(millisBehindLatest);
+            }
+            if (stopWhenCaughtUp && millisBehindLatest != null && millisBehindLatest == 0) {
+                logger.debug(streamName + " shardId " + shardId + " caught up with the tip of the stream");
+                subscription.cancel();
+                finish();
+                return;
+            }
+            subscription.request(1);
+        }
+
+        private void onSubscriptionComplete(Throwable ex) {
+            if (finished) {
+                return;
+            }
+            if (stopped) {
+                finish();
+                return;
+            }
+            if (ex == null) {
+                // kinesis ends every subscription after 5 minutes
+                subscribe();
+                return;
+            }
+
+            consecutiveFailureCount++;
+            if (consecutiveFailureCount > MAX_CONSECUTIVE_SUBSCRIBE_FAILURES) {
+                onFailure(ex);
+                return;
+            }
+            logger.debug(streamName + " shardId " + shardId + " subscription failed, re-subscribing " + ex);
+            executorService.schedule(this::subscribe, RESUBSCRIBE_BACKOFF_MILLIS * consecutiveFailureCount, TimeUnit.MILLISECONDS);
+        }
+
+        private void onFailure(Throwable ex) {
+            logger.error(streamName + " shardId " + shardId + " fan-out read threw an exception ", ex);
+            failure.compareAndSet(null, ex);
+            finish();
+        }
+
+        private void finish() {
+            if (!finished) {
+                finished = true;
+                activeShardCount.decrementAndGet();
+            }
+        }
+
+        private class EventSubscriber implements Subscriber<SubscribeToShardEventStream> {
+            private Subscription subscription;
+
+            @Override
+            public void onSubscribe(Subscription subscription) {
+                this.subscription = subscription;
+                subscription.request(1);
+            }
+
+            @Override
+            public void onNext(SubscribeToShardEventStream eventStream) {
+                if (eventStream instanceof SubscribeToShardEvent) {
+                    enqueueEvent((SubscribeToShardEvent) eventStream, subscription);
+                } else {
+                    subscription.request(1);
+                }
+            }
+
+            @Override
+            public void onError(Throwable ex) {
+                // handled when the subscribeToShard future completes
+            }
+
+            @Override
+            public void onComplete() {
+            }
+        }
+    }
+}
@@ -1,79 +1,70 @@
 package com.letsdata.reader;
 
-import com.amazonaws.auth.AWSSessionCredentials;
-import com.amazonaws.auth.AWSSessionCredentialsProvider;
+import com.amazonaws.AmazonWebServiceRequest;
+import com.amazonaws.auth.AWSCredentialsProvider;
+import com.amazonaws.client.builder.AwsClientBuilder;
 import com.amazonaws.services.kinesis.AmazonKinesis;
 import com.amazonaws.services.kinesis.AmazonKinesisClientBuilder;
 import com.amazonaws.services.kinesis.model.*;
-import com.amazonaws.services.securitytoken.model.AssumeRoleResult;
-import com.amazonaws.services.securitytoken.model.Credentials;
+import com.amazonaws.services.kinesis.model.Record;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.util.ArrayList;
 import java.util.Date;
 import java.util.List;
-import java.util.concurrent.TimeUnit;
 
 public class KinesisReader {
     private static final Logger logger = LoggerFactory.getLogger(KinesisReader.class);
 
-    private final STSUtil stsUtil;
+    // the max records a getRecords call can return
+    private static final int MAX_GET_RECORDS_LIMIT = 10000;
+
     private final AmazonKinesis amazonKinesis;
-    private final String roleArn;
-    private final String externalId;
-    private final String roleAccessPolicyText;
-    private final String roleSessionName;
-    private final List<String> managedPolicyArnList;
+    // when set, each request carries these credentials instead of the client's
+    private final AWSCredentialsProvider requestCredentialsProvider;
 
     public KinesisReader(String region, STSUtil stsUtil, String roleArn, String externalId, String roleAccessPolicyText, String roleSessionName, List<String> managedPolicyArnList) {
-        this.stsUtil = stsUtil;
-        this.roleArn = roleArn;
-        this.externalId = externalId;
-        this.roleAccessPolicyText = roleAccessPolicyText;
-        this.roleSessionName = roleSessionName;
-        this.managedPolicyArnList = managedPolicyArnList;
-
-        this.amazonKinesis = AmazonKinesisClientBuilder.
+        this(AmazonKinesisClientBuilder.
                 standard().
                 withRegion(region).
-                withCredentials(new AWSSessionCredentialsProvider() {
-                    private volatile Credentials credentials;
-
-                    @Override
-                    public AWSSessionCredentials getCredentials() {
-                        if (credentials == null || credentials.getExpiration().before(new Date(System.currentTimeMillis() + TimeUnit.MINUTES.toMillis(1)))) {
-                            refresh();
-                        }
-                        if (credentials != null && !credentials.getExpiration().before(new Date())) {
-                            return new AWSSessionCredentials() {
-                                @Override
-                                public String getSessionToken() {
-                                    return credentials.getSessionToken();
-                                }
-
-                                @Override
-                                public String getAWSAccessKeyId() {
-                                    return credentials.getAccessKeyId();
-                                }
-
-                                @Override
-                                public String getAWSSecretKey() {
-                                    return credentials.getSecretAccessKey();
-                                }
-                            };
-                        } else {
-                            throw new RuntimeException("Credentials could not be obtained");
-                        }
-                    }
-
-                    @Override
-                    public void refresh() {
-                        AssumeRoleResult stsAssumeRoleResult = stsUtil.assumeRole(roleArn, externalId, roleAccessPolicyText, roleSessionName,  managedPolicyArnList);
-                        this.credentials = stsAssumeRoleResult.getCredentials();
-                    }
-                }).
-                build();
+                withCredentials(AssumedRoleCredentialsCache.getProvider(stsUtil, roleArn, externalId, roleAccessPolicyText, roleSessionName, managedPolicyArnList)).
+                build(), null);
+    }
+
+    /**
+     * A reader of a kinesis compatible endpoint (a local stand-in such as kinesalite / localstack, or a VPC endpoint)
+     * with the given credentials - no role is assumed.
+     */
+    public KinesisReader(String region, String endpointUrl, AWSCredentialsProvider credentialsProvider) {
+        this(AmazonKinesisClientBuilder.
+                standard().
+                withEndpointConfiguration(new AwsClientBuilder.EndpointConfiguration(endpointUrl, region)).
+                withCredentials(credentialsProvider).
+                build(), null);
+    }
+
+    /**
+     * A reader of the given client - an in-process fake in the local harness, or a client configured by the caller.
+     */
+    public KinesisReader(AmazonKinesis amazonKinesis) {
+        this(amazonKinesis, null);
+    }
+
+    /**
+     * A reader of a client shared by many readers (one per region in the reader daemon) - the requests of this reader are
+     * signed with the requestCredentialsProvider, e.g. its dataset's assumed role session.
+     */
+    public KinesisReader(AmazonKinesis sharedAmazonKinesis, AWSCredentialsProvider requestCredentialsProvider) {
+        this.amazonKinesis = sharedAmazonKinesis;
+        this.requestCredentialsProvider = requestCredentialsProvider;
+    }
+
+    private <T extends AmazonWebServiceRequest> T withRequestCredentials(T request) {
+        if (requestCredentialsProvider != null) {
+            request.setRequestCredentialsProvider(requestCredentialsProvider);
+        }
+        return request;
     }
 
     public DescribeStreamResult describeStream(String streamName, String exclusiveStartShardId) {
@@ -82,7 +73,7 @@ public class KinesisReader {
         if (exclusiveStartShardId != null) {
             describeStreamRequest.setExclusiveStartShardId(exclusiveStartShardId);
         }
-        return amazonKinesis.describeStream(describeStreamRequest);
+        return amazonKinesis.describeStream(withRequestCredentials(describeStreamRequest));
     }
 
     public List<Shard> listShards(String streamName, Date streamCreationTimestamp, String startToken) {
@@ -105,7 +96,7 @@ public class KinesisReader {
             ListShardsResult listShardsResult = null;
             try {
                 logger.debug("Executing listShards iteration");
-                listShardsResult = amazonKinesis.listShards(listShardsRequest);
+                listShardsResult = amazonKinesis.listShards(withRequestCredentials(listShardsRequest));
                 logger.debug("Completed listShards iteration");
             } catch (Exception ex) {
                 logger.error(streamName + " listShards threw an exception ", ex.getCause());
@@ -135,7 +126,7 @@ public class KinesisReader {
         GetShardIteratorResult getShardIteratorResult = null;
         try {
             logger.debug("Executing getShardIterator");
-            getShardIteratorResult = amazonKinesis.getShardIterator(getShardIteratorRequest);
+            getShardIteratorResult = amazonKinesis.getShardIterator(withRequestCredentials(getShardIteratorRequest));
             logger.debug("Completed getShardIterator");
         } catch (Exception ex) {
             logger.error("shardId " + shardId+ " getShardIterator threw an exception ", ex.getCause());
@@ -146,20 +137,56 @@ public class KinesisReader {
     }
 
     public GetRecordsResult getRecords(Integer limit, String shardIterator) {
-        int recordLimit = limit == null ? 1000 : Math.min(1000, limit);
+        return getRecords(limit, shardIterator, null);
+    }
+
+    /**
+     * getRecords that records the call latency, the records / compressed bytes read, the MillisBehindLatest and the
+     * throttled calls of the shard in the shardMetrics (when not null).
+     */
+    public GetRecordsResult getRecords(Integer limit, String shardIterator, MetricsRegistry.ShardMetrics shardMetrics) {
+        int recordLimit = limit == null ? 1000 : Math.min(MAX_GET_RECORDS_LIMIT, limit);
 
         GetRecordsRequest getRecordsRequest = new GetRecordsRequest();
         getRecordsRequest.setLimit(recordLimit);
         getRecordsRequest.setShardIterator(shardIterator);
 
         GetRecordsResult getRecordsResult = null;
+        long startMillis = System.currentTimeMillis();
         try {
             logger.debug("Executing getRecords");
-            getRecordsResult = amazonKinesis.getRecords(getRecordsRequest);
+            getRecordsResult = amazonKinesis.getRecords(withRequestCredentials(getRecordsRequest));
             logger.debug("Completed getRecords");
         } catch (Exception ex) {
-            logger.error("shardIterator " + shardIterator + " getRecords threw an exception ", ex.getCause());
+            if (ex instanceof ProvisionedThroughputExceededException || ex instanceof ExpiredIteratorException) {
+                // expected while reading at the shard limits - the shard readers back off / renew the iterator
+                if (shardMetrics != null && ex instanceof ProvisionedThroughputExceededException) {
+                    shardMetrics.throttled.mark();
+                }
+                logger.debug("shardIterator " + shardIterator + " getRecords threw " + ex.getClass().getSimpleName());
+            } else {
+                logger.error("shardIterator " + shardIterator + " getRecords threw an exception ", ex.getCause());
+            }
             throw new RuntimeException(ex);
+        } finally {
+            if (shardMetrics != null) {
+                long latencyMillis = System.currentTimeMillis() - startMillis;
+                shardMetrics.getRecordsLatencyMillis.record(latencyMillis);
+                shardMetrics.streamGetRecordsLatencyMillis.record(latencyMillis);
+            }
+        }
+
+        if (shardMetrics != null) {
+            List<Record> recordList = getRecordsResult.getRecords();
+            long compressedBytes = 0;
+            for (int i = 0; i < recordList.size(); i++) {
+                compressedBytes += recordList.get(i).getData().remaining();
+            }
+            shardMetrics.records.mark(recordList.size());
+            shardMetrics.compressedBytes.mark(compressedBytes);
+            if (getRecordsResult.getMillisBehindLatest() != null) {
+                shardMetrics.millisBehindLatest.set(getRecordsResult.getMillisBehindLatest());
+            }
         }
         return getRecordsResult;
     }
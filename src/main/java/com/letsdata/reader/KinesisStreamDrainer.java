@@ -0,0 +1,419 @@
+package com.letsdata.reader;
+
+import com.amazonaws.services.kinesis.model.ExpiredIteratorException;
+import com.amazonaws.services.kinesis.model.GetRecordsResult;
+import com.amazonaws.services.kinesis.model.LimitExceededException;
+import com.amazonaws.services.kinesis.model.ProvisionedThroughputExceededException;
+import com.amazonaws.services.kinesis.model.Record;
+import com.amazonaws.services.kinesis.model.Shard;
+import com.amazonaws.services.kinesis.model.ShardIteratorType;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Reads every shard of a stream in parallel and hands the records to a shared bounded queue.
+ *
+ * Shards are scheduled using the stream's {@link ShardGraph} - a child shard is started only once its parents have
+ * reached SHARD_END, and the shards are re-listed when a shard ends before its children are known (a reshard during
+ * the read). This keeps the per partition key order across splits and merges.
+ *
+ * With a CheckpointStore, each shard resumes AFTER_SEQUENCE_NUMBER of its checkpoint and shards checkpointed at
+ * SHARD_END are not re-read.
+ *
+ * With a time window (AT_TIMESTAMP startTimestamp and an endTimestamp), every shard, including the child shards, starts at
+ * the startTimestamp and stops at its first record that arrived after the endTimestamp.
+ *
+ * Each shard is a small task that does one getRecords call and then reschedules itself, so a thread pool that is
+ * smaller than the shard count still serves every shard. A full record queue blocks the shard tasks (backpressure).
+ * The getRecords limit and the delay between the calls of a shard come from its {@link AdaptiveShardPacer} - throttled
+ * calls are retried after a backoff and an expired iterator is renewed after the last fetched record - or, before the
+ * first record, at the time the shard's LATEST iterator was created (AT_TIMESTAMP), so the records that arrived in
+ * between are not skipped. On a shared scheduler (the reader daemon) a shard task does not block on a full queue - it
+ * gives its thread back to the other datasets and retries after a delay.
+ *
+ * A shard's fetch and the queueing of its records are separate tasks. With a readAheadDepth, the next getRecords call of a
+ * shard is made (at the pacer's delay, so the shard read limits still hold) while the previous batches are still being
+ * queued - up to readAheadDepth batches per shard and, across all the shards, a quarter of the heap - which hides the
+ * getRecords latency when the record consumers are the bottleneck.
+ */
+public class KinesisStreamDrainer implements ShardRecordSource {
+    private static final Logger logger = LoggerFactory.getLogger(KinesisStreamDrainer.class);
+
+    // the fetched but not yet queued records of all the shards are kept within this share of the heap
+    private static final long MAX_READ_AHEAD_BYTES = Runtime.getRuntime().maxMemory() / 4;
+    // on a shared scheduler, a full record queue is waited on this long before the deliver task gives its thread back and
+    // retries after the delay
+    private static final long QUEUE_WAIT_MILLIS = 10;
+    private static final long QUEUE_RETRY_DELAY_MILLIS = 50;
+
+    private final KinesisReader kinesisReader;
+    private final String streamName;
+    private final ShardIteratorType shardIteratorType;
+    private final boolean stopWhenCaughtUp;
+    private final Date startTimestamp;
+    private final Date endTimestamp;
+    private final int readAheadDepth;
+    private final BlockingQueue<ShardRecord> recordQueue;
+    private MetricsRegistry.Gauge readAheadBytes;
+    private final ShardCheckpointer shardCheckpointer;
+    private final ScheduledExecutorService executorService;
+    private final boolean ownsExecutorService;
+    private final ShardGraph shardGraph = new ShardGraph();
+    private final AtomicInteger activeShardCount = new AtomicInteger();
+    private final AtomicReference<Throwable> failure = new AtomicReference<>();
+    private final AtomicLong readAheadByteCount = new AtomicLong();
+    private String metricsStreamName;
+    private volatile boolean stopped;
+
+    public KinesisStreamDrainer(KinesisReader kinesisReader, String streamName, ShardIteratorType shardIteratorType, boolean stopWhenCaughtUp, int threadCount, BlockingQueue<ShardRecord> recordQueue, CheckpointStore checkpointStore) {
+        this(kinesisReader, streamName, shardIteratorType, null, null, stopWhenCaughtUp, threadCount, recordQueue, checkpointStore);
+    }
+
+    /**
+     * @param startTimestamp the AT_TIMESTAMP shardIteratorType timestamp, null for the other iterator types
+     * @param endTimestamp   shards stop at their first record that arrived after this time, null to not stop
+     */
+    public KinesisStreamDrainer(KinesisReader kinesisReader, String streamName, ShardIteratorType shardIteratorType, Date startTimestamp, Date endTimestamp, boolean stopWhenCaughtUp, int threadCount, BlockingQueue<ShardRecord> recordQueue, CheckpointStore checkpointStore) {
+        this(kinesisReader, streamName, shardIteratorType, startTimestamp, endTimestamp, stopWhenCaughtUp, threadCount, 0, recordQueue, checkpointStore);
+    }
+
+    /**
+     * @param readAheadDepth the number of batches a shard fetches ahead of the batch being queued, 0 to fetch a shard's
+     *                       next batch only after its records have been queued
+     */
+    public KinesisStreamDrainer(KinesisReader kinesisReader, String streamName, ShardIteratorType shardIteratorType, Date startTimestamp, Date endTimestamp, boolean stopWhenCaughtUp, int threadCount, int readAheadDepth, BlockingQueue<ShardRecord> recordQueue, CheckpointStore checkpointStore) {
+        this(kinesisReader, streamName, shardIteratorType, startTimestamp, endTimestamp, stopWhenCaughtUp, new ScheduledThreadPoolExecutor(threadCount, runnable -> {
+            Thread thread = new Thread(runnable, "KinesisStreamDrainer-" + streamName);
+            thread.setDaemon(true);
+            return thread;
+        }), true, readAheadDepth, recordQueue, checkpointStore);
+    }
+
+    /**
+     * A drainer that runs its shard tasks on a shared scheduler (e.g. the reader daemon's process wide scheduler) - stop()
+     * does not shut the scheduler down.
+     */
+    public KinesisStreamDrainer(KinesisReader kinesisReader, String streamName, ShardIteratorType shardIteratorType, Date startTimestamp, Date endTimestamp, boolean stopWhenCaughtUp, ScheduledExecutorService executorService, int readAheadDepth, BlockingQueue<ShardRecord> recordQueue, CheckpointStore checkpointStore) {
+        this(kinesisReader, streamName, shardIteratorType, startTimestamp, endTimestamp, stopWhenCaughtUp, executorService, false, readAheadDepth, recordQueue, checkpointStore);
+    }
+
+    private KinesisStreamDrainer(KinesisReader kinesisReader, String streamName, ShardIteratorType shardIteratorType, Date startTimestamp, Date endTimestamp, boolean stopWhenCaughtUp, ScheduledExecutorService executorService, boolean ownsExecutorService, int readAheadDepth, BlockingQueue<ShardRecord> recordQueue, CheckpointStore checkpointStore) {
+        this.kinesisReader = kinesisReader;
+        this.streamName = streamName;
+        this.shardIteratorType = shardIteratorType;
+        this.startTimestamp = startTimestamp;
+        this.endTimestamp = endTimestamp;
+        this.stopWhenCaughtUp = stopWhenCaughtUp;
+        this.readAheadDepth = readAheadDepth;
+        this.recordQueue = recordQueue;
+        this.metricsStreamName = streamName;
+        this.readAheadBytes = MetricsRegistry.getDefault().gauge("kinesis." + streamName + ".readAheadBytes");
+        this.shardCheckpointer = new ShardCheckpointer(streamName, checkpointStore);
+        this.executorService = executorService;
+        this.ownsExecutorService = ownsExecutorService;
+    }
+
+    /**
+     * Names the stream's metrics kinesis.&lt;metricsScope&gt;.&lt;streamName&gt;.* instead of kinesis.&lt;streamName&gt;.* - the
+     * reader daemon scopes them by dataset, so two datasets of the same stream name have their own metrics. Set before
+     * start().
+     */
+    public void setMetricsScope(String metricsScope) {
+        this.metricsStreamName = metricsScope + "." + streamName;
+        this.readAheadBytes = MetricsRegistry.getDefault().gauge("kinesis." + metricsStreamName + ".readAheadBytes");
+    }
+
+    @Override
+    public void start() {
+        List<Shard> shardList = kinesisReader.listShards(streamName, null, null);
+        List<String> readyShardIds = shardGraph.addShards(shardList, shardIteratorType == ShardIteratorType.LATEST);
+        logger.debug(streamName + " starting drain of " + readyShardIds.size() + " of " + shardList.size() + " shards");
+        startShards(readyShardIds, shardIteratorType);
+    }
+
+    private void startShards(List<String> shardIds, ShardIteratorType startingShardIteratorType) {
+        for (String shardId : shardIds) {
+            activeShardCount.incrementAndGet();
+            executorService.execute(new ShardWorker(shardId, startingShardIteratorType)::fetch);
+        }
+    }
+
+    private void onShardEnd(String shardId) {
+        List<String> readyShardIds = shardGraph.markFinished(shardId);
+        if (readyShardIds.isEmpty() && !shardGraph.hasChildren(shardId)) {
+            logger.debug(streamName + " shardId " + shardId + " ended with no known children, re-listing shards");
+            readyShardIds = shardGraph.addShards(kinesisReader.listShards(streamName, null, null), false);
+        }
+        // children are read from their start since the parents have been read to SHARD_END (or from the window start)
+        startShards(readyShardIds, startTimestamp != null ? ShardIteratorType.AT_TIMESTAMP : ShardIteratorType.TRIM_HORIZON);
+    }
+
+    @Override
+    public void checkpoint(ShardRecord shardRecord) {
+        shardCheckpointer.checkpoint(shardRecord);
+    }
+
+    @Override
+    public boolean isDone() {
+        return activeShardCount.get() == 0;
+    }
+
+    @Override
+    public Throwable getFailure() {
+        return failure.get();
+    }
+
+    @Override
+    public void stop() {
+        stopped = true;
+        // the tasks on a shared scheduler see stopped and finish
+        if (ownsExecutorService) {
+            executorService.shutdownNow();
+        }
+    }
+
+    private class ShardWorker {
+        private final String shardId;
+        private final ShardIteratorType startingShardIteratorType;
+        private final MetricsRegistry.ShardMetrics shardMetrics;
+        private final AdaptiveShardPacer shardPacer = new AdaptiveShardPacer();
+        private final AtomicBoolean finished = new AtomicBoolean();
+        // fetched batches that have not been fully queued yet, the head is the batch being queued - guarded by this
+        private final Deque<ShardBatch> batchDeque = new ArrayDeque<>();
+        private boolean delivering;
+        private boolean fetchPaused;
+        private long pausedFetchMillis;
+        // fetch side state - only the single fetch task chain touches these
+        private String shardIterator;
+        private String lastFetchedSequenceNumber;
+        // the creation time of the shard's first iterator when it is a LATEST iterator
+        private Date latestIteratorTimestamp;
+        private long lastGetRecordsMillis;
+        // delivery side state
+        private String lastQueuedSequenceNumber;
+        // the records of the head batch that have been queued
+        private int queuedRecordCount;
+
+        private ShardWorker(String shardId, ShardIteratorType startingShardIteratorType) {
+            this.shardId = shardId;
+            this.startingShardIteratorType = startingShardIteratorType;
+            this.shardMetrics = MetricsRegistry.getDefault().getShardMetrics(metricsStreamName, shardId);
+        }
+
+        private void fetch() {
+            if (stopped) {
+                finish();
+                return;
+            }
+
+            ShardBatch shardBatch = new ShardBatch();
+            long nextDelayMillis;
+            try {
+                if (shardIterator == null && lastFetchedSequenceNumber != null) {
+                    // the iterator expired - continue after the last fetched record
+                    shardIterator = kinesisReader.getShardIterator(streamName, shardId, ShardIteratorType.AFTER_SEQUENCE_NUMBER, lastFetchedSequenceNumber, null);
+                } else if (shardIterator == null && latestIteratorTimestamp != null) {
+                    // a LATEST iterator expired before its first record - a new LATEST iterator would skip the records since
+                    shardIterator = kinesisReader.getShardIterator(streamName, shardId, ShardIteratorType.AT_TIMESTAMP, null, latestIteratorTimestamp);
+                } else if (shardIterator == null) {
+                    String checkpoint = shardCheckpointer.getCheckpoint(shardId);
+                    if (CheckpointStore.SHARD_END.equals(checkpoint)) {
+                        logger.debug(streamName + " shardId " + shardId + " is checkpointed at SHARD_END");
+                        onShardEnd(shardId);
+                        finish();
+                        return;
+                    } else if (checkpoint != null) {
+                        shardIterator = kinesisReader.getShardIterator(streamName, shardId, ShardIteratorType.AFTER_SEQUENCE_NUMBER, checkpoint, null);
+                    } else {
+                        if (startingShardIteratorType == ShardIteratorType.LATEST) {
+                            latestIteratorTimestamp = new Date();
+                        }
+                        shardIterator = kinesisReader.getShardIterator(streamName, shardId, startingShardIteratorType, null, startingShardIteratorType == ShardIteratorType.AT_TIMESTAMP ? startTimestamp : null);
+                    }
+                }
+
+                lastGetRecordsMillis = System.currentTimeMillis();
+                GetRecordsResult getRecordsResult = kinesisReader.getRecords(shardPacer.getLimit(), shardIterator, shardMetrics);
+                long byteCount = 0;
+                for (Record record : getRecordsResult.getRecords()) {
+                    if (endTimestamp != null && record.getApproximateArrivalTimestamp() != null && record.getApproximateArrivalTimestamp().after(endTimestamp)) {
+                        logger.debug(streamName + " shardId " + shardId + " passed the end timestamp " + endTimestamp);
+                        shardBatch.end = BatchEnd.STOP;
+                        break;
+                    }
+                    byteCount += record.getData().remaining();
+                    shardBatch.recordList.add(record);
+                    lastFetchedSequenceNumber = record.getSequenceNumber();
+                }
+                shardBatch.byteCount = byteCount;
+
+                shardIterator = getRecordsResult.getNextShardIterator();
+                Long millisBehindLatest = getRecordsResult.getMillisBehindLatest();
+                boolean caughtUp = millisBehindLatest != null && millisBehindLatest == 0;
+                if (shardBatch.end == null && shardIterator == null) {
+                    logger.debug(streamName + " shardId " + shardId + " reached SHARD_END");
+                    shardBatch.end = BatchEnd.SHARD_END;
+                } else if (shardBatch.end == null && caughtUp && stopWhenCaughtUp) {
+                    logger.debug(streamName + " shardId " + shardId + " caught up with the tip of the stream");
+                    shardBatch.end = BatchEnd.STOP;
+                }
+
+                long intervalMillis = shardPacer.onRecords(getRecordsResult.getRecords().size(), byteCount, millisBehindLatest);
+                nextDelayMillis = Math.max(0, lastGetRecordsMillis + intervalMillis - System.currentTimeMillis());
+            } catch (Exception ex) {
+                if (stopped) {
+                    // stop() interrupted the call
+                    finish();
+                    return;
+                }
+                Throwable cause = ex.getCause() != null ? ex.getCause() : ex;
+                if (cause instanceof ProvisionedThroughputExceededException || cause instanceof LimitExceededException) {
+                    nextDelayMillis = shardPacer.onThrottled();
+                    logger.debug(streamName + " shardId " + shardId + " throttled " + shardPacer.getConsecutiveThrottleCount() + " times, retrying in " + nextDelayMillis + " ms");
+                    executorService.schedule(this::fetch, nextDelayMillis, TimeUnit.MILLISECONDS);
+                    return;
+                }
+                if (cause instanceof ExpiredIteratorException) {
+                    logger.debug(streamName + " shardId " + shardId + " shard iterator expired, renewing");
+                    shardIterator = null;
+                    executorService.execute(this::fetch);
+                    return;
+                }
+                logger.error(streamName + " shardId " + shardId + " drain threw an exception ", ex);
+                failure.compareAndSet(null, ex);
+                finish();
+                return;
+            }
+
+            addBatch(shardBatch, nextDelayMillis);
+        }
+
+        /**
+         * Hands a fetched batch to the delivery task and schedules the next fetch at the pacer's delay - right away when
+         * the read-ahead has room, otherwise the delivery task resumes the fetches once a batch has been queued.
+         */
+        private void addBatch(ShardBatch shardBatch, long nextDelayMillis) {
+            boolean startDelivery;
+            synchronized (this) {
+                batchDeque.add(shardBatch);
+                readAheadBytes.set(readAheadByteCount.addAndGet(shardBatch.byteCount));
+                startDelivery = !delivering;
+                delivering = true;
+                if (shardBatch.end == null) {
+                    if (canFetch()) {
+                        executorService.schedule(this::fetch, nextDelayMillis, TimeUnit.MILLISECONDS);
+                    } else {
+                        fetchPaused = true;
+                        pausedFetchMillis = System.currentTimeMillis() + nextDelayMillis;
+                    }
+                }
+            }
+            if (startDelivery) {
+                executorService.execute(this::deliver);
+            }
+        }
+
+        // the shard may fetch while it has at most readAheadDepth unqueued batches (the one being queued included) and
+        // the stream is within its read-ahead byte budget - a shard with no other unqueued batch can always fetch
+        private boolean canFetch() {
+            return batchDeque.size() <= readAheadDepth && (batchDeque.size() <= 1 || readAheadByteCount.get() < MAX_READ_AHEAD_BYTES);
+        }
+
+        /**
+         * Queues the records of the oldest fetched batch, then re-submits itself while there are more batches, so a shard
+         * holds a pool thread for one batch at a time. A full record queue blocks the task on the drainer's own pool - on a
+         * shared scheduler the task gives its thread back and retries later instead, so a slow dataset does not hold the
+         * other datasets' threads blocked.
+         */
+        private void deliver() {
+            ShardBatch shardBatch;
+            synchronized (this) {
+                shardBatch = batchDeque.peek();
+            }
+            if (stopped) {
+                finish();
+                return;
+            }
+
+            try {
+                List<Record> recordList = shardBatch.recordList;
+                while (queuedRecordCount < recordList.size()) {
+                    Record record = recordList.get(queuedRecordCount);
+                    if (ownsExecutorService) {
+                        recordQueue.put(new ShardRecord(shardId, record));
+                    } else if (!recordQueue.offer(new ShardRecord(shardId, record), QUEUE_WAIT_MILLIS, TimeUnit.MILLISECONDS)) {
+                        executorService.schedule(this::deliver, QUEUE_RETRY_DELAY_MILLIS, TimeUnit.MILLISECONDS);
+                        return;
+                    }
+                    queuedRecordCount++;
+                    lastQueuedSequenceNumber = record.getSequenceNumber();
+                }
+                queuedRecordCount = 0;
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+                finish();
+                return;
+            }
+
+            if (shardBatch.end == BatchEnd.SHARD_END) {
+                shardCheckpointer.shardEnded(shardId, lastQueuedSequenceNumber);
+                onShardEnd(shardId);
+            }
+            boolean moreBatches;
+            long resumeDelayMillis = -1;
+            synchronized (this) {
+                batchDeque.poll();
+                readAheadBytes.set(readAheadByteCount.addAndGet(-shardBatch.byteCount));
+                if (fetchPaused && canFetch()) {
+                    fetchPaused = false;
+                    resumeDelayMillis = Math.max(0, pausedFetchMillis - System.currentTimeMillis());
+                }
+                moreBatches = !batchDeque.isEmpty();
+                delivering = moreBatches;
+            }
+            if (shardBatch.end != null) {
+                finish();
+                return;
+            }
+            if (resumeDelayMillis >= 0) {
+                executorService.schedule(this::fetch, resumeDelayMillis, TimeUnit.MILLISECONDS);
+            }
+            if (moreBatches) {
+                executorService.execute(this::deliver);
+            }
+        }
+
+        private void finish() {
+            if (finished.compareAndSet(false, true)) {
+                activeShardCount.decrementAndGet();
+            }
+        }
+    }
+
+    private enum BatchEnd {
+        // the shard's last batch - the shard reached SHARD_END
+        SHARD_END,
+        // the shard's last batch - the shard caught up (drain) or passed the end timestamp
+        STOP
+    }
+
+    private static class ShardBatch {
+        private final List<Record> recordList = new ArrayList<>();
+        private long byteCount;
+        private BatchEnd end;
+    }
+}
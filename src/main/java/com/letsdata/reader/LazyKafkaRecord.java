@@ -0,0 +1,147 @@
+package com.letsdata.reader;
+
+import org.apache.kafka.clients.consumer.ConsumerRecord;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * A view of a kafka record polled with the BYTE_ARRAY or BYTE_BUFFER {@link KafkaReader.RecordDeserializer} that decodes
+ * the key / value only when they are accessed.
+ *
+ * The raw accessors (valueBuffer, valueSize, isGzipValue, writeValue) never copy or decode the value, so filter and
+ * forward pipelines do not materialize a String. Gzipped values are inflated with the calling thread's
+ * {@link GZipDecoder}, same as the kinesis records. Records polled with the STRING deserializer are supported as well
+ * (their value is encoded back to UTF-8 bytes on the raw accessors).
+ */
+public class LazyKafkaRecord {
+    private final ConsumerRecord consumerRecord;
+    private String valueString;
+    private String keyString;
+
+    public LazyKafkaRecord(ConsumerRecord consumerRecord) {
+        this.consumerRecord = consumerRecord;
+    }
+
+    public ConsumerRecord getConsumerRecord() {
+        return consumerRecord;
+    }
+
+    public String topic() {
+        return consumerRecord.topic();
+    }
+
+    public int partition() {
+        return consumerRecord.partition();
+    }
+
+    public long offset() {
+        return consumerRecord.offset();
+    }
+
+    public long timestamp() {
+        return consumerRecord.timestamp();
+    }
+
+    /**
+     * @return a view of the raw value bytes (no copy), or null for a null value
+     */
+    public ByteBuffer valueBuffer() {
+        return toBuffer(consumerRecord.value());
+    }
+
+    /**
+     * @return a view of the raw key bytes (no copy), or null for a null key
+     */
+    public ByteBuffer keyBuffer() {
+        return toBuffer(consumerRecord.key());
+    }
+
+    public int valueSize() {
+        return consumerRecord.serializedValueSize();
+    }
+
+    public boolean isGzipValue() {
+        ByteBuffer value = valueBuffer();
+        return value != null && isGzip(value);
+    }
+
+    /**
+     * Writes the value bytes to the sink - gzipped values are inflated in chunks, other values are written as is.
+     */
+    public void writeValue(GZipDecoder.Sink sink) {
+        ByteBuffer value = valueBuffer();
+        if (value == null) {
+            return;
+        }
+        if (isGzip(value)) {
+            GZipDecoder.forCurrentThread().decode(value, sink);
+        } else if (value.hasArray()) {
+            sink.write(value.array(), value.arrayOffset() + value.position(), value.remaining());
+        } else {
+            byte[] bytes = new byte[value.remaining()];
+            value.get(bytes);
+            sink.write(bytes, 0, bytes.length);
+        }
+    }
+
+    /**
+     * @return a view of the value bytes - gzipped values are inflated with the calling thread's {@link GZipDecoder} and
+     * the view is only valid until its next decode call. Null for a null value.
+     */
+    public ByteBuffer decodedValue() {
+        ByteBuffer value = valueBuffer();
+        if (value == null || !isGzip(value)) {
+            return value;
+        }
+        return GZipDecoder.forCurrentThread().decode(value);
+    }
+
+    /**
+     * @return the value decoded as UTF-8 (gzipped values are inflated first). Decoded once and cached.
+     */
+    public String valueAsString() {
+        if (valueString == null) {
+            valueString = decodeToString(consumerRecord.value());
+        }
+        return valueString;
+    }
+
+    /**
+     * @return the key decoded as UTF-8. Decoded once and cached.
+     */
+    public String keyAsString() {
+        if (keyString == null) {
+            keyString = decodeToString(consumerRecord.key());
+        }
+        return keyString;
+    }
+
+    private String decodeToString(Object data) {
+        if (data == null || data instanceof String) {
+            return (String) data;
+        }
+        ByteBuffer buffer = toBuffer(data);
+        if (isGzip(buffer)) {
+            return GZipDecoder.forCurrentThread().decodeToChars(buffer).toString();
+        }
+        return StandardCharsets.UTF_8.decode(buffer).toString();
+    }
+
+    private static boolean isGzip(ByteBuffer buffer) {
+        return buffer.remaining() >= 2 && buffer.get(buffer.position()) == (byte) 0x1f && buffer.get(buffer.position() + 1) == (byte) 0x8b;
+    }
+
+    private static ByteBuffer toBuffer(Object data) {
+        if (data == null) {
+            return null;
+        } else if (data instanceof byte[]) {
+            return ByteBuffer.wrap((byte[]) data);
+        } else if (data instanceof ByteBuffer) {
+            return ((ByteBuffer) data).duplicate();
+        } else if (data instanceof String) {
+            return ByteBuffer.wrap(((String) data).getBytes(StandardCharsets.UTF_8));
+        }
+        throw new RuntimeException("Unexpected kafka record data type " + data.getClass().getName());
+    }
+}
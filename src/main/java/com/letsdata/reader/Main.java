@@ -1,31 +1,54 @@
 package com.letsdata.reader;
 
 import com.amazonaws.arn.Arn;
+import com.amazonaws.auth.AWSStaticCredentialsProvider;
+import com.amazonaws.auth.BasicAWSCredentials;
 import com.amazonaws.services.kinesis.model.GetRecordsResult;
 import com.amazonaws.services.kinesis.model.Record;
 import com.amazonaws.services.kinesis.model.Shard;
 import com.amazonaws.services.kinesis.model.ShardIteratorType;
 import net.sourceforge.argparse4j.ArgumentParsers;
+import net.sourceforge.argparse4j.impl.Arguments;
 import net.sourceforge.argparse4j.inf.ArgumentParser;
 import net.sourceforge.argparse4j.inf.ArgumentParserException;
 import net.sourceforge.argparse4j.inf.Namespace;
+import software.amazon.awssdk.services.kinesis.KinesisAsyncClient;
 import software.amazon.awssdk.utils.StringUtils;
 
+import java.io.BufferedOutputStream;
 import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileDescriptor;
+import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.time.format.DateTimeParseException;
 import java.util.*;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
 import java.util.zip.GZIPInputStream;
 import java.util.zip.GZIPOutputStream;
 
 public class Main {
+    private static final long CHECKPOINT_FLUSH_INTERVAL_MILLIS = 1000;
+    private static final int STDOUT_BUFFER_SIZE = 256 * 1024;
+    private static final byte[] RECORD_PREFIX = "record: ".getBytes(StandardCharsets.UTF_8);
 
     // $ > kinesis_reader listShards --streamName 'streamName' --customerAccessRoleArn 'customerAccessRoleArn' --externalId 'externalId' --awsRegion 'awsRegion' --awsAccessKeyId 'awsAccessKeyId' --awsSecretKey 'awsSecretKey'
     // $ > kinesis_reader getShardIterator --streamName 'streamName' --customerAccessRoleArn 'customerAccessRoleArn' --externalId 'externalId' --awsRegion 'awsRegion' --awsAccessKeyId 'awsAccessKeyId' --awsSecretKey 'awsSecretKey' --shardId 'shardId'
     // $ > kinesis_reader getRecords --streamName 'streamName' --customerAccessRoleArn 'customerAccessRoleArn' --externalId 'externalId' --awsRegion 'awsRegion' --awsAccessKeyId 'awsAccessKeyId' --awsSecretKey 'awsSecretKey' --shardIterator 'shardIterator'
+    // $ > kinesis_reader drain --streamName 'streamName' --customerAccessRoleArn 'customerAccessRoleArn' --externalId 'externalId' --awsRegion 'awsRegion' --awsAccessKeyId 'awsAccessKeyId' --awsSecretKey 'awsSecretKey' --threadCount 16
+    // $ > kinesis_reader tail --readMode fanout --streamName 'streamName' --customerAccessRoleArn 'customerAccessRoleArn' --externalId 'externalId' --awsRegion 'awsRegion' --awsAccessKeyId 'awsAccessKeyId' --awsSecretKey 'awsSecretKey'
+    // $ > kinesis_reader tail --streamName 'streamName' --customerAccessRoleArn 'customerAccessRoleArn' --externalId 'externalId' --awsRegion 'awsRegion' --awsAccessKeyId 'awsAccessKeyId' --awsSecretKey 'awsSecretKey' --threadCount 16
+    // $ > kinesis_reader drain --streamName 'streamName' --customerAccessRoleArn 'customerAccessRoleArn' --externalId 'externalId' --awsRegion 'awsRegion' --awsAccessKeyId 'awsAccessKeyId' --awsSecretKey 'awsSecretKey' --filter 'documentType == "WEB_PAGE"' --fields 'documentId,url'
+    // $ > kinesis_reader drain --streamName 'streamName' --customerAccessRoleArn 'customerAccessRoleArn' --externalId 'externalId' --awsRegion 'awsRegion' --awsAccessKeyId 'awsAccessKeyId' --awsSecretKey 'awsSecretKey' --outputFormat columnar --outputDir 'output'
+    // $ > kinesis_reader export --streamName 'streamName' --customerAccessRoleArn 'customerAccessRoleArn' --externalId 'externalId' --awsRegion 'awsRegion' --awsAccessKeyId 'awsAccessKeyId' --awsSecretKey 'awsSecretKey' --from 2023-06-01T10:00:00Z --to 2023-06-01T12:00:00Z --outputDir 'export'
     public static void main(String[] args) {
         ArgumentParser parser = ArgumentParsers.newFor("letsdatawriteconnector").build();
-        parser.addArgument("action").choices("listShards", "getShardIterator", "getRecords").required(true).help("The kinesis client api method that needs to be called. [\"listShards\", \"getShardIterator\", \"getRecords\"]");
+        parser.addArgument("action").choices("listShards", "getShardIterator", "getRecords", "drain", "tail", "export").required(true).help("The kinesis client api method that needs to be called. [\"listShards\", \"getShardIterator\", \"getRecords\"] or the stream reader mode [\"drain\" - read all shards from TRIM_HORIZON until caught up, \"tail\" - read all shards from LATEST until killed, \"export\" - write the records in the --from / --to window to files in --outputDir]");
         parser.addArgument("--awsRegion").required(false).type(String.class).help("The awsRegion - default to us-east-1").setDefault("us-east-1");
         parser.addArgument("--awsAccessKeyId").required(true).type(String.class).help("The awsAccessKeyId for the customerAccountForAccess for the dataset");
         parser.addArgument("--customerAccessRoleArn").required(true).type(String.class).help("The customerAccessRoleArn from the dataset that has the been granted the access to the write connector");
@@ -34,6 +57,28 @@ public class Main {
         parser.addArgument("--streamName").required(true).type(String.class).help("The kinesis stream name");
         parser.addArgument("--shardId").required(false).type(String.class).help("The shardId for the getShardIterator call");
         parser.addArgument("--shardIterator").required(false).type(String.class).help("The shardIterator for the getRecords call");
+        parser.addArgument("--threadCount").required(false).type(Integer.class).help("The number of threads that read the shards in the drain / tail modes - default to 8").setDefault(8);
+        parser.addArgument("--endpointUrl").required(false).type(String.class).help("Read a kinesis compatible endpoint (e.g. a local kinesalite / localstack) with the awsAccessKeyId / awsSecretKey as is - no role is assumed. Polling reads only");
+        parser.addArgument("--readMode").choices("polling", "fanout").required(false).help("How the drain / tail modes read the shards - \"polling\" getRecords calls or \"fanout\" enhanced fan-out subscribeToShard push - default to polling").setDefault("polling");
+        parser.addArgument("--consumerName").required(false).type(String.class).help("The enhanced fan-out stream consumer name for the fanout readMode, the consumer is registered if it does not exist - default to letsdata-writeconnector-reader").setDefault("letsdata-writeconnector-reader");
+        parser.addArgument("--checkpointFile").required(false).type(String.class).help("The local file that stores the last read sequence number per shard in the drain / tail modes. When set, the shards resume from the checkpoints");
+        parser.addArgument("--from").required(false).type(String.class).help("The export window start as an ISO-8601 timestamp (2023-06-01T10:00:00Z) - default to TRIM_HORIZON");
+        parser.addArgument("--to").required(false).type(String.class).help("The export window end as an ISO-8601 timestamp - default to the tip of the stream");
+        parser.addArgument("--outputDir").required(false).type(String.class).help("The output directory of the export mode (one series of files per shard) and of the columnar / binary outputFormat - default to export").setDefault("export");
+        parser.addArgument("--exportFormat").choices("gz", "jsonl").required(false).help("The export file format - \"gz\" the compressed records as is in gzip files, \"jsonl\" the decompressed records - default to gz").setDefault("gz");
+        parser.addArgument("--maxFileSizeMB").required(false).type(Integer.class).help("The file size at which the export / columnar / binary output rolls to a new file - default to 128").setDefault(128);
+        parser.addArgument("--outputFormat").choices("text", "columnar", "binary").required(false).help("How the drain / tail modes write the records - \"text\" lines to stdout, \"columnar\" dictionary encoded, compressed column files or \"binary\" length prefixed record files in --outputDir - default to text").setDefault("text");
+        parser.addArgument("--writerThreadCount").required(false).type(Integer.class).help("The number of threads that decode and write the export files - default to 4").setDefault(4);
+        parser.addArgument("--metricsIntervalSeconds").required(false).type(Integer.class).help("Log the throughput, latency and lag metrics every these many seconds (they are always available through JMX) - default to 0, not logged").setDefault(0);
+        parser.addArgument("--queueCapacity").required(false).type(Integer.class).help("The max number of read records buffered before the shard readers block in the drain / tail modes, rounded up to a power of two - default to 10000 (16384)").setDefault(10000);
+        parser.addArgument("--decodeThreadCount").required(false).type(Integer.class).help("The number of threads that decompress and format the records in the drain / tail modes - default to 4").setDefault(4);
+        parser.addArgument("--readAheadDepth").required(false).type(Integer.class).help("The number of getRecords batches each shard fetches ahead of the records being consumed in the drain / tail / export modes (polling reads) - default to 0, fetch the next batch after the records have been consumed").setDefault(0);
+        parser.addArgument("--filter").required(false).type(String.class).help("Emit only the records that match this expression in the drain / tail modes, e.g. 'documentType == \"WEB_PAGE\" && crawlTimestamp >= 1685331931671 || $key ^= \"doc\"' - $key predicates (the partition key) are checked before the record is decompressed");
+        parser.addArgument("--fields").required(false).type(String.class).help("Emit only these comma separated (dotted path) fields of the records in the drain / tail modes, as a json object keyed by the field paths");
+        parser.addArgument("--dedup").required(false).action(Arguments.storeTrue()).help("Drop the records that have already been emitted in the drain / tail / export modes - replays after an expired iterator, a re-subscription or a reshard (by the per shard sequence number high-watermark)");
+        parser.addArgument("--dedupContentHashCapacity").required(false).type(Integer.class).help("With --dedup, also drop the records whose bytes match one of this many most recently seen records (records written twice) - 24 bytes per record, default to 0, positions only").setDefault(0);
+        parser.addArgument("--keyAffinity").required(false).action(Arguments.storeTrue()).help("Route the records to the --decodeThreadCount decode threads by partition key instead of by shard in the drain / tail modes - records stay in order per partition key (not per shard) and a hot shard is decoded in parallel. A shard is checkpointed up to the last record whose predecessors have all been written");
+        parser.addArgument("--ringBufferDepth").required(false).type(Integer.class).help("The number of records each decode thread buffers in the drain / tail modes, rounded up to a power of two - default to 1024").setDefault(1024);
 
         try {
             Namespace namespace = parser.parseArgs(args);
@@ -49,6 +94,7 @@ public class Main {
             String externalId = namespace.getString("externalId");
             STSUtil stsUtil = new STSUtil(region, namespace.getString("awsAccessKeyId"), namespace.getString("awsSecretKey"));
             String letsDataAwsAccountId = Arn.fromString(customerAccessRoleArn).getAccountId();
+            String streamArn = "arn:aws:kinesis:" + region + ":" + letsDataAwsAccountId + ":stream/" + streamName;
             String roleAccessPolicyText = "{\n" +
                     "    \"Version\": \"2012-10-17\",\n" +
                     "    \"Statement\": [\n" +
@@ -62,14 +108,45 @@ public class Main {
                     "        },\n" +
                     "        {\n" +
                     "            \"Effect\": \"Allow\",\n" +
+                    "            \"Action\": [\n" +
+                    "                \"kinesis:RegisterStreamConsumer\",\n" +
+                    "                \"kinesis:DescribeStreamConsumer\",\n" +
+                    "                \"kinesis:SubscribeToShard\"\n" +
+                    "            ],\n" +
+                    "            \"Resource\": [\n" +
+                    "                \"" + streamArn + "\",\n" +
+                    "                \"" + streamArn + "/consumer/*\"\n" +
+                    "            ]\n" +
+                    "        },\n" +
+                    "        {\n" +
+                    "            \"Effect\": \"Allow\",\n" +
                     "            \"Action\": \"kinesis:ListShards\",\n" +
                     "            \"Resource\": \"*\"\n" +
                     "        }\n" +
                     "    ]\n" +
                     "}";
 
+            if (namespace.getInt("metricsIntervalSeconds") > 0) {
+                MetricsRegistry.getDefault().startDump(TimeUnit.SECONDS.toMillis(namespace.getInt("metricsIntervalSeconds")));
+            }
+
+            RecordFilter recordFilter;
+            try {
+                recordFilter = RecordFilter.parse(namespace.getString("filter"), namespace.getString("fields"));
+            } catch (IllegalArgumentException ex) {
+                throw new ArgumentParserException(ex.getMessage(), parser);
+            }
+
+            RecordDeduplicator recordDeduplicator = namespace.getBoolean("dedup") ? new RecordDeduplicator(namespace.getInt("dedupContentHashCapacity")) : null;
+
             String roleSessionName = streamName + System.currentTimeMillis();
-            KinesisReader kinesisReader = new KinesisReader(region, stsUtil, customerAccessRoleArn, externalId, roleAccessPolicyText, roleSessionName, null);
+            String endpointUrl = namespace.getString("endpointUrl");
+            if (endpointUrl != null && "fanout".equals(namespace.getString("readMode"))) {
+                throw new ArgumentParserException("the fanout readMode is not supported with an endpointUrl", parser);
+            }
+            KinesisReader kinesisReader = endpointUrl != null
+                    ? new KinesisReader(region, endpointUrl, new AWSStaticCredentialsProvider(new BasicAWSCredentials(namespace.getString("awsAccessKeyId"), namespace.getString("awsSecretKey"))))
+                    : new KinesisReader(region, stsUtil, customerAccessRoleArn, externalId, roleAccessPolicyText, roleSessionName, null);
             switch (action) {
                 case "listShards": {
                     List<Shard> shardList = kinesisReader.listShards(streamName, null, null);
@@ -84,20 +161,97 @@ public class Main {
                 case "getRecords": {
                     GetRecordsResult getRecordsResult = kinesisReader.getRecords(null, namespace.getString("shardIterator"));
                     List<Record> recordList = getRecordsResult.getRecords();
+                    GZipDecoder gZipDecoder = GZipDecoder.forCurrentThread();
+                    // one buffered write per chunk instead of a flush per record
+                    PrintStream stdout = new PrintStream(new BufferedOutputStream(new FileOutputStream(FileDescriptor.out), STDOUT_BUFFER_SIZE), false);
+                    GZipDecoder.Sink stdoutSink = stdout::write;
                     for (Record record : recordList) {
-                        byte[] dataBytes = record.getData().array();
-                        String recordStr = new String(GZipUtil.decompressByteArr(dataBytes));
-                        System.out.println("record: " + recordStr);
+                        stdout.write(RECORD_PREFIX, 0, RECORD_PREFIX.length);
+                        gZipDecoder.decode(record.getData(), stdoutSink);
+                        stdout.write('\n');
                     }
+                    stdout.flush();
                     System.out.println("getRecordsResult - recordList.size:  " + getRecordsResult.getRecords().size() + ", nextShardIterator: " + getRecordsResult.getNextShardIterator());
                     break;
                 }
+                case "drain":
+                case "tail": {
+                    boolean isDrain = "drain".equals(action);
+                    BlockingQueue<ShardRecord> recordQueue = new RingBuffer<>(namespace.getInt("queueCapacity"));
+                    long recordCount;
+                    // the store is closed (and its last checkpoints written) also when the read throws
+                    try (CheckpointStore checkpointStore = namespace.getString("checkpointFile") == null ? null : new FileCheckpointStore(new File(namespace.getString("checkpointFile")), CHECKPOINT_FLUSH_INTERVAL_MILLIS)) {
+                        ShardIteratorType shardIteratorType = isDrain ? ShardIteratorType.TRIM_HORIZON : ShardIteratorType.LATEST;
+                        KinesisAsyncClient kinesisAsyncClient = null;
+                        ShardRecordSource shardRecordSource;
+                        if ("fanout".equals(namespace.getString("readMode"))) {
+                            kinesisAsyncClient = KinesisFanOutReader.createKinesisAsyncClient(region, AssumedRoleCredentialsCache.getProvider(stsUtil, customerAccessRoleArn, externalId, roleAccessPolicyText, roleSessionName, null));
+                            shardRecordSource = new KinesisFanOutReader(kinesisAsyncClient, kinesisReader, streamName, streamArn, namespace.getString("consumerName"), shardIteratorType, isDrain, namespace.getInt("threadCount"), recordQueue, checkpointStore);
+                        } else {
+                            shardRecordSource = new KinesisStreamDrainer(kinesisReader, streamName, shardIteratorType, null, null, isDrain, namespace.getInt("threadCount"), namespace.getInt("readAheadDepth"), recordQueue, checkpointStore);
+                        }
+                        // the file names are timestamped so a rerun does not collide with the files of an earlier run
+                        RecordSink recordSink = RecordSink.create(namespace.getString("outputFormat"), new File(namespace.getString("outputDir")), streamName + "-" + System.currentTimeMillis(), namespace.getInt("maxFileSizeMB") * 1024L * 1024L);
+                        // the pipeline writes large chunks straight from its direct buffers to the stdout channel, no stream buffer
+                        FileOutputStream stdout = recordSink == null ? new FileOutputStream(FileDescriptor.out) : null;
+                        RecordPipeline recordPipeline = new RecordPipeline(shardRecordSource, recordQueue, streamName, stdout, recordSink, namespace.getInt("decodeThreadCount"), namespace.getInt("ringBufferDepth"), recordFilter, recordDeduplicator, namespace.getBoolean("keyAffinity"));
+                        try {
+                            recordCount = recordPipeline.run();
+                        } finally {
+                            if (recordSink != null) {
+                                recordSink.close();
+                            }
+                            if (kinesisAsyncClient != null) {
+                                kinesisAsyncClient.close();
+                            }
+                        }
+                    }
+                    System.out.println(action + " complete - recordCount: " + recordCount);
+                    if (namespace.getInt("metricsIntervalSeconds") > 0) {
+                        System.out.println(MetricsRegistry.getDefault().dump());
+                    }
+                    break;
+                }
+                case "export": {
+                    Date fromTimestamp = parseTimestamp(namespace, "from", parser);
+                    Date toTimestamp = parseTimestamp(namespace, "to", parser);
+                    BlockingQueue<ShardRecord> recordQueue = new RingBuffer<>(namespace.getInt("queueCapacity"));
+                    ShardIteratorType shardIteratorType = fromTimestamp == null ? ShardIteratorType.TRIM_HORIZON : ShardIteratorType.AT_TIMESTAMP;
+                    KinesisStreamDrainer kinesisStreamDrainer = new KinesisStreamDrainer(kinesisReader, streamName, shardIteratorType, fromTimestamp, toTimestamp, true, namespace.getInt("threadCount"), namespace.getInt("readAheadDepth"), recordQueue, null);
+                    KinesisExporter.ExportFormat exportFormat = "jsonl".equals(namespace.getString("exportFormat")) ? KinesisExporter.ExportFormat.JSONL : KinesisExporter.ExportFormat.GZ;
+                    KinesisExporter kinesisExporter = new KinesisExporter(kinesisStreamDrainer, recordQueue, streamName, new File(namespace.getString("outputDir")), exportFormat, namespace.getInt("maxFileSizeMB") * 1024L * 1024L, namespace.getInt("writerThreadCount"), recordDeduplicator);
+                    long startMillis = System.currentTimeMillis();
+                    long recordCount = kinesisExporter.run();
+                    System.out.println("export complete - recordCount: " + recordCount + ", durationMillis: " + (System.currentTimeMillis() - startMillis) + ", outputDir: " + namespace.getString("outputDir"));
+                    if (namespace.getInt("metricsIntervalSeconds") > 0) {
+                        System.out.println(MetricsRegistry.getDefault().dump());
+                    }
+                    break;
+                }
                 default: {
                     throw new ArgumentParserException("Unknown action " + action, parser);
                 }
             }
         } catch (ArgumentParserException e) {
             parser.handleError(e);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * @return the ISO-8601 time of the argument, null if the argument is not set
+     */
+    private static Date parseTimestamp(Namespace namespace, String argumentName, ArgumentParser parser) throws ArgumentParserException {
+        String value = namespace.getString(argumentName);
+        if (value == null) {
+            return null;
+        }
+        try {
+            return Date.from(Instant.parse(value));
+        } catch (DateTimeParseException ex) {
+            throw new ArgumentParserException("the " + argumentName + " " + value + " is not an ISO-8601 time, e.g. 2023-06-01T10:00:00Z", parser);
         }
     }
 }
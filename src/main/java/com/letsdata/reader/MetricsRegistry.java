@@ -0,0 +1,391 @@
+package com.letsdata.reader;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * The process wide throughput, latency and lag metrics of the readers.
+ *
+ * Metrics are created (and registered as JMX MXBeans under the "com.letsdata.reader" domain) on first use. Callers look
+ * up the metric objects once - for example a shard's {@link ShardMetrics} when the shard is started - and the record
+ * calls on the hot path only update LongAdder / atomic counters, they do not allocate.
+ *
+ * {@link #startDump(long)} logs all the metrics periodically.
+ */
+public class MetricsRegistry {
+    private static final Logger logger = LoggerFactory.getLogger(MetricsRegistry.class);
+
+    private static final String JMX_DOMAIN = "com.letsdata.reader";
+    private static final MetricsRegistry defaultRegistry = new MetricsRegistry();
+
+    private final Map<String, Metric> metricMap = new ConcurrentHashMap<>();
+    private final Map<String, Map<String, ShardMetrics>> streamShardMetricsMap = new ConcurrentHashMap<>();
+    private final Map<String, TopicMetrics> topicMetricsMap = new ConcurrentHashMap<>();
+    private final ScheduledExecutorService dumpExecutor = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "MetricsRegistry-dump");
+        thread.setDaemon(true);
+        return thread;
+    });
+    private ScheduledFuture<?> scheduledDump;
+
+    public static MetricsRegistry getDefault() {
+        return defaultRegistry;
+    }
+
+    public Meter meter(String name) {
+        return (Meter) metricMap.computeIfAbsent(name, k -> register(k, new Meter()));
+    }
+
+    public Histogram histogram(String name) {
+        return (Histogram) metricMap.computeIfAbsent(name, k -> register(k, new Histogram()));
+    }
+
+    public Gauge gauge(String name) {
+        return (Gauge) metricMap.computeIfAbsent(name, k -> register(k, new Gauge()));
+    }
+
+    public ShardMetrics getShardMetrics(String streamName, String shardId) {
+        Map<String, ShardMetrics> shardMetricsMap = streamShardMetricsMap.get(streamName);
+        if (shardMetricsMap == null) {
+            shardMetricsMap = streamShardMetricsMap.computeIfAbsent(streamName, k -> new ConcurrentHashMap<>());
+        }
+        ShardMetrics shardMetrics = shardMetricsMap.get(shardId);
+        return shardMetrics != null ? shardMetrics : shardMetricsMap.computeIfAbsent(shardId, k -> new ShardMetrics(this, "kinesis." + streamName, shardId));
+    }
+
+    public PartitionMetrics getPartitionMetrics(String topic, int partition) {
+        TopicMetrics topicMetrics = topicMetricsMap.get(topic);
+        if (topicMetrics == null) {
+            topicMetrics = topicMetricsMap.computeIfAbsent(topic, k -> new TopicMetrics(this, topic));
+        }
+        return topicMetrics.get(partition);
+    }
+
+    /**
+     * Logs every metric each intervalMillis until stopDump() is called.
+     */
+    public synchronized void startDump(long intervalMillis) {
+        stopDump();
+        scheduledDump = dumpExecutor.scheduleAtFixedRate(() -> logger.info("metrics\n" + dump()), intervalMillis, intervalMillis, TimeUnit.MILLISECONDS);
+    }
+
+    public synchronized void stopDump() {
+        if (scheduledDump != null) {
+            scheduledDump.cancel(false);
+            scheduledDump = null;
+        }
+    }
+
+    /**
+     * @return one line per metric, sorted by metric name
+     */
+    public String dump() {
+        StringBuilder sb = new StringBuilder();
+        for (Map.Entry<String, Metric> entry : new TreeMap<>(metricMap).entrySet()) {
+            sb.append(entry.getKey()).append(": ").append(entry.getValue().describe()).append('\n');
+        }
+        return sb.toString();
+    }
+
+    private Metric register(String name, Metric metric) {
+        try {
+            MBeanServer mBeanServer = ManagementFactory.getPlatformMBeanServer();
+            ObjectName objectName = new ObjectName(JMX_DOMAIN + ":type=" + metric.getClass().getSimpleName() + ",name=" + ObjectName.quote(name));
+            if (!mBeanServer.isRegistered(objectName)) {
+                mBeanServer.registerMBean(metric, objectName);
+            }
+        } catch (JMException ex) {
+            logger.error("metric " + name + " jmx registration threw an exception ", ex);
+        }
+        return metric;
+    }
+
+    private interface Metric {
+        String describe();
+    }
+
+    public interface MeterMXBean {
+        long getCount();
+
+        double getMeanRatePerSecond();
+
+        double getRecentRatePerSecond();
+    }
+
+    /**
+     * A count and its rates - the mean rate since creation and the recent rate, the rate since the previous dump (since
+     * creation before the first dump). Only the dump moves the recent rate window - reading the recent rate over JMX does
+     * not change it.
+     */
+    public static class Meter implements Metric, MeterMXBean {
+        private final LongAdder count = new LongAdder();
+        private final long startNanos = System.nanoTime();
+        // the recent rate window, moved by describe()
+        private long windowCount;
+        private long windowNanos = startNanos;
+
+        public void mark(long n) {
+            count.add(n);
+        }
+
+        public void mark() {
+            count.increment();
+        }
+
+        @Override
+        public long getCount() {
+            return count.sum();
+        }
+
+        @Override
+        public double getMeanRatePerSecond() {
+            return ratePerSecond(getCount(), System.nanoTime() - startNanos);
+        }
+
+        @Override
+        public synchronized double getRecentRatePerSecond() {
+            return ratePerSecond(getCount() - windowCount, System.nanoTime() - windowNanos);
+        }
+
+        @Override
+        public synchronized String describe() {
+            long nowCount = getCount();
+            long nowNanos = System.nanoTime();
+            String description = String.format("count=%d, meanRate=%.1f/s, recentRate=%.1f/s", nowCount, ratePerSecond(nowCount, nowNanos - startNanos), ratePerSecond(nowCount - windowCount, nowNanos - windowNanos));
+            windowCount = nowCount;
+            windowNanos = nowNanos;
+            return description;
+        }
+
+        private static double ratePerSecond(long count, long elapsedNanos) {
+            return elapsedNanos <= 0 ? 0 : count * 1e9 / elapsedNanos;
+        }
+    }
+
+    public interface HistogramMXBean {
+        long getCount();
+
+        double getMean();
+
+        long getMax();
+
+        long getP50();
+
+        long getP90();
+
+        long getP99();
+    }
+
+    /**
+     * A histogram of non negative values (latencies in millis) with 4 buckets per power of two, so the percentiles are
+     * within 25% of the recorded values.
+     */
+    public static class Histogram implements Metric, HistogramMXBean {
+        private static final int SUB_BUCKET_BITS = 2;
+        private static final int SUB_BUCKET_COUNT = 1 << SUB_BUCKET_BITS;
+
+        private final AtomicLongArray bucketCounts = new AtomicLongArray(64 * SUB_BUCKET_COUNT);
+        private final LongAdder count = new LongAdder();
+        private final LongAdder sum = new LongAdder();
+        private final LongAccumulator max = new LongAccumulator(Math::max, 0);
+
+        public void record(long value) {
+            long v = Math.max(0, value);
+            bucketCounts.incrementAndGet(bucketIndex(v));
+            count.increment();
+            sum.add(v);
+            max.accumulate(v);
+        }
+
+        @Override
+        public long getCount() {
+            return count.sum();
+        }
+
+        @Override
+        public double getMean() {
+            long n = getCount();
+            return n == 0 ? 0 : (double) sum.sum() / n;
+        }
+
+        @Override
+        public long getMax() {
+            return max.get();
+        }
+
+        @Override
+        public long getP50() {
+            return percentile(0.50);
+        }
+
+        @Override
+        public long getP90() {
+            return percentile(0.90);
+        }
+
+        @Override
+        public long getP99() {
+            return percentile(0.99);
+        }
+
+        @Override
+        public String describe() {
+            return String.format("count=%d, mean=%.1f, p50=%d, p90=%d, p99=%d, max=%d", getCount(), getMean(), getP50(), getP90(), getP99(), getMax());
+        }
+
+        private long percentile(double quantile) {
+            long total = 0;
+            for (int i = 0; i < bucketCounts.length(); i++) {
+                total += bucketCounts.get(i);
+            }
+            if (total == 0) {
+                return 0;
+            }
+            long rank = (long) Math.ceil(quantile * total);
+            long seen = 0;
+            for (int i = 0; i < bucketCounts.length(); i++) {
+                seen += bucketCounts.get(i);
+                if (seen >= rank) {
+                    return Math.min(bucketUpperBound(i), getMax());
+                }
+            }
+            return getMax();
+        }
+
+        private static int bucketIndex(long value) {
+            if (value < SUB_BUCKET_COUNT) {
+                return (int) value;
+            }
+            int exponent = 63 - Long.numberOfLeadingZeros(value);
+            int subBucket = (int) (value >>> (exponent - SUB_BUCKET_BITS)) & (SUB_BUCKET_COUNT - 1);
+            return (exponent - SUB_BUCKET_BITS + 1) * SUB_BUCKET_COUNT + subBucket;
+        }
+
+        private static long bucketUpperBound(int index) {
+            if (index < SUB_BUCKET_COUNT) {
+                return index;
+            }
+            int exponent = index / SUB_BUCKET_COUNT + SUB_BUCKET_BITS - 1;
+            long subBucket = index % SUB_BUCKET_COUNT;
+            return ((SUB_BUCKET_COUNT + subBucket + 1) << (exponent - SUB_BUCKET_BITS)) - 1;
+        }
+    }
+
+    public interface GaugeMXBean {
+        long getValue();
+    }
+
+    public static class Gauge implements Metric, GaugeMXBean {
+        private final AtomicLong value = new AtomicLong();
+
+        public void set(long newValue) {
+            value.set(newValue);
+        }
+
+        @Override
+        public long getValue() {
+            return value.get();
+        }
+
+        @Override
+        public String describe() {
+            return "value=" + getValue();
+        }
+    }
+
+    /**
+     * The metrics of a kinesis shard.
+     */
+    public static class ShardMetrics {
+        public final Meter records;
+        public final Meter compressedBytes;
+        public final Meter decompressedBytes;
+        public final Histogram getRecordsLatencyMillis;
+        // the getRecords latency of all the stream's shards
+        public final Histogram streamGetRecordsLatencyMillis;
+        public final Gauge millisBehindLatest;
+        public final Meter throttled;
+
+        private ShardMetrics(MetricsRegistry registry, String streamPrefix, String shardId) {
+            String prefix = streamPrefix + "." + shardId;
+            this.records = registry.meter(prefix + ".records");
+            this.compressedBytes = registry.meter(prefix + ".compressedBytes");
+            this.decompressedBytes = registry.meter(prefix + ".decompressedBytes");
+            this.getRecordsLatencyMillis = registry.histogram(prefix + ".getRecordsLatencyMillis");
+            this.streamGetRecordsLatencyMillis = registry.histogram(streamPrefix + ".getRecordsLatencyMillis");
+            this.millisBehindLatest = registry.gauge(prefix + ".millisBehindLatest");
+            this.throttled = registry.meter(prefix + ".throttled");
+        }
+    }
+
+    /**
+     * The metrics of a kafka topic partition.
+     */
+    public static class PartitionMetrics {
+        public final Meter records;
+        public final Meter compressedBytes;
+        public final Meter decompressedBytes;
+        public final Gauge lag;
+
+        private PartitionMetrics(MetricsRegistry registry, String prefix) {
+            this.records = registry.meter(prefix + ".records");
+            this.compressedBytes = registry.meter(prefix + ".compressedBytes");
+            this.decompressedBytes = registry.meter(prefix + ".decompressedBytes");
+            this.lag = registry.gauge(prefix + ".lag");
+        }
+    }
+
+    /**
+     * The partition metrics of a topic indexed by partition number, so that a lookup does not box the partition.
+     */
+    private static class TopicMetrics {
+        private final MetricsRegistry registry;
+        private final String topic;
+        private volatile PartitionMetrics[] partitionMetricsArr = new PartitionMetrics[0];
+
+        private TopicMetrics(MetricsRegistry registry, String topic) {
+            this.registry = registry;
+            this.topic = topic;
+        }
+
+        private PartitionMetrics get(int partition) {
+            PartitionMetrics[] arr = partitionMetricsArr;
+            if (partition < arr.length && arr[partition] != null) {
+                return arr[partition];
+            }
+            return create(partition);
+        }
+
+        private synchronized PartitionMetrics create(int partition) {
+            PartitionMetrics[] arr = partitionMetricsArr;
+            if (partition >= arr.length) {
+                PartitionMetrics[] grown = new PartitionMetrics[partition + 1];
+                System.arraycopy(arr, 0, grown, 0, arr.length);
+                arr = grown;
+            } else if (arr[partition] != null) {
+                return arr[partition];
+            } else {
+                arr = arr.clone();
+            }
+            arr[partition] = new PartitionMetrics(registry, "kafka." + topic + "." + partition);
+            partitionMetricsArr = arr;
+            return arr[partition];
+        }
+    }
+}
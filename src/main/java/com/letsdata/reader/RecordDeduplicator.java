@@ -0,0 +1,216 @@
+package com.letsdata.reader;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Drops the records that have already been delivered - the replays after an expired iterator / re-subscription, a
+ * reshard or a kafka rebalance (the records between the last commit and the revocation are re-polled by the next owner
+ * of the partition, which can be this process again).
+ *
+ * - positions: a high-watermark per shard / partition - a kinesis record whose sequence number (or a kafka record whose
+ *   offset) is not above the highest one seen in its shard / partition is a duplicate. One entry per shard / partition.
+ * - content (optional): a 64 bit hash of the record's bytes in a fixed capacity set of the most recently seen hashes, for
+ *   duplicates that were written twice (producer retries) and so have different positions. The set holds the last
+ *   contentHashCapacity hashes (first in, first out) in primitive long arrays - 24 bytes per hash, allocated up front.
+ *
+ * Memory is bounded by the number of shards / partitions and the content hash capacity, not by the stream size. A
+ * shard / partition must be checked from one thread at a time (records of a shard are processed in order), different
+ * shards can be checked concurrently. The state is in memory - a restarted reader resumes from its --checkpointFile.
+ */
+public class RecordDeduplicator {
+    private static final int STRIPE_COUNT = 16;
+
+    private final Map<String, Watermark> watermarkMap = new ConcurrentHashMap<>();
+    private final RecentHashSet[] recentHashStripes;
+
+    /**
+     * @param contentHashCapacity the number of recent content hashes to remember, 0 to dedup by position only
+     */
+    public RecordDeduplicator(int contentHashCapacity) {
+        if (contentHashCapacity > 0) {
+            this.recentHashStripes = new RecentHashSet[STRIPE_COUNT];
+            for (int i = 0; i < STRIPE_COUNT; i++) {
+                recentHashStripes[i] = new RecentHashSet(Math.max(1, (contentHashCapacity + STRIPE_COUNT - 1) / STRIPE_COUNT));
+            }
+        } else {
+            this.recentHashStripes = null;
+        }
+    }
+
+    /**
+     * @param shardKey       the shard, e.g. {@link CheckpointStore#kinesisShardKey(String, String)}
+     * @param sequenceNumber the kinesis sequence number of the record
+     * @param data           the record data for the content hash - its position and limit are not changed
+     * @return true the first time the record is seen
+     */
+    public boolean isFirst(String shardKey, String sequenceNumber, ByteBuffer data) {
+        Watermark watermark = watermarkMap.computeIfAbsent(shardKey, key -> new Watermark());
+        String highSequenceNumber = watermark.sequenceNumber;
+        if (highSequenceNumber != null && compareSequenceNumbers(sequenceNumber, highSequenceNumber) <= 0) {
+            return false;
+        }
+        watermark.sequenceNumber = sequenceNumber;
+        return isFirstContent(data);
+    }
+
+    /**
+     * @param partitionKey the partition, e.g. {@link CheckpointStore#kafkaPartitionKey(String, int)}
+     * @param offset       the kafka offset of the record
+     * @param data         the record value for the content hash (null for a null value) - its position and limit are not
+     *                     changed
+     * @return true the first time the record is seen
+     */
+    public boolean isFirst(String partitionKey, long offset, ByteBuffer data) {
+        Watermark watermark = watermarkMap.computeIfAbsent(partitionKey, key -> new Watermark());
+        if (offset <= watermark.offset) {
+            return false;
+        }
+        watermark.offset = offset;
+        if (offset <= watermark.replayOffset) {
+            // checked before the rollback but not delivered - the content hash in the set is this record's own
+            return true;
+        }
+        return data == null || isFirstContent(data);
+    }
+
+    /**
+     * Moves the partition's watermark back to offset - the records above it that were checked but then not delivered (a
+     * revoked partition whose records were not all handled) are first again when they are polled again. Up to the
+     * previous watermark, the content hashes are not checked: the hashes of these records are already in the set.
+     */
+    public void rollback(String partitionKey, long offset) {
+        Watermark watermark = watermarkMap.get(partitionKey);
+        if (watermark == null || offset >= watermark.offset) {
+            return;
+        }
+        watermark.replayOffset = Math.max(watermark.replayOffset, watermark.offset);
+        watermark.offset = offset;
+    }
+
+    private boolean isFirstContent(ByteBuffer data) {
+        if (recentHashStripes == null) {
+            return true;
+        }
+        long hash = hash(data);
+        return recentHashStripes[(int) (hash >>> 60)].add(hash);
+    }
+
+    /**
+     * Kinesis sequence numbers are decimal strings of up to 128 digits without leading zeros - a longer number is
+     * larger, numbers of the same length compare as strings.
+     */
+    static int compareSequenceNumbers(String left, String right) {
+        if (left.length() != right.length()) {
+            return left.length() < right.length() ? -1 : 1;
+        }
+        return left.compareTo(right);
+    }
+
+    /**
+     * A 64 bit hash of the buffer's remaining bytes - 8 bytes at a time, with the murmur3 finalizer mix.
+     */
+    static long hash(ByteBuffer data) {
+        ByteBuffer buffer = data.duplicate().order(ByteOrder.LITTLE_ENDIAN);
+        long hash = 0x9e3779b97f4a7c15L ^ buffer.remaining();
+        while (buffer.remaining() >= 8) {
+            hash = (hash ^ mix(buffer.getLong())) * 0x9e3779b97f4a7c15L;
+        }
+        long tail = 0;
+        int shift = 0;
+        while (buffer.hasRemaining()) {
+            tail |= (buffer.get() & 0xffL) << shift;
+            shift += 8;
+        }
+        return mix(hash ^ mix(tail));
+    }
+
+    private static long mix(long value) {
+        value ^= value >>> 33;
+        value *= 0xff51afd7ed558ccdL;
+        value ^= value >>> 33;
+        value *= 0xc4ceb9fe1a85ec53L;
+        value ^= value >>> 33;
+        return value;
+    }
+
+    private static class Watermark {
+        private volatile String sequenceNumber;
+        private volatile long offset = -1;
+        // the watermark before the last rollback
+        private volatile long replayOffset = -1;
+    }
+
+    /**
+     * An open addressing set of longs that holds the last capacity added values - adding to a full set evicts the oldest
+     * value (backward shift deletion, so there are no tombstones). 0 marks an empty slot, a 0 hash is stored as 1.
+     */
+    private static class RecentHashSet {
+        private final long[] table;
+        private final long[] insertionRing;
+        private final int mask;
+        private int ringPosition;
+        private int size;
+
+        private RecentHashSet(int capacity) {
+            int tableSize = Integer.highestOneBit(Math.max(2, capacity * 2 - 1)) << 1;
+            this.table = new long[tableSize];
+            this.mask = tableSize - 1;
+            this.insertionRing = new long[capacity];
+        }
+
+        /**
+         * @return true if the value was not in the set
+         */
+        private synchronized boolean add(long value) {
+            value = value == 0 ? 1 : value;
+            int slot = slot(value);
+            while (table[slot] != 0) {
+                if (table[slot] == value) {
+                    return false;
+                }
+                slot = (slot + 1) & mask;
+            }
+            if (size == insertionRing.length) {
+                remove(insertionRing[ringPosition]);
+                size--;
+                // the removal may have shifted the free slot that was found
+                slot = slot(value);
+                while (table[slot] != 0) {
+                    slot = (slot + 1) & mask;
+                }
+            }
+            table[slot] = value;
+            insertionRing[ringPosition] = value;
+            ringPosition = ringPosition + 1 == insertionRing.length ? 0 : ringPosition + 1;
+            size++;
+            return true;
+        }
+
+        private void remove(long value) {
+            int slot = slot(value);
+            while (table[slot] != value) {
+                slot = (slot + 1) & mask;
+            }
+            // shift the following entries of the probe run back into the hole
+            int hole = slot;
+            int next = (hole + 1) & mask;
+            while (table[next] != 0) {
+                int home = slot(table[next]);
+                // the entry at next can move to the hole if its home is not in (hole, next]
+                if (((next - home) & mask) >= ((next - hole) & mask)) {
+                    table[hole] = table[next];
+                    hole = next;
+                }
+                next = (next + 1) & mask;
+            }
+            table[hole] = 0;
+        }
+
+        private int slot(long value) {
+            return (int) (value ^ (value >>> 32)) & mask;
+        }
+    }
+}
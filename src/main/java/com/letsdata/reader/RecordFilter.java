@@ -0,0 +1,748 @@
+package com.letsdata.reader;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A record filter and / or projection over the write connector's json documents, evaluated on the decompressed bytes
+ * without building a String or any json objects.
+ *
+ * Filter expressions are predicates joined with && and || (&& binds tighter, no parentheses):
+ * <pre>
+ *   documentType == "WEB_PAGE" &amp;&amp; crawlTimestamp &gt;= 1685331931671 || errorCode exists
+ * </pre>
+ * - fields are dotted paths into nested objects (metadata.status). $key is the record key - the kinesis partition key
+ *   or the kafka key - and is checked before the record is decompressed
+ * - operators: == != &lt; &lt;= &gt; &gt;= ^= (string prefix), exists, missing
+ * - values: "strings", json numbers, true, false, null. Strings are compared with the raw (escaped) json string bytes,
+ *   numbers by value - parsed from the record bytes (exactly for up to 15 significant digits and small exponents, the
+ *   timestamps and counts of the records, longer numbers fall back to Double.parseDouble)
+ * - a predicate on a missing field is false, except != and missing
+ *
+ * Projections are comma separated field paths - the output is a json object of the found fields keyed by their paths,
+ * with the values copied as is: {"documentId":"...","metadata.status":200}.
+ *
+ * A record is scanned once, only the objects on the way to the requested fields are tokenized (every other value is
+ * skipped by bracket counting) and the scan stops as soon as every requested field has been found.
+ */
+public class RecordFilter {
+    public static final String KEY_FIELD = "$key";
+
+    private static final byte[] OPEN_BRACE = {'{'};
+    private static final byte[] CLOSE_BRACE = {'}'};
+    private static final byte[] COMMA = {','};
+    // a long holds any 18 digit mantissa
+    private static final int MAX_MANTISSA_DIGITS = 18;
+    // the powers of ten that are exact doubles
+    private static final double[] EXACT_POWERS_OF_TEN = {
+            1e0, 1e1, 1e2, 1e3, 1e4, 1e5, 1e6, 1e7, 1e8, 1e9, 1e10, 1e11, 1e12, 1e13, 1e14, 1e15, 1e16, 1e17, 1e18, 1e19, 1e20, 1e21, 1e22
+    };
+
+    private enum Operator {
+        EQ("=="), NE("!="), LE("<="), LT("<"), GE(">="), GT(">"), PREFIX("^="), EXISTS("exists"), MISSING("missing");
+
+        private final String symbol;
+
+        Operator(String symbol) {
+            this.symbol = symbol;
+        }
+    }
+
+    private static class Predicate {
+        private final String path;
+        private final Operator operator;
+        // the json encoding of the value (strings without their quotes), null for exists / missing
+        private final byte[] valueBytes;
+        private final String valueString;
+        // NaN if the value is not a number
+        private final double valueNumber;
+        private final boolean isStringValue;
+        private int fieldIndex = -1;
+
+        private Predicate(String path, Operator operator, String valueString, boolean isStringValue) {
+            this.path = path;
+            this.operator = operator;
+            this.valueString = valueString;
+            this.isStringValue = isStringValue;
+            this.valueBytes = valueString == null ? null : (isStringValue ? escape(valueString) : valueString).getBytes(StandardCharsets.UTF_8);
+            this.valueNumber = valueString == null || isStringValue ? Double.NaN : parseNumber(valueBytes, 0, valueBytes.length);
+        }
+
+        private boolean isKeyPredicate() {
+            return KEY_FIELD.equals(path);
+        }
+
+        private boolean evaluateKey(String key) {
+            if (key == null || operator == Operator.EXISTS || operator == Operator.MISSING) {
+                return key == null ? operator == Operator.NE || operator == Operator.MISSING : operator == Operator.EXISTS;
+            }
+            switch (operator) {
+                case EQ:
+                    return key.equals(valueString);
+                case NE:
+                    return !key.equals(valueString);
+                case PREFIX:
+                    return key.startsWith(valueString);
+                default:
+                    double keyNumber = parseKeyNumber(key);
+                    return !Double.isNaN(keyNumber) && !Double.isNaN(valueNumber) && compare(Double.compare(keyNumber, valueNumber));
+            }
+        }
+
+        private boolean evaluate(byte[] bytes, int start, int end) {
+            if (start < 0 || operator == Operator.EXISTS || operator == Operator.MISSING) {
+                return start < 0 ? operator == Operator.NE || operator == Operator.MISSING : operator == Operator.EXISTS;
+            }
+            boolean isString = bytes[start] == '"';
+            switch (operator) {
+                case EQ:
+                case NE: {
+                    boolean equal = isString == isStringValue && (isString ? rangeEquals(bytes, start + 1, end - 1, valueBytes) : numberOrTokenEquals(bytes, start, end));
+                    return equal == (operator == Operator.EQ);
+                }
+                case PREFIX:
+                    return isString && isStringValue && end - 1 - (start + 1) >= valueBytes.length && rangeEquals(bytes, start + 1, start + 1 + valueBytes.length, valueBytes);
+                default: {
+                    if (isString || Double.isNaN(valueNumber)) {
+                        return false;
+                    }
+                    double fieldNumber = parseNumber(bytes, start, end);
+                    return !Double.isNaN(fieldNumber) && compare(Double.compare(fieldNumber, valueNumber));
+                }
+            }
+        }
+
+        private boolean numberOrTokenEquals(byte[] bytes, int start, int end) {
+            if (rangeEquals(bytes, start, end, valueBytes)) {
+                return true;
+            }
+            // 1.0 == 1, 1e3 == 1000
+            if (Double.isNaN(valueNumber) || !(bytes[start] == '-' || isDigit(bytes[start]))) {
+                return false;
+            }
+            double fieldNumber = parseNumber(bytes, start, end);
+            return !Double.isNaN(fieldNumber) && Double.compare(fieldNumber, valueNumber) == 0;
+        }
+
+        private boolean compare(int comparison) {
+            switch (operator) {
+                case LT:
+                    return comparison < 0;
+                case LE:
+                    return comparison <= 0;
+                case GT:
+                    return comparison > 0;
+                case GE:
+                    return comparison >= 0;
+                default:
+                    return false;
+            }
+        }
+    }
+
+    /**
+     * A node of the requested field paths - the scan only descends into objects that are nodes.
+     */
+    private static class PathNode {
+        private final byte[] name;
+        private final List<PathNode> childList = new ArrayList<>();
+        private int fieldIndex = -1;
+
+        private PathNode(byte[] name) {
+            this.name = name;
+        }
+
+        private PathNode child(byte[] bytes, int nameStart, int nameEnd) {
+            for (int i = 0; i < childList.size(); i++) {
+                PathNode child = childList.get(i);
+                if (rangeEquals(bytes, nameStart, nameEnd, child.name)) {
+                    return child;
+                }
+            }
+            return null;
+        }
+    }
+
+    private final List<List<Predicate>> orGroupList;
+    private final List<String> projectionPathList;
+    private final byte[][] projectionNameBytes;
+    private final int[] projectionFieldIndexes;
+    private final PathNode rootNode = new PathNode(new byte[0]);
+    private final int fieldCount;
+    private final boolean usesKey;
+    private final ThreadLocal<Matcher> threadLocalMatcher = ThreadLocal.withInitial(Matcher::new);
+
+    private RecordFilter(List<List<Predicate>> orGroupList, List<String> projectionPathList) {
+        this.orGroupList = orGroupList;
+        this.projectionPathList = projectionPathList;
+        Map<String, Integer> fieldIndexMap = new LinkedHashMap<>();
+        boolean keyPredicate = false;
+        for (List<Predicate> andGroup : orGroupList) {
+            for (Predicate predicate : andGroup) {
+                if (predicate.isKeyPredicate()) {
+                    keyPredicate = true;
+                } else {
+                    predicate.fieldIndex = addPath(fieldIndexMap, predicate.path);
+                }
+            }
+        }
+        this.usesKey = keyPredicate;
+        this.projectionNameBytes = new byte[projectionPathList.size()][];
+        this.projectionFieldIndexes = new int[projectionPathList.size()];
+        for (int i = 0; i < projectionPathList.size(); i++) {
+            String path = projectionPathList.get(i);
+            projectionNameBytes[i] = ("\"" + escape(path) + "\":").getBytes(StandardCharsets.UTF_8);
+            projectionFieldIndexes[i] = addPath(fieldIndexMap, path);
+        }
+        this.fieldCount = fieldIndexMap.size();
+    }
+
+    /**
+     * @param filterExpression the filter expression, null to match every record
+     * @param projectionFields the comma separated field paths to output, null to output the whole records
+     * @return the filter, or null if there is neither a filter expression nor a projection
+     */
+    public static RecordFilter parse(String filterExpression, String projectionFields) {
+        if ((filterExpression == null || filterExpression.trim().isEmpty()) && (projectionFields == null || projectionFields.trim().isEmpty())) {
+            return null;
+        }
+        List<List<Predicate>> orGroupList = filterExpression == null || filterExpression.trim().isEmpty() ? new ArrayList<>() : new ExpressionParser(filterExpression).parse();
+        List<String> projectionPathList = new ArrayList<>();
+        if (projectionFields != null) {
+            for (String path : projectionFields.split(",")) {
+                if (!path.trim().isEmpty()) {
+                    if (KEY_FIELD.equals(path.trim())) {
+                        throw new IllegalArgumentException("the record key " + KEY_FIELD + " cannot be projected");
+                    }
+                    projectionPathList.add(path.trim());
+                }
+            }
+        }
+        return new RecordFilter(orGroupList, projectionPathList);
+    }
+
+    /**
+     * @return true if the filter has predicates on the record key - callers can skip decoding the key otherwise
+     */
+    public boolean usesKey() {
+        return usesKey;
+    }
+
+    /**
+     * @return the calling thread's matcher - matchers hold the field positions of the last matched record
+     */
+    public Matcher matcher() {
+        return threadLocalMatcher.get();
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder stringBuilder = new StringBuilder();
+        for (List<Predicate> andGroup : orGroupList) {
+            if (stringBuilder.length() > 0) {
+                stringBuilder.append(" || ");
+            }
+            for (int i = 0; i < andGroup.size(); i++) {
+                Predicate predicate = andGroup.get(i);
+                stringBuilder.append(i > 0 ? " && " : "").append(predicate.path).append(' ').append(predicate.operator.symbol);
+                if (predicate.valueString != null) {
+                    stringBuilder.append(' ').append(predicate.isStringValue ? "\"" + predicate.valueString + "\"" : predicate.valueString);
+                }
+            }
+        }
+        return "RecordFilter{filter: " + stringBuilder + ", fields: " + projectionPathList + "}";
+    }
+
+    public class Matcher {
+        private final int[] fieldStarts = new int[fieldCount];
+        private final int[] fieldEnds = new int[fieldCount];
+        private byte[] copyBuffer = new byte[0];
+        private byte[] bytes;
+        private int foundCount;
+
+        private Matcher() {
+        }
+
+        /**
+         * @return true if the record key alone rules the record out - checked before the record is decompressed
+         */
+        public boolean rejectsKey(String key) {
+            if (!usesKey) {
+                return false;
+            }
+            for (List<Predicate> andGroup : orGroupList) {
+                boolean keyRejected = false;
+                for (Predicate predicate : andGroup) {
+                    if (predicate.isKeyPredicate() && !predicate.evaluateKey(key)) {
+                        keyRejected = true;
+                        break;
+                    }
+                }
+                if (!keyRejected) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        /**
+         * Scans the decompressed record for the filter and projection fields and evaluates the filter. The record buffer's
+         * position and limit are not changed. Records that are not json objects have none of the fields.
+         */
+        public boolean matches(String key, ByteBuffer record) {
+            int start;
+            int end;
+            if (record.hasArray()) {
+                bytes = record.array();
+                start = record.arrayOffset() + record.position();
+                end = record.arrayOffset() + record.limit();
+            } else {
+                if (copyBuffer.length < record.remaining()) {
+                    copyBuffer = new byte[record.remaining()];
+                }
+                record.duplicate().get(copyBuffer, 0, record.remaining());
+                bytes = copyBuffer;
+                start = 0;
+                end = record.remaining();
+            }
+            Arrays.fill(fieldStarts, -1);
+            foundCount = 0;
+            if (fieldCount > 0) {
+                try {
+                    int position = skipWhitespace(start, end);
+                    if (position < end && bytes[position] == '{') {
+                        scanObject(position, end, rootNode);
+                    }
+                } catch (MalformedJsonException ex) {
+                    // fields found before the malformed part are kept
+                }
+            }
+
+            if (orGroupList.isEmpty()) {
+                return true;
+            }
+            for (List<Predicate> andGroup : orGroupList) {
+                boolean groupMatches = true;
+                for (Predicate predicate : andGroup) {
+                    boolean predicateMatches = predicate.isKeyPredicate() ? predicate.evaluateKey(key) : predicate.evaluate(bytes, fieldStarts[predicate.fieldIndex], fieldEnds[predicate.fieldIndex]);
+                    if (!predicateMatches) {
+                        groupMatches = false;
+                        break;
+                    }
+                }
+                if (groupMatches) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        /**
+         * Writes the last matched record to the sink - the projection if there are projection fields, the whole record
+         * otherwise.
+         */
+        public void write(ByteBuffer record, GZipDecoder.Sink sink) {
+            if (projectionFieldIndexes.length == 0) {
+                if (record.hasArray()) {
+                    sink.write(record.array(), record.arrayOffset() + record.position(), record.remaining());
+                } else {
+                    sink.write(bytes, 0, record.remaining());
+                }
+                return;
+            }
+            sink.write(OPEN_BRACE, 0, 1);
+            boolean first = true;
+            for (int i = 0; i < projectionFieldIndexes.length; i++) {
+                int fieldIndex = projectionFieldIndexes[i];
+                if (fieldStarts[fieldIndex] < 0) {
+                    continue;
+                }
+                if (!first) {
+                    sink.write(COMMA, 0, 1);
+                }
+                first = false;
+                sink.write(projectionNameBytes[i], 0, projectionNameBytes[i].length);
+                sink.write(bytes, fieldStarts[fieldIndex], fieldEnds[fieldIndex] - fieldStarts[fieldIndex]);
+            }
+            sink.write(CLOSE_BRACE, 0, 1);
+        }
+
+        /**
+         * @return the position after the object, or -1 once every field has been found
+         */
+        private int scanObject(int position, int end, PathNode node) {
+            position = skipWhitespace(position + 1, end);
+            if (position < end && bytes[position] == '}') {
+                return position + 1;
+            }
+            while (true) {
+                if (position >= end || bytes[position] != '"') {
+                    throw MalformedJsonException.INSTANCE;
+                }
+                int nameEnd = stringEnd(position, end);
+                PathNode child = node.child(bytes, position + 1, nameEnd);
+                position = skipWhitespace(nameEnd + 1, end);
+                if (position >= end || bytes[position] != ':') {
+                    throw MalformedJsonException.INSTANCE;
+                }
+                int valueStart = skipWhitespace(position + 1, end);
+                if (child == null) {
+                    position = skipValue(valueStart, end);
+                } else {
+                    if (!child.childList.isEmpty() && valueStart < end && bytes[valueStart] == '{') {
+                        position = scanObject(valueStart, end, child);
+                        if (position < 0) {
+                            return -1;
+                        }
+                    } else {
+                        position = skipValue(valueStart, end);
+                    }
+                    // the first occurrence of a duplicate name wins
+                    if (child.fieldIndex >= 0 && fieldStarts[child.fieldIndex] < 0) {
+                        fieldStarts[child.fieldIndex] = valueStart;
+                        fieldEnds[child.fieldIndex] = position;
+                        if (++foundCount == fieldCount) {
+                            return -1;
+                        }
+                    }
+                }
+                position = skipWhitespace(position, end);
+                if (position >= end) {
+                    throw MalformedJsonException.INSTANCE;
+                }
+                if (bytes[position] == '}') {
+                    return position + 1;
+                }
+                if (bytes[position] != ',') {
+                    throw MalformedJsonException.INSTANCE;
+                }
+                position = skipWhitespace(position + 1, end);
+            }
+        }
+
+        private int skipValue(int position, int end) {
+            if (position >= end) {
+                throw MalformedJsonException.INSTANCE;
+            }
+            byte first = bytes[position];
+            if (first == '"') {
+                return stringEnd(position, end) + 1;
+            }
+            if (first == '{' || first == '[') {
+                int depth = 0;
+                while (position < end) {
+                    byte b = bytes[position];
+                    if (b == '"') {
+                        position = stringEnd(position, end);
+                    } else if (b == '{' || b == '[') {
+                        depth++;
+                    } else if ((b == '}' || b == ']') && --depth == 0) {
+                        return position + 1;
+                    }
+                    position++;
+                }
+                throw MalformedJsonException.INSTANCE;
+            }
+            // number, true, false, null
+            int valueEnd = position;
+            while (valueEnd < end) {
+                byte b = bytes[valueEnd];
+                if (b == ',' || b == '}' || b == ']' || b == ' ' || b == '\n' || b == '\r' || b == '\t') {
+                    break;
+                }
+                valueEnd++;
+            }
+            return valueEnd;
+        }
+
+        /**
+         * @return the position of the closing quote of the string that starts at position
+         */
+        private int stringEnd(int position, int end) {
+            position++;
+            while (position < end) {
+                byte b = bytes[position];
+                if (b == '"') {
+                    return position;
+                }
+                position += b == '\\' ? 2 : 1;
+            }
+            throw MalformedJsonException.INSTANCE;
+        }
+
+        private int skipWhitespace(int position, int end) {
+            while (position < end) {
+                byte b = bytes[position];
+                if (b != ' ' && b != '\n' && b != '\r' && b != '\t') {
+                    break;
+                }
+                position++;
+            }
+            return position;
+        }
+    }
+
+    private static class MalformedJsonException extends RuntimeException {
+        private static final MalformedJsonException INSTANCE = new MalformedJsonException();
+
+        private MalformedJsonException() {
+            super("Malformed json record", null, false, false);
+        }
+    }
+
+    private int addPath(Map<String, Integer> fieldIndexMap, String path) {
+        Integer fieldIndex = fieldIndexMap.get(path);
+        if (fieldIndex != null) {
+            return fieldIndex;
+        }
+        PathNode node = rootNode;
+        for (String name : path.split("\\.")) {
+            if (name.isEmpty()) {
+                throw new IllegalArgumentException("Invalid field path " + path);
+            }
+            byte[] nameBytes = escape(name).getBytes(StandardCharsets.UTF_8);
+            PathNode child = null;
+            for (PathNode existingChild : node.childList) {
+                if (Arrays.equals(existingChild.name, nameBytes)) {
+                    child = existingChild;
+                }
+            }
+            if (child == null) {
+                child = new PathNode(nameBytes);
+                node.childList.add(child);
+            }
+            node = child;
+        }
+        node.fieldIndex = fieldIndexMap.size();
+        fieldIndexMap.put(path, node.fieldIndex);
+        return node.fieldIndex;
+    }
+
+    private static boolean rangeEquals(byte[] bytes, int start, int end, byte[] expected) {
+        if (end - start != expected.length) {
+            return false;
+        }
+        for (int i = 0; i < expected.length; i++) {
+            if (bytes[start + i] != expected[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Parses the json number in bytes[start, end) without building a String.
+     *
+     * @return the number, NaN if the bytes are not a json number
+     */
+    static double parseNumber(byte[] bytes, int start, int end) {
+        int position = start;
+        boolean negative = position < end && bytes[position] == '-';
+        if (negative) {
+            position++;
+        }
+        long mantissa = 0;
+        int exponent = 0;
+        // a digit beyond MAX_MANTISSA_DIGITS was dropped - the fast path would not be exact
+        boolean truncated = false;
+        int digitCount = 0;
+        int integerStart = position;
+        while (position < end && isDigit(bytes[position])) {
+            if (digitCount < MAX_MANTISSA_DIGITS) {
+                mantissa = mantissa * 10 + (bytes[position] - '0');
+                digitCount += mantissa > 0 ? 1 : 0;
+            } else {
+                exponent++;
+                truncated |= bytes[position] != '0';
+            }
+            position++;
+        }
+        if (position == integerStart) {
+            return Double.NaN;
+        }
+        if (position < end && bytes[position] == '.') {
+            int fractionStart = ++position;
+            while (position < end && isDigit(bytes[position])) {
+                if (digitCount < MAX_MANTISSA_DIGITS) {
+                    mantissa = mantissa * 10 + (bytes[position] - '0');
+                    digitCount += mantissa > 0 ? 1 : 0;
+                    exponent--;
+                } else {
+                    truncated |= bytes[position] != '0';
+                }
+                position++;
+            }
+            if (position == fractionStart) {
+                return Double.NaN;
+            }
+        }
+        if (position < end && (bytes[position] == 'e' || bytes[position] == 'E')) {
+            position++;
+            boolean negativeExponent = position < end && bytes[position] == '-';
+            if (position < end && (bytes[position] == '-' || bytes[position] == '+')) {
+                position++;
+            }
+            int exponentStart = position;
+            int explicitExponent = 0;
+            while (position < end && isDigit(bytes[position])) {
+                // beyond any double - the exact value does not matter
+                explicitExponent = Math.min(100000, explicitExponent * 10 + (bytes[position] - '0'));
+                position++;
+            }
+            if (position == exponentStart) {
+                return Double.NaN;
+            }
+            exponent += negativeExponent ? -explicitExponent : explicitExponent;
+        }
+        if (position != end) {
+            return Double.NaN;
+        }
+        if (truncated || mantissa >= 1L << 53 || Math.abs(exponent) >= EXACT_POWERS_OF_TEN.length) {
+            // the rare long or very large / small numbers
+            return Double.parseDouble(new String(bytes, start, end - start, StandardCharsets.US_ASCII));
+        }
+        // both operands are exact doubles, so the one rounding of the multiply / divide gives the correctly rounded value
+        double value = exponent >= 0 ? mantissa * EXACT_POWERS_OF_TEN[exponent] : mantissa / EXACT_POWERS_OF_TEN[-exponent];
+        return negative ? -value : value;
+    }
+
+    /**
+     * The record key is a String already - parsed with Double.parseDouble.
+     *
+     * @return the key as a number, NaN if it is not a number
+     */
+    private static double parseKeyNumber(String key) {
+        try {
+            return Double.parseDouble(key);
+        } catch (NumberFormatException ex) {
+            return Double.NaN;
+        }
+    }
+
+    private static boolean isDigit(byte b) {
+        return b >= '0' && b <= '9';
+    }
+
+    private static String escape(String value) {
+        StringBuilder stringBuilder = new StringBuilder(value.length());
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c == '"' || c == '\\') {
+                stringBuilder.append('\\').append(c);
+            } else if (c < 0x20) {
+                stringBuilder.append(String.format("\\u%04x", (int) c));
+            } else {
+                stringBuilder.append(c);
+            }
+        }
+        return stringBuilder.toString();
+    }
+
+    /**
+     * predicate (&& predicate)* (|| predicate (&& predicate)*)*
+     */
+    private static class ExpressionParser {
+        private final String expression;
+        private int position;
+
+        private ExpressionParser(String expression) {
+            this.expression = expression;
+        }
+
+        private List<List<Predicate>> parse() {
+            List<List<Predicate>> orGroupList = new ArrayList<>();
+            List<Predicate> andGroup = new ArrayList<>();
+            andGroup.add(parsePredicate());
+            while (true) {
+                skipWhitespace();
+                if (position >= expression.length()) {
+                    break;
+                }
+                if (expression.startsWith("&&", position)) {
+                    position += 2;
+                    andGroup.add(parsePredicate());
+                } else if (expression.startsWith("||", position)) {
+                    position += 2;
+                    orGroupList.add(andGroup);
+                    andGroup = new ArrayList<>();
+                    andGroup.add(parsePredicate());
+                } else {
+                    throw error("expected && or ||");
+                }
+            }
+            orGroupList.add(andGroup);
+            return orGroupList;
+        }
+
+        private Predicate parsePredicate() {
+            skipWhitespace();
+            int pathStart = position;
+            while (position < expression.length() && isPathChar(expression.charAt(position))) {
+                position++;
+            }
+            if (position == pathStart) {
+                throw error("expected a field path");
+            }
+            String path = expression.substring(pathStart, position);
+            skipWhitespace();
+            for (Operator operator : Operator.values()) {
+                if (expression.startsWith(operator.symbol, position)) {
+                    position += operator.symbol.length();
+                    if (operator == Operator.EXISTS || operator == Operator.MISSING) {
+                        return new Predicate(path, operator, null, false);
+                    }
+                    skipWhitespace();
+                    if (position < expression.length() && expression.charAt(position) == '"') {
+                        return new Predicate(path, operator, parseString(), true);
+                    }
+                    int valueStart = position;
+                    while (position < expression.length() && !Character.isWhitespace(expression.charAt(position)) && expression.charAt(position) != '&' && expression.charAt(position) != '|') {
+                        position++;
+                    }
+                    String value = expression.substring(valueStart, position);
+                    byte[] valueBytes = value.getBytes(StandardCharsets.UTF_8);
+                    if (!value.equals("true") && !value.equals("false") && !value.equals("null") && Double.isNaN(parseNumber(valueBytes, 0, valueBytes.length))) {
+                        throw error("expected a \"string\", number, true, false or null value");
+                    }
+                    return new Predicate(path, operator, value, false);
+                }
+            }
+            throw error("expected an operator (== != < <= > >= ^= exists missing)");
+        }
+
+        private String parseString() {
+            StringBuilder stringBuilder = new StringBuilder();
+            position++;
+            while (position < expression.length()) {
+                char c = expression.charAt(position++);
+                if (c == '"') {
+                    return stringBuilder.toString();
+                }
+                if (c == '\\' && position < expression.length()) {
+                    c = expression.charAt(position++);
+                }
+                stringBuilder.append(c);
+            }
+            throw error("unterminated string");
+        }
+
+        private void skipWhitespace() {
+            while (position < expression.length() && Character.isWhitespace(expression.charAt(position))) {
+                position++;
+            }
+        }
+
+        private static boolean isPathChar(char c) {
+            return Character.isLetterOrDigit(c) || c == '_' || c == '.' || c == '$' || c == '-';
+        }
+
+        private IllegalArgumentException error(String message) {
+            return new IllegalArgumentException("Invalid filter expression at position " + position + " - " + message + ": " + expression);
+        }
+    }
+}
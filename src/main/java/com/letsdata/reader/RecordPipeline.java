@@ -0,0 +1,702 @@
+package com.letsdata.reader;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * The stream reader pipeline of the drain / tail modes - fetch, decode and emit stages connected by bounded
+ * {@link RingBuffer}s, each stage with its own threads:
+ *
+ * - fetch: the ShardRecordSource's threads read the shards and put the compressed records in the fetch ring buffer
+ * - decode: decodeThreadCount lanes inflate the records and format the output lines into large chunks. The calling
+ *   thread routes the records to the lanes by shard, so the records of a shard are emitted (and checkpointed) in order
+ * - emit: one thread writes the chunks to the output stream and flushes when it has no more chunks to write
+ *
+ * Chunks hold whole records only, so the lines of different lanes never interleave. Chunks are pooled and a record is
+ * checkpointed only after its chunk has been flushed. The pool bounds the decoded bytes in flight. The chunk bytes are
+ * off-heap slabs of a {@link DirectBufferPool} (written to the output with a channel, a FileOutputStream's without a
+ * copy), a record larger than a slab spans several slabs and the compressed data of a record is dropped once it has been
+ * decoded - the heap in use follows the number of in-flight records, not their sizes.
+ *
+ * With a {@link RecordFilter} the decode lanes drop the records that the filter rejects - by partition key before they
+ * are inflated, by their fields after - and emit the projected fields only. With a {@link RecordDeduplicator} they
+ * drop the records that have already been emitted. Dropped records are still checkpointed in order with the emitted
+ * ones.
+ *
+ * With a {@link RecordSink} the lanes write length prefixed records instead of output lines and the emit thread hands
+ * them to the sink. The sink is flushed every SINK_FLUSH_INTERVAL_MILLIS and the records are checkpointed after the
+ * sink flush - a columnar sink writes a row group per flush.
+ *
+ * With key affinity the calling thread routes the records to the lanes by partition key instead of by shard - the records
+ * of a key stay in order and a hot shard is decoded on every lane. The records of a shard then complete out of order, so
+ * each shard's checkpoint advances through a {@link CompletionWatermark} - only up to the last record whose predecessors
+ * have all been emitted on every lane. The deduplicator (which needs a shard's records in order) runs on the calling
+ * thread in this mode.
+ */
+public class RecordPipeline {
+    private static final Logger logger = LoggerFactory.getLogger(RecordPipeline.class);
+
+    private static final int CHUNK_SIZE = 64 * 1024;
+    private static final int CHUNKS_PER_LANE = 4;
+    // a chunk of mostly filtered out records is handed off at this many records, so their checkpoints keep moving
+    private static final int MAX_RECORDS_PER_CHUNK = 4096;
+    // the emit stage wakes up this often without chunks, so the sink is still flushed on time
+    private static final long EMIT_POLL_MILLIS = 100;
+    private static final long SINK_FLUSH_INTERVAL_MILLIS = 5000;
+    private static final ShardRecord END_OF_RECORDS = new ShardRecord(null, null);
+    private static final byte[] RECORD_PREFIX = ", record: ".getBytes(StandardCharsets.UTF_8);
+    private static final byte[] NEWLINE = {'\n'};
+
+    private final ShardRecordSource shardRecordSource;
+    private final BlockingQueue<ShardRecord> fetchQueue;
+    private final String streamName;
+    private final OutputStream outputStream;
+    private final WritableByteChannel outputChannel;
+    private final RecordSink recordSink;
+    private final RecordFilter recordFilter;
+    private final RecordDeduplicator recordDeduplicator;
+    // key affinity only - the checkpoint position of each shard
+    private final Map<String, CompletionWatermark<ShardRecord>> completionWatermarkMap;
+    // key affinity only, accessed from the routing thread
+    private final Map<String, String> routingShardKeyMap = new HashMap<>();
+    private final List<DecodeLane> decodeLaneList = new ArrayList<>();
+    private final RingBuffer<OutputChunk> outputRing;
+    private final RingBuffer<OutputChunk> freeChunkRing;
+    private final AtomicLong emittedRecordCount = new AtomicLong();
+    private final AtomicReference<Throwable> failure = new AtomicReference<>();
+    private String metricsStreamName;
+    private MetricsRegistry.Meter filteredRecords;
+    private MetricsRegistry.Meter duplicateRecords;
+    // created by run(), named after the metrics stream name
+    private DirectBufferPool bufferPool;
+
+    /**
+     * @param fetchQueue the record queue that the shardRecordSource puts the fetched records in, ideally a RingBuffer
+     */
+    public RecordPipeline(ShardRecordSource shardRecordSource, BlockingQueue<ShardRecord> fetchQueue, String streamName, OutputStream outputStream, int decodeThreadCount, int ringBufferDepth) {
+        this(shardRecordSource, fetchQueue, streamName, outputStream, decodeThreadCount, ringBufferDepth, null, null);
+    }
+
+    /**
+     * Emits the records to the recordSink instead of an output stream.
+     */
+    public RecordPipeline(ShardRecordSource shardRecordSource, BlockingQueue<ShardRecord> fetchQueue, String streamName, RecordSink recordSink, int decodeThreadCount, int ringBufferDepth, RecordFilter recordFilter, RecordDeduplicator recordDeduplicator) {
+        this(shardRecordSource, fetchQueue, streamName, null, recordSink, decodeThreadCount, ringBufferDepth, recordFilter, recordDeduplicator, false);
+    }
+
+    /**
+     * @param recordFilter       the filter / projection of the emitted records, null to emit every record as is
+     * @param recordDeduplicator drops the records that have already been emitted, null to emit the replayed records too
+     */
+    public RecordPipeline(ShardRecordSource shardRecordSource, BlockingQueue<ShardRecord> fetchQueue, String streamName, OutputStream outputStream, int decodeThreadCount, int ringBufferDepth, RecordFilter recordFilter, RecordDeduplicator recordDeduplicator) {
+        this(shardRecordSource, fetchQueue, streamName, outputStream, null, decodeThreadCount, ringBufferDepth, recordFilter, recordDeduplicator, false);
+    }
+
+    /**
+     * @param outputStream the output of the text lines, null with a recordSink
+     * @param recordSink   the output of the records, null to write text lines to the outputStream
+     * @param keyAffinity  route the records to the decode lanes by partition key instead of by shard
+     */
+    public RecordPipeline(ShardRecordSource shardRecordSource, BlockingQueue<ShardRecord> fetchQueue, String streamName, OutputStream outputStream, RecordSink recordSink, int decodeThreadCount, int ringBufferDepth, RecordFilter recordFilter, RecordDeduplicator recordDeduplicator, boolean keyAffinity) {
+        this.shardRecordSource = shardRecordSource;
+        this.fetchQueue = fetchQueue;
+        this.streamName = streamName;
+        this.outputStream = outputStream;
+        // a file / stdout is written from the direct slabs as is, other streams through a small reused copy buffer
+        if (outputStream == null) {
+            this.outputChannel = null;
+        } else {
+            this.outputChannel = outputStream instanceof FileOutputStream ? ((FileOutputStream) outputStream).getChannel() : Channels.newChannel(outputStream);
+        }
+        this.recordSink = recordSink;
+        this.recordFilter = recordFilter;
+        this.recordDeduplicator = recordDeduplicator;
+        this.metricsStreamName = streamName;
+        this.filteredRecords = MetricsRegistry.getDefault().meter("kinesis." + streamName + ".filteredRecords");
+        this.duplicateRecords = MetricsRegistry.getDefault().meter("kinesis." + streamName + ".duplicateRecords");
+        this.completionWatermarkMap = keyAffinity ? new ConcurrentHashMap<>() : null;
+        for (int i = 0; i < decodeThreadCount; i++) {
+            decodeLaneList.add(new DecodeLane(i, ringBufferDepth));
+        }
+        int chunkCount = decodeThreadCount * CHUNKS_PER_LANE;
+        this.outputRing = new RingBuffer<>(chunkCount + decodeThreadCount);
+        this.freeChunkRing = new RingBuffer<>(chunkCount);
+        for (int i = 0; i < chunkCount; i++) {
+            freeChunkRing.offer(new OutputChunk());
+        }
+    }
+
+    /**
+     * Names the pipeline's metrics kinesis.&lt;metricsScope&gt;.&lt;streamName&gt;.* (and its buffer pool
+     * bufferPool.&lt;metricsScope&gt;.&lt;streamName&gt;) - the reader daemon scopes them by dataset, like the drainer's
+     * {@link KinesisStreamDrainer#setMetricsScope(String)}. Set before run().
+     */
+    public void setMetricsScope(String metricsScope) {
+        this.metricsStreamName = metricsScope + "." + streamName;
+        this.filteredRecords = MetricsRegistry.getDefault().meter("kinesis." + metricsStreamName + ".filteredRecords");
+        this.duplicateRecords = MetricsRegistry.getDefault().meter("kinesis." + metricsStreamName + ".duplicateRecords");
+    }
+
+    /**
+     * Starts the source and runs the pipeline until the source is done and every record has been emitted.
+     *
+     * @return the number of emitted records (the records dropped by the filter / deduplicator are not counted)
+     */
+    public long run() throws InterruptedException {
+        // a chunk holds one slab, plus the slabs of a record larger than a slab / a slab shared with the next chunk
+        bufferPool = new DirectBufferPool(metricsStreamName, CHUNK_SIZE, decodeLaneList.size() * CHUNKS_PER_LANE * 2);
+        Thread emitThread = new Thread(this::emit, "RecordPipeline-emit-" + streamName);
+        emitThread.setDaemon(true);
+        emitThread.start();
+        for (DecodeLane decodeLane : decodeLaneList) {
+            decodeLane.thread.start();
+        }
+
+        try {
+            shardRecordSource.start();
+            while ((!shardRecordSource.isDone() || !fetchQueue.isEmpty()) && failure.get() == null && shardRecordSource.getFailure() == null) {
+                ShardRecord shardRecord = fetchQueue.poll(1, TimeUnit.SECONDS);
+                if (shardRecord != null) {
+                    route(shardRecord);
+                }
+            }
+        } finally {
+            shardRecordSource.stop();
+            for (DecodeLane decodeLane : decodeLaneList) {
+                decodeLane.inputRing.put(END_OF_RECORDS);
+            }
+            for (DecodeLane decodeLane : decodeLaneList) {
+                decodeLane.thread.join();
+            }
+            emitThread.join();
+        }
+
+        if (shardRecordSource.getFailure() != null) {
+            throw new RuntimeException("Stream read failed", shardRecordSource.getFailure());
+        }
+        if (failure.get() != null) {
+            throw new RuntimeException("Record pipeline failed", failure.get());
+        }
+        return emittedRecordCount.get();
+    }
+
+    private void route(ShardRecord shardRecord) throws InterruptedException {
+        if (completionWatermarkMap == null) {
+            decodeLaneList.get((shardRecord.getShardId().hashCode() & 0x7fffffff) % decodeLaneList.size()).inputRing.put(shardRecord);
+            return;
+        }
+        CompletionWatermark<ShardRecord> completionWatermark = completionWatermarkMap.computeIfAbsent(shardRecord.getShardId(), shardId -> new CompletionWatermark<>(shardRecordSource::checkpoint));
+        shardRecord.setDispatchSequence(completionWatermark.add(shardRecord));
+        if (recordDeduplicator != null) {
+            String shardKey = routingShardKeyMap.computeIfAbsent(shardRecord.getShardId(), shardId -> CheckpointStore.kinesisShardKey(streamName, shardId));
+            if (!recordDeduplicator.isFirst(shardKey, shardRecord.getRecord().getSequenceNumber(), shardRecord.getRecord().getData())) {
+                duplicateRecords.mark();
+                shardRecord.getRecord().setData(null);
+                if (failure.get() == null) {
+                    completionWatermark.complete(shardRecord.getDispatchSequence());
+                }
+                return;
+            }
+        }
+        String partitionKey = shardRecord.getRecord().getPartitionKey();
+        int hash = partitionKey == null ? shardRecord.getShardId().hashCode() : partitionKey.hashCode();
+        decodeLaneList.get((hash & 0x7fffffff) % decodeLaneList.size()).inputRing.put(shardRecord);
+    }
+
+    /**
+     * Checkpoints an emitted / dropped record - with key affinity the shard's checkpoint only moves once the records
+     * before it have been emitted / dropped too.
+     */
+    private void checkpoint(ShardRecord shardRecord) {
+        if (completionWatermarkMap == null) {
+            shardRecordSource.checkpoint(shardRecord);
+        } else {
+            completionWatermarkMap.get(shardRecord.getShardId()).complete(shardRecord.getDispatchSequence());
+        }
+    }
+
+    private void emit() {
+        if (recordSink != null) {
+            emitToSink();
+            return;
+        }
+        List<OutputChunk> unflushedChunkList = new ArrayList<>();
+        int endedLaneCount = 0;
+        try {
+            // after a failure the chunks are still taken and recycled so the decode lanes never block on the pool
+            while (endedLaneCount < decodeLaneList.size()) {
+                OutputChunk chunk = outputRing.take();
+                if (chunk.endOfRecords) {
+                    endedLaneCount++;
+                    continue;
+                }
+                unflushedChunkList.add(chunk);
+                if (failure.get() == null) {
+                    try {
+                        for (ByteBuffer segment : chunk.segmentList) {
+                            while (segment.hasRemaining()) {
+                                outputChannel.write(segment);
+                            }
+                        }
+                    } catch (IOException ex) {
+                        onEmitFailure(ex);
+                    }
+                }
+                if (outputRing.isEmpty() || unflushedChunkList.size() >= decodeLaneList.size() * CHUNKS_PER_LANE / 2) {
+                    flush(unflushedChunkList);
+                }
+            }
+            flush(unflushedChunkList);
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void flush(List<OutputChunk> unflushedChunkList) {
+        if (failure.get() == null) {
+            try {
+                outputStream.flush();
+            } catch (IOException ex) {
+                onEmitFailure(ex);
+            }
+        }
+        for (OutputChunk chunk : unflushedChunkList) {
+            if (failure.get() == null) {
+                for (ShardRecord shardRecord : chunk.shardRecordList) {
+                    checkpoint(shardRecord);
+                }
+                emittedRecordCount.addAndGet(chunk.shardRecordList.size() - chunk.filteredRecordCount);
+            }
+            chunk.reset();
+            freeChunkRing.offer(chunk);
+        }
+        unflushedChunkList.clear();
+    }
+
+    /**
+     * The emit stage of the sink mode - the chunks are recycled as soon as their records have been written to the sink,
+     * only the last record of each shard is kept to be checkpointed after the next sink flush (every record with key
+     * affinity, they complete their shard's watermark).
+     */
+    private void emitToSink() {
+        Map<String, ShardRecord> pendingCheckpointMap = new LinkedHashMap<>();
+        List<ShardRecord> pendingCompletionList = new ArrayList<>();
+        long pendingRecordCount = 0;
+        long lastFlushTime = System.currentTimeMillis();
+        SegmentReader segmentReader = new SegmentReader();
+        int endedLaneCount = 0;
+        try {
+            // after a failure the chunks are still taken and recycled so the decode lanes never block on the pool
+            while (endedLaneCount < decodeLaneList.size()) {
+                OutputChunk chunk = outputRing.poll(EMIT_POLL_MILLIS, TimeUnit.MILLISECONDS);
+                if (chunk != null && chunk.endOfRecords) {
+                    endedLaneCount++;
+                    continue;
+                }
+                if (chunk != null) {
+                    if (failure.get() == null) {
+                        try {
+                            segmentReader.reset(chunk.segmentList);
+                            for (String shardId : chunk.sinkShardIdList) {
+                                recordSink.write(shardId, segmentReader.read(segmentReader.readInt()));
+                            }
+                            if (completionWatermarkMap != null) {
+                                pendingCompletionList.addAll(chunk.shardRecordList);
+                            } else {
+                                for (ShardRecord shardRecord : chunk.shardRecordList) {
+                                    pendingCheckpointMap.put(shardRecord.getShardId(), shardRecord);
+                                }
+                            }
+                            pendingRecordCount += chunk.shardRecordList.size() - chunk.filteredRecordCount;
+                        } catch (RuntimeException ex) {
+                            onEmitFailure(ex);
+                        }
+                    }
+                    chunk.reset();
+                    freeChunkRing.offer(chunk);
+                }
+                if (System.currentTimeMillis() - lastFlushTime >= SINK_FLUSH_INTERVAL_MILLIS) {
+                    flushSink(pendingCheckpointMap, pendingCompletionList, pendingRecordCount);
+                    pendingRecordCount = 0;
+                    lastFlushTime = System.currentTimeMillis();
+                }
+            }
+            flushSink(pendingCheckpointMap, pendingCompletionList, pendingRecordCount);
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void flushSink(Map<String, ShardRecord> pendingCheckpointMap, List<ShardRecord> pendingCompletionList, long pendingRecordCount) {
+        if (failure.get() == null && (!pendingCheckpointMap.isEmpty() || !pendingCompletionList.isEmpty())) {
+            try {
+                recordSink.flush();
+                // the store keeps the latest checkpoint of a shard - the last record of each shard is enough
+                for (ShardRecord shardRecord : pendingCheckpointMap.values()) {
+                    shardRecordSource.checkpoint(shardRecord);
+                }
+                for (ShardRecord shardRecord : pendingCompletionList) {
+                    checkpoint(shardRecord);
+                }
+                emittedRecordCount.addAndGet(pendingRecordCount);
+            } catch (RuntimeException ex) {
+                onEmitFailure(ex);
+            }
+        }
+        pendingCheckpointMap.clear();
+        pendingCompletionList.clear();
+    }
+
+    private void onEmitFailure(Exception ex) {
+        logger.error(streamName + " record pipeline emit threw an exception ", ex);
+        failure.compareAndSet(null, ex);
+    }
+
+    private static class OutputChunk {
+        private final List<ShardRecord> shardRecordList = new ArrayList<>();
+        // sink mode: the shard of each length prefixed record in the segments
+        private final List<String> sinkShardIdList = new ArrayList<>();
+        private final boolean endOfRecords;
+        // the written bytes in order - each segment is a view of the slab at the same index
+        private final List<ByteBuffer> segmentList = new ArrayList<>();
+        private final List<DirectBufferPool.Slab> slabList = new ArrayList<>();
+        // the slab being written, its buffer's position is the write position
+        private DirectBufferPool.Slab tailSlab;
+        // start of the record being written in the tail slab, -1 if it started in an earlier segment - a chunk is handed
+        // off at record boundaries only
+        private int recordStart;
+        // the records in the shardRecordList that were dropped by the filter / deduplicator - checkpointed but not emitted
+        private int filteredRecordCount;
+
+        private OutputChunk() {
+            this(false);
+        }
+
+        private OutputChunk(boolean endOfRecords) {
+            this.endOfRecords = endOfRecords;
+        }
+
+        private boolean isEmpty() {
+            return tailSlab == null && segmentList.isEmpty() && shardRecordList.isEmpty();
+        }
+
+        /**
+         * Ends the writes to the tail slab - its written bytes become the last segment.
+         */
+        private void sealTail() {
+            if (tailSlab == null) {
+                return;
+            }
+            ByteBuffer segment = tailSlab.buffer().duplicate();
+            segment.flip();
+            if (segment.hasRemaining()) {
+                segmentList.add(segment);
+                slabList.add(tailSlab);
+            } else {
+                tailSlab.release();
+            }
+            tailSlab = null;
+        }
+
+        private void reset() {
+            for (DirectBufferPool.Slab slab : slabList) {
+                slab.release();
+            }
+            if (tailSlab != null) {
+                tailSlab.release();
+                tailSlab = null;
+            }
+            segmentList.clear();
+            slabList.clear();
+            recordStart = 0;
+            filteredRecordCount = 0;
+            shardRecordList.clear();
+            sinkShardIdList.clear();
+        }
+    }
+
+    /**
+     * Reads the length prefixed records of a chunk's segments - a record is a view of its segment, or a copy when it
+     * spans segments.
+     */
+    private static class SegmentReader {
+        private List<ByteBuffer> segmentList;
+        private int segmentIndex;
+        private ByteBuffer segment;
+        private ByteBuffer scratch = ByteBuffer.allocate(CHUNK_SIZE);
+
+        private void reset(List<ByteBuffer> segmentList) {
+            this.segmentList = segmentList;
+            this.segmentIndex = 0;
+            this.segment = segmentList.isEmpty() ? null : segmentList.get(0).duplicate();
+        }
+
+        private int readInt() {
+            ByteBuffer bytes = read(4);
+            return bytes.getInt(bytes.position());
+        }
+
+        private ByteBuffer read(int length) {
+            if (length == 0) {
+                return ByteBuffer.allocate(0);
+            }
+            skipEmptySegments();
+            if (segment.remaining() >= length) {
+                ByteBuffer view = segment.slice();
+                view.limit(length);
+                segment.position(segment.position() + length);
+                return view;
+            }
+            if (scratch.capacity() < length) {
+                scratch = ByteBuffer.allocate(Math.max(length, scratch.capacity() * 2));
+            }
+            scratch.clear();
+            while (scratch.position() < length) {
+                skipEmptySegments();
+                ByteBuffer part = segment.slice();
+                part.limit(Math.min(part.remaining(), length - scratch.position()));
+                segment.position(segment.position() + part.remaining());
+                scratch.put(part);
+            }
+            scratch.flip();
+            return scratch;
+        }
+
+        private void skipEmptySegments() {
+            while (!segment.hasRemaining()) {
+                segment = segmentList.get(++segmentIndex).duplicate();
+            }
+        }
+    }
+
+    private class DecodeLane implements Runnable, GZipDecoder.Sink {
+        private final RingBuffer<ShardRecord> inputRing;
+        private final Thread thread;
+        private final Map<String, byte[]> shardPrefixMap = new HashMap<>();
+        private final Map<String, String> shardKeyMap = new HashMap<>();
+        private final Map<String, MetricsRegistry.ShardMetrics> shardMetricsMap = new HashMap<>();
+        private final ByteArraySink projectionSink = new ByteArraySink(4096);
+        private final byte[] lengthPrefix = new byte[4];
+        private OutputChunk chunk;
+
+        private DecodeLane(int index, int ringBufferDepth) {
+            this.inputRing = new RingBuffer<>(ringBufferDepth);
+            this.thread = new Thread(this, "RecordPipeline-decode-" + streamName + "-" + index);
+            this.thread.setDaemon(true);
+        }
+
+        @Override
+        public void run() {
+            GZipDecoder gZipDecoder = GZipDecoder.forCurrentThread();
+            try {
+                while (true) {
+                    ShardRecord shardRecord = inputRing.poll();
+                    if (shardRecord == null) {
+                        // the lane has caught up - its partial chunk is handed off right away, so tailed records are not
+                        // held back, and a busy lane still fills whole chunks
+                        handOff();
+                        shardRecord = inputRing.take();
+                    }
+                    if (shardRecord == END_OF_RECORDS) {
+                        break;
+                    }
+                    // after a failure the lane keeps taking (and drops) records so the routing thread never blocks on it
+                    if (failure.get() == null) {
+                        try {
+                            decode(gZipDecoder, shardRecord);
+                        } catch (RuntimeException ex) {
+                            logger.error(thread.getName() + " shardId " + shardRecord.getShardId() + " decode threw an exception ", ex);
+                            failure.compareAndSet(null, ex);
+                        }
+                    }
+                    // only the sequence number is needed from here on - the compressed bytes die young instead of living
+                    // until the chunk has been flushed
+                    shardRecord.getRecord().setData(null);
+                }
+                handOff();
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+            } finally {
+                outputRing.offer(new OutputChunk(true));
+            }
+        }
+
+        private void decode(GZipDecoder gZipDecoder, ShardRecord shardRecord) throws InterruptedException {
+            // with key affinity the records have been deduplicated by the routing thread
+            if (recordDeduplicator != null && completionWatermarkMap == null) {
+                String shardKey = shardKeyMap.computeIfAbsent(shardRecord.getShardId(), shardId -> CheckpointStore.kinesisShardKey(streamName, shardId));
+                if (!recordDeduplicator.isFirst(shardKey, shardRecord.getRecord().getSequenceNumber(), shardRecord.getRecord().getData())) {
+                    duplicateRecords.mark();
+                    drop(shardRecord);
+                    return;
+                }
+            }
+            ByteBuffer filteredRecord = null;
+            if (recordFilter != null) {
+                RecordFilter.Matcher matcher = recordFilter.matcher();
+                String partitionKey = shardRecord.getRecord().getPartitionKey();
+                if (matcher.rejectsKey(partitionKey)) {
+                    filteredRecords.mark();
+                    drop(shardRecord);
+                    return;
+                }
+                filteredRecord = gZipDecoder.decode(shardRecord.getRecord().getData());
+                shardMetrics(shardRecord.getShardId()).decompressedBytes.mark(gZipDecoder.getDecodedLength());
+                if (!matcher.matches(partitionKey, filteredRecord)) {
+                    filteredRecords.mark();
+                    drop(shardRecord);
+                    return;
+                }
+            }
+
+            if (recordSink != null) {
+                writeSinkRecord(gZipDecoder, shardRecord, filteredRecord);
+                return;
+            }
+            byte[] shardPrefix = shardPrefixMap.computeIfAbsent(shardRecord.getShardId(), shardId -> ("shardId: " + shardId).getBytes(StandardCharsets.UTF_8));
+            write(shardPrefix, 0, shardPrefix.length);
+            write(RECORD_PREFIX, 0, RECORD_PREFIX.length);
+            if (filteredRecord != null) {
+                recordFilter.matcher().write(filteredRecord, this);
+            } else {
+                gZipDecoder.decode(shardRecord.getRecord().getData(), this);
+                shardMetrics(shardRecord.getShardId()).decompressedBytes.mark(gZipDecoder.getDecodedLength());
+            }
+            write(NEWLINE, 0, NEWLINE.length);
+            OutputChunk outputChunk = currentChunk();
+            outputChunk.shardRecordList.add(shardRecord);
+            ByteBuffer tail = outputChunk.tailSlab.buffer();
+            outputChunk.recordStart = tail.position();
+            if (!tail.hasRemaining()) {
+                handOff();
+            }
+        }
+
+        // the lane's own lookup of its shards' metrics - no registry lookup per record
+        private MetricsRegistry.ShardMetrics shardMetrics(String shardId) {
+            return shardMetricsMap.computeIfAbsent(shardId, k -> MetricsRegistry.getDefault().getShardMetrics(metricsStreamName, k));
+        }
+
+        /**
+         * Sink mode - the record (or its projection) is written with an int length prefix, so the emit thread can split
+         * the chunk's bytes back into records.
+         */
+        private void writeSinkRecord(GZipDecoder gZipDecoder, ShardRecord shardRecord, ByteBuffer filteredRecord) throws InterruptedException {
+            ByteBuffer record;
+            if (filteredRecord != null) {
+                projectionSink.clear();
+                recordFilter.matcher().write(filteredRecord, projectionSink);
+                record = projectionSink.buffer();
+            } else {
+                record = gZipDecoder.decode(shardRecord.getRecord().getData());
+                shardMetrics(shardRecord.getShardId()).decompressedBytes.mark(gZipDecoder.getDecodedLength());
+            }
+            ByteBuffer.wrap(lengthPrefix).putInt(record.remaining());
+            write(lengthPrefix, 0, lengthPrefix.length);
+            write(record.array(), record.arrayOffset() + record.position(), record.remaining());
+            OutputChunk outputChunk = currentChunk();
+            outputChunk.shardRecordList.add(shardRecord);
+            outputChunk.sinkShardIdList.add(shardRecord.getShardId());
+            ByteBuffer tail = outputChunk.tailSlab.buffer();
+            outputChunk.recordStart = tail.position();
+            if (!tail.hasRemaining()) {
+                handOff();
+            }
+        }
+
+        /**
+         * A record rejected by the filter / deduplicator - it is checkpointed with its chunk and not written.
+         */
+        private void drop(ShardRecord shardRecord) throws InterruptedException {
+            OutputChunk outputChunk = currentChunk();
+            outputChunk.shardRecordList.add(shardRecord);
+            outputChunk.filteredRecordCount++;
+            if (outputChunk.shardRecordList.size() >= MAX_RECORDS_PER_CHUNK) {
+                handOff();
+            }
+        }
+
+        @Override
+        public void write(byte[] bytes, int offset, int length) {
+            try {
+                while (length > 0) {
+                    OutputChunk outputChunk = currentChunk();
+                    if (outputChunk.tailSlab == null || !outputChunk.tailSlab.buffer().hasRemaining()) {
+                        makeRoom(outputChunk);
+                        continue;
+                    }
+                    ByteBuffer tail = outputChunk.tailSlab.buffer();
+                    int count = Math.min(length, tail.remaining());
+                    tail.put(bytes, offset, count);
+                    offset += count;
+                    length -= count;
+                }
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+                throw new RuntimeException(ex);
+            }
+        }
+
+        /**
+         * The chunk has no tail slab yet, or it is full in the middle of a record. The chunk's complete records are handed
+         * off and the partial record moves to a new chunk, so the lines of different lanes never interleave - the new
+         * chunk shares the slab's partial record bytes instead of copying them. A record larger than a slab continues in
+         * another slab.
+         */
+        private void makeRoom(OutputChunk outputChunk) throws InterruptedException {
+            if (outputChunk.tailSlab != null) {
+                if (outputChunk.recordStart > 0) {
+                    OutputChunk nextChunk = freeChunkRing.take();
+                    ByteBuffer tail = outputChunk.tailSlab.buffer();
+                    ByteBuffer partialRecord = tail.duplicate();
+                    partialRecord.limit(tail.position());
+                    partialRecord.position(outputChunk.recordStart);
+                    nextChunk.segmentList.add(partialRecord.slice());
+                    nextChunk.slabList.add(outputChunk.tailSlab.retain());
+                    tail.position(outputChunk.recordStart);
+                    outputChunk.sealTail();
+                    outputRing.put(outputChunk);
+                    chunk = nextChunk;
+                    outputChunk = nextChunk;
+                } else {
+                    outputChunk.sealTail();
+                }
+            }
+            outputChunk.tailSlab = bufferPool.acquire();
+            outputChunk.recordStart = outputChunk.segmentList.isEmpty() ? 0 : -1;
+        }
+
+        private OutputChunk currentChunk() throws InterruptedException {
+            if (chunk == null) {
+                chunk = freeChunkRing.take();
+            }
+            return chunk;
+        }
+
+        private void handOff() throws InterruptedException {
+            if (chunk != null && !chunk.isEmpty()) {
+                chunk.sealTail();
+                outputRing.put(chunk);
+                chunk = null;
+            }
+        }
+    }
+}
@@ -0,0 +1,53 @@
+package com.letsdata.reader;
+
+import java.io.File;
+import java.nio.ByteBuffer;
+
+/**
+ * A file destination of the decompressed records of the drain / tail / consume modes, in place of the text written to
+ * stdout. The readers checkpoint a record only after a flush() that followed its write().
+ *
+ * - columnar ({@link ColumnarRecordSink}): the json records' top level fields as dictionary encoded, compressed
+ *   columns in row groups, read back column by column with {@link ColumnarRecordReader}
+ * - binary ({@link BinaryRecordSink}): length prefixed records, read back from memory mapped files with
+ *   {@link BinaryRecordReader}
+ *
+ * Sinks are not thread safe.
+ */
+public interface RecordSink extends AutoCloseable {
+    /**
+     * @param source the shard / partition of the record
+     * @param record the decompressed record - only valid during the call, its position and limit are not changed
+     */
+    void write(String source, ByteBuffer record);
+
+    /**
+     * Writes the buffered records to the current file.
+     */
+    void flush();
+
+    @Override
+    void close();
+
+    /**
+     * @param outputFormat "text", "columnar" or "binary"
+     * @param prefix       the file name prefix - the files are &lt;prefix&gt;-&lt;index&gt;.&lt;format suffix&gt;
+     * @return the sink of the output format, null for the text output
+     */
+    static RecordSink create(String outputFormat, File outputDir, String prefix, long maxFileBytes) {
+        if ("text".equals(outputFormat)) {
+            return null;
+        }
+        if (!outputDir.isDirectory() && !outputDir.mkdirs()) {
+            throw new RuntimeException("Could not create the output directory " + outputDir);
+        }
+        switch (outputFormat) {
+            case "columnar":
+                return new ColumnarRecordSink(new RollingFileWriter(outputDir, prefix, ColumnarRecordSink.SUFFIX, maxFileBytes, ColumnarRecordSink.WRITE_BUFFER_SIZE));
+            case "binary":
+                return new BinaryRecordSink(new RollingFileWriter(outputDir, prefix, BinaryRecordSink.SUFFIX, maxFileBytes, BinaryRecordSink.WRITE_BUFFER_SIZE));
+            default:
+                throw new IllegalArgumentException("Unknown output format " + outputFormat);
+        }
+    }
+}
@@ -0,0 +1,203 @@
+package com.letsdata.reader;
+
+import com.amazonaws.services.kinesis.model.Record;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Replays the records of local files as a stream - the files written by the export mode (jsonl.gz / jsonl, the shard is
+ * in the file name) or the binary outputFormat (ldbin, the shard is the record source) - so the decode and output
+ * stages of the {@link RecordPipeline} can be run and profiled without AWS.
+ *
+ * The records are loaded and gzipped (as the write connector writes them to the stream) up front, so the replay itself
+ * only queues them. The shards are queued round robin, a batch of REPLAY_BATCH_SIZE records of each shard at a time, like
+ * the shard readers' getRecords batches. The export files do not keep the partition keys - each replayed record has a
+ * distinct partition key. Nothing is checkpointed.
+ */
+public class ReplayShardRecordSource implements ShardRecordSource {
+    private static final Logger logger = LoggerFactory.getLogger(ReplayShardRecordSource.class);
+
+    private static final int REPLAY_BATCH_SIZE = 500;
+    private static final String INDEX_SUFFIX_REGEX = "-\\d+$";
+
+    private final Map<String, List<ByteBuffer>> shardRecordMap = new LinkedHashMap<>();
+    private final BlockingQueue<ShardRecord> recordQueue;
+    private final int passCount;
+    private final AtomicReference<Throwable> failure = new AtomicReference<>();
+    private long recordCount;
+    private long compressedByteCount;
+    private Thread replayThread;
+    private volatile boolean done;
+    private volatile boolean stopped;
+
+    /**
+     * @param input     a file or a directory of jsonl.gz / jsonl / ldbin files
+     * @param passCount the number of times the records are replayed
+     */
+    public ReplayShardRecordSource(File input, BlockingQueue<ShardRecord> recordQueue, int passCount) throws IOException {
+        this.recordQueue = recordQueue;
+        this.passCount = passCount;
+        File[] files = input.isDirectory() ? input.listFiles() : new File[]{input};
+        if (files == null) {
+            throw new IOException("Could not list the files in " + input);
+        }
+        Arrays.sort(files);
+        for (File file : files) {
+            String fileName = file.getName();
+            if (fileName.endsWith("." + BinaryRecordSink.SUFFIX)) {
+                loadBinaryFile(file);
+            } else if (fileName.endsWith(".jsonl.gz")) {
+                try (InputStream inputStream = new GZIPInputStream(new FileInputStream(file))) {
+                    loadLines(shardId(fileName, ".jsonl.gz"), readFully(inputStream));
+                }
+            } else if (fileName.endsWith(".jsonl")) {
+                loadLines(shardId(fileName, ".jsonl"), Files.readAllBytes(file.toPath()));
+            } else if (!input.isDirectory()) {
+                throw new IOException("The file " + file + " is not a jsonl.gz, jsonl or " + BinaryRecordSink.SUFFIX + " file");
+            }
+        }
+        if (recordCount == 0) {
+            throw new IOException("There are no records to replay in " + input);
+        }
+        logger.info("loaded " + recordCount + " records of " + shardRecordMap.size() + " shards, " + compressedByteCount + " compressed bytes");
+    }
+
+    /**
+     * @return the number of loaded records - each pass replays these
+     */
+    public long getRecordCount() {
+        return recordCount;
+    }
+
+    public long getCompressedByteCount() {
+        return compressedByteCount;
+    }
+
+    @Override
+    public void start() {
+        replayThread = new Thread(this::replay, "ReplayShardRecordSource");
+        replayThread.setDaemon(true);
+        replayThread.start();
+    }
+
+    @Override
+    public boolean isDone() {
+        return done;
+    }
+
+    @Override
+    public Throwable getFailure() {
+        return failure.get();
+    }
+
+    @Override
+    public void checkpoint(ShardRecord shardRecord) {
+    }
+
+    @Override
+    public void stop() {
+        stopped = true;
+        if (replayThread != null) {
+            replayThread.interrupt();
+        }
+    }
+
+    private void replay() {
+        try {
+            long sequenceNumber = 0;
+            for (int pass = 0; pass < passCount && !stopped; pass++) {
+                boolean queued = true;
+                for (int batchStart = 0; queued && !stopped; batchStart += REPLAY_BATCH_SIZE) {
+                    queued = false;
+                    for (Map.Entry<String, List<ByteBuffer>> entry : shardRecordMap.entrySet()) {
+                        List<ByteBuffer> recordList = entry.getValue();
+                        int batchEnd = Math.min(recordList.size(), batchStart + REPLAY_BATCH_SIZE);
+                        for (int i = batchStart; i < batchEnd; i++) {
+                            // the pipeline drops the record's data after decoding it - each replay gets its own record
+                            String sequence = Long.toString(sequenceNumber++);
+                            Record record = new Record().withData(recordList.get(i).duplicate()).withPartitionKey(sequence).withSequenceNumber(sequence);
+                            recordQueue.put(new ShardRecord(entry.getKey(), record));
+                            queued = true;
+                        }
+                    }
+                }
+            }
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        } catch (Throwable ex) {
+            logger.error("replay threw an exception ", ex);
+            failure.compareAndSet(null, ex);
+        } finally {
+            done = true;
+        }
+    }
+
+    private void loadBinaryFile(File file) throws IOException {
+        BinaryRecordReader binaryRecordReader = new BinaryRecordReader(file);
+        while (binaryRecordReader.next()) {
+            // the record is a view of the mapped file
+            byte[] record = new byte[binaryRecordReader.record().remaining()];
+            binaryRecordReader.record().duplicate().get(record);
+            addRecord(binaryRecordReader.source(), record, 0, record.length);
+        }
+    }
+
+    private void loadLines(String shardId, byte[] bytes) throws IOException {
+        int lineStart = 0;
+        for (int i = 0; i <= bytes.length; i++) {
+            if (i == bytes.length || bytes[i] == '\n') {
+                if (i > lineStart) {
+                    addRecord(shardId, bytes, lineStart, i - lineStart);
+                }
+                lineStart = i + 1;
+            }
+        }
+    }
+
+    private void addRecord(String shardId, byte[] bytes, int offset, int length) throws IOException {
+        ByteArrayOutputStream byteArrayOutputStream = new ByteArrayOutputStream(length / 4 + 64);
+        try (GZIPOutputStream gzipOutputStream = new GZIPOutputStream(byteArrayOutputStream)) {
+            gzipOutputStream.write(bytes, offset, length);
+        }
+        byte[] compressed = byteArrayOutputStream.toByteArray();
+        shardRecordMap.computeIfAbsent(shardId, k -> new ArrayList<>()).add(ByteBuffer.wrap(compressed));
+        recordCount++;
+        compressedByteCount += compressed.length;
+    }
+
+    /**
+     * @return the shard id of an export file - the files are named &lt;streamName&gt;-&lt;runId&gt;-&lt;shardId&gt;-&lt;index&gt;.&lt;suffix&gt;
+     */
+    private static String shardId(String fileName, String suffix) {
+        String prefix = fileName.substring(0, fileName.length() - suffix.length()).replaceFirst(INDEX_SUFFIX_REGEX, "");
+        int shardIdStart = prefix.lastIndexOf("shardId-");
+        return shardIdStart >= 0 ? prefix.substring(shardIdStart) : prefix;
+    }
+
+    private static byte[] readFully(InputStream inputStream) throws IOException {
+        ByteArrayOutputStream byteArrayOutputStream = new ByteArrayOutputStream();
+        byte[] buffer = new byte[64 * 1024];
+        int count;
+        while ((count = inputStream.read(buffer)) > 0) {
+            byteArrayOutputStream.write(buffer, 0, count);
+        }
+        return byteArrayOutputStream.toByteArray();
+    }
+}
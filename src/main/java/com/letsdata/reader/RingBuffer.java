@@ -0,0 +1,219 @@
+package com.letsdata.reader;
+
+import java.util.AbstractQueue;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * A bounded, lock-free, multi producer / multi consumer ring buffer (the sequence-per-slot array queue design).
+ *
+ * offer / poll never lock - producers and consumers claim slots with a CAS on their cursor and publish with a per slot
+ * sequence. The blocking put / take / timed poll spin briefly and then park in short increments instead of waiting on a
+ * lock, so the stages of a pipeline hand off records without lock contention. Implements BlockingQueue so it can be used
+ * wherever the readers take a record queue.
+ *
+ * The capacity is rounded up to the next power of two (a slot is a mask of the cursor) - a RingBuffer of 10000 holds
+ * up to 16384 elements, see {@link #capacity()}.
+ */
+public class RingBuffer<E> extends AbstractQueue<E> implements BlockingQueue<E> {
+    private static final int SPIN_COUNT = 100;
+    private static final long MAX_PARK_NANOS = TimeUnit.MILLISECONDS.toNanos(1);
+
+    private final int mask;
+    private final AtomicReferenceArray<E> elements;
+    private final AtomicLongArray sequences;
+    private final AtomicLong producerCursor = new AtomicLong();
+    private final AtomicLong consumerCursor = new AtomicLong();
+
+    /**
+     * @param capacity the minimum capacity - rounded up to the next power of two
+     */
+    public RingBuffer(int capacity) {
+        int size = Integer.highestOneBit(Math.max(2, capacity) - 1) << 1;
+        this.mask = size - 1;
+        this.elements = new AtomicReferenceArray<>(size);
+        this.sequences = new AtomicLongArray(size);
+        for (int i = 0; i < size; i++) {
+            sequences.set(i, i);
+        }
+    }
+
+    /**
+     * @return the actual capacity - the requested capacity rounded up to a power of two
+     */
+    public int capacity() {
+        return mask + 1;
+    }
+
+    @Override
+    public boolean offer(E e) {
+        if (e == null) {
+            throw new NullPointerException();
+        }
+        while (true) {
+            long position = producerCursor.get();
+            int index = (int) position & mask;
+            long difference = sequences.get(index) - position;
+            if (difference == 0) {
+                if (producerCursor.compareAndSet(position, position + 1)) {
+                    elements.lazySet(index, e);
+                    sequences.set(index, position + 1);
+                    return true;
+                }
+            } else if (difference < 0) {
+                // the slot still holds the element of the previous lap - full
+                return false;
+            }
+        }
+    }
+
+    @Override
+    public E poll() {
+        while (true) {
+            long position = consumerCursor.get();
+            int index = (int) position & mask;
+            long difference = sequences.get(index) - (position + 1);
+            if (difference == 0) {
+                if (consumerCursor.compareAndSet(position, position + 1)) {
+                    E e = elements.get(index);
+                    elements.lazySet(index, null);
+                    sequences.set(index, position + mask + 1);
+                    return e;
+                }
+            } else if (difference < 0) {
+                // the slot has not been published yet - empty
+                return null;
+            }
+        }
+    }
+
+    @Override
+    public E peek() {
+        long position = consumerCursor.get();
+        int index = (int) position & mask;
+        return sequences.get(index) == position + 1 ? elements.get(index) : null;
+    }
+
+    @Override
+    public void put(E e) throws InterruptedException {
+        int idleCount = 0;
+        while (!offer(e)) {
+            idleCount = idle(idleCount);
+        }
+    }
+
+    @Override
+    public boolean offer(E e, long timeout, TimeUnit unit) throws InterruptedException {
+        long deadlineNanos = System.nanoTime() + unit.toNanos(timeout);
+        int idleCount = 0;
+        while (!offer(e)) {
+            if (System.nanoTime() >= deadlineNanos) {
+                return false;
+            }
+            idleCount = idle(idleCount);
+        }
+        return true;
+    }
+
+    @Override
+    public E take() throws InterruptedException {
+        int idleCount = 0;
+        E e;
+        while ((e = poll()) == null) {
+            idleCount = idle(idleCount);
+        }
+        return e;
+    }
+
+    @Override
+    public E poll(long timeout, TimeUnit unit) throws InterruptedException {
+        long deadlineNanos = System.nanoTime() + unit.toNanos(timeout);
+        int idleCount = 0;
+        E e;
+        while ((e = poll()) == null) {
+            if (System.nanoTime() >= deadlineNanos) {
+                return null;
+            }
+            idleCount = idle(idleCount);
+        }
+        return e;
+    }
+
+    private static int idle(int idleCount) throws InterruptedException {
+        if (Thread.interrupted()) {
+            throw new InterruptedException();
+        }
+        if (idleCount < SPIN_COUNT) {
+            Thread.yield();
+        } else {
+            // back off up to MAX_PARK_NANOS so an idle stage does not burn a core
+            LockSupport.parkNanos(Math.min(MAX_PARK_NANOS, 1000L << Math.min(idleCount - SPIN_COUNT, 10)));
+        }
+        return idleCount + 1;
+    }
+
+    @Override
+    public int size() {
+        long size = producerCursor.get() - consumerCursor.get();
+        return (int) Math.max(0, Math.min(size, mask + 1));
+    }
+
+    @Override
+    public boolean isEmpty() {
+        return producerCursor.get() == consumerCursor.get();
+    }
+
+    @Override
+    public int remainingCapacity() {
+        return mask + 1 - size();
+    }
+
+    @Override
+    public int drainTo(Collection<? super E> c) {
+        return drainTo(c, Integer.MAX_VALUE);
+    }
+
+    @Override
+    public int drainTo(Collection<? super E> c, int maxElements) {
+        int count = 0;
+        E e;
+        while (count < maxElements && (e = poll()) != null) {
+            c.add(e);
+            count++;
+        }
+        return count;
+    }
+
+    /**
+     * A weakly consistent iterator - a snapshot of the elements published between the consumer and the producer cursors
+     * when it is created. It never throws ConcurrentModificationException, elements polled or offered after that may or
+     * may not be seen and remove is not supported.
+     */
+    @Override
+    public Iterator<E> iterator() {
+        List<E> snapshot = new ArrayList<>();
+        long producerPosition = producerCursor.get();
+        for (long position = consumerCursor.get(); position < producerPosition; position++) {
+            int index = (int) position & mask;
+            if (sequences.get(index) != position + 1) {
+                // not published yet, or already polled (and possibly reused by the next lap)
+                continue;
+            }
+            E e = elements.get(index);
+            // the element is only ours if the slot was not polled while it was being read
+            if (e != null && sequences.get(index) == position + 1) {
+                snapshot.add(e);
+            }
+        }
+        return Collections.unmodifiableList(snapshot).iterator();
+    }
+}
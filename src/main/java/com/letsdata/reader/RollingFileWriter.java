@@ -0,0 +1,144 @@
+package com.letsdata.reader;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Writes records to a series of size-rolled files through a FileChannel and a large direct buffer.
+ *
+ * Files are named {@code <prefix>-<index>.<suffix>} with a zero padded index. A new file is started at the first record
+ * boundary ({@link #endRecord()}) after the current file reaches maxFileBytes, so a record is never split across files.
+ * Not thread safe.
+ */
+public class RollingFileWriter implements GZipDecoder.Sink, AutoCloseable {
+    private static final Logger logger = LoggerFactory.getLogger(RollingFileWriter.class);
+
+    private final File directory;
+    private final String prefix;
+    private final String suffix;
+    private final long maxFileBytes;
+    private final ByteBuffer buffer;
+    private FileChannel fileChannel;
+    private long fileBytes;
+    private int fileIndex;
+
+    public RollingFileWriter(File directory, String prefix, String suffix, long maxFileBytes, int bufferSize) {
+        this.directory = directory;
+        this.prefix = prefix;
+        this.suffix = suffix;
+        this.maxFileBytes = maxFileBytes;
+        this.buffer = ByteBuffer.allocateDirect(bufferSize);
+    }
+
+    @Override
+    public void write(byte[] bytes, int offset, int length) {
+        openIfNeeded();
+        while (length > 0) {
+            if (!buffer.hasRemaining()) {
+                flushBuffer();
+            }
+            int count = Math.min(length, buffer.remaining());
+            buffer.put(bytes, offset, count);
+            offset += count;
+            length -= count;
+            fileBytes += count;
+        }
+    }
+
+    /**
+     * Writes the buffer's remaining bytes. The buffer's position is not changed.
+     */
+    public void write(ByteBuffer data) {
+        openIfNeeded();
+        ByteBuffer source = data.duplicate();
+        while (source.hasRemaining()) {
+            if (!buffer.hasRemaining()) {
+                flushBuffer();
+            }
+            int count = Math.min(source.remaining(), buffer.remaining());
+            int limit = source.limit();
+            source.limit(source.position() + count);
+            buffer.put(source);
+            source.limit(limit);
+            fileBytes += count;
+        }
+    }
+
+    /**
+     * Marks a record boundary - the file is rolled here if it has reached the max file size.
+     */
+    public void endRecord() {
+        if (fileChannel != null && fileBytes >= maxFileBytes) {
+            closeFile();
+        }
+    }
+
+    /**
+     * @return true if a file is open - the next write starts a new file otherwise
+     */
+    public boolean isFileOpen() {
+        return fileChannel != null;
+    }
+
+    /**
+     * Writes the buffered bytes to the current file.
+     */
+    public void flush() {
+        if (fileChannel != null) {
+            flushBuffer();
+        }
+    }
+
+    @Override
+    public void close() {
+        if (fileChannel != null) {
+            closeFile();
+        }
+    }
+
+    private void openIfNeeded() {
+        if (fileChannel != null) {
+            return;
+        }
+        File file = new File(directory, String.format("%s-%05d.%s", prefix, fileIndex++, suffix));
+        try {
+            fileChannel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE);
+        } catch (FileAlreadyExistsException ex) {
+            // an existing file is never overwritten or appended to
+            throw new RuntimeException("The file " + file + " already exists - write to an empty directory or use another file prefix", ex);
+        } catch (IOException ex) {
+            throw new RuntimeException("Unexpected exception in creating the file " + file, ex);
+        }
+        fileBytes = 0;
+        logger.debug("writing " + file);
+    }
+
+    private void flushBuffer() {
+        buffer.flip();
+        try {
+            while (buffer.hasRemaining()) {
+                fileChannel.write(buffer);
+            }
+        } catch (IOException ex) {
+            throw new RuntimeException("Unexpected exception in writing the file", ex);
+        }
+        buffer.clear();
+    }
+
+    private void closeFile() {
+        flushBuffer();
+        try {
+            fileChannel.close();
+        } catch (IOException ex) {
+            throw new RuntimeException("Unexpected exception in closing the file", ex);
+        }
+        fileChannel = null;
+    }
+}
@@ -0,0 +1,134 @@
+package com.letsdata.reader;
+
+import com.amazonaws.services.s3.model.S3ObjectSummary;
+import net.sourceforge.argparse4j.ArgumentParsers;
+import net.sourceforge.argparse4j.inf.ArgumentParser;
+import net.sourceforge.argparse4j.inf.ArgumentParserException;
+import net.sourceforge.argparse4j.inf.Namespace;
+import software.amazon.awssdk.utils.StringUtils;
+
+import java.io.BufferedOutputStream;
+import java.io.FileDescriptor;
+import java.io.FileOutputStream;
+import java.io.PrintStream;
+import java.io.UnsupportedEncodingException;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+public class S3Main {
+    private static final int STDOUT_BUFFER_SIZE = 256 * 1024;
+
+    // $ > s3_reader listObjects --bucketName 'bucketName' --prefix 'prefix' --customerAccessRoleArn 'customerAccessRoleArn' --externalId 'externalId' --awsRegion 'awsRegion' --awsAccessKeyId 'awsAccessKeyId' --awsSecretKey 'awsSecretKey'
+    // $ > s3_reader getObject --bucketName 'bucketName' --key 'key' --customerAccessRoleArn 'customerAccessRoleArn' --externalId 'externalId' --awsRegion 'awsRegion' --awsAccessKeyId 'awsAccessKeyId' --awsSecretKey 'awsSecretKey'
+    // $ > s3_reader drain --bucketName 'bucketName' --prefix 'prefix' --customerAccessRoleArn 'customerAccessRoleArn' --externalId 'externalId' --awsRegion 'awsRegion' --awsAccessKeyId 'awsAccessKeyId' --awsSecretKey 'awsSecretKey' --threadCount 16
+    public static void main(String[] args) {
+        ArgumentParser parser = ArgumentParsers.newFor("letsdatawriteconnector").build();
+        parser.addArgument("action").choices("listObjects", "getObject", "drain").required(true).help("The s3 error destination action. [\"listObjects\" - list the error objects under the --prefix, \"getObject\" - print the error records of the --key object, \"drain\" - print the error records of every object under the --prefix]");
+        parser.addArgument("--awsRegion").required(false).type(String.class).help("The awsRegion - default to us-east-1").setDefault("us-east-1");
+        parser.addArgument("--awsAccessKeyId").required(true).type(String.class).help("The awsAccessKeyId for the customerAccountForAccess for the dataset");
+        parser.addArgument("--customerAccessRoleArn").required(true).type(String.class).help("The customerAccessRoleArn from the dataset that has the been granted the access to the error destination");
+        parser.addArgument("--externalId").required(true).type(String.class).help("The externalId for the sts assumeRole. This is the dataset createDatetime.");
+        parser.addArgument("--awsSecretKey").required(true).type(String.class).help("The awsSecretKey for the customerAccountForAccess for the dataset");
+        parser.addArgument("--bucketName").required(true).type(String.class).help("The error destination bucket name");
+        parser.addArgument("--prefix").required(false).type(String.class).help("The key prefix of the error objects for the listObjects / drain actions - default to the whole bucket").setDefault("");
+        parser.addArgument("--key").required(false).type(String.class).help("The object key for the getObject action");
+        parser.addArgument("--threadCount").required(false).type(Integer.class).help("The number of threads that list the prefix and read the objects in parallel - default to 8").setDefault(8);
+        parser.addArgument("--partSizeMB").required(false).type(Integer.class).help("Objects larger than this are downloaded with concurrent range GETs of this size - default to 8").setDefault(S3Reader.DEFAULT_PART_SIZE / (1024 * 1024));
+        parser.addArgument("--partConcurrency").required(false).type(Integer.class).help("The number of range GETs in flight per object - default to 4").setDefault(S3Reader.DEFAULT_PART_CONCURRENCY);
+        parser.addArgument("--metricsIntervalSeconds").required(false).type(Integer.class).help("Log the throughput and latency metrics every these many seconds (they are always available through JMX) - default to 0, not logged").setDefault(0);
+
+        try {
+            Namespace namespace = parser.parseArgs(args);
+
+            String action = namespace.get("action");
+            if (StringUtils.isBlank(action)) {
+                throw new ArgumentParserException("action should not be blank", parser);
+            }
+
+            String region = namespace.getString("awsRegion");
+            String bucketName = namespace.getString("bucketName");
+            String customerAccessRoleArn = namespace.getString("customerAccessRoleArn");
+            String externalId = namespace.getString("externalId");
+            STSUtil stsUtil = new STSUtil(region, namespace.getString("awsAccessKeyId"), namespace.getString("awsSecretKey"));
+            String roleAccessPolicyText = "{\n" +
+                    "    \"Version\": \"2012-10-17\",\n" +
+                    "    \"Statement\": [\n" +
+                    "        {\n" +
+                    "            \"Effect\": \"Allow\",\n" +
+                    "            \"Action\": \"s3:ListBucket\",\n" +
+                    "            \"Resource\": \"arn:aws:s3:::" + bucketName + "\"\n" +
+                    "        },\n" +
+                    "        {\n" +
+                    "            \"Effect\": \"Allow\",\n" +
+                    "            \"Action\": \"s3:GetObject\",\n" +
+                    "            \"Resource\": \"arn:aws:s3:::" + bucketName + "/*\"\n" +
+                    "        }\n" +
+                    "    ]\n" +
+                    "}";
+
+            if (namespace.getInt("metricsIntervalSeconds") > 0) {
+                MetricsRegistry.getDefault().startDump(TimeUnit.SECONDS.toMillis(namespace.getInt("metricsIntervalSeconds")));
+            }
+
+            String roleSessionName = "S3Reader" + System.currentTimeMillis();
+            S3Reader s3Reader = new S3Reader(region, stsUtil, customerAccessRoleArn, externalId, roleAccessPolicyText, roleSessionName, null);
+            int partSize = namespace.getInt("partSizeMB") * 1024 * 1024;
+            int partConcurrency = namespace.getInt("partConcurrency");
+            // one buffered write per chunk instead of a flush per record
+            PrintStream stdout = new PrintStream(new BufferedOutputStream(new FileOutputStream(FileDescriptor.out), STDOUT_BUFFER_SIZE), false, StandardCharsets.UTF_8.name());
+            switch (action) {
+                case "listObjects": {
+                    AtomicLong objectCount = new AtomicLong();
+                    s3Reader.listObjects(bucketName, namespace.getString("prefix"), namespace.getInt("threadCount"), objectSummary -> {
+                        stdout.println(objectSummary.getKey() + "\t" + objectSummary.getSize());
+                        objectCount.incrementAndGet();
+                    });
+                    stdout.flush();
+                    System.out.println("listObjects complete - objectCount: " + objectCount.get());
+                    break;
+                }
+                case "getObject": {
+                    String key = namespace.getString("key");
+                    if (key == null) {
+                        throw new ArgumentParserException("the getObject action requires a key", parser);
+                    }
+                    S3ObjectSummary objectSummary = null;
+                    for (S3ObjectSummary listedObjectSummary : s3Reader.listObjects(bucketName, key, 1)) {
+                        if (key.equals(listedObjectSummary.getKey())) {
+                            objectSummary = listedObjectSummary;
+                        }
+                    }
+                    if (objectSummary == null) {
+                        throw new ArgumentParserException("the object " + key + " does not exist", parser);
+                    }
+                    long recordCount = s3Reader.readRecords(objectSummary, partSize, partConcurrency, (objectKey, record) -> stdout.println("record: " + record));
+                    stdout.flush();
+                    System.out.println("getObject complete - recordCount: " + recordCount);
+                    break;
+                }
+                case "drain": {
+                    long startMillis = System.currentTimeMillis();
+                    // println is synchronized - the records of different objects do not interleave mid-line
+                    long recordCount = s3Reader.readRecords(bucketName, namespace.getString("prefix"), namespace.getInt("threadCount"), partSize, partConcurrency, (objectKey, record) -> stdout.println(objectKey + " record: " + record));
+                    stdout.flush();
+                    System.out.println("drain complete - recordCount: " + recordCount + ", durationMillis: " + (System.currentTimeMillis() - startMillis));
+                    if (namespace.getInt("metricsIntervalSeconds") > 0) {
+                        System.out.println(MetricsRegistry.getDefault().dump());
+                    }
+                    break;
+                }
+                default: {
+                    throw new ArgumentParserException("Unknown action " + action, parser);
+                }
+            }
+        } catch (ArgumentParserException e) {
+            parser.handleError(e);
+        } catch (UnsupportedEncodingException e) {
+            throw new RuntimeException(e);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException(e);
+        }
+    }
+}
@@ -0,0 +1,434 @@
+package com.letsdata.reader;
+
+import com.amazonaws.ClientConfiguration;
+import com.amazonaws.services.s3.AmazonS3;
+import com.amazonaws.services.s3.AmazonS3ClientBuilder;
+import com.amazonaws.services.s3.model.GetObjectRequest;
+import com.amazonaws.services.s3.model.ListObjectsV2Request;
+import com.amazonaws.services.s3.model.ListObjectsV2Result;
+import com.amazonaws.services.s3.model.S3Object;
+import com.amazonaws.services.s3.model.S3ObjectInputStream;
+import com.amazonaws.services.s3.model.S3ObjectSummary;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Consumer;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * Reads the error records that a dataset writes to its S3 error destination.
+ *
+ * - Listing: S3 pages through a prefix sequentially (each page needs the previous page's continuation token), so the
+ *   prefix is listed with a "/" delimiter and every common prefix (sub folder) is listed as its own task - the folders
+ *   are paged in parallel.
+ * - Downloads: objects larger than the part size are downloaded with concurrent byte range GETs (a few parts in flight,
+ *   consumed in order), smaller objects are streamed from a single GET.
+ * - Records: the objects are read as newline separated records and gzipped objects (by the gzip magic, any number of
+ *   members) are decompressed as they are read - an object is never buffered whole in memory.
+ */
+public class S3Reader {
+    private static final Logger logger = LoggerFactory.getLogger(S3Reader.class);
+
+    public interface RecordConsumer {
+        /**
+         * Called with each record of an object, in the object's order. Different objects are read on different threads.
+         */
+        void accept(String key, String record);
+    }
+
+    public static final int DEFAULT_PART_SIZE = 8 * 1024 * 1024;
+    public static final int DEFAULT_PART_CONCURRENCY = 4;
+
+    private static final String DELIMITER = "/";
+    private static final int MAX_KEYS = 1000;
+    private static final int READ_BUFFER_SIZE = 64 * 1024;
+    private static final int MAX_PART_ATTEMPTS = 3;
+    // the object reader threads times their parts in flight (the sdk default is 50)
+    private static final int MAX_CONNECTIONS = 256;
+    // objects waiting for a reader thread, per reader thread - the listing blocks (reads an object itself) beyond these
+    private static final int PENDING_OBJECTS_PER_THREAD = 100;
+
+    // the range GETs of all the open objects - the parts in flight are bounded per object
+    private static final ExecutorService partExecutor = Executors.newCachedThreadPool(runnable -> {
+        Thread thread = new Thread(runnable, "S3Reader-part");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private final AmazonS3 amazonS3;
+
+    public S3Reader(String region, STSUtil stsUtil, String roleArn, String externalId, String roleAccessPolicyText, String roleSessionName, List<String> managedPolicyArnList) {
+        this(AmazonS3ClientBuilder.
+                standard().
+                withRegion(region).
+                withClientConfiguration(new ClientConfiguration().withMaxConnections(MAX_CONNECTIONS)).
+                withCredentials(AssumedRoleCredentialsCache.getProvider(stsUtil, roleArn, externalId, roleAccessPolicyText, roleSessionName, managedPolicyArnList)).
+                build());
+    }
+
+    /**
+     * A reader of the given client - a client configured by the caller.
+     */
+    public S3Reader(AmazonS3 amazonS3) {
+        this.amazonS3 = amazonS3;
+    }
+
+    public List<S3ObjectSummary> listObjects(String bucketName, String prefix, int threadCount) throws InterruptedException {
+        List<S3ObjectSummary> objectSummaryList = Collections.synchronizedList(new ArrayList<>());
+        listObjects(bucketName, prefix, threadCount, objectSummaryList::add);
+        return objectSummaryList;
+    }
+
+    /**
+     * Lists the objects under the prefix, the sub folders in parallel on threadCount threads. The objectConsumer is
+     * called on the listing threads as each page is listed.
+     */
+    public void listObjects(String bucketName, String prefix, int threadCount, Consumer<S3ObjectSummary> objectConsumer) throws InterruptedException {
+        MetricsRegistry.Meter listRequests = MetricsRegistry.getDefault().meter("s3." + bucketName + ".listRequests");
+        ExecutorService listExecutor = Executors.newFixedThreadPool(threadCount, runnable -> {
+            Thread thread = new Thread(runnable, "S3Reader-list-" + bucketName);
+            thread.setDaemon(true);
+            return thread;
+        });
+        AtomicInteger pendingPrefixCount = new AtomicInteger();
+        CompletableFuture<Void> listingDone = new CompletableFuture<>();
+
+        class PrefixLister implements Runnable {
+            private final String folderPrefix;
+
+            private PrefixLister(String folderPrefix) {
+                this.folderPrefix = folderPrefix;
+                pendingPrefixCount.incrementAndGet();
+            }
+
+            @Override
+            public void run() {
+                try {
+                    String continuationToken = null;
+                    do {
+                        ListObjectsV2Request listObjectsRequest = new ListObjectsV2Request().
+                                withBucketName(bucketName).
+                                withPrefix(folderPrefix).
+                                withDelimiter(DELIMITER).
+                                withMaxKeys(MAX_KEYS).
+                                withContinuationToken(continuationToken);
+                        ListObjectsV2Result listObjectsResult;
+                        try {
+                            logger.debug("Executing listObjects for prefix " + folderPrefix);
+                            listObjectsResult = amazonS3.listObjectsV2(listObjectsRequest);
+                            listRequests.mark();
+                        } catch (Exception ex) {
+                            logger.error(bucketName + " prefix " + folderPrefix + " listObjects threw an exception ", ex);
+                            throw new RuntimeException(ex);
+                        }
+                        // start the sub folders before handing out this page's objects
+                        for (String commonPrefix : listObjectsResult.getCommonPrefixes()) {
+                            listExecutor.execute(new PrefixLister(commonPrefix));
+                        }
+                        for (S3ObjectSummary objectSummary : listObjectsResult.getObjectSummaries()) {
+                            if (listingDone.isDone()) {
+                                return;
+                            }
+                            objectConsumer.accept(objectSummary);
+                        }
+                        continuationToken = listObjectsResult.getNextContinuationToken();
+                    } while (continuationToken != null && !listingDone.isDone());
+                } catch (Exception ex) {
+                    listingDone.completeExceptionally(ex);
+                } finally {
+                    if (pendingPrefixCount.decrementAndGet() == 0) {
+                        listingDone.complete(null);
+                    }
+                }
+            }
+        }
+
+        try {
+            listExecutor.execute(new PrefixLister(prefix == null ? "" : prefix));
+            listingDone.get();
+        } catch (ExecutionException ex) {
+            throw new RuntimeException("Listing " + bucketName + " prefix " + prefix + " failed", ex.getCause());
+        } finally {
+            listingDone.complete(null);
+            listExecutor.shutdownNow();
+        }
+    }
+
+    /**
+     * Opens the object for reading - a single GET stream if it fits in a part, otherwise a stream of partConcurrency
+     * concurrent range GETs of partSize bytes.
+     */
+    public InputStream openObject(String bucketName, String key, long size, String eTag, int partSize, int partConcurrency) {
+        if (size <= partSize || partConcurrency <= 1) {
+            return getObject(new GetObjectRequest(bucketName, key)).getObjectContent();
+        }
+        return new RangedObjectInputStream(bucketName, key, size, eTag, partSize, partConcurrency);
+    }
+
+    /**
+     * Reads the records of an object in order.
+     *
+     * @return the number of records read
+     */
+    public long readRecords(S3ObjectSummary objectSummary, int partSize, int partConcurrency, RecordConsumer recordConsumer) {
+        String bucketName = objectSummary.getBucketName();
+        String key = objectSummary.getKey();
+        long recordCount = 0;
+        try (InputStream objectInputStream = openObject(bucketName, key, objectSummary.getSize(), objectSummary.getETag(), partSize, partConcurrency)) {
+            BufferedInputStream bufferedInputStream = new MemberAwareInputStream(objectInputStream);
+            InputStream recordInputStream = isGzip(bufferedInputStream) ? new GZIPInputStream(bufferedInputStream, READ_BUFFER_SIZE) : bufferedInputStream;
+            BufferedReader reader = new BufferedReader(new InputStreamReader(recordInputStream, StandardCharsets.UTF_8), READ_BUFFER_SIZE);
+            String record;
+            while ((record = reader.readLine()) != null) {
+                if (record.isEmpty()) {
+                    continue;
+                }
+                recordConsumer.accept(key, record);
+                recordCount++;
+            }
+        } catch (IOException ex) {
+            throw new RuntimeException("Unexpected exception in reading the object " + key, ex);
+        }
+        return recordCount;
+    }
+
+    /**
+     * Reads the records of every object under the prefix. The objects are read on threadCount threads as they are
+     * listed (the listing also runs on threadCount threads).
+     *
+     * @return the number of records read
+     */
+    public long readRecords(String bucketName, String prefix, int threadCount, int partSize, int partConcurrency, RecordConsumer recordConsumer) throws InterruptedException {
+        MetricsRegistry.Meter objects = MetricsRegistry.getDefault().meter("s3." + bucketName + ".objects");
+        MetricsRegistry.Meter records = MetricsRegistry.getDefault().meter("s3." + bucketName + ".records");
+        AtomicLong recordCount = new AtomicLong();
+        AtomicReference<Throwable> failure = new AtomicReference<>();
+        // a full queue runs the object on the listing thread - the listing cannot run unboundedly ahead of the reads
+        ThreadPoolExecutor objectExecutor = new ThreadPoolExecutor(threadCount, threadCount, 0, TimeUnit.MILLISECONDS, new ArrayBlockingQueue<>(threadCount * PENDING_OBJECTS_PER_THREAD), runnable -> {
+            Thread thread = new Thread(runnable, "S3Reader-object-" + bucketName);
+            thread.setDaemon(true);
+            return thread;
+        }, new ThreadPoolExecutor.CallerRunsPolicy());
+
+        try {
+            listObjects(bucketName, prefix, threadCount, objectSummary -> {
+                if (failure.get() != null) {
+                    throw new RuntimeException("Reading " + bucketName + " prefix " + prefix + " failed", failure.get());
+                }
+                objectExecutor.execute(() -> {
+                    if (failure.get() != null) {
+                        return;
+                    }
+                    try {
+                        long objectRecordCount = readRecords(objectSummary, partSize, partConcurrency, recordConsumer);
+                        recordCount.addAndGet(objectRecordCount);
+                        records.mark(objectRecordCount);
+                        objects.mark();
+                    } catch (Exception ex) {
+                        logger.error(bucketName + " key " + objectSummary.getKey() + " read threw an exception ", ex);
+                        failure.compareAndSet(null, ex);
+                    }
+                });
+            });
+        } finally {
+            objectExecutor.shutdown();
+            objectExecutor.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+        }
+
+        if (failure.get() != null) {
+            throw new RuntimeException("Reading " + bucketName + " prefix " + prefix + " failed", failure.get());
+        }
+        return recordCount.get();
+    }
+
+    private S3Object getObject(GetObjectRequest getObjectRequest) {
+        MetricsRegistry.Histogram getObjectLatencyMillis = MetricsRegistry.getDefault().histogram("s3." + getObjectRequest.getBucketName() + ".getObjectLatencyMillis");
+        long startMillis = System.currentTimeMillis();
+        try {
+            logger.debug("Executing getObject for key " + getObjectRequest.getKey());
+            S3Object s3Object = amazonS3.getObject(getObjectRequest);
+            if (s3Object == null) {
+                // the eTag constraint did not match - the object was overwritten while it was being read
+                throw new IllegalStateException("The object " + getObjectRequest.getKey() + " changed while it was being read");
+            }
+            return s3Object;
+        } catch (Exception ex) {
+            logger.error("key " + getObjectRequest.getKey() + " getObject threw an exception ", ex);
+            throw new RuntimeException(ex);
+        } finally {
+            getObjectLatencyMillis.record(System.currentTimeMillis() - startMillis);
+        }
+    }
+
+    private static boolean isGzip(BufferedInputStream inputStream) throws IOException {
+        inputStream.mark(2);
+        int first = inputStream.read();
+        int second = inputStream.read();
+        inputStream.reset();
+        return first == 0x1f && second == 0x8b;
+    }
+
+    /**
+     * GZIPInputStream only looks for a next gzip member when available() is non zero, and network / part streams
+     * report 0 at their buffer boundaries - which silently ends a multi member object (e.g. one member per record) early.
+     * This stream peeks instead, so available() is non zero unless the object has ended.
+     */
+    private static class MemberAwareInputStream extends BufferedInputStream {
+        private MemberAwareInputStream(InputStream inputStream) {
+            super(inputStream, READ_BUFFER_SIZE);
+        }
+
+        @Override
+        public synchronized int available() throws IOException {
+            int available = super.available();
+            if (available > 0) {
+                return available;
+            }
+            mark(1);
+            int next = read();
+            reset();
+            return next < 0 ? 0 : 1;
+        }
+    }
+
+    /**
+     * The object as a stream of in-order parts, keeping partConcurrency range GETs in flight ahead of the reader. The
+     * parts are pinned to the listed eTag so an object that is overwritten mid-read fails instead of mixing versions.
+     */
+    private class RangedObjectInputStream extends InputStream {
+        private final String bucketName;
+        private final String key;
+        private final long size;
+        private final String eTag;
+        private final int partSize;
+        private final int partConcurrency;
+        private final MetricsRegistry.Meter downloadedBytes;
+        private final Deque<Future<byte[]>> partDeque = new ArrayDeque<>();
+        private long nextPartStart;
+        private byte[] part = new byte[0];
+        private int partPosition;
+
+        private RangedObjectInputStream(String bucketName, String key, long size, String eTag, int partSize, int partConcurrency) {
+            this.bucketName = bucketName;
+            this.key = key;
+            this.size = size;
+            this.eTag = eTag;
+            this.partSize = partSize;
+            this.partConcurrency = partConcurrency;
+            this.downloadedBytes = MetricsRegistry.getDefault().meter("s3." + bucketName + ".downloadedBytes");
+            fillPartDeque();
+        }
+
+        @Override
+        public int read() throws IOException {
+            if (!nextPart()) {
+                return -1;
+            }
+            return part[partPosition++] & 0xff;
+        }
+
+        @Override
+        public int read(byte[] bytes, int offset, int length) throws IOException {
+            if (length == 0) {
+                return 0;
+            }
+            if (!nextPart()) {
+                return -1;
+            }
+            int readLength = Math.min(length, part.length - partPosition);
+            System.arraycopy(part, partPosition, bytes, offset, readLength);
+            partPosition += readLength;
+            return readLength;
+        }
+
+        @Override
+        public void close() {
+            for (Future<byte[]> partFuture : partDeque) {
+                partFuture.cancel(true);
+            }
+            partDeque.clear();
+            nextPartStart = size;
+        }
+
+        private boolean nextPart() throws IOException {
+            while (partPosition == part.length) {
+                Future<byte[]> partFuture = partDeque.poll();
+                if (partFuture == null) {
+                    return false;
+                }
+                try {
+                    part = partFuture.get();
+                } catch (ExecutionException ex) {
+                    close();
+                    throw new IOException("Range GET of " + key + " failed", ex.getCause());
+                } catch (InterruptedException ex) {
+                    close();
+                    Thread.currentThread().interrupt();
+                    throw new IOException("Interrupted in reading " + key, ex);
+                }
+                partPosition = 0;
+                fillPartDeque();
+            }
+            return true;
+        }
+
+        private void fillPartDeque() {
+            while (partDeque.size() < partConcurrency && nextPartStart < size) {
+                long start = nextPartStart;
+                long end = Math.min(start + partSize, size) - 1;
+                partDeque.add(partExecutor.submit(() -> getPart(start, end)));
+                nextPartStart = end + 1;
+            }
+        }
+
+        private byte[] getPart(long start, long end) throws IOException {
+            byte[] bytes = new byte[(int) (end - start + 1)];
+            for (int attempt = 1; ; attempt++) {
+                GetObjectRequest getObjectRequest = new GetObjectRequest(bucketName, key).withRange(start, end);
+                if (eTag != null) {
+                    getObjectRequest.withMatchingETagConstraint(eTag);
+                }
+                try (S3ObjectInputStream objectInputStream = getObject(getObjectRequest).getObjectContent()) {
+                    int length = 0;
+                    int readLength;
+                    while (length < bytes.length && (readLength = objectInputStream.read(bytes, length, bytes.length - length)) > 0) {
+                        length += readLength;
+                    }
+                    if (length != bytes.length) {
+                        throw new IOException("Range GET of " + key + " returned " + length + " of " + bytes.length + " bytes");
+                    }
+                    downloadedBytes.mark(length);
+                    return bytes;
+                } catch (IOException ex) {
+                    // a connection reset mid-body is retried, the SDK has already retried the request itself
+                    if (attempt >= MAX_PART_ATTEMPTS || Thread.currentThread().isInterrupted()) {
+                        throw ex;
+                    }
+                    logger.debug("key " + key + " range " + start + "-" + end + " read failed, attempt " + attempt, ex);
+                }
+            }
+        }
+    }
+}
@@ -16,8 +16,10 @@ import java.util.List;
 public class STSUtil {
     private static final Logger logger = LoggerFactory.getLogger(Logger.class);
     private final AWSSecurityTokenService stsClient;
+    private final String awsAccessKeyId;
 
     public STSUtil(String region, String awsAccessKeyId, String awsSecretKey) {
+        this.awsAccessKeyId = awsAccessKeyId;
         AWSCredentials awsCredentials = new AWSCredentials() {
             @Override
             public String getAWSAccessKeyId() {
@@ -36,6 +38,13 @@ public class STSUtil {
                 build();
     }
 
+    /**
+     * @return the access key id of the base credentials the roles are assumed with
+     */
+    public String getAwsAccessKeyId() {
+        return awsAccessKeyId;
+    }
+
     public AssumeRoleResult assumeRole(String roleArn, String externalId, String policy, String roleSessionName, List<String> managedPolicyArnList) {
         AssumeRoleRequest request = new AssumeRoleRequest().withRoleArn(roleArn).withPolicy(policy).withRoleSessionName(roleSessionName).withExternalId(externalId);
 
@@ -0,0 +1,90 @@
+package com.letsdata.reader;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * The shard checkpoint bookkeeping of a stream's readers on top of a CheckpointStore.
+ *
+ * A closed shard is checkpointed as SHARD_END only once the consumer has processed its last queued record - right away
+ * when the consumer already has, else when it does - so that a restart does not re-read the shard but also does not skip
+ * its unprocessed records. All methods are no-ops without a store.
+ */
+public class ShardCheckpointer {
+    private final String streamName;
+    private final CheckpointStore checkpointStore;
+    private final Map<String, ShardState> shardStateMap = new ConcurrentHashMap<>();
+
+    public ShardCheckpointer(String streamName, CheckpointStore checkpointStore) {
+        this.streamName = streamName;
+        this.checkpointStore = checkpointStore;
+    }
+
+    /**
+     * @return the shard's checkpointed sequence number or SHARD_END, null if there is none
+     */
+    public String getCheckpoint(String shardId) {
+        return checkpointStore == null ? null : checkpointStore.getCheckpoint(getShardState(shardId).checkpointKey);
+    }
+
+    public void checkpoint(ShardRecord shardRecord) {
+        if (checkpointStore == null) {
+            return;
+        }
+        ShardState shardState = getShardState(shardRecord.getShardId());
+        String sequenceNumber = shardRecord.getRecord().getSequenceNumber();
+        // the shard's reader and its consumer race on the last record - shardEnded() checks what the consumer has processed
+        synchronized (shardState) {
+            if (shardState.ended) {
+                return;
+            }
+            shardState.lastProcessedSequenceNumber = sequenceNumber;
+            if (sequenceNumber.equals(shardState.shardEndSequenceNumber)) {
+                shardState.ended = true;
+                checkpointStore.checkpoint(shardState.checkpointKey, CheckpointStore.SHARD_END);
+            } else {
+                checkpointStore.checkpoint(shardState.checkpointKey, sequenceNumber);
+            }
+        }
+    }
+
+    /**
+     * Records that the shard has been read to SHARD_END.
+     *
+     * @param lastQueuedSequenceNumber the sequence number of the shard's last queued record, null if no records were queued
+     */
+    public void shardEnded(String shardId, String lastQueuedSequenceNumber) {
+        if (checkpointStore == null) {
+            return;
+        }
+        ShardState shardState = getShardState(shardId);
+        synchronized (shardState) {
+            if (lastQueuedSequenceNumber == null || lastQueuedSequenceNumber.equals(shardState.lastProcessedSequenceNumber)) {
+                shardState.ended = true;
+                checkpointStore.checkpoint(shardState.checkpointKey, CheckpointStore.SHARD_END);
+            } else {
+                // the consumer checkpoints SHARD_END once it has processed the shard's last record
+                shardState.shardEndSequenceNumber = lastQueuedSequenceNumber;
+            }
+        }
+    }
+
+    private ShardState getShardState(String shardId) {
+        ShardState shardState = shardStateMap.get(shardId);
+        if (shardState == null) {
+            shardState = shardStateMap.computeIfAbsent(shardId, k -> new ShardState(CheckpointStore.kinesisShardKey(streamName, k)));
+        }
+        return shardState;
+    }
+
+    private static class ShardState {
+        private final String checkpointKey;
+        private String lastProcessedSequenceNumber;
+        private String shardEndSequenceNumber;
+        private boolean ended;
+
+        private ShardState(String checkpointKey) {
+            this.checkpointKey = checkpointKey;
+        }
+    }
+}
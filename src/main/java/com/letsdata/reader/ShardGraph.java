@@ -0,0 +1,81 @@
+package com.letsdata.reader;
+
+import com.amazonaws.services.kinesis.model.Shard;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * The parent / child lineage of the shards of a stream (splits and merges).
+ *
+ * A shard is ready to be read only after each of its parents (ParentShardId and AdjacentParentShardId) has been read
+ * to SHARD_END, so records of a partition key are read in order across reshards. Parents that are not known to the
+ * graph (for example, shards that have aged out of the retention period) are treated as finished.
+ */
+public class ShardGraph {
+    private final Map<String, Shard> shardMap = new LinkedHashMap<>();
+    private final Set<String> startedShardIds = new HashSet<>();
+    private final Set<String> finishedShardIds = new HashSet<>();
+
+    /**
+     * Adds the shards that are not yet known to the graph.
+     *
+     * @param shardList the shards returned by listShards
+     * @param skipClosedShards mark the new closed shards as finished without reading them (reads starting at LATEST)
+     * @return the shard ids that are now ready to be read - the caller is expected to start reading these
+     */
+    public synchronized List<String> addShards(List<Shard> shardList, boolean skipClosedShards) {
+        for (Shard shard : shardList) {
+            if (shardMap.containsKey(shard.getShardId())) {
+                continue;
+            }
+            shardMap.put(shard.getShardId(), shard);
+            if (skipClosedShards && shard.getSequenceNumberRange() != null && shard.getSequenceNumberRange().getEndingSequenceNumber() != null) {
+                finishedShardIds.add(shard.getShardId());
+            }
+        }
+        return collectReadyShards();
+    }
+
+    /**
+     * Records that the shard has been read to SHARD_END.
+     *
+     * @return the child shard ids that are now ready to be read - the caller is expected to start reading these
+     */
+    public synchronized List<String> markFinished(String shardId) {
+        finishedShardIds.add(shardId);
+        return collectReadyShards();
+    }
+
+    public synchronized boolean hasChildren(String shardId) {
+        for (Shard shard : shardMap.values()) {
+            if (shardId.equals(shard.getParentShardId()) || shardId.equals(shard.getAdjacentParentShardId())) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private List<String> collectReadyShards() {
+        List<String> readyShardIds = new ArrayList<>();
+        for (Shard shard : shardMap.values()) {
+            String shardId = shard.getShardId();
+            if (startedShardIds.contains(shardId) || finishedShardIds.contains(shardId)) {
+                continue;
+            }
+            if (isParentFinished(shard.getParentShardId()) && isParentFinished(shard.getAdjacentParentShardId())) {
+                startedShardIds.add(shardId);
+                readyShardIds.add(shardId);
+            }
+        }
+        return readyShardIds;
+    }
+
+    private boolean isParentFinished(String parentShardId) {
+        return parentShardId == null || !shardMap.containsKey(parentShardId) || finishedShardIds.contains(parentShardId);
+    }
+}
@@ -0,0 +1,31 @@
+package com.letsdata.reader;
+
+import com.amazonaws.services.kinesis.model.Record;
+
+public class ShardRecord {
+    private final String shardId;
+    private final Record record;
+    // the record's position in its shard's CompletionWatermark, set when the record pipeline routes by partition key
+    private long dispatchSequence;
+
+    public ShardRecord(String shardId, Record record) {
+        this.shardId = shardId;
+        this.record = record;
+    }
+
+    public String getShardId() {
+        return shardId;
+    }
+
+    public Record getRecord() {
+        return record;
+    }
+
+    long getDispatchSequence() {
+        return dispatchSequence;
+    }
+
+    void setDispatchSequence(long dispatchSequence) {
+        this.dispatchSequence = dispatchSequence;
+    }
+}
@@ -0,0 +1,26 @@
+package com.letsdata.reader;
+
+/**
+ * A stream reader that puts the records of every shard on a shared record queue - the polling
+ * {@link KinesisStreamDrainer} or the enhanced fan-out {@link KinesisFanOutReader}.
+ */
+public interface ShardRecordSource {
+    void start();
+
+    /**
+     * @return true when every shard has either been closed, caught up (when reading until caught up) or failed
+     */
+    boolean isDone();
+
+    /**
+     * @return the first shard failure, null if there is none
+     */
+    Throwable getFailure();
+
+    /**
+     * Checkpoints the record. Called by the record queue consumer once the record has been processed.
+     */
+    void checkpoint(ShardRecord shardRecord);
+
+    void stop();
+}
@@ -0,0 +1,102 @@
+package com.letsdata.reader;
+
+import com.amazonaws.ClientConfiguration;
+import com.amazonaws.auth.AWSCredentialsProvider;
+import com.amazonaws.auth.AWSStaticCredentialsProvider;
+import com.amazonaws.auth.AnonymousAWSCredentials;
+import com.amazonaws.services.kafka.AWSKafka;
+import com.amazonaws.services.kafka.AWSKafkaClientBuilder;
+import com.amazonaws.services.kafka.model.GetBootstrapBrokersRequest;
+import com.amazonaws.services.kinesis.AmazonKinesis;
+import com.amazonaws.services.kinesis.AmazonKinesisClientBuilder;
+
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * The sts, kinesis and kafka clients of a process that reads many datasets - one client (and so one http connection
+ * pool) per region, shared by every dataset in the region. The kinesis / kafka clients have no credentials of their
+ * own, each request is signed with its dataset's assumed role session (see {@link KinesisReader#KinesisReader(AmazonKinesis, AWSCredentialsProvider)}),
+ * and the sessions come from the process wide {@link AssumedRoleCredentialsCache}.
+ */
+public class SharedAwsClients {
+    // the connections of a region's client are shared by all the shard readers of its datasets
+    private static final int MAX_CONNECTIONS_PER_REGION = 256;
+
+    private final String awsAccessKeyId;
+    private final String awsSecretKey;
+    private final Map<String, STSUtil> stsUtilMap = new ConcurrentHashMap<>();
+    private final Map<String, AmazonKinesis> amazonKinesisMap = new ConcurrentHashMap<>();
+    private final Map<String, AWSKafka> awsKafkaMap = new ConcurrentHashMap<>();
+    private final BootstrapBrokerCache bootstrapBrokerCache;
+
+    /**
+     * @param awsAccessKeyId       the awsAccessKeyId of the customerAccountForAccess that assumes the dataset roles
+     * @param awsSecretKey         the awsSecretKey of the customerAccountForAccess
+     * @param bootstrapBrokerCache the clusters' bootstrap brokers are read from / written to this cache, null to look
+     *                             them up on every (re)start of a kafka dataset
+     */
+    public SharedAwsClients(String awsAccessKeyId, String awsSecretKey, BootstrapBrokerCache bootstrapBrokerCache) {
+        this.awsAccessKeyId = awsAccessKeyId;
+        this.awsSecretKey = awsSecretKey;
+        this.bootstrapBrokerCache = bootstrapBrokerCache;
+    }
+
+    public STSUtil getStsUtil(String region) {
+        return stsUtilMap.computeIfAbsent(region, key -> new STSUtil(region, awsAccessKeyId, awsSecretKey));
+    }
+
+    /**
+     * The assumed role session of the role - readers that pass the same (roleArn, externalId, policy) share one session.
+     */
+    public AWSCredentialsProvider getCredentialsProvider(String region, String roleArn, String externalId, String roleAccessPolicyText, List<String> managedPolicyArnList) {
+        return AssumedRoleCredentialsCache.getProvider(getStsUtil(region), roleArn, externalId, roleAccessPolicyText, "ReaderDaemon" + System.currentTimeMillis(), managedPolicyArnList);
+    }
+
+    public AmazonKinesis getAmazonKinesis(String region) {
+        return amazonKinesisMap.computeIfAbsent(region, key -> AmazonKinesisClientBuilder.
+                standard().
+                withRegion(region).
+                withClientConfiguration(new ClientConfiguration().withMaxConnections(MAX_CONNECTIONS_PER_REGION)).
+                withCredentials(new AWSStaticCredentialsProvider(new AnonymousAWSCredentials())).
+                build());
+    }
+
+    public AWSKafka getAwsKafka(String region) {
+        return awsKafkaMap.computeIfAbsent(region, key -> AWSKafkaClientBuilder.
+                standard().
+                withRegion(region).
+                withCredentials(new AWSStaticCredentialsProvider(new AnonymousAWSCredentials())).
+                build());
+    }
+
+    /**
+     * The SASL IAM bootstrap brokers of the cluster - from the {@link BootstrapBrokerCache} while its entry is within the
+     * ttl, so the datasets of a cluster (and a daemon restarted within the ttl) skip the lookup.
+     */
+    public String getBootstrapBrokers(String region, String clusterArn, AWSCredentialsProvider credentialsProvider) {
+        if (bootstrapBrokerCache != null) {
+            String bootstrapBrokers = bootstrapBrokerCache.get(clusterArn);
+            if (bootstrapBrokers != null) {
+                return bootstrapBrokers;
+            }
+        }
+        GetBootstrapBrokersRequest getBootstrapBrokersRequest = new GetBootstrapBrokersRequest().withClusterArn(clusterArn);
+        getBootstrapBrokersRequest.setRequestCredentialsProvider(credentialsProvider);
+        String bootstrapBrokers = getAwsKafka(region).getBootstrapBrokers(getBootstrapBrokersRequest).getBootstrapBrokerStringSaslIam();
+        if (bootstrapBrokerCache != null && bootstrapBrokers != null) {
+            bootstrapBrokerCache.put(clusterArn, bootstrapBrokers);
+        }
+        return bootstrapBrokers;
+    }
+
+    public void shutdown() {
+        for (AmazonKinesis amazonKinesis : amazonKinesisMap.values()) {
+            amazonKinesis.shutdown();
+        }
+        for (AWSKafka awsKafka : awsKafkaMap.values()) {
+            awsKafka.shutdown();
+        }
+    }
+}
@@ -0,0 +1,177 @@
+package com.letsdata.reader;
+
+import java.io.PrintStream;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadInfo;
+import java.lang.management.ThreadMXBean;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.LongSupplier;
+
+/**
+ * Prints the throughput of a read - records / sec and MB / sec of the output, the fetch latency percentiles (of the
+ * whole run), the CPU time of the decode threads and the GC time - every report interval (for the interval) and once at
+ * the end (for the whole run).
+ *
+ * The decode CPU time is the sum of the thread CPU times of the threads whose name starts with the decode thread name
+ * prefix. The threads are sampled every SAMPLE_INTERVAL_MILLIS and the last sample of each thread is kept, so the time of
+ * the threads that have ended is still counted.
+ */
+public class ThroughputReporter implements AutoCloseable {
+    private static final long SAMPLE_INTERVAL_MILLIS = 500;
+    private static final double MB = 1024.0 * 1024.0;
+
+    private final String name;
+    private final LongSupplier recordCount;
+    private final LongSupplier byteCount;
+    private final MetricsRegistry.Histogram fetchLatencyMillis;
+    private final String decodeThreadNamePrefix;
+    private final PrintStream out;
+    private final ThreadMXBean threadMXBean = ManagementFactory.getThreadMXBean();
+    private final List<GarbageCollectorMXBean> garbageCollectorMXBeanList = ManagementFactory.getGarbageCollectorMXBeans();
+    // the last sampled CPU nanos of each decode thread by thread id
+    private final Map<Long, Long> threadCpuNanosMap = new HashMap<>();
+    private final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "ThroughputReporter");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private Snapshot startSnapshot;
+    private Snapshot lastSnapshot;
+
+    /**
+     * @param fetchLatencyMillis     the fetch (getRecords / poll) latency, null if the source has no fetch latency
+     * @param decodeThreadNamePrefix the name prefix of the threads that decode the records
+     */
+    public ThroughputReporter(String name, LongSupplier recordCount, LongSupplier byteCount, MetricsRegistry.Histogram fetchLatencyMillis, String decodeThreadNamePrefix, PrintStream out) {
+        this.name = name;
+        this.recordCount = recordCount;
+        this.byteCount = byteCount;
+        this.fetchLatencyMillis = fetchLatencyMillis;
+        this.decodeThreadNamePrefix = decodeThreadNamePrefix;
+        this.out = out;
+        if (threadMXBean.isThreadCpuTimeSupported() && !threadMXBean.isThreadCpuTimeEnabled()) {
+            threadMXBean.setThreadCpuTimeEnabled(true);
+        }
+    }
+
+    /**
+     * Starts the clock - and the periodic reports if reportIntervalMillis > 0.
+     */
+    public synchronized void start(long reportIntervalMillis) {
+        startSnapshot = snapshot();
+        lastSnapshot = startSnapshot;
+        scheduler.scheduleAtFixedRate(this::sampleDecodeThreads, SAMPLE_INTERVAL_MILLIS, SAMPLE_INTERVAL_MILLIS, TimeUnit.MILLISECONDS);
+        if (reportIntervalMillis > 0) {
+            scheduler.scheduleAtFixedRate(() -> out.println(report(false)), reportIntervalMillis, reportIntervalMillis, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /**
+     * Stops the periodic reports and prints the final report.
+     *
+     * @return the final report
+     */
+    public String finish() {
+        scheduler.shutdownNow();
+        String report = report(true);
+        out.println(report);
+        return report;
+    }
+
+    @Override
+    public void close() {
+        scheduler.shutdownNow();
+    }
+
+    /**
+     * @param isFinal the rates of the whole run if true, else the rates since the last report
+     */
+    synchronized String report(boolean isFinal) {
+        sampleDecodeThreads();
+        Snapshot snapshot = snapshot();
+        Snapshot baseline = isFinal ? startSnapshot : lastSnapshot;
+        lastSnapshot = snapshot;
+
+        long elapsedMillis = Math.max(1, snapshot.millis - baseline.millis);
+        long records = snapshot.recordCount - baseline.recordCount;
+        long bytes = snapshot.byteCount - baseline.byteCount;
+        long decodeCpuMillis = TimeUnit.NANOSECONDS.toMillis(snapshot.decodeCpuNanos - baseline.decodeCpuNanos);
+        StringBuilder sb = new StringBuilder(name).append(isFinal ? " final - " : " - ")
+                .append(String.format("%.1f s: %d records, %.1f records / sec, %.2f MB / sec", (snapshot.millis - startSnapshot.millis) / 1000.0, snapshot.recordCount, records * 1000.0 / elapsedMillis, bytes / MB * 1000.0 / elapsedMillis));
+        if (fetchLatencyMillis != null) {
+            sb.append(", fetch latency millis p50 ").append(fetchLatencyMillis.getP50()).append(" p99 ").append(fetchLatencyMillis.getP99());
+        }
+        sb.append(String.format(", decode cpu %d ms (%.2f cores", decodeCpuMillis, (double) decodeCpuMillis / elapsedMillis));
+        if (records > 0) {
+            sb.append(String.format(", %.1f us / record", TimeUnit.MILLISECONDS.toMicros(decodeCpuMillis) / (double) records));
+        }
+        long gcMillis = snapshot.gcMillis - baseline.gcMillis;
+        sb.append(String.format("), gc %d ms in %d collections (%.1f%%)", gcMillis, snapshot.gcCount - baseline.gcCount, gcMillis * 100.0 / elapsedMillis));
+        return sb.toString();
+    }
+
+    private Snapshot snapshot() {
+        long decodeCpuNanos = 0;
+        for (long cpuNanos : threadCpuNanosMap.values()) {
+            decodeCpuNanos += cpuNanos;
+        }
+        return new Snapshot(System.currentTimeMillis(), recordCount.getAsLong(), byteCount.getAsLong(), decodeCpuNanos, gcMillis(), gcCount());
+    }
+
+    private synchronized void sampleDecodeThreads() {
+        if (!threadMXBean.isThreadCpuTimeEnabled()) {
+            return;
+        }
+        for (ThreadInfo threadInfo : threadMXBean.getThreadInfo(threadMXBean.getAllThreadIds())) {
+            if (threadInfo == null || !threadInfo.getThreadName().startsWith(decodeThreadNamePrefix)) {
+                continue;
+            }
+            long cpuNanos = threadMXBean.getThreadCpuTime(threadInfo.getThreadId());
+            // -1 once the thread has ended - its last sample is kept
+            if (cpuNanos >= 0) {
+                threadCpuNanosMap.put(threadInfo.getThreadId(), cpuNanos);
+            }
+        }
+    }
+
+    private long gcMillis() {
+        long gcMillis = 0;
+        for (GarbageCollectorMXBean garbageCollectorMXBean : garbageCollectorMXBeanList) {
+            gcMillis += Math.max(0, garbageCollectorMXBean.getCollectionTime());
+        }
+        return gcMillis;
+    }
+
+    private long gcCount() {
+        long gcCount = 0;
+        for (GarbageCollectorMXBean garbageCollectorMXBean : garbageCollectorMXBeanList) {
+            gcCount += Math.max(0, garbageCollectorMXBean.getCollectionCount());
+        }
+        return gcCount;
+    }
+
+    private static class Snapshot {
+        private final long millis;
+        private final long recordCount;
+        private final long byteCount;
+        private final long decodeCpuNanos;
+        private final long gcMillis;
+        private final long gcCount;
+
+        private Snapshot(long millis, long recordCount, long byteCount, long decodeCpuNanos, long gcMillis, long gcCount) {
+            this.millis = millis;
+            this.recordCount = recordCount;
+            this.byteCount = byteCount;
+            this.decodeCpuNanos = decodeCpuNanos;
+            this.gcMillis = gcMillis;
+            this.gcCount = gcCount;
+        }
+    }
+}
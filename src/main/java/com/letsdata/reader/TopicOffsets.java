@@ -0,0 +1,113 @@
+package com.letsdata.reader;
+
+import java.util.Arrays;
+
+/**
+ * A snapshot of the offsets of a topic's partitions - the beginning / end offsets, the group's committed offsets and the
+ * consumer positions (assigned partitions only). Kafka partitions are numbered 0..n-1, so the offsets are primitive
+ * arrays indexed by the partition number, NO_OFFSET where an offset is not known.
+ */
+public class TopicOffsets {
+    public static final long NO_OFFSET = -1;
+
+    private final String topicName;
+    private final long[] beginningOffsets;
+    private final long[] endOffsets;
+    private final long[] committedOffsets;
+    private final long[] positions;
+
+    TopicOffsets(String topicName, int partitionCount) {
+        this.topicName = topicName;
+        this.beginningOffsets = newOffsets(partitionCount);
+        this.endOffsets = newOffsets(partitionCount);
+        this.committedOffsets = newOffsets(partitionCount);
+        this.positions = newOffsets(partitionCount);
+    }
+
+    private static long[] newOffsets(int partitionCount) {
+        long[] offsets = new long[partitionCount];
+        Arrays.fill(offsets, NO_OFFSET);
+        return offsets;
+    }
+
+    public String getTopicName() {
+        return topicName;
+    }
+
+    public int partitionCount() {
+        return endOffsets.length;
+    }
+
+    public long beginningOffset(int partition) {
+        return beginningOffsets[partition];
+    }
+
+    public long endOffset(int partition) {
+        return endOffsets[partition];
+    }
+
+    public long committedOffset(int partition) {
+        return committedOffsets[partition];
+    }
+
+    /**
+     * @return the consumer position, NO_OFFSET if the partition is not assigned to the consumer or has no position yet
+     */
+    public long position(int partition) {
+        return positions[partition];
+    }
+
+    /**
+     * @return the end offset minus the consumer position - or minus the committed offset if there is no position, or
+     * minus the beginning offset if neither is known. NO_OFFSET if the end offset is not known.
+     */
+    public long lag(int partition) {
+        long endOffset = endOffsets[partition];
+        if (endOffset == NO_OFFSET) {
+            return NO_OFFSET;
+        }
+        long offset = positions[partition] != NO_OFFSET ? positions[partition] : committedOffsets[partition] != NO_OFFSET ? committedOffsets[partition] : beginningOffsets[partition];
+        return offset == NO_OFFSET ? NO_OFFSET : Math.max(0, endOffset - offset);
+    }
+
+    /**
+     * @return the sum of the known partition lags
+     */
+    public long totalLag() {
+        long totalLag = 0;
+        for (int partition = 0; partition < partitionCount(); partition++) {
+            totalLag += Math.max(0, lag(partition));
+        }
+        return totalLag;
+    }
+
+    void setBeginningOffset(int partition, long offset) {
+        beginningOffsets[partition] = offset;
+    }
+
+    void setEndOffset(int partition, long offset) {
+        endOffsets[partition] = offset;
+    }
+
+    void setCommittedOffset(int partition, long offset) {
+        committedOffsets[partition] = offset;
+    }
+
+    void setPosition(int partition, long offset) {
+        positions[partition] = offset;
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder stringBuilder = new StringBuilder(topicName).append(" - totalLag: ").append(totalLag());
+        for (int partition = 0; partition < partitionCount(); partition++) {
+            stringBuilder.append("\n  partition: ").append(partition)
+                    .append(", beginning: ").append(beginningOffsets[partition])
+                    .append(", end: ").append(endOffsets[partition])
+                    .append(", committed: ").append(committedOffsets[partition])
+                    .append(", position: ").append(positions[partition])
+                    .append(", lag: ").append(lag(partition));
+        }
+        return stringBuilder.toString();
+    }
+}
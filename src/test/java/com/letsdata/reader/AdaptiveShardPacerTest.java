@@ -0,0 +1,67 @@
+package com.letsdata.reader;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class AdaptiveShardPacerTest {
+    @Test
+    public void testFullBatchesGrowTheLimitWhileBehind() {
+        AdaptiveShardPacer shardPacer = new AdaptiveShardPacer();
+        assertEquals(1000, shardPacer.getLimit());
+        assertEquals(200, shardPacer.onRecords(1000, 1000, 60000L));
+        assertEquals(2000, shardPacer.getLimit());
+        for (int i = 0; i < 10; i++) {
+            shardPacer.onRecords(shardPacer.getLimit(), 1000, 60000L);
+        }
+        assertEquals(10000, shardPacer.getLimit());
+        // a partial batch keeps the limit
+        shardPacer.onRecords(10, 1000, 60000L);
+        assertEquals(10000, shardPacer.getLimit());
+    }
+
+    @Test
+    public void testLargeResponsesWaitForTheByteBudget() {
+        AdaptiveShardPacer shardPacer = new AdaptiveShardPacer();
+        // 4 MB is 2 seconds of the 2 MB / sec shard read budget
+        assertEquals(2000, shardPacer.onRecords(1000, 4 * 1024 * 1024, 60000L));
+    }
+
+    @Test
+    public void testEmptyPollsSlowDownOnceCaughtUp() {
+        AdaptiveShardPacer shardPacer = new AdaptiveShardPacer();
+        assertEquals(400, shardPacer.onRecords(0, 0, 0L));
+        assertEquals(800, shardPacer.onRecords(0, 0, 0L));
+        assertEquals(1000, shardPacer.onRecords(0, 0, 0L));
+        assertEquals(1000, shardPacer.onRecords(0, 0, 0L));
+        assertEquals(100, shardPacer.getLimit());
+        // records reset the interval and the limit follows the returned counts
+        assertEquals(200, shardPacer.onRecords(300, 3000, 0L));
+        assertEquals(600, shardPacer.getLimit());
+        // falling behind again resets the caught up interval
+        assertEquals(200, shardPacer.onRecords(10, 100, 5000L));
+        assertEquals(400, shardPacer.onRecords(0, 0, 0L));
+    }
+
+    @Test
+    public void testThrottlesHalveTheLimitAndBackOff() {
+        AdaptiveShardPacer shardPacer = new AdaptiveShardPacer();
+        long previousMaxBackoffMillis = 0;
+        for (int i = 1; i <= 10; i++) {
+            long backoffMillis = shardPacer.onThrottled();
+            long maxBackoffMillis = Math.min(10000, 200L << i);
+            // jittered in the upper half of the backoff
+            assertTrue(backoffMillis >= maxBackoffMillis / 2 && backoffMillis <= maxBackoffMillis);
+            assertTrue(maxBackoffMillis >= previousMaxBackoffMillis);
+            previousMaxBackoffMillis = maxBackoffMillis;
+            assertEquals(i, shardPacer.getConsecutiveThrottleCount());
+        }
+        assertEquals(100, shardPacer.getLimit());
+        // a successful call resets the backoff
+        shardPacer.onRecords(100, 1000, 60000L);
+        assertEquals(0, shardPacer.getConsecutiveThrottleCount());
+        long backoffMillis = shardPacer.onThrottled();
+        assertTrue(backoffMillis >= 200 && backoffMillis <= 400);
+    }
+}
@@ -0,0 +1,77 @@
+package com.letsdata.reader;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.Properties;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+
+public class BootstrapBrokerCacheTest {
+    private static final String CLUSTER_ARN = "arn:aws:kafka:us-east-1:123456789012:cluster/cluster/1";
+    private static final String BOOTSTRAP_BROKERS = "b-1.cluster:9098,b-2.cluster:9098";
+
+    private File directory;
+    private File file;
+
+    @Before
+    public void setUp() throws IOException {
+        directory = Files.createTempDirectory("brokers").toFile();
+        file = new File(new File(directory, "cache"), "bootstrapBrokers.properties");
+    }
+
+    @After
+    public void tearDown() {
+        File parentDir = file.getParentFile();
+        file.delete();
+        parentDir.delete();
+        directory.delete();
+    }
+
+    @Test
+    public void testEntriesAreReadByALaterCache() {
+        assertNull(new BootstrapBrokerCache(file, 60000).get(CLUSTER_ARN));
+        // creates the missing directory
+        new BootstrapBrokerCache(file, 60000).put(CLUSTER_ARN, BOOTSTRAP_BROKERS);
+        assertFalse(new File(file.getAbsolutePath() + ".tmp").exists());
+
+        BootstrapBrokerCache bootstrapBrokerCache = new BootstrapBrokerCache(file, 60000);
+        assertEquals(BOOTSTRAP_BROKERS, bootstrapBrokerCache.get(CLUSTER_ARN));
+        assertNull(bootstrapBrokerCache.get(CLUSTER_ARN + "2"));
+    }
+
+    @Test
+    public void testExpiredEntries() throws IOException {
+        new BootstrapBrokerCache(file, 60000).put(CLUSTER_ARN, BOOTSTRAP_BROKERS);
+        assertNull(new BootstrapBrokerCache(file, 0).get(CLUSTER_ARN));
+
+        // fetched two minutes ago
+        writeEntry((System.currentTimeMillis() - 120000) + "," + BOOTSTRAP_BROKERS);
+        assertNull(new BootstrapBrokerCache(file, 60000).get(CLUSTER_ARN));
+        assertEquals(BOOTSTRAP_BROKERS, new BootstrapBrokerCache(file, 180000).get(CLUSTER_ARN));
+    }
+
+    @Test
+    public void testMalformedEntries() throws IOException {
+        writeEntry(BOOTSTRAP_BROKERS);
+        assertNull(new BootstrapBrokerCache(file, 60000).get(CLUSTER_ARN));
+        writeEntry("no fetch time");
+        assertNull(new BootstrapBrokerCache(file, 60000).get(CLUSTER_ARN));
+    }
+
+    private void writeEntry(String entry) throws IOException {
+        file.getParentFile().mkdirs();
+        Properties properties = new Properties();
+        properties.setProperty(CLUSTER_ARN, entry);
+        try (FileOutputStream outputStream = new FileOutputStream(file)) {
+            properties.store(outputStream, null);
+        }
+    }
+}
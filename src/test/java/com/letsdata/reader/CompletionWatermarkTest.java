@@ -0,0 +1,69 @@
+package com.letsdata.reader;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+
+public class CompletionWatermarkTest {
+    @Test
+    public void testInOrderCompletionAdvancesEachTime() {
+        List<String> watermarkList = new ArrayList<>();
+        CompletionWatermark<String> completionWatermark = new CompletionWatermark<>(watermarkList::add);
+        long first = completionWatermark.add("a");
+        long second = completionWatermark.add("b");
+        completionWatermark.complete(first);
+        completionWatermark.complete(second);
+        assertEquals(Arrays.asList("a", "b"), watermarkList);
+        assertEquals(0, completionWatermark.pendingCount());
+    }
+
+    @Test
+    public void testOutOfOrderCompletionWaitsForTheHead() {
+        List<String> watermarkList = new ArrayList<>();
+        CompletionWatermark<String> completionWatermark = new CompletionWatermark<>(watermarkList::add);
+        long a = completionWatermark.add("a");
+        long b = completionWatermark.add("b");
+        long c = completionWatermark.add("c");
+        long d = completionWatermark.add("d");
+        completionWatermark.complete(c);
+        completionWatermark.complete(b);
+        assertEquals(Collections.emptyList(), watermarkList);
+        assertEquals(4, completionWatermark.pendingCount());
+        completionWatermark.complete(a);
+        assertEquals(Collections.singletonList("c"), watermarkList);
+        assertEquals(1, completionWatermark.pendingCount());
+        completionWatermark.complete(d);
+        assertEquals(Arrays.asList("c", "d"), watermarkList);
+    }
+
+    @Test
+    public void testGrowsPastTheInitialCapacity() {
+        List<Integer> watermarkList = new ArrayList<>();
+        CompletionWatermark<Integer> completionWatermark = new CompletionWatermark<>(watermarkList::add);
+        int count = 1000;
+        List<Long> sequenceList = new ArrayList<>();
+        // a few completed records before the growth, so the ring has wrapped
+        for (int i = 0; i < 10; i++) {
+            completionWatermark.complete(completionWatermark.add(-1));
+        }
+        watermarkList.clear();
+        for (int i = 0; i < count; i++) {
+            sequenceList.add(completionWatermark.add(i));
+        }
+        Collections.shuffle(sequenceList, new Random(1));
+        for (long sequence : sequenceList) {
+            completionWatermark.complete(sequence);
+        }
+        assertEquals(Integer.valueOf(count - 1), watermarkList.get(watermarkList.size() - 1));
+        for (int i = 1; i < watermarkList.size(); i++) {
+            assertEquals(true, watermarkList.get(i) > watermarkList.get(i - 1));
+        }
+        assertEquals(0, completionWatermark.pendingCount());
+    }
+}
@@ -0,0 +1,67 @@
+package com.letsdata.reader;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class DirectBufferPoolTest {
+    @Test
+    public void testReleasedSlabIsReused() {
+        DirectBufferPool directBufferPool = new DirectBufferPool("testReuse", 1024, 4);
+        DirectBufferPool.Slab slab = directBufferPool.acquire();
+        assertTrue(slab.buffer().isDirect());
+        assertEquals(1024, slab.buffer().capacity());
+        slab.buffer().putInt(42);
+        slab.release();
+        DirectBufferPool.Slab reused = directBufferPool.acquire();
+        assertSame(slab, reused);
+        // a reused slab is cleared
+        assertEquals(0, reused.buffer().position());
+        assertEquals(1024, reused.buffer().limit());
+    }
+
+    @Test
+    public void testSlabIsRecycledOnItsLastRelease() {
+        DirectBufferPool directBufferPool = new DirectBufferPool("testRefCount", 1024, 4);
+        DirectBufferPool.Slab slab = directBufferPool.acquire();
+        slab.retain();
+        slab.release();
+        // still held - a new acquire gets another slab
+        DirectBufferPool.Slab other = directBufferPool.acquire();
+        assertNotSame(slab, other);
+        slab.release();
+        assertSame(slab, directBufferPool.acquire());
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void testReleaseOfAReleasedSlab() {
+        DirectBufferPool.Slab slab = new DirectBufferPool("testDoubleRelease", 1024, 4).acquire();
+        slab.release();
+        slab.release();
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void testRetainOfAReleasedSlab() {
+        DirectBufferPool.Slab slab = new DirectBufferPool("testRetainReleased", 1024, 4).acquire();
+        slab.release();
+        slab.retain();
+    }
+
+    @Test
+    public void testSlabsBeyondTheIdleCountAreDropped() {
+        DirectBufferPool directBufferPool = new DirectBufferPool("testMaxIdle", 1024, 2);
+        MetricsRegistry.Gauge directBytes = MetricsRegistry.getDefault().gauge("bufferPool.testMaxIdle.directBytes");
+        DirectBufferPool.Slab[] slabs = new DirectBufferPool.Slab[5];
+        for (int i = 0; i < slabs.length; i++) {
+            slabs[i] = directBufferPool.acquire();
+        }
+        assertEquals(5 * 1024, directBytes.getValue());
+        for (DirectBufferPool.Slab slab : slabs) {
+            slab.release();
+        }
+        assertEquals(2 * 1024, directBytes.getValue());
+    }
+}
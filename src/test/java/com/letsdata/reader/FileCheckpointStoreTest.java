@@ -0,0 +1,125 @@
+package com.letsdata.reader;
+
+import com.amazonaws.services.kinesis.model.Record;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class FileCheckpointStoreTest {
+    private File directory;
+    private File file;
+
+    @Before
+    public void setUp() throws IOException {
+        directory = Files.createTempDirectory("checkpoints").toFile();
+        file = new File(directory, "checkpoints.properties");
+    }
+
+    @After
+    public void tearDown() {
+        File[] files = directory.listFiles();
+        if (files != null) {
+            for (File child : files) {
+                child.delete();
+            }
+        }
+        directory.delete();
+    }
+
+    @Test
+    public void testCheckpointsAreReloaded() {
+        try (FileCheckpointStore checkpointStore = new FileCheckpointStore(file, 60000)) {
+            checkpointStore.checkpoint(CheckpointStore.kafkaPartitionKey("topic", 0), "42");
+            checkpointStore.checkpoint(CheckpointStore.kinesisShardKey("stream", "shardId-000000000000"), CheckpointStore.SHARD_END);
+            // nothing is written before the flush
+            assertFalse(file.exists());
+        }
+        assertTrue(file.exists());
+
+        try (FileCheckpointStore checkpointStore = new FileCheckpointStore(file, 60000)) {
+            assertEquals("42", checkpointStore.getCheckpoint(CheckpointStore.kafkaPartitionKey("topic", 0)));
+            assertEquals(CheckpointStore.SHARD_END, checkpointStore.getCheckpoint(CheckpointStore.kinesisShardKey("stream", "shardId-000000000000")));
+            assertNull(checkpointStore.getCheckpoint(CheckpointStore.kafkaPartitionKey("topic", 1)));
+        }
+    }
+
+    @Test
+    public void testFlushRewritesTheFileThroughATempFile() {
+        try (FileCheckpointStore checkpointStore = new FileCheckpointStore(file, 60000)) {
+            checkpointStore.checkpoint("key", "1");
+            checkpointStore.flush();
+            checkpointStore.checkpoint("key", "2");
+            checkpointStore.flush();
+            // the temp file is renamed over the previous file
+            assertFalse(new File(file.getAbsolutePath() + ".tmp").exists());
+            assertEquals(1, directory.listFiles().length);
+        }
+        try (FileCheckpointStore checkpointStore = new FileCheckpointStore(file, 60000)) {
+            assertEquals("2", checkpointStore.getCheckpoint("key"));
+        }
+    }
+
+    @Test
+    public void testBackgroundFlush() throws InterruptedException {
+        try (FileCheckpointStore checkpointStore = new FileCheckpointStore(file, 10)) {
+            checkpointStore.checkpoint("key", "1");
+            long deadline = System.currentTimeMillis() + 5000;
+            while (!file.exists() && System.currentTimeMillis() < deadline) {
+                Thread.sleep(10);
+            }
+            assertTrue(file.exists());
+        }
+    }
+
+    @Test
+    public void testShardEndAfterTheLastRecordIsProcessed() {
+        String shardId = "shardId-000000000000";
+        try (FileCheckpointStore checkpointStore = new FileCheckpointStore(file, 60000)) {
+            ShardCheckpointer shardCheckpointer = new ShardCheckpointer("stream", checkpointStore);
+            shardCheckpointer.checkpoint(new ShardRecord(shardId, new Record().withSequenceNumber("1")));
+            // the shard is read to SHARD_END while records 2 and 3 are still queued
+            shardCheckpointer.shardEnded(shardId, "3");
+            assertEquals("1", shardCheckpointer.getCheckpoint(shardId));
+            shardCheckpointer.checkpoint(new ShardRecord(shardId, new Record().withSequenceNumber("2")));
+            assertEquals("2", shardCheckpointer.getCheckpoint(shardId));
+            shardCheckpointer.checkpoint(new ShardRecord(shardId, new Record().withSequenceNumber("3")));
+            assertEquals(CheckpointStore.SHARD_END, shardCheckpointer.getCheckpoint(shardId));
+        }
+
+        // a restarted reader resumes the shard as ended
+        try (FileCheckpointStore checkpointStore = new FileCheckpointStore(file, 60000)) {
+            assertEquals(CheckpointStore.SHARD_END, new ShardCheckpointer("stream", checkpointStore).getCheckpoint(shardId));
+        }
+    }
+
+    @Test
+    public void testShardEndWhenTheLastRecordIsAlreadyProcessed() {
+        String shardId = "shardId-000000000000";
+        try (FileCheckpointStore checkpointStore = new FileCheckpointStore(file, 60000)) {
+            ShardCheckpointer shardCheckpointer = new ShardCheckpointer("stream", checkpointStore);
+            shardCheckpointer.checkpoint(new ShardRecord(shardId, new Record().withSequenceNumber("3")));
+            shardCheckpointer.shardEnded(shardId, "3");
+            assertEquals(CheckpointStore.SHARD_END, shardCheckpointer.getCheckpoint(shardId));
+            // an empty closed shard
+            shardCheckpointer.shardEnded("shardId-000000000001", null);
+            assertEquals(CheckpointStore.SHARD_END, shardCheckpointer.getCheckpoint("shardId-000000000001"));
+        }
+    }
+
+    @Test
+    public void testNoStore() {
+        ShardCheckpointer shardCheckpointer = new ShardCheckpointer("stream", null);
+        shardCheckpointer.checkpoint(new ShardRecord("shardId-000000000000", new Record().withSequenceNumber("1")));
+        shardCheckpointer.shardEnded("shardId-000000000000", null);
+        assertNull(shardCheckpointer.getCheckpoint("shardId-000000000000"));
+    }
+}
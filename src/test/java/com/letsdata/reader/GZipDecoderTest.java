@@ -0,0 +1,122 @@
+package com.letsdata.reader;
+
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.zip.GZIPOutputStream;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class GZipDecoderTest {
+    @Test
+    public void testDecode() throws IOException {
+        byte[] data = randomText(100000, 1);
+        GZipDecoder gZipDecoder = new GZipDecoder(1024, Integer.MAX_VALUE - 8);
+        assertArrayEquals(data, toBytes(gZipDecoder.decode(ByteBuffer.wrap(gzip(data)))));
+        assertEquals(data.length, gZipDecoder.getDecodedLength());
+        // the decoder is reused
+        byte[] other = randomText(10, 2);
+        assertArrayEquals(other, toBytes(gZipDecoder.decode(ByteBuffer.wrap(gzip(other)))));
+    }
+
+    @Test
+    public void testDecodeLeavesTheInputPositionAndLimit() throws IOException {
+        byte[] compressed = gzip(randomText(1000, 3));
+        ByteBuffer direct = ByteBuffer.allocateDirect(compressed.length + 10);
+        direct.position(5);
+        direct.put(compressed);
+        direct.position(5).limit(5 + compressed.length);
+        GZipDecoder.forCurrentThread().decode(direct);
+        assertEquals(5, direct.position());
+        assertEquals(5 + compressed.length, direct.limit());
+    }
+
+    @Test
+    public void testConcatenatedMembers() throws IOException {
+        byte[] first = randomText(3000, 4);
+        byte[] second = randomText(5000, 5);
+        byte[] compressed = concat(gzip(first), gzip(second));
+        assertArrayEquals(concat(first, second), toBytes(GZipDecoder.forCurrentThread().decode(ByteBuffer.wrap(compressed))));
+    }
+
+    @Test
+    public void testDecodeToSinkInChunks() throws IOException {
+        byte[] data = randomText(50000, 6);
+        GZipDecoder gZipDecoder = new GZipDecoder(4096, 4096);
+        ByteArraySink sink = new ByteArraySink(16);
+        int[] writeCount = new int[1];
+        gZipDecoder.decode(ByteBuffer.wrap(gzip(data)), (bytes, offset, length) -> {
+            assertTrue(length <= 4096);
+            writeCount[0]++;
+            sink.write(bytes, offset, length);
+        });
+        assertArrayEquals(data, toBytes(sink.buffer()));
+        assertTrue(writeCount[0] >= data.length / 4096);
+        assertEquals(data.length, gZipDecoder.getDecodedLength());
+    }
+
+    @Test
+    public void testDecodeToChars() throws IOException {
+        String text = "{\"text\":\"caf\u00e9 \u2713 \ud83d\ude00\"}";
+        assertEquals(text, GZipDecoder.forCurrentThread().decodeToChars(ByteBuffer.wrap(gzip(text.getBytes(StandardCharsets.UTF_8)))).toString());
+    }
+
+    @Test(expected = RuntimeException.class)
+    public void testBoundedDecoderRejectsLargerRecords() throws IOException {
+        new GZipDecoder(1024, 1024).decode(ByteBuffer.wrap(gzip(randomText(2000, 7))));
+    }
+
+    @Test(expected = RuntimeException.class)
+    public void testNotGzip() {
+        GZipDecoder.forCurrentThread().decode(ByteBuffer.wrap("plain text record".getBytes(StandardCharsets.UTF_8)));
+    }
+
+    @Test(expected = RuntimeException.class)
+    public void testTruncated() throws IOException {
+        byte[] compressed = gzip(randomText(5000, 8));
+        GZipDecoder.forCurrentThread().decode(ByteBuffer.wrap(Arrays.copyOf(compressed, compressed.length - 20)));
+    }
+
+    @Test(expected = RuntimeException.class)
+    public void testCrcMismatch() throws IOException {
+        byte[] compressed = gzip(randomText(5000, 9));
+        compressed[compressed.length - 8] ^= 1;
+        GZipDecoder.forCurrentThread().decode(ByteBuffer.wrap(compressed));
+    }
+
+    private static byte[] randomText(int length, long seed) {
+        Random random = new Random(seed);
+        byte[] bytes = new byte[length];
+        for (int i = 0; i < length; i++) {
+            bytes[i] = (byte) ('a' + random.nextInt(16));
+        }
+        return bytes;
+    }
+
+    private static byte[] gzip(byte[] data) throws IOException {
+        ByteArrayOutputStream byteArrayOutputStream = new ByteArrayOutputStream();
+        try (GZIPOutputStream gzipOutputStream = new GZIPOutputStream(byteArrayOutputStream)) {
+            gzipOutputStream.write(data);
+        }
+        return byteArrayOutputStream.toByteArray();
+    }
+
+    private static byte[] concat(byte[] first, byte[] second) {
+        byte[] bytes = Arrays.copyOf(first, first.length + second.length);
+        System.arraycopy(second, 0, bytes, first.length, second.length);
+        return bytes;
+    }
+
+    private static byte[] toBytes(ByteBuffer buffer) {
+        byte[] bytes = new byte[buffer.remaining()];
+        buffer.duplicate().get(bytes);
+        return bytes;
+    }
+}
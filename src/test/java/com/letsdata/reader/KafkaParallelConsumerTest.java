@@ -0,0 +1,195 @@
+package com.letsdata.reader;
+
+import org.apache.kafka.clients.consumer.ConsumerRebalanceListener;
+import org.apache.kafka.clients.consumer.ConsumerRecord;
+import org.apache.kafka.clients.consumer.MockConsumer;
+import org.apache.kafka.clients.consumer.OffsetAndMetadata;
+import org.apache.kafka.clients.consumer.OffsetResetStrategy;
+import org.apache.kafka.common.TopicPartition;
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class KafkaParallelConsumerTest {
+    private static final String TOPIC = "topic";
+    private static final TopicPartition PARTITION = new TopicPartition(TOPIC, 0);
+
+    @Test
+    public void testRevokedRecordsAreHandledBeforeTheCommit() {
+        testRevokeReassignAndRepoll(false);
+    }
+
+    @Test
+    public void testRevokedRecordsAreHandledBeforeTheCommitWithKeyAffinity() {
+        testRevokeReassignAndRepoll(true);
+    }
+
+    /**
+     * A partition is revoked while its records are still queued, assigned to the consumer again and re-polled from the
+     * committed offset - with dedup on, every record is handled and the commit covers all of them.
+     */
+    private static void testRevokeReassignAndRepoll(boolean keyAffinity) {
+        ListenerMockConsumer mockConsumer = new ListenerMockConsumer();
+        mockConsumer.updateBeginningOffsets(Collections.singletonMap(PARTITION, 0L));
+        mockConsumer.updateEndOffsets(Collections.singletonMap(PARTITION, 150L));
+        Set<Long> handledOffsetSet = ConcurrentHashMap.newKeySet();
+        KafkaParallelConsumer.RecordHandler recordHandler = consumerRecord -> {
+            // slow enough that the records are still queued when the partition is revoked
+            Thread.sleep(1);
+            handledOffsetSet.add(consumerRecord.offset());
+        };
+        // no commits before the revocation
+        KafkaParallelConsumer kafkaParallelConsumer = new KafkaParallelConsumer(new KafkaReader(mockConsumer, "test"), recordHandler, 2, keyAffinity, 100000, 1000000, 60000);
+        kafkaParallelConsumer.setRecordDeduplicator(new RecordDeduplicator(1000));
+
+        mockConsumer.schedulePollTask(() -> {
+            assign(mockConsumer);
+            addRecords(mockConsumer, 0, 100);
+        });
+        mockConsumer.schedulePollTask(() -> {
+            mockConsumer.listener.onPartitionsRevoked(Collections.singletonList(PARTITION));
+            assertEquals(100, handledOffsetSet.size());
+            assertEquals(100, mockConsumer.committed(Collections.singleton(PARTITION)).get(PARTITION).offset());
+            assign(mockConsumer);
+            // the poll returns the records from the committed offset on
+            addRecords(mockConsumer, 0, 150);
+        });
+        kafkaParallelConsumer.run(TOPIC, 1000);
+
+        assertEquals(150, handledOffsetSet.size());
+        Map<TopicPartition, OffsetAndMetadata> committedMap = mockConsumer.committed(Collections.singleton(PARTITION));
+        assertEquals(150, committedMap.get(PARTITION).offset());
+    }
+
+    @Test
+    public void testProcessedOffsetsAreFlushedCheckpointedAndCommitted() {
+        ListenerMockConsumer mockConsumer = new ListenerMockConsumer();
+        mockConsumer.updateBeginningOffsets(Collections.singletonMap(PARTITION, 0L));
+        Set<Long> handledOffsetSet = ConcurrentHashMap.newKeySet();
+        AtomicInteger flushCount = new AtomicInteger();
+        MapCheckpointStore checkpointStore = new MapCheckpointStore();
+        KafkaParallelConsumer kafkaParallelConsumer = new KafkaParallelConsumer(new KafkaReader(mockConsumer, "test"), consumerRecord -> handledOffsetSet.add(consumerRecord.offset()), 2, 100000, 10, 60000);
+        kafkaParallelConsumer.setFlusher(flushCount::incrementAndGet);
+        kafkaParallelConsumer.setCheckpointStore(checkpointStore);
+
+        mockConsumer.schedulePollTask(() -> {
+            assign(mockConsumer);
+            addRecords(mockConsumer, 0, 50);
+        });
+        kafkaParallelConsumer.run(TOPIC, 1000);
+
+        assertEquals(50, handledOffsetSet.size());
+        // the committed offset is the offset of the next record to read, the checkpoint the last processed offset
+        assertEquals(50, mockConsumer.committed(Collections.singleton(PARTITION)).get(PARTITION).offset());
+        assertEquals("49", checkpointStore.getCheckpoint(CheckpointStore.kafkaPartitionKey(TOPIC, 0)));
+        assertTrue(flushCount.get() > 0);
+    }
+
+    @Test
+    public void testAssignedPartitionsResumeAfterTheirCheckpoint() {
+        ListenerMockConsumer mockConsumer = new ListenerMockConsumer();
+        mockConsumer.updateBeginningOffsets(Collections.singletonMap(PARTITION, 0L));
+        Set<Long> handledOffsetSet = ConcurrentHashMap.newKeySet();
+        MapCheckpointStore checkpointStore = new MapCheckpointStore();
+        checkpointStore.checkpoint(CheckpointStore.kafkaPartitionKey(TOPIC, 0), "19");
+        KafkaParallelConsumer kafkaParallelConsumer = new KafkaParallelConsumer(new KafkaReader(mockConsumer, "test"), consumerRecord -> handledOffsetSet.add(consumerRecord.offset()), 2, 100000, 10, 60000);
+        kafkaParallelConsumer.setCheckpointStore(checkpointStore);
+
+        mockConsumer.schedulePollTask(() -> {
+            assign(mockConsumer);
+            addRecords(mockConsumer, 0, 30);
+        });
+        kafkaParallelConsumer.run(TOPIC, 1000);
+
+        assertEquals(10, handledOffsetSet.size());
+        assertTrue(handledOffsetSet.contains(20L) && handledOffsetSet.contains(29L));
+        assertEquals(30, mockConsumer.committed(Collections.singleton(PARTITION)).get(PARTITION).offset());
+    }
+
+    @Test
+    public void testHandlerFailureCommitsTheRecordsBeforeIt() {
+        ListenerMockConsumer mockConsumer = new ListenerMockConsumer();
+        mockConsumer.updateBeginningOffsets(Collections.singletonMap(PARTITION, 0L));
+        KafkaParallelConsumer kafkaParallelConsumer = new KafkaParallelConsumer(new KafkaReader(mockConsumer, "test"), consumerRecord -> {
+            if (consumerRecord.offset() == 10) {
+                throw new IllegalStateException("handler failure");
+            }
+        }, 2, 100000, 1000, 60000);
+
+        mockConsumer.schedulePollTask(() -> {
+            assign(mockConsumer);
+            addRecords(mockConsumer, 0, 50);
+        });
+        try {
+            kafkaParallelConsumer.run(TOPIC, 10000);
+            fail("the handler failure is rethrown");
+        } catch (RuntimeException ex) {
+            assertTrue(ex.getCause() instanceof IllegalStateException);
+        }
+        // the failed record is read again
+        assertEquals(10, mockConsumer.committed(Collections.singleton(PARTITION)).get(PARTITION).offset());
+    }
+
+    private static void assign(ListenerMockConsumer mockConsumer) {
+        mockConsumer.rebalance(Collections.singletonList(PARTITION));
+        mockConsumer.listener.onPartitionsAssigned(Collections.singletonList(PARTITION));
+    }
+
+    private static void addRecords(MockConsumer<ByteBuffer, ByteBuffer> mockConsumer, long fromOffset, long toOffset) {
+        for (long offset = fromOffset; offset < toOffset; offset++) {
+            ByteBuffer key = ByteBuffer.wrap(("key-" + offset % 7).getBytes(StandardCharsets.UTF_8));
+            ByteBuffer value = ByteBuffer.wrap(("{\"record\":" + offset + "}").getBytes(StandardCharsets.UTF_8));
+            mockConsumer.addRecord(new ConsumerRecord<>(TOPIC, PARTITION.partition(), offset, key, value));
+        }
+    }
+
+    /**
+     * A MockConsumer that keeps the rebalance listener - MockConsumer.rebalance() does not call it.
+     */
+    private static class ListenerMockConsumer extends MockConsumer<ByteBuffer, ByteBuffer> {
+        private ConsumerRebalanceListener listener;
+
+        private ListenerMockConsumer() {
+            super(OffsetResetStrategy.EARLIEST);
+        }
+
+        @Override
+        public synchronized void subscribe(Collection<String> topics, ConsumerRebalanceListener listener) {
+            super.subscribe(topics, listener);
+            this.listener = listener;
+        }
+    }
+
+    private static class MapCheckpointStore implements CheckpointStore {
+        private final Map<String, String> checkpointMap = new ConcurrentHashMap<>();
+
+        @Override
+        public String getCheckpoint(String key) {
+            return checkpointMap.get(key);
+        }
+
+        @Override
+        public void checkpoint(String key, String value) {
+            checkpointMap.put(key, value);
+        }
+
+        @Override
+        public void flush() {
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+}
@@ -0,0 +1,111 @@
+package com.letsdata.reader;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertTrue;
+
+public class RecordDeduplicatorTest {
+    @Test
+    public void testKinesisSequenceNumbers() {
+        RecordDeduplicator recordDeduplicator = new RecordDeduplicator(0);
+        String shardKey = CheckpointStore.kinesisShardKey("stream", "shardId-000000000000");
+        assertTrue(recordDeduplicator.isFirst(shardKey, "99", data("a")));
+        // a longer sequence number is larger
+        assertTrue(recordDeduplicator.isFirst(shardKey, "100", data("b")));
+        assertFalse(recordDeduplicator.isFirst(shardKey, "100", data("b")));
+        assertFalse(recordDeduplicator.isFirst(shardKey, "99", data("a")));
+        // the shards have their own watermarks
+        assertTrue(recordDeduplicator.isFirst(CheckpointStore.kinesisShardKey("stream", "shardId-000000000001"), "99", data("a")));
+    }
+
+    @Test
+    public void testCompareSequenceNumbers() {
+        assertEquals(-1, Integer.signum(RecordDeduplicator.compareSequenceNumbers("9", "10")));
+        assertEquals(1, Integer.signum(RecordDeduplicator.compareSequenceNumbers("21", "12")));
+        assertEquals(0, RecordDeduplicator.compareSequenceNumbers("49590338271490256608559692538361571095921575989136588898", "49590338271490256608559692538361571095921575989136588898"));
+    }
+
+    @Test
+    public void testKafkaOffsets() {
+        RecordDeduplicator recordDeduplicator = new RecordDeduplicator(0);
+        String partitionKey = CheckpointStore.kafkaPartitionKey("topic", 0);
+        assertTrue(recordDeduplicator.isFirst(partitionKey, 0, data("a")));
+        assertTrue(recordDeduplicator.isFirst(partitionKey, 5, null));
+        assertFalse(recordDeduplicator.isFirst(partitionKey, 3, data("c")));
+        assertFalse(recordDeduplicator.isFirst(partitionKey, 5, null));
+        assertTrue(recordDeduplicator.isFirst(CheckpointStore.kafkaPartitionKey("topic", 1), 0, data("a")));
+    }
+
+    @Test
+    public void testContentDuplicates() {
+        RecordDeduplicator recordDeduplicator = new RecordDeduplicator(100);
+        String partitionKey = CheckpointStore.kafkaPartitionKey("topic", 0);
+        assertTrue(recordDeduplicator.isFirst(partitionKey, 0, data("payload")));
+        // a producer retry - the same bytes at a new offset
+        assertFalse(recordDeduplicator.isFirst(partitionKey, 1, data("payload")));
+        assertTrue(recordDeduplicator.isFirst(partitionKey, 2, data("other payload")));
+        // null values are not content checked
+        assertTrue(recordDeduplicator.isFirst(partitionKey, 3, null));
+        assertTrue(recordDeduplicator.isFirst(partitionKey, 4, null));
+    }
+
+    @Test
+    public void testRollbackToTheCommittedOffset() {
+        RecordDeduplicator recordDeduplicator = new RecordDeduplicator(100);
+        String partitionKey = CheckpointStore.kafkaPartitionKey("topic", 0);
+        for (int offset = 0; offset <= 10; offset++) {
+            assertTrue(recordDeduplicator.isFirst(partitionKey, offset, data("record " + offset)));
+        }
+        // a revoked partition whose records after offset 5 were not delivered
+        recordDeduplicator.rollback(partitionKey, 5);
+        assertFalse(recordDeduplicator.isFirst(partitionKey, 5, data("record 5")));
+        for (int offset = 6; offset <= 10; offset++) {
+            assertTrue(recordDeduplicator.isFirst(partitionKey, offset, data("record " + offset)));
+        }
+        // past the rolled back records the content is checked again
+        assertFalse(recordDeduplicator.isFirst(partitionKey, 11, data("record 3")));
+        // a rollback above the watermark does nothing
+        recordDeduplicator.rollback(partitionKey, 20);
+        assertFalse(recordDeduplicator.isFirst(partitionKey, 11, data("record 11")));
+    }
+
+    @Test
+    public void testContentHashesAreEvictedOldestFirst() {
+        int capacity = 16 * 8;
+        RecordDeduplicator recordDeduplicator = new RecordDeduplicator(capacity);
+        String partitionKey = CheckpointStore.kafkaPartitionKey("topic", 0);
+        long offset = 0;
+        for (int i = 0; i < 10000; i++) {
+            assertTrue(recordDeduplicator.isFirst(partitionKey, offset++, data("record " + i)));
+        }
+        // the most recent records are still remembered
+        int rememberedCount = 0;
+        for (int i = 10000 - 64; i < 10000; i++) {
+            if (!recordDeduplicator.isFirst(partitionKey, offset++, data("record " + i))) {
+                rememberedCount++;
+            }
+        }
+        assertTrue(rememberedCount > 0);
+        // the oldest have been evicted
+        assertTrue(recordDeduplicator.isFirst(partitionKey, offset, data("record 0")));
+    }
+
+    @Test
+    public void testHashIgnoresThePositionOutsideTheRemainingBytes() {
+        ByteBuffer data = data("xxpayload");
+        data.position(2);
+        assertEquals(RecordDeduplicator.hash(data("payload")), RecordDeduplicator.hash(data));
+        assertEquals(2, data.position());
+        assertNotEquals(RecordDeduplicator.hash(data("payload")), RecordDeduplicator.hash(data("payloae")));
+    }
+
+    private static ByteBuffer data(String value) {
+        return ByteBuffer.wrap(value.getBytes(StandardCharsets.UTF_8));
+    }
+}
@@ -0,0 +1,179 @@
+package com.letsdata.reader;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class RecordFilterTest {
+    private static final String RECORD = "{\"documentId\":\"doc-1\", \"documentType\":\"WEB_PAGE\", \"crawlTimestamp\":1685331931671, " +
+            "\"score\":1.5e2, \"metadata\":{\"status\":200, \"tags\":[\"a\",{\"b\":\"}\"}], \"lang\":\"en\"}, \"quoted\":\"say \\\"hi\\\"\", \"flag\":true, \"nothing\":null}";
+
+    @Test
+    public void testNoFilterAndNoProjectionIsNull() {
+        assertNull(RecordFilter.parse(null, null));
+        assertNull(RecordFilter.parse(" ", ""));
+    }
+
+    @Test
+    public void testStringPredicates() {
+        assertTrue(matches("documentType == \"WEB_PAGE\""));
+        assertFalse(matches("documentType == \"WEB\""));
+        assertTrue(matches("documentType != \"WEB\""));
+        assertTrue(matches("documentType ^= \"WEB_\""));
+        assertFalse(matches("documentType ^= \"PAGE\""));
+        assertTrue(matches("quoted == \"say \\\"hi\\\"\""));
+    }
+
+    @Test
+    public void testNumberPredicates() {
+        assertTrue(matches("crawlTimestamp >= 1685331931671"));
+        assertFalse(matches("crawlTimestamp > 1685331931671"));
+        assertTrue(matches("crawlTimestamp < 1685331931672"));
+        assertTrue(matches("score == 150"));
+        assertTrue(matches("score <= 150.0"));
+        assertTrue(matches("score > 1e2"));
+        assertTrue(matches("metadata.status == 200"));
+        assertFalse(matches("metadata.status != 200"));
+        // strings do not compare as numbers
+        assertFalse(matches("documentId > 0"));
+    }
+
+    @Test
+    public void testParseNumberMatchesParseDouble() {
+        String[] numbers = {"0", "-0", "1", "-17", "1685331931671", "0.1", "3.14159", "-2.5e-3", "1E22", "1e23", "123456789012345678901234",
+                "0.000000000000000000001", "9007199254740993", "4.9e-324", "1.7976931348623157e308", "1e400", "12.50e+2"};
+        for (String number : numbers) {
+            assertEquals(number, Double.parseDouble(number), parseNumber(number), 0.0);
+        }
+        Random random = new Random(1);
+        for (int i = 0; i < 100000; i++) {
+            String number = random.nextInt(1000000) + "." + random.nextInt(1000) + "e" + (random.nextInt(40) - 20);
+            assertEquals(number, Double.parseDouble(number), parseNumber(number), 0.0);
+        }
+    }
+
+    @Test
+    public void testParseNumberRejectsNonJsonNumbers() {
+        for (String notANumber : new String[]{"", "-", "1.", ".5", "1e", "1e+", "0x10", "NaN", "Infinity", "1f", " 1", "1 ", "\"1\""}) {
+            assertTrue(notANumber, Double.isNaN(parseNumber(notANumber)));
+        }
+    }
+
+    @Test
+    public void testTokenPredicates() {
+        assertTrue(matches("flag == true"));
+        assertFalse(matches("flag == false"));
+        assertTrue(matches("nothing == null"));
+    }
+
+    @Test
+    public void testExistsAndMissing() {
+        assertTrue(matches("metadata.lang exists"));
+        assertTrue(matches("errorCode missing"));
+        assertFalse(matches("errorCode exists"));
+        // a predicate on a missing field is false, except != and missing
+        assertFalse(matches("errorCode == 1"));
+        assertTrue(matches("errorCode != 1"));
+    }
+
+    @Test
+    public void testAndBindsTighterThanOr() {
+        assertTrue(matches("documentType == \"X\" && flag == true || metadata.status == 200"));
+        assertFalse(matches("documentType == \"X\" || flag == true && metadata.status == 404"));
+        assertTrue(matches("documentType == \"WEB_PAGE\" && metadata.status == 200 && flag == true"));
+    }
+
+    @Test
+    public void testKeyPredicates() {
+        RecordFilter recordFilter = RecordFilter.parse("$key ^= \"documentId-\" && flag == true", null);
+        assertTrue(recordFilter.usesKey());
+        assertTrue(recordFilter.matcher().rejectsKey("other-1"));
+        assertFalse(recordFilter.matcher().rejectsKey("documentId-1"));
+        assertTrue(recordFilter.matcher().matches("documentId-1", record(RECORD)));
+        assertFalse(RecordFilter.parse("flag == true", null).matcher().rejectsKey("other-1"));
+        assertTrue(RecordFilter.parse("$key > 10", null).matcher().rejectsKey("9"));
+        assertFalse(RecordFilter.parse("$key > 10", null).matcher().rejectsKey("11"));
+    }
+
+    @Test
+    public void testProjection() {
+        assertEquals("{\"documentId\":\"doc-1\",\"metadata.status\":200,\"metadata.tags\":[\"a\",{\"b\":\"}\"}]}", project("documentId, metadata.status, errorCode, metadata.tags"));
+    }
+
+    @Test
+    public void testWholeRecordWithoutProjection() {
+        assertEquals(RECORD, project(null));
+    }
+
+    @Test
+    public void testDirectBuffers() {
+        ByteBuffer direct = ByteBuffer.allocateDirect(RECORD.length());
+        direct.put(RECORD.getBytes(StandardCharsets.UTF_8)).flip();
+        RecordFilter recordFilter = RecordFilter.parse("metadata.status == 200", "documentType");
+        RecordFilter.Matcher matcher = recordFilter.matcher();
+        assertTrue(matcher.matches(null, direct));
+        ByteArraySink sink = new ByteArraySink(64);
+        matcher.write(direct, sink);
+        assertEquals("{\"documentType\":\"WEB_PAGE\"}", toString(sink.buffer()));
+        assertEquals(0, direct.position());
+    }
+
+    @Test
+    public void testMalformedAndNonObjectRecordsHaveNoFields() {
+        RecordFilter recordFilter = RecordFilter.parse("a == 1", null);
+        assertFalse(recordFilter.matcher().matches(null, record("not json")));
+        assertFalse(recordFilter.matcher().matches(null, record("[1,2]")));
+        assertTrue(recordFilter.matcher().matches(null, record("{\"a\":1, \"b\":")));
+        assertFalse(recordFilter.matcher().matches(null, record("{\"b\":1, \"a\"")));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testInvalidOperator() {
+        RecordFilter.parse("a = 1", null);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testInvalidValue() {
+        RecordFilter.parse("a == abc", null);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testKeyProjection() {
+        RecordFilter.parse(null, "$key");
+    }
+
+    private static boolean matches(String filterExpression) {
+        return RecordFilter.parse(filterExpression, null).matcher().matches(null, record(RECORD));
+    }
+
+    private static double parseNumber(String number) {
+        byte[] bytes = ("x" + number + "x").getBytes(StandardCharsets.UTF_8);
+        return RecordFilter.parseNumber(bytes, 1, bytes.length - 1);
+    }
+
+    private static String project(String projectionFields) {
+        RecordFilter recordFilter = RecordFilter.parse(projectionFields == null ? "flag exists" : null, projectionFields);
+        ByteBuffer record = record(RECORD);
+        assertTrue(recordFilter.matcher().matches(null, record));
+        ByteArraySink sink = new ByteArraySink(64);
+        recordFilter.matcher().write(record, sink);
+        return toString(sink.buffer());
+    }
+
+    private static ByteBuffer record(String json) {
+        // an offset view, as the decoder's output buffer is
+        byte[] bytes = ("xx" + json).getBytes(StandardCharsets.UTF_8);
+        return ByteBuffer.wrap(bytes, 2, bytes.length - 2).slice();
+    }
+
+    private static String toString(ByteBuffer buffer) {
+        return StandardCharsets.UTF_8.decode(buffer.duplicate()).toString();
+    }
+}
@@ -0,0 +1,120 @@
+package com.letsdata.reader;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class RecordSinkRoundTripTest {
+    private File outputDir;
+
+    @Before
+    public void setUp() throws IOException {
+        outputDir = Files.createTempDirectory("RecordSinkRoundTripTest").toFile();
+    }
+
+    @After
+    public void tearDown() {
+        File[] files = outputDir.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+        outputDir.delete();
+    }
+
+    @Test
+    public void testBinaryRoundTripAcrossRolledFiles() throws IOException {
+        List<String> recordList = new ArrayList<>();
+        try (RecordSink recordSink = RecordSink.create("binary", outputDir, "stream", 4096)) {
+            for (int i = 0; i < 500; i++) {
+                String record = "{\"documentId\":\"doc-" + i + "\"}";
+                recordList.add(record);
+                recordSink.write(i % 2 == 0 ? "shardId-000000000000" : "shardId-000000000001", direct(record));
+            }
+        }
+        File[] files = files(BinaryRecordSink.SUFFIX);
+        assertTrue(files.length > 1);
+
+        int index = 0;
+        for (File file : files) {
+            BinaryRecordReader binaryRecordReader = new BinaryRecordReader(file);
+            while (binaryRecordReader.next()) {
+                assertEquals(index % 2 == 0 ? "shardId-000000000000" : "shardId-000000000001", binaryRecordReader.source());
+                assertEquals(recordList.get(index), toString(binaryRecordReader.record()));
+                index++;
+            }
+        }
+        assertEquals(recordList.size(), index);
+    }
+
+    @Test
+    public void testColumnarRoundTrip() throws IOException {
+        try (RecordSink recordSink = RecordSink.create("columnar", outputDir, "stream", 64 * 1024 * 1024)) {
+            for (int i = 0; i < 10000; i++) {
+                String record = "{\"documentId\":\"doc-" + i + "\", \"documentType\":\"" + (i % 3 == 0 ? "WEB_PAGE" : "ERROR") + "\", \"metadata\":{\"status\":" + i + "}" + (i % 2 == 0 ? ", \"errorCode\":1" : "") + "}";
+                recordSink.write("partition-" + (i % 4), ByteBuffer.wrap(record.getBytes(StandardCharsets.UTF_8)));
+                if (i == 5000) {
+                    // a row group ends early on flush
+                    recordSink.flush();
+                }
+            }
+            recordSink.write("partition-0", ByteBuffer.wrap("not a json object".getBytes(StandardCharsets.UTF_8)));
+        }
+        File[] files = files(ColumnarRecordSink.SUFFIX);
+        assertEquals(1, files.length);
+
+        List<String[]> rowList = new ArrayList<>();
+        long rowCount = ColumnarRecordReader.scan(files[0], Arrays.asList("documentType", ColumnarRecordSink.SOURCE_COLUMN, "metadata", "errorCode", ColumnarRecordSink.RAW_COLUMN), values -> {
+            String[] row = new String[values.length];
+            for (int i = 0; i < values.length; i++) {
+                row[i] = values[i] == null ? null : toString(values[i]);
+            }
+            rowList.add(row);
+        });
+        assertEquals(10001, rowCount);
+        assertEquals(10001, rowList.size());
+        for (int i = 0; i < 10000; i++) {
+            String[] row = rowList.get(i);
+            assertEquals(i % 3 == 0 ? "\"WEB_PAGE\"" : "\"ERROR\"", row[0]);
+            assertEquals("\"partition-" + (i % 4) + "\"", row[1]);
+            assertEquals("{\"status\":" + i + "}", row[2]);
+            assertEquals(i % 2 == 0 ? "1" : null, row[3]);
+            assertNull(row[4]);
+        }
+        String[] rawRow = rowList.get(10000);
+        assertNull(rawRow[0]);
+        assertEquals("\"partition-0\"", rawRow[1]);
+        assertEquals("not a json object", rawRow[4]);
+    }
+
+    private File[] files(String suffix) {
+        File[] files = outputDir.listFiles((dir, name) -> name.endsWith("." + suffix));
+        Arrays.sort(files);
+        return files;
+    }
+
+    private static ByteBuffer direct(String value) {
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        ByteBuffer buffer = ByteBuffer.allocateDirect(bytes.length);
+        buffer.put(bytes).flip();
+        return buffer;
+    }
+
+    private static String toString(ByteBuffer buffer) {
+        return StandardCharsets.UTF_8.decode(buffer.duplicate()).toString();
+    }
+}
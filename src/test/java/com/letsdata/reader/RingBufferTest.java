@@ -0,0 +1,145 @@
+package com.letsdata.reader;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class RingBufferTest {
+    @Test
+    public void testCapacityIsRoundedUpToAPowerOfTwo() {
+        assertEquals(16384, new RingBuffer<Integer>(10000).capacity());
+        assertEquals(1024, new RingBuffer<Integer>(1024).capacity());
+        assertEquals(2, new RingBuffer<Integer>(1).capacity());
+    }
+
+    @Test
+    public void testOfferAndPollInOrderUntilFull() {
+        RingBuffer<Integer> ringBuffer = new RingBuffer<>(4);
+        for (int i = 0; i < 4; i++) {
+            assertTrue(ringBuffer.offer(i));
+        }
+        assertFalse(ringBuffer.offer(4));
+        assertEquals(4, ringBuffer.size());
+        assertEquals(0, ringBuffer.remainingCapacity());
+        assertEquals(Integer.valueOf(0), ringBuffer.peek());
+        for (int i = 0; i < 4; i++) {
+            assertEquals(Integer.valueOf(i), ringBuffer.poll());
+        }
+        assertNull(ringBuffer.poll());
+        assertTrue(ringBuffer.isEmpty());
+    }
+
+    @Test
+    public void testWrapsAround() {
+        RingBuffer<Integer> ringBuffer = new RingBuffer<>(4);
+        for (int i = 0; i < 100; i++) {
+            assertTrue(ringBuffer.offer(i));
+            assertTrue(ringBuffer.offer(-i));
+            assertEquals(Integer.valueOf(i), ringBuffer.poll());
+            assertEquals(Integer.valueOf(-i), ringBuffer.poll());
+        }
+        assertTrue(ringBuffer.isEmpty());
+    }
+
+    @Test
+    public void testTimedPollAndOfferTimeOut() throws InterruptedException {
+        RingBuffer<Integer> ringBuffer = new RingBuffer<>(2);
+        assertNull(ringBuffer.poll(10, TimeUnit.MILLISECONDS));
+        ringBuffer.put(1);
+        ringBuffer.put(2);
+        assertFalse(ringBuffer.offer(3, 10, TimeUnit.MILLISECONDS));
+    }
+
+    @Test
+    public void testIteratorIsASnapshotOfTheQueuedElements() {
+        RingBuffer<Integer> ringBuffer = new RingBuffer<>(4);
+        for (int i = 0; i < 6; i++) {
+            ringBuffer.offer(i);
+            if (i % 2 == 1) {
+                ringBuffer.poll();
+            }
+        }
+        Iterator<Integer> iterator = ringBuffer.iterator();
+        ringBuffer.poll();
+        ringBuffer.offer(6);
+        List<Integer> iterated = new ArrayList<>();
+        iterator.forEachRemaining(iterated::add);
+        assertEquals(Arrays.asList(3, 4, 5), iterated);
+        assertTrue(ringBuffer.contains(6));
+        assertFalse(ringBuffer.contains(3));
+        assertEquals("[4, 5, 6]", ringBuffer.toString());
+    }
+
+    @Test(expected = UnsupportedOperationException.class)
+    public void testIteratorRemoveIsNotSupported() {
+        RingBuffer<Integer> ringBuffer = new RingBuffer<>(4);
+        ringBuffer.offer(1);
+        Iterator<Integer> iterator = ringBuffer.iterator();
+        iterator.next();
+        iterator.remove();
+    }
+
+    @Test
+    public void testDrainTo() {
+        RingBuffer<Integer> ringBuffer = new RingBuffer<>(8);
+        for (int i = 0; i < 5; i++) {
+            ringBuffer.offer(i);
+        }
+        List<Integer> drained = new ArrayList<>();
+        assertEquals(3, ringBuffer.drainTo(drained, 3));
+        assertEquals(2, ringBuffer.drainTo(drained));
+        assertEquals(Arrays.asList(0, 1, 2, 3, 4), drained);
+    }
+
+    @Test
+    public void testConcurrentProducersAndConsumersHandOffEveryElementOnce() throws InterruptedException {
+        int threadCount = 4;
+        int perProducerCount = 100000;
+        RingBuffer<Long> ringBuffer = new RingBuffer<>(64);
+        AtomicLong consumedSum = new AtomicLong();
+        AtomicLong consumedCount = new AtomicLong();
+        List<Thread> threadList = new ArrayList<>();
+        for (int t = 0; t < threadCount; t++) {
+            long base = (long) t * perProducerCount;
+            threadList.add(new Thread(() -> {
+                try {
+                    for (long i = 0; i < perProducerCount; i++) {
+                        ringBuffer.put(base + i);
+                    }
+                } catch (InterruptedException ex) {
+                    Thread.currentThread().interrupt();
+                }
+            }));
+            threadList.add(new Thread(() -> {
+                try {
+                    for (int i = 0; i < perProducerCount; i++) {
+                        consumedSum.addAndGet(ringBuffer.take());
+                        consumedCount.incrementAndGet();
+                    }
+                } catch (InterruptedException ex) {
+                    Thread.currentThread().interrupt();
+                }
+            }));
+        }
+        for (Thread thread : threadList) {
+            thread.start();
+        }
+        for (Thread thread : threadList) {
+            thread.join(TimeUnit.SECONDS.toMillis(30));
+        }
+        long total = (long) threadCount * perProducerCount;
+        assertEquals(total, consumedCount.get());
+        assertEquals(total * (total - 1) / 2, consumedSum.get());
+        assertTrue(ringBuffer.isEmpty());
+    }
+}
@@ -0,0 +1,77 @@
+package com.letsdata.reader;
+
+import com.amazonaws.services.kinesis.model.SequenceNumberRange;
+import com.amazonaws.services.kinesis.model.Shard;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class ShardGraphTest {
+    @Test
+    public void testChildrenWaitForTheirParents() {
+        ShardGraph shardGraph = new ShardGraph();
+        // shard 0 split into 1 and 2, which were merged into 3
+        assertEquals(Collections.singletonList("shard-0"), shardGraph.addShards(Arrays.asList(
+                closedShard("shard-0", null, null),
+                closedShard("shard-1", "shard-0", null),
+                closedShard("shard-2", "shard-0", null),
+                openShard("shard-3", "shard-1", "shard-2")), false));
+        assertTrue(shardGraph.hasChildren("shard-0"));
+        assertFalse(shardGraph.hasChildren("shard-3"));
+
+        assertEquals(Arrays.asList("shard-1", "shard-2"), shardGraph.markFinished("shard-0"));
+        // a merged shard waits for its adjacent parent too
+        assertEquals(Collections.emptyList(), shardGraph.markFinished("shard-1"));
+        assertEquals(Collections.singletonList("shard-3"), shardGraph.markFinished("shard-2"));
+    }
+
+    @Test
+    public void testUnknownParentsAreFinished() {
+        ShardGraph shardGraph = new ShardGraph();
+        // the parent has aged out of the retention period
+        assertEquals(Collections.singletonList("shard-1"), shardGraph.addShards(Collections.singletonList(openShard("shard-1", "shard-0", null)), false));
+    }
+
+    @Test
+    public void testReshardWhileReading() {
+        ShardGraph shardGraph = new ShardGraph();
+        assertEquals(Collections.singletonList("shard-0"), shardGraph.addShards(Collections.singletonList(openShard("shard-0", null, null)), false));
+
+        // shard 0 is split - the children are not ready until shard 0 has been read to SHARD_END
+        assertEquals(Collections.emptyList(), shardGraph.addShards(Arrays.asList(
+                closedShard("shard-0", null, null),
+                openShard("shard-1", "shard-0", null),
+                openShard("shard-2", "shard-0", null)), false));
+        assertTrue(shardGraph.hasChildren("shard-0"));
+        assertEquals(Arrays.asList("shard-1", "shard-2"), shardGraph.markFinished("shard-0"));
+        // the children are started once
+        assertEquals(Collections.emptyList(), shardGraph.addShards(Arrays.asList(
+                openShard("shard-1", "shard-0", null),
+                openShard("shard-2", "shard-0", null)), false));
+    }
+
+    @Test
+    public void testSkipClosedShards() {
+        ShardGraph shardGraph = new ShardGraph();
+        assertEquals(Arrays.asList("shard-1", "shard-2"), shardGraph.addShards(Arrays.asList(
+                closedShard("shard-0", null, null),
+                openShard("shard-1", "shard-0", null),
+                openShard("shard-2", "shard-0", null)), true));
+    }
+
+    private static Shard openShard(String shardId, String parentShardId, String adjacentParentShardId) {
+        return new Shard().withShardId(shardId).withParentShardId(parentShardId).withAdjacentParentShardId(adjacentParentShardId)
+                .withSequenceNumberRange(new SequenceNumberRange().withStartingSequenceNumber("0"));
+    }
+
+    private static Shard closedShard(String shardId, String parentShardId, String adjacentParentShardId) {
+        Shard shard = openShard(shardId, parentShardId, adjacentParentShardId);
+        shard.getSequenceNumberRange().setEndingSequenceNumber("100");
+        return shard;
+    }
+}
@@ -0,0 +1,92 @@
+package com.letsdata.reader;
+
+import org.apache.kafka.clients.consumer.MockConsumer;
+import org.apache.kafka.clients.consumer.OffsetAndMetadata;
+import org.apache.kafka.clients.consumer.OffsetResetStrategy;
+import org.apache.kafka.common.PartitionInfo;
+import org.apache.kafka.common.TopicPartition;
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+
+import static org.junit.Assert.assertEquals;
+
+public class TopicOffsetsTest {
+    @Test
+    public void testLagPrefersThePositionThenTheCommittedThenTheBeginningOffset() {
+        TopicOffsets topicOffsets = new TopicOffsets("topic", 4);
+        for (int partition = 0; partition < 4; partition++) {
+            topicOffsets.setBeginningOffset(partition, 10);
+            topicOffsets.setEndOffset(partition, 100);
+        }
+        topicOffsets.setCommittedOffset(0, 50);
+        topicOffsets.setPosition(0, 90);
+        topicOffsets.setCommittedOffset(1, 50);
+        assertEquals(10, topicOffsets.lag(0));
+        assertEquals(50, topicOffsets.lag(1));
+        assertEquals(90, topicOffsets.lag(2));
+        // a position past a stale end offset is not a negative lag
+        topicOffsets.setPosition(3, 120);
+        assertEquals(0, topicOffsets.lag(3));
+        assertEquals(150, topicOffsets.totalLag());
+    }
+
+    @Test
+    public void testUnknownOffsets() {
+        TopicOffsets topicOffsets = new TopicOffsets("topic", 2);
+        assertEquals(TopicOffsets.NO_OFFSET, topicOffsets.lag(0));
+        topicOffsets.setEndOffset(0, 100);
+        assertEquals(TopicOffsets.NO_OFFSET, topicOffsets.lag(0));
+        topicOffsets.setEndOffset(1, 100);
+        topicOffsets.setBeginningOffset(1, 40);
+        // the unknown lags are not summed
+        assertEquals(60, topicOffsets.totalLag());
+    }
+
+    @Test
+    public void testOffsetsOfTheRequestedTopics() {
+        TopicPartition partition0 = new TopicPartition("topic", 0);
+        TopicPartition partition1 = new TopicPartition("topic", 1);
+        MockConsumer<ByteBuffer, ByteBuffer> mockConsumer = new MockConsumer<ByteBuffer, ByteBuffer>(OffsetResetStrategy.EARLIEST) {
+            @Override
+            public synchronized Map<TopicPartition, OffsetAndMetadata> committed(Set<TopicPartition> partitions) {
+                // MockConsumer only returns the commits of its assigned partitions - partition 1 is committed by another group member
+                return Collections.singletonMap(partition1, new OffsetAndMetadata(40));
+            }
+        };
+        TopicPartition otherPartition = new TopicPartition("other", 0);
+        mockConsumer.updatePartitions("topic", Arrays.asList(partitionInfo(partition0), partitionInfo(partition1)));
+        mockConsumer.updatePartitions("other", Collections.singletonList(partitionInfo(otherPartition)));
+        Map<TopicPartition, Long> beginningOffsetMap = new HashMap<>();
+        Map<TopicPartition, Long> endOffsetMap = new HashMap<>();
+        for (TopicPartition topicPartition : Arrays.asList(partition0, partition1, otherPartition)) {
+            beginningOffsetMap.put(topicPartition, 0L);
+            endOffsetMap.put(topicPartition, 100L);
+        }
+        mockConsumer.updateBeginningOffsets(beginningOffsetMap);
+        mockConsumer.updateEndOffsets(endOffsetMap);
+        mockConsumer.assign(Collections.singletonList(partition0));
+        mockConsumer.seek(partition0, 70);
+
+        Map<String, TopicOffsets> topicOffsetsMap = new KafkaReader(mockConsumer, "test").offsets(Collections.singletonList("topic"));
+        assertEquals(Collections.singleton("topic"), topicOffsetsMap.keySet());
+        TopicOffsets topicOffsets = topicOffsetsMap.get("topic");
+        assertEquals(2, topicOffsets.partitionCount());
+        assertEquals(70, topicOffsets.position(0));
+        assertEquals(30, topicOffsets.lag(0));
+        // not assigned - the lag of the group's committed offset
+        assertEquals(TopicOffsets.NO_OFFSET, topicOffsets.position(1));
+        assertEquals(40, topicOffsets.committedOffset(1));
+        assertEquals(60, topicOffsets.lag(1));
+        assertEquals(90, topicOffsets.totalLag());
+    }
+
+    private static PartitionInfo partitionInfo(TopicPartition topicPartition) {
+        return new PartitionInfo(topicPartition.topic(), topicPartition.partition(), null, null, null);
+    }
+}